@@ -0,0 +1,215 @@
+/* ============================================================================
+ * ChunkMessage.java
+ * 
+ * Generated codec class for ChunkMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * ChunkMessage class.
+ */
+public class ChunkMessage {
+    public static final LogSocket.MessageType MESSAGE_TYPE = LogSocket.MessageType.CHUNK;
+
+    protected Integer sequence;
+    protected Integer chunk;
+    protected Long position;
+    protected Integer last;
+    protected List<String> messages;
+    protected List<Object[]> messagesArgs;
+    protected List<ByteBuffer> messagesBytes;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the chunk field.
+     * 
+     * @return The chunk field
+     */
+    public Integer getChunk() {
+        return chunk;
+    }
+
+    /**
+     * Set the chunk field.
+     * 
+     * @param chunk The chunk field
+     */
+    public void setChunk(Integer chunk) {
+        this.chunk = chunk;
+    }
+
+    /**
+     * Get the position field.
+     * 
+     * @return The position field
+     */
+    public Long getPosition() {
+        return position;
+    }
+
+    /**
+     * Set the position field.
+     * 
+     * @param position The position field
+     */
+    public void setPosition(Long position) {
+        this.position = position;
+    }
+
+    /**
+     * Get the last field.
+     * 
+     * @return The last field
+     */
+    public Integer getLast() {
+        return last;
+    }
+
+    /**
+     * Set the last field.
+     * 
+     * @param last The last field
+     */
+    public void setLast(Integer last) {
+        this.last = last;
+    }
+
+    /**
+     * Get the list of messages strings.
+     * 
+     * @return The messages strings
+     */
+    public List<String> getMessages() {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < messages.size(); index++) {
+                if (messagesArgs.get(index) != null)
+                    messages.set(index, String.format(messages.get(index), messagesArgs.get(index)));
+            }
+            messagesArgs = null;
+        }
+        if (messagesBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < messages.size(); index++) {
+                if (messagesBytes.get(index) != null)
+                    messages.set(index, Charset.forName("UTF-8").decode(messagesBytes.get(index).duplicate()).toString());
+            }
+            messagesBytes = null;
+        }
+        return messages;
+    }
+
+    /**
+     * Append a value to the messages field.
+     *
+     * @param value The value
+     */
+    public void addMessage(String value) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        messages.add(value);
+        if (messagesArgs != null) {
+            messagesArgs.add(null);
+        }
+        if (messagesBytes != null) {
+            messagesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the messages field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addMessage(String format, Object... args) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesArgs == null) {
+            messagesArgs = new ArrayList<>(Collections.<Object[]>nCopies(messages.size(), null));
+        }
+        messages.add(format);
+        messagesArgs.add(args);
+        if (messagesBytes != null) {
+            messagesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the messages field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addMessage(ByteBuffer value) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesBytes == null) {
+            messagesBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(messages.size(), null));
+        }
+        messages.add(null);
+        messagesBytes.add(value);
+        if (messagesArgs != null) {
+            messagesArgs.add(null);
+        }
+    }
+
+    /**
+     * Set the list of messages strings.
+     * 
+     * @param messages The messages collection
+     */
+    public void setMessages(List<String> messages) {
+        this.messages = messages;
+        this.messagesArgs = null;
+        this.messagesBytes = null;
+    }
+}
@@ -0,0 +1,91 @@
+/* ============================================================================
+ * CreditMessage.java
+ * 
+ * Generated codec class for CreditMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.*;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * CreditMessage class.
+ */
+public class CreditMessage {
+    public static final LogSocket.MessageType MESSAGE_TYPE = LogSocket.MessageType.CREDIT;
+
+    protected Integer sequence;
+    protected Integer ack;
+    protected Integer credit;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the ack field.
+     * 
+     * @return The ack field
+     */
+    public Integer getAck() {
+        return ack;
+    }
+
+    /**
+     * Set the ack field.
+     * 
+     * @param ack The ack field
+     */
+    public void setAck(Integer ack) {
+        this.ack = ack;
+    }
+
+    /**
+     * Get the credit field.
+     * 
+     * @return The credit field
+     */
+    public Integer getCredit() {
+        return credit;
+    }
+
+    /**
+     * Set the credit field.
+     * 
+     * @param credit The credit field
+     */
+    public void setCredit(Integer credit) {
+        this.credit = credit;
+    }
+}
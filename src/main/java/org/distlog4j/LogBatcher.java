@@ -0,0 +1,273 @@
+/* ============================================================================
+ * LogBatcher.java
+ *
+ * Adaptive LOG to LOGS batching controller
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.ArrayList;
+
+import org.zeromq.api.Message.FrameBuilder;
+
+/**
+ * LogBatcher class.
+ *
+ * Sits around LogSocket.send(LogsMessage) on the shipping I/O thread and
+ * folds consecutive lines of the same file, origin and headers into one
+ * LOGS message. Lines come from many call sites, so the lineNum of each is
+ * carried in the line_nums frame unless they happen to run on from the
+ * first; deferred formats are carried over, to be formatted straight into
+ * the frame when the batch is encoded. The
+ * target batch size doubles while the sender is under pressure (more lines
+ * waiting than fit in a batch, a queue filling towards capacity, refused
+ * sends, or send latency above target) and decays back towards one when
+ * traffic is light. The caller flushes whenever its queue
+ * runs dry, so an idle sender never waits for a batch to fill.
+ *
+ * libzmq does not expose the depth of a socket's outbound pipe, so the
+ * backlog in front of the socket and refused sends stand in for nearing
+ * the send high-water mark.
+ *
+ * All methods other than the MXBean getters must be called from the
+ * thread that owns the socket.
+ */
+public class LogBatcher implements LogBatcherMXBean {
+    //  The messages count of a LOGS message is a single octet
+    public static final int MAX_BATCH_SIZE = 255;
+
+    //  Backlog fractions treated as pressure and as light traffic
+    private static final int HIGH_WATER_SHIFT = 1;    //  1/2 of capacity
+    private static final int LOW_WATER_SHIFT = 3;     //  1/8 of capacity
+
+    private final LogSocket socket;
+    private final int capacity;
+    private final long latencyTargetNanos;
+
+    //  Batch being assembled
+    private LogMessage first;
+    private LogsMessage pending;
+    private int pendingSize;
+    private final int[] lineNums = new int[MAX_BATCH_SIZE];
+    private boolean contiguous;
+    private int backlog;
+    private int sequence;
+
+    //  Metrics, written by the I/O thread only
+    private volatile long latencyNanos;
+    private volatile int targetBatchSize = 1;
+    private volatile int lastBatchSize;
+    private volatile long batchesSent;
+    private volatile long linesSent;
+    private volatile long sendFailures;
+    private volatile long linesLost;
+    private volatile long growCount;
+    private volatile long shrinkCount;
+
+    /**
+     * Create a new LogBatcher.
+     *
+     * @param socket The socket batches are sent on
+     * @param capacity The capacity of the queue feeding this batcher
+     * @param latencyTargetMicros The send latency above which batches grow
+     */
+    public LogBatcher(LogSocket socket, int capacity, long latencyTargetMicros) {
+        assert (socket != null);
+        this.socket = socket;
+        this.capacity = capacity;
+        this.latencyTargetNanos = latencyTargetMicros * 1000;
+    }
+
+    /**
+     * Add a line to the current batch, sending the batch when it reaches
+     * the target size or when the line cannot join it.
+     *
+     * @param message The line to send
+     * @param backlog The number of messages still queued behind this one
+     * @return The number of lines sent, which is zero while the line only
+     *         waits in the batch; lines of a refused send are counted by
+     *         getLinesLost() instead
+     */
+    public int add(LogMessage message, int backlog) {
+        this.backlog = backlog;
+        int sent = 0;
+        if (first != null && !canJoin(message))
+            sent = flush();
+
+        int lineNum = message.lineNum != null ? message.lineNum : 0;
+        if (first == null) {
+            first = message;
+            lineNums[0] = lineNum;
+            contiguous = true;
+            pendingSize = 1;
+        } else {
+            if (pending == null) {
+                pending = new LogsMessage();
+                pending.setHeaders(first.headers);
+                pending.setIp(first.getIp());
+                pending.setPort(first.port);
+                pending.setFileName(first.getFileName());
+                pending.setLineNum(lineNums[0]);
+                pending.setMessages(new ArrayList<String>(targetBatchSize));
+                append(first);
+            }
+            append(message);
+            contiguous &= lineNum == lineNums[0] + pendingSize;
+            lineNums[pendingSize++] = lineNum;
+        }
+
+        if (pendingSize >= targetBatchSize)
+            sent += flush();
+        return sent;
+    }
+
+    /**
+     * Send whatever has been batched so far. A batch of one goes out as the
+     * original LOG message.
+     *
+     * @return The number of lines sent, which is zero if there was nothing
+     *         to send or the socket refused the batch; the lines of a refused
+     *         batch are counted by getLinesLost()
+     */
+    public int flush() {
+        if (first == null)
+            return 0;
+
+        long start = System.nanoTime();
+        boolean success;
+        if (pending == null) {
+            first.setSequence(++sequence);
+            success = socket.send(first);
+        } else {
+            if (!contiguous) {
+                FrameBuilder builder = new FrameBuilder();
+                for (int index = 0; index < pendingSize; index++)
+                    builder.putInt(lineNums[index]);
+                pending.setLineNums(builder.build());
+            }
+            pending.setSequence(++sequence);
+            success = socket.send(pending);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int size = pendingSize;
+        lastBatchSize = size;
+        batchesSent++;
+        if (success) {
+            linesSent += size;
+        } else {
+            sendFailures++;
+            linesLost += size;
+        }
+        first = null;
+        pending = null;
+        pendingSize = 0;
+
+        adapt(elapsed, success);
+        return success ? size : 0;
+    }
+
+    //  Add the text of a line to the batch, leaving a deferred format for
+    //  the socket to format straight into the frame
+    private void append(LogMessage message) {
+        if (message.messageFormat != null)
+            pending.addMessage(message.messageFormat, message.messageArgs);
+        else
+            pending.addMessage(message.message != null ? message.message : "");
+    }
+
+    //  A line joins the batch if it comes from the same file and origin
+    //  with the same headers
+    private boolean canJoin(LogMessage message) {
+        if (pendingSize >= MAX_BATCH_SIZE)
+            return false;
+        return equal(message.getFileName(), first.getFileName())
+            && equal(message.getIp(), first.getIp())
+            && equal(message.port, first.port)
+            && equal(message.headers, first.headers);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    //  Grow multiplicatively under pressure, shrink gradually when light
+    private void adapt(long elapsed, boolean success) {
+        latencyNanos += (elapsed - latencyNanos) >> 3;
+
+        int target = targetBatchSize;
+        boolean pressure = !success
+            || backlog > target
+            || backlog >= capacity >> HIGH_WATER_SHIFT
+            || latencyNanos > latencyTargetNanos;
+        if (pressure) {
+            if (target < MAX_BATCH_SIZE) {
+                targetBatchSize = Math.min(MAX_BATCH_SIZE, target << 1);
+                growCount++;
+            }
+        } else if (target > 1 && backlog <= capacity >> LOW_WATER_SHIFT
+                && backlog < target >> 1) {
+            targetBatchSize = Math.max(1, target - (target >> 2) - 1);
+            shrinkCount++;
+        }
+    }
+
+    @Override
+    public int getTargetBatchSize() {
+        return targetBatchSize;
+    }
+
+    @Override
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @Override
+    public long getSendLatencyMicros() {
+        return latencyNanos / 1000;
+    }
+
+    @Override
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    @Override
+    public long getLinesSent() {
+        return linesSent;
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures;
+    }
+
+    @Override
+    public long getLinesLost() {
+        return linesLost;
+    }
+
+    @Override
+    public long getGrowCount() {
+        return growCount;
+    }
+
+    @Override
+    public long getShrinkCount() {
+        return shrinkCount;
+    }
+}
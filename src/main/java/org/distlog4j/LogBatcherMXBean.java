@@ -0,0 +1,73 @@
+/* ============================================================================
+ * LogBatcherMXBean.java
+ *
+ * Management interface for LogBatcher
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+/**
+ * LogBatcherMXBean interface.
+ *
+ * Exposes the decisions of a LogBatcher so they can be watched over JMX.
+ */
+public interface LogBatcherMXBean {
+    /**
+     * @return The batch size the controller is currently aiming for
+     */
+    int getTargetBatchSize();
+
+    /**
+     * @return The number of log lines in the most recently sent batch
+     */
+    int getLastBatchSize();
+
+    /**
+     * @return The smoothed time spent in LogSocket.send, in microseconds
+     */
+    long getSendLatencyMicros();
+
+    /**
+     * @return The number of LOG or LOGS messages handed to the socket
+     */
+    long getBatchesSent();
+
+    /**
+     * @return The number of log lines carried by those messages
+     */
+    long getLinesSent();
+
+    /**
+     * @return The number of sends the socket refused
+     */
+    long getSendFailures();
+
+    /**
+     * @return The number of log lines carried by refused sends
+     */
+    long getLinesLost();
+
+    /**
+     * @return The number of times the target batch size was raised
+     */
+    long getGrowCount();
+
+    /**
+     * @return The number of times the target batch size was lowered
+     */
+    long getShrinkCount();
+}
@@ -0,0 +1,597 @@
+/* ============================================================================
+ * LogCollector.java
+ *
+ * Collector loop storing LOG/LOGS, answering REQUEST, REPLAY and QUERY,
+ * and forwarding to SUBSCRIBErs
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.zeromq.ZMQException;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+
+/**
+ * LogCollector class.
+ *
+ * Reads a ROUTER socket on its own thread, appends every LOG and LOGS line
+ * to a LogStore, and answers each REQUEST with a REPLY carrying the stored
+ * lines of the range. The REPLY echoes the sequence of its REQUEST so that
+ * clients can match them up. REQUESTs go through a LogReplayScheduler,
+ * which holds them for a moment so that concurrent requests for the same
+ * file share their reads. Subscribers receive every stored LOG and LOGS
+ * whose fileName they follow through a LogTail, and every stored line is
+ * added to a LogIndex so that QUERY can find lines by their words. LogStats
+ * sketches every received line by call site and sender. A LogDeduplicator
+ * drops LOG and LOGS a sender retried, before they are decoded, keeping
+ * its windows by the peer ids of a LogPeers registry.
+ *
+ * A REQUESTS message asks for many ranges at once. Its ranges are sorted by
+ * file and start, overlapping or adjacent ones are read in a single scan,
+ * and each range is answered with its own REPLY whose RANGE_HEADER is the
+ * index of the range in the request.
+ *
+ * Wide ranges are streamed instead: a REPLAY opens a stream that is sent as
+ * numbered CHUNKs of up to MAX_REPLY_LINES lines, but only while the client
+ * has granted credit for them with CREDIT, and never more than the credit
+ * of its REPLAY, at most MAX_WINDOW, beyond the last chunk a CREDIT acked.
+ * Only the chunk being sent is held in memory, and a client that lost
+ * chunks resumes by sending its REPLAY again from the last chunk it
+ * received and the store position that chunk ended at. While the stream is
+ * open, the collector checks that chunk lies between the last acked and
+ * the last sent, and resumes from the position it recorded for it.
+ *
+ * Stored lines are handed to REPLY and CHUNK messages as slices of the
+ * mapped segments, and their bytes are copied straight into the frame
+ * being built; they are never decoded on the collector.
+ *
+ * A request that cannot be handled is answered with a REPLY carrying its
+ * sequence and an ERROR_HEADER describing the failure. Other messages come
+ * from shippers that do not read replies; their failures are only counted.
+ */
+public class LogCollector implements Runnable, Closeable {
+    //  Header keys of REPLY messages
+    public static final String FILE_NAME_HEADER = "fileName";
+    public static final String START_HEADER = "start";
+    public static final String END_HEADER = "end";
+    public static final String MORE_HEADER = "more";
+    public static final String RANGE_HEADER = "range";
+    public static final String ERROR_HEADER = "error";
+
+    //  The messages count of a REPLY message is a single octet
+    public static final int MAX_REPLY_LINES = 255;
+
+    //  Chunks of a stream sent and not yet acked, at most
+    public static final int MAX_WINDOW = 1024;
+
+    //  How long a receive waits before store maintenance runs
+    private static final int RECEIVE_TIMEOUT = 100;
+    private static final long RETENTION_MILLIS = 1000;
+
+    //  Heap allowed for the word index
+    private static final long INDEX_BYTES = 64 << 20;
+
+    //  How long a stream waits for credit before it is dropped
+    private static final long STREAM_TIMEOUT_MILLIS = 60000;
+
+    protected final LogSocket socket;
+    protected final LogStore store;
+    protected final LogReplayScheduler scheduler;
+    protected final LogTail tail;
+    protected final LogIndex index = new LogIndex(INDEX_BYTES);
+    protected final LogStats stats = new LogStats();
+    protected final LogPeers peers = new LogPeers(LogPeers.DEFAULT_CAPACITY);
+    protected final LogDeduplicator deduplicator = new LogDeduplicator(peers);
+    private final Socket router;
+    private final Map<ByteBuffer, Stream> streams = new HashMap<>();
+    private volatile long failures;
+
+    private volatile boolean running;
+    private Thread thread;
+    private long lastRetention;
+    private int receiveTimeout = RECEIVE_TIMEOUT;
+    private boolean backlog;
+
+    /**
+     * Create a new LogCollector.
+     *
+     * The socket is set to ROUTER_MANDATORY with a send timeout of 0, so a
+     * send to a client that is not reading fails instead of blocking the
+     * collector.
+     *
+     * @param socket A ROUTER socket, owned by the collector from now on
+     * @param store The store lines are appended to
+     */
+    public LogCollector(Socket socket, LogStore store) {
+        assert (socket != null && store != null);
+        socket.getZMQSocket().setReceiveTimeOut(RECEIVE_TIMEOUT);
+        socket.getZMQSocket().setRouterMandatory(true);
+        socket.getZMQSocket().setSendTimeOut(0);
+        this.router = socket;
+        this.socket = new LogSocket(socket);
+        this.socket.setPeers(peers);
+        this.socket.setSequenceFilter(deduplicator);
+        this.store = store;
+        this.scheduler = new LogReplayScheduler(store, this.socket);
+        this.tail = new LogTail(this.socket);
+    }
+
+    /**
+     * Get the scheduler answering REQUESTs, to tune its window and cache
+     * before the collector is started.
+     *
+     * @return The scheduler
+     */
+    public LogReplayScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get the engine forwarding messages to subscribers.
+     *
+     * @return The tail
+     */
+    public LogTail getTail() {
+        return tail;
+    }
+
+    /**
+     * Get the sketches of received lines, to register over JMX.
+     *
+     * @return The stats
+     */
+    public LogStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Get the filter dropping duplicate LOG and LOGS, for its loss counts.
+     *
+     * @return The deduplicator
+     */
+    public LogDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Get the number of messages that could not be handled.
+     *
+     * @return The message count
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Start the collector thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "distlog4j-collector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Collector loop; handles messages until closed.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            LogSocket.MessageType type = socket.receive();
+            if (type != null)
+                handle(type);
+            if (scheduler.hasPending() && scheduler.getDelay() == 0)
+                scheduler.flush();
+            backlog = tail.drain();
+            maintain();
+        }
+    }
+
+    /**
+     * Handle one received message.
+     *
+     * @param type The type of message just received on the socket
+     */
+    protected void handle(LogSocket.MessageType type) {
+        try {
+            switch (type) {
+                case LOG:
+                    ingest(socket.getLog());
+                    break;
+                case LOGS:
+                    ingest(socket.getLogs());
+                    break;
+                case REQUEST:
+                    replay(socket.getRequest());
+                    break;
+                case REQUESTS:
+                    replay(socket.getRequests());
+                    break;
+                case REPLAY:
+                    replay(socket.getReplay());
+                    break;
+                case CREDIT:
+                    credit(socket.getCredit());
+                    break;
+                case SUBSCRIBE:
+                    tail.subscribe(socket.getAddress(), socket.getSubscribe());
+                    break;
+                case UNSUBSCRIBE:
+                    tail.unsubscribe(socket.getAddress(), socket.getUnsubscribe());
+                    break;
+                case QUERY:
+                    query(socket.getQuery());
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException ex) {
+            fail(type, ex);
+        }
+    }
+
+    /**
+     * Count a message that could not be handled, and answer a request with
+     * a REPLY carrying its sequence and the failure.
+     *
+     * @param type The type of message that failed
+     * @param ex The failure
+     */
+    protected void fail(LogSocket.MessageType type, Exception ex) {
+        failures++;
+        switch (type) {
+            case REQUEST:
+            case REQUESTS:
+            case REPLAY:
+            case QUERY:
+                break;
+            default:
+                return;                     //  Nobody reads a reply
+        }
+        ReplyMessage reply = new ReplyMessage();
+        reply.setSequence(sequence(type));
+        reply.putHeader(ERROR_HEADER, type + ": " + ex);
+        reply.setMessages(new ArrayList<String>());
+        try {
+            socket.send(reply);
+        } catch (ZMQException gone) {
+            //  The client has disconnected
+        }
+    }
+
+    //  Sequence of the message just received
+    private int sequence(LogSocket.MessageType type) {
+        Integer sequence;
+        switch (type) {
+            case LOG:
+                sequence = socket.getLog().getSequence();
+                break;
+            case LOGS:
+                sequence = socket.getLogs().getSequence();
+                break;
+            case REQUEST:
+                sequence = socket.getRequest().getSequence();
+                break;
+            case REQUESTS:
+                sequence = socket.getRequests().getSequence();
+                break;
+            case REPLAY:
+                sequence = socket.getReplay().getSequence();
+                break;
+            case CREDIT:
+                sequence = socket.getCredit().getSequence();
+                break;
+            case SUBSCRIBE:
+                sequence = socket.getSubscribe().getSequence();
+                break;
+            case UNSUBSCRIBE:
+                sequence = socket.getUnsubscribe().getSequence();
+                break;
+            case QUERY:
+                sequence = socket.getQuery().getSequence();
+                break;
+            default:
+                sequence = null;
+                break;
+        }
+        return sequence != null ? sequence : 0;
+    }
+
+    /**
+     * Store a LOG message.
+     *
+     * @param message The message received
+     */
+    protected void ingest(LogMessage message) throws IOException {
+        stats.record(message);
+        if (message.getFileName() != null) {
+            Integer lineNum = message.getLineNum();
+            long position = store.append(message);
+            index.add(message.getFileName(), lineNum != null ? lineNum : 0, position,
+                message.getMessage());
+            tail.publish(message);
+        }
+    }
+
+    /**
+     * Store a LOGS message.
+     *
+     * @param message The message received
+     */
+    protected void ingest(LogsMessage message) throws IOException {
+        stats.record(message);
+        String fileName = message.getFileName();
+        if (fileName != null) {
+            List<String> lines = message.getMessages();
+            for (int line = 0; line < lines.size(); line++) {
+                int lineNum = message.getLineNum(line);
+                long position = store.append(fileName, lineNum, lines.get(line));
+                index.add(fileName, lineNum, position, lines.get(line));
+            }
+            tail.publish(message);
+        }
+    }
+
+    /**
+     * Answer a QUERY with the lines holding all of its words. The client
+     * fetches a line itself with a REQUEST of its lineNum from its
+     * position, which replies with the line first.
+     *
+     * @param query The query received
+     */
+    protected void query(QueryMessage query) {
+        String fileName = query.getFileName();
+        ResultsMessage results = index.query(query.getQuery(),
+            fileName == null || fileName.isEmpty() ? null : fileName, query.getLimit());
+        results.setSequence(query.getSequence());
+        socket.send(results);
+    }
+
+    /**
+     * Hand a REQUEST to the scheduler, which answers it with the stored
+     * lines of its range. A range holding more lines than one REPLY can
+     * carry is cut short, and the "more" header gives the store position to
+     * ask for next.
+     *
+     * @param request The request received
+     */
+    protected void replay(RequestMessage request) {
+        scheduler.submit(socket.getAddress(), request);
+    }
+
+    /**
+     * Answer every range of a REQUESTS with a REPLY, reading each file front
+     * to back once.
+     *
+     * @param requests The request received
+     */
+    protected void replay(RequestsMessage requests) {
+        for (ReplyMessage reply : scheduler.read(LogRanges.from(requests))) {
+            reply.setSequence(requests.getSequence());
+            socket.send(reply);
+        }
+    }
+
+    /**
+     * Open a stream for a REPLAY, replacing any stream the client had open
+     * under the same sequence, and send the chunks it has credit for. The
+     * stream starts at the chunk after resume, from the store position that
+     * chunk ended at.
+     *
+     * @param replay The replay received
+     * @throws IllegalArgumentException if the stream is open and resume is
+     *         before its last acked chunk or after its last sent chunk
+     */
+    protected void replay(ReplayMessage replay) {
+        Stream stream = new Stream();
+        stream.address = socket.getAddress();
+        stream.sequence = replay.getSequence();
+        stream.fileName = replay.getFileName();
+        stream.start = replay.getStart();
+        stream.end = replay.getEnd();
+        stream.chunk = replay.getResume();
+        stream.position = replay.getPosition() != null ? replay.getPosition() : 0;
+        stream.credit = replay.getCredit();
+        stream.positions = new long[Math.max(1, Math.min(stream.credit, MAX_WINDOW))];
+        stream.lastActive = System.currentTimeMillis();
+
+        //  A stream still open knows where each unacked chunk ended
+        ByteBuffer key = key(stream.address, stream.sequence);
+        Stream open = streams.get(key);
+        if (open != null) {
+            if (stream.chunk < open.acked || stream.chunk > open.chunk)
+                throw new IllegalArgumentException("Resume " + stream.chunk + " is outside chunks "
+                    + open.acked + " to " + open.chunk);
+            stream.position = stream.chunk == open.acked ? open.ackedPosition
+                : open.positions[stream.chunk % open.positions.length];
+        }
+        stream.acked = stream.chunk;
+        stream.ackedPosition = stream.position;
+        streams.put(key, stream);
+        pump(key, stream);
+    }
+
+    /**
+     * Add the credit of a CREDIT to its stream, move its acked chunk up to
+     * ack, and send the chunks it now has credit for. A CREDIT for a finished
+     * or unknown stream, or acking a chunk before the last acked or after
+     * the last sent, is ignored.
+     *
+     * @param credit The credit received
+     */
+    protected void credit(CreditMessage credit) {
+        ByteBuffer key = key(socket.getAddress(), credit.getSequence());
+        Stream stream = streams.get(key);
+        if (stream == null)
+            return;
+        int ack = credit.getAck();
+        if (ack < stream.acked || ack > stream.chunk)
+            return;
+        if (ack > stream.acked) {
+            stream.ackedPosition = stream.positions[ack % stream.positions.length];
+            stream.acked = ack;
+        }
+        stream.credit += credit.getCredit();
+        stream.lastActive = System.currentTimeMillis();
+        pump(key, stream);
+    }
+
+    //  Send chunks while the stream has credit and room in its window;
+    //  forget it after the last
+    private void pump(ByteBuffer key, Stream stream) {
+        List<ByteBuffer> lines = new ArrayList<>(MAX_REPLY_LINES);
+        while (stream.credit > 0 && stream.chunk - stream.acked < stream.positions.length) {
+            lines.clear();
+            long next = stream.fileName == null ? -1
+                : collect(stream.fileName, stream.start, stream.end, stream.position, lines);
+
+            ChunkMessage chunk = new ChunkMessage();
+            chunk.setSequence(stream.sequence);
+            chunk.setChunk(++stream.chunk);
+            chunk.setPosition(next < 0 ? stream.position : next);
+            chunk.setLast(next < 0 ? 1 : 0);
+            for (ByteBuffer line : lines)
+                chunk.addMessage(line);
+            socket.setAddress(stream.address);
+            if (!socket.send(chunk)) {
+                //  Not sent; the client resumes from its last chunk
+                stream.chunk--;
+                stream.credit = 0;
+                return;
+            }
+            stream.credit--;
+            if (next < 0) {
+                streams.remove(key);
+                return;
+            }
+            stream.positions[stream.chunk % stream.positions.length] = next;
+            stream.position = next;
+        }
+    }
+
+    //  Streams are keyed by client address and the sequence of their REPLAY
+    private static ByteBuffer key(Frame address, int sequence) {
+        byte[] data = address == null ? new byte[0] : address.getData();
+        ByteBuffer key = ByteBuffer.allocate(data.length + 4);
+        key.put(data).putInt(sequence);
+        key.flip();
+        return key;
+    }
+
+    /**
+     * Collect up to MAX_REPLY_LINES stored lines of a range, from a store
+     * position on, as slices of the mapped segments.
+     *
+     * @param fileName The file to read
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param from The store position to read from, or 0
+     * @param lines Receives the UTF-8 bytes of each line
+     * @return The store position to continue from, or -1 if the range is exhausted
+     */
+    protected long collect(String fileName, int start, int end, long from, final List<ByteBuffer> lines) {
+        final long[] next = { -1 };
+        store.scan(fileName, start, end, from, new LogStore.Visitor() {
+            @Override
+            public boolean visit(long position, int lineNum, long timestamp, ByteBuffer message) {
+                if (lines.size() == MAX_REPLY_LINES) {
+                    next[0] = position;
+                    return false;
+                }
+                lines.add(message.slice());
+                return true;
+            }
+        });
+        return next[0];
+    }
+
+    //  Receive timeout, group commit, retention and stream expiry between messages
+    private void maintain() {
+        //  Wake up in time to answer held requests and drain subscribers
+        int timeout = RECEIVE_TIMEOUT;
+        if (scheduler.hasPending())
+            timeout = (int) Math.max(1, Math.min(scheduler.getDelay(), RECEIVE_TIMEOUT));
+        if (backlog)
+            timeout = 1;
+        if (timeout != receiveTimeout) {
+            router.getZMQSocket().setReceiveTimeOut(timeout);
+            receiveTimeout = timeout;
+        }
+
+        store.maybeCommit();
+        long now = System.currentTimeMillis();
+        if (now - lastRetention >= RETENTION_MILLIS) {
+            lastRetention = now;
+            store.enforceRetention();
+            Iterator<Stream> iterator = streams.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().lastActive > STREAM_TIMEOUT_MILLIS)
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stop the collector thread, commit the store and close the socket.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        store.commit();
+        socket.close();
+    }
+
+    //  Progress of one streamed replay
+    private static final class Stream {
+        Frame address;
+        int sequence;
+        String fileName;
+        int start;
+        int end;
+        long position;      //  Store position of the next chunk
+        int chunk;          //  Number of the last chunk sent
+        int credit;         //  Chunks that may be sent before more credit
+        int acked;          //  Number of the last chunk acked
+        long ackedPosition; //  Store position the last acked chunk ended at
+        long[] positions;   //  Where each unacked chunk ended, by chunk number
+        long lastActive;
+    }
+}
@@ -0,0 +1,134 @@
+/* ============================================================================
+ * LogDeduplicator.java
+ *
+ * Drops LOG/LOGS a sender has already delivered, by header sequence
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import org.zeromq.api.Message.Frame;
+
+/**
+ * LogDeduplicator class.
+ *
+ * A LogSocket.SequenceFilter that keeps a SequenceWindow per peer id of a
+ * LogPeers registry and rejects a LOG or LOGS whose sequence that sender
+ * already delivered, so that retries after a timeout are stored once. The
+ * check runs before the body of the message is decoded. Sequences a sender
+ * skipped are counted as lost. Other message types, whose sequence
+ * correlates replies rather than numbering a stream, always pass.
+ *
+ * Windows are kept for the peers the registry knows, and reset when it
+ * removes one. Messages received without a peer id, as on a DEALER, share
+ * one window. Used from the receiving thread only.
+ */
+public class LogDeduplicator implements LogSocket.SequenceFilter, LogPeers.Listener {
+    public static final int DEFAULT_WINDOW = 1024;
+
+    private final int window;
+    private final SequenceWindow[] senders;
+    private SequenceWindow direct;
+    private int senderCount;
+
+    private long duplicates;
+    private long lostBefore;        //  Lost counts of removed windows
+
+    /**
+     * Create a new LogDeduplicator with the default window.
+     *
+     * @param peers The registry of the socket the filter is set on
+     */
+    public LogDeduplicator(LogPeers peers) {
+        this(peers, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Create a new LogDeduplicator.
+     *
+     * @param peers The registry of the socket the filter is set on
+     * @param window The number of sequences remembered per sender
+     */
+    public LogDeduplicator(LogPeers peers, int window) {
+        assert (peers != null && window > 0);
+        this.window = window;
+        this.senders = new SequenceWindow[peers.getCapacity()];
+        peers.addListener(this);
+    }
+
+    @Override
+    public boolean accept(LogSocket.MessageType type, Frame address, int peer, long sequence) {
+        if (type != LogSocket.MessageType.LOG && type != LogSocket.MessageType.LOGS)
+            return true;
+        SequenceWindow sender = peer < 0 ? direct : senders[peer];
+        if (sender == null) {
+            sender = new SequenceWindow(LogSocket.SEQUENCE_BITS, window);
+            if (peer < 0)
+                direct = sender;
+            else
+                senders[peer] = sender;
+            senderCount++;
+        }
+        if (sender.accept(sequence))
+            return true;
+        duplicates++;
+        return false;
+    }
+
+    @Override
+    public void removed(int peer) {
+        if (senders[peer] == null)
+            return;
+        lostBefore += senders[peer].getLost();
+        senders[peer] = null;
+        senderCount--;
+    }
+
+    /**
+     * Get the number of duplicate messages dropped.
+     *
+     * @return The duplicate count
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Get the number of sequences senders skipped, a measure of messages
+     * lost on the way.
+     *
+     * @return The lost message count
+     */
+    public long getLost() {
+        long lost = lostBefore;
+        if (direct != null)
+            lost += direct.getLost();
+        for (SequenceWindow sender : senders) {
+            if (sender != null)
+                lost += sender.getLost();
+        }
+        return lost;
+    }
+
+    /**
+     * Get the number of senders remembered.
+     *
+     * @return The sender count
+     */
+    public int getSenders() {
+        return senderCount;
+    }
+}
@@ -0,0 +1,232 @@
+/* ============================================================================
+ * LogGovernor.java
+ *
+ * Sender-side rate limiting per log call site
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LogGovernor class.
+ *
+ * Applies a token bucket to every (fileName, lineNum) pair so that one hot
+ * log line cannot saturate the link. Buckets live in a fixed open-addressed
+ * table; once a key has been seen, checking it is a probe, a compare and a
+ * single CAS, with no locks and no allocation. Suppressed lines are counted
+ * per key and reported periodically as summary LogMessages whose headers
+ * carry the count. Keys left idle for a whole summary window give their
+ * slot back, leaving a tombstone so the keys probed past them stay found.
+ *
+ * Each bucket is kept as a theoretical arrival time (GCRA), which is
+ * equivalent to a token bucket but fits in one long.
+ */
+public class LogGovernor {
+    //  Header keys of summary messages
+    public static final String SUPPRESSED_HEADER = "suppressed";
+    public static final String WINDOW_HEADER = "window";
+
+    //  Linear probes before a key is let through untracked
+    private static final int MAX_PROBES = 16;
+
+    //  Marks a reclaimed slot, which keeps probe runs unbroken
+    private static final Bucket TOMBSTONE = new Bucket("", 0, 0);
+
+    private final AtomicReferenceArray<Bucket> table;
+    private final int mask;
+    private final long intervalNanos;     //  Time to earn one token
+    private final long toleranceNanos;    //  Time to earn a full burst
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+    private long lastSummary = System.nanoTime();
+    private volatile long reclaimed;
+
+    /**
+     * Create a new LogGovernor.
+     *
+     * @param ratePerSecond The sustained lines per second allowed per key
+     * @param burst The number of lines a quiet key may send at once
+     * @param capacity The number of keys tracked, rounded up to a power of two
+     */
+    public LogGovernor(int ratePerSecond, int burst, int capacity) {
+        assert (ratePerSecond > 0 && burst > 0 && capacity > 0);
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        this.toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    /**
+     * Take a token for a log line. Safe to call from any thread.
+     *
+     * @param fileName The originating file
+     * @param lineNum The originating line number
+     * @return true if the line may be sent, false if it was suppressed
+     */
+    public boolean tryAcquire(String fileName, int lineNum) {
+        Bucket bucket = bucket(fileName, lineNum);
+        if (bucket == null) {
+            untracked.incrementAndGet();
+            return true;
+        }
+
+        long now = System.nanoTime();
+        while (true) {
+            long tat = bucket.tat;
+            long start = now - tat > 0 ? now : tat;
+            if (start - now > toleranceNanos) {
+                Bucket.SUPPRESSED.incrementAndGet(bucket);
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (Bucket.TAT.compareAndSet(bucket, tat, start + intervalNanos))
+                return true;
+        }
+    }
+
+    /**
+     * Collect a summary message for every key that suppressed lines since
+     * the previous call, and reset their counts. Keys that took no token
+     * since the previous call are dropped; their buckets were full, so a
+     * new bucket behaves the same. Called periodically from a single
+     * thread, normally the shipping I/O thread.
+     *
+     * @param summaries Receives the summary messages
+     * @return The number of summaries added
+     */
+    public int summarize(Collection<LogMessage> summaries) {
+        long now = System.nanoTime();
+        long previous = lastSummary;
+        long window = TimeUnit.NANOSECONDS.toMillis(now - previous);
+        lastSummary = now;
+
+        int count = 0;
+        for (int index = 0; index <= mask; index++) {
+            Bucket bucket = table.get(index);
+            if (bucket == null || bucket == TOMBSTONE)
+                continue;
+            if (bucket.suppressed == 0) {
+                //  Every token taken pushes tat beyond the time it was taken
+                if (bucket.tat - previous <= 0 && table.compareAndSet(index, bucket, TOMBSTONE))
+                    reclaimed++;
+                continue;
+            }
+            long dropped = Bucket.SUPPRESSED.getAndSet(bucket, 0);
+            if (dropped == 0)
+                continue;
+
+            LogMessage message = new LogMessage();
+            message.setFileName(bucket.fileName);
+            message.setLineNum(bucket.lineNum);
+            message.putHeader(SUPPRESSED_HEADER, dropped);
+            message.putHeader(WINDOW_HEADER, window);
+            message.setMessage("%d messages suppressed in %d ms", dropped, window);
+            summaries.add(message);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the total number of lines suppressed.
+     *
+     * @return The suppressed line count
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * Get the number of idle keys whose slots were reclaimed.
+     *
+     * @return The reclaimed key count
+     */
+    public long getReclaimed() {
+        return reclaimed;
+    }
+
+    /**
+     * Get the number of lines let through because the table was full.
+     *
+     * @return The untracked line count
+     */
+    public long getUntracked() {
+        return untracked.get();
+    }
+
+    //  Find or claim the bucket for a key, or null if the table is full.
+    //  A key may sit past a tombstone, so one is reused only once the run
+    //  has been searched to its end.
+    private Bucket bucket(String fileName, int lineNum) {
+        int hash = fileName.hashCode() * 31 + lineNum;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+
+        Bucket created = null;
+        while (true) {
+            int reusable = -1;
+            int free = -1;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int index = (hash + probe) & mask;
+                Bucket bucket = table.get(index);
+                if (bucket == null) {
+                    free = index;
+                    break;
+                }
+                if (bucket == TOMBSTONE) {
+                    if (reusable < 0)
+                        reusable = index;
+                } else if (bucket.lineNum == lineNum && bucket.fileName.equals(fileName))
+                    return bucket;
+            }
+            int index = reusable >= 0 ? reusable : free;
+            if (index < 0)
+                return null;
+            if (created == null)
+                created = new Bucket(fileName, lineNum, System.nanoTime());
+            if (table.compareAndSet(index, reusable >= 0 ? TOMBSTONE : null, created))
+                return created;
+            //  Another thread took the slot, perhaps for this key; search again
+        }
+    }
+
+    //  Token bucket state for one (fileName, lineNum) key
+    private static final class Bucket {
+        static final AtomicLongFieldUpdater<Bucket> TAT =
+            AtomicLongFieldUpdater.newUpdater(Bucket.class, "tat");
+        static final AtomicLongFieldUpdater<Bucket> SUPPRESSED =
+            AtomicLongFieldUpdater.newUpdater(Bucket.class, "suppressed");
+
+        final String fileName;
+        final int lineNum;
+        volatile long tat;
+        volatile long suppressed;
+
+        Bucket(String fileName, int lineNum, long tat) {
+            this.fileName = fileName;
+            this.lineNum = lineNum;
+            this.tat = tat;
+        }
+    }
+}
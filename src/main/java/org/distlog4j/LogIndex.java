@@ -0,0 +1,431 @@
+/* ============================================================================
+ * LogIndex.java
+ *
+ * Inverted index over the words of received log lines
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.zeromq.api.Message.FrameBuilder;
+
+/**
+ * LogIndex class.
+ *
+ * Indexes every word of the lines handed to it as they are received. Lines
+ * are numbered in arrival order within a segment, and each word maps to
+ * the ascending line numbers it appears on. The open segment keeps its
+ * postings in growable int arrays; once it holds SEGMENT_LINES lines, or
+ * the whole byte budget, it is sealed into a sorted word table and a
+ * single array of varint-encoded line number deltas, with a Bloom filter
+ * of its words so that a query skips segments that cannot match. Sealed
+ * segments are dropped oldest first to keep them and the open segment
+ * within the byte budget.
+ *
+ * Each line is kept with its LogStore position as well as its lineNum,
+ * since a call site repeats its lineNum on many lines; a hit names the
+ * one line that matched.
+ *
+ * Words are runs of letters and digits, lower-cased, of 2 to MAX_WORD
+ * characters. Used from the collector thread only.
+ */
+public class LogIndex {
+    public static final int SEGMENT_LINES = 1 << 16;
+    public static final int MAX_WORD = 64;
+
+    //  Bytes of a hit in RESULTS: file name index, lineNum and position
+    public static final int HIT_BYTES = 1 + 4 + 8;
+
+    //  Bloom filter bits per distinct word, and probes per word
+    private static final int BLOOM_BITS = 10;
+    private static final int BLOOM_PROBES = 4;
+
+    //  Heap estimates: file index, lineNum and position of a line, and a
+    //  posting entry
+    private static final long LINE_BYTES = 4 + 4 + 8;
+    private static final long POSTING_BYTES = 4;
+
+    private final List<String> fileNames = new ArrayList<>();
+    private final Map<String, Integer> fileIndex = new HashMap<>();
+    private final List<Sealed> sealed = new ArrayList<>();
+    private final StringBuilder word = new StringBuilder(MAX_WORD);
+    private final long maxBytes;
+    private long sealedBytes;
+
+    //  Open segment, and the approximate heap it uses
+    private Map<String, Postings> postings = new HashMap<>();
+    private int[] lineFiles = new int[1024];
+    private int[] lineNums = new int[1024];
+    private long[] linePositions = new long[1024];
+    private int lines;
+    private long openBytes = LINE_BYTES * 1024;
+
+    /**
+     * Create a new LogIndex.
+     *
+     * @param maxBytes The approximate heap the index may use
+     */
+    public LogIndex(long maxBytes) {
+        assert (maxBytes > 0);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Index a line.
+     *
+     * @param fileName The file of the line
+     * @param lineNum The lineNum of the line
+     * @param position The position of the line in the LogStore
+     * @param message The text of the line
+     */
+    public void add(String fileName, int lineNum, long position, String message) {
+        if (fileName == null || message == null)
+            return;
+        Integer file = fileIndex.get(fileName);
+        if (file == null) {
+            file = fileNames.size();
+            fileNames.add(fileName);
+            fileIndex.put(fileName, file);
+        }
+        if (lines == lineFiles.length) {
+            lineFiles = Arrays.copyOf(lineFiles, lines * 2);
+            lineNums = Arrays.copyOf(lineNums, lines * 2);
+            linePositions = Arrays.copyOf(linePositions, lines * 2);
+            openBytes += LINE_BYTES * lines;
+        }
+        int line = lines++;
+        lineFiles[line] = file;
+        lineNums[line] = lineNum;
+        linePositions[line] = position;
+
+        int length = message.length();
+        for (int index = 0; index <= length; index++) {
+            char c = index < length ? message.charAt(index) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD)
+                    word.append(Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() >= 2) {
+                String key = word.toString();
+                Postings list = postings.get(key);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(key, list);
+                    openBytes += Postings.BYTES + 2L * key.length();
+                }
+                openBytes += list.add(line);
+            }
+            word.setLength(0);
+        }
+
+        if (lines == SEGMENT_LINES || openBytes >= maxBytes)
+            seal();
+        else
+            evict();
+    }
+
+    /**
+     * Find the lines holding every word of a query, most recent first.
+     * Each hit is packed as an index into the file names, the lineNum and
+     * the store position of the line, HIT_BYTES in all.
+     *
+     * @param query The words to look for
+     * @param fileName The file to search, or null for all files
+     * @param limit The number of hits wanted at most
+     * @return The hits, as a RESULTS message without its sequence
+     */
+    public ResultsMessage query(String query, String fileName, int limit) {
+        List<String> names = new ArrayList<>();
+        Map<Integer, Integer> nameIndex = new HashMap<>();
+        FrameBuilder builder = new FrameBuilder();
+
+        Set<String> words = words(query);
+        Integer file = fileName == null ? null : fileIndex.get(fileName);
+        boolean searchable = !words.isEmpty() && (fileName == null || file != null);
+        int hits = 0;
+
+        //  Newest segment first, newest line first
+        for (int segment = sealed.size(); searchable && segment >= 0 && hits < limit; segment--) {
+            int[] matches = segment == sealed.size()
+                ? match(words) : sealed.get(segment).match(words);
+            int[] files = segment == sealed.size() ? lineFiles : sealed.get(segment).lineFiles;
+            int[] nums = segment == sealed.size() ? lineNums : sealed.get(segment).lineNums;
+            long[] positions = segment == sealed.size()
+                ? linePositions : sealed.get(segment).linePositions;
+            for (int index = matches.length - 1; index >= 0 && hits < limit; index--) {
+                int line = matches[index];
+                if (file != null && files[line] != file)
+                    continue;
+                Integer name = nameIndex.get(files[line]);
+                if (name == null) {
+                    if (names.size() == LogRanges.MAX_FILE_NAMES)
+                        continue;
+                    name = names.size();
+                    names.add(fileNames.get(files[line]));
+                    nameIndex.put(files[line], name);
+                }
+                builder.putByte((byte) (int) name);
+                builder.putInt(nums[line]);
+                builder.putLong(positions[line]);
+                hits++;
+            }
+        }
+
+        ResultsMessage results = new ResultsMessage();
+        results.setFileNames(names);
+        results.setHits(builder.build());
+        return results;
+    }
+
+    /**
+     * Get the approximate heap used by sealed segments.
+     *
+     * @return The byte count
+     */
+    public long getSealedBytes() {
+        return sealedBytes;
+    }
+
+    /**
+     * Get the approximate heap used by the open segment.
+     *
+     * @return The byte count
+     */
+    public long getOpenBytes() {
+        return openBytes;
+    }
+
+    /**
+     * Get the number of sealed segments kept.
+     *
+     * @return The segment count
+     */
+    public int getSegments() {
+        return sealed.size();
+    }
+
+    //  Lines of the open segment holding every word
+    private int[] match(Set<String> words) {
+        int[] result = null;
+        for (String key : words) {
+            Postings list = postings.get(key);
+            if (list == null)
+                return new int[0];
+            int[] lines = Arrays.copyOf(list.lines, list.size);
+            result = result == null ? lines : intersect(result, lines);
+        }
+        return result;
+    }
+
+    //  Freeze the open segment and start a new one
+    private void seal() {
+        Sealed segment = new Sealed(postings, Arrays.copyOf(lineFiles, lines),
+            Arrays.copyOf(lineNums, lines), Arrays.copyOf(linePositions, lines));
+        sealed.add(segment);
+        sealedBytes += segment.bytes;
+
+        postings = new HashMap<>();
+        lines = 0;
+        openBytes = LINE_BYTES * lineFiles.length;
+        evict();
+    }
+
+    //  Drop the oldest sealed segments until the index fits its budget
+    private void evict() {
+        while (sealedBytes + openBytes > maxBytes && !sealed.isEmpty())
+            sealedBytes -= sealed.remove(0).bytes;
+    }
+
+    //  Distinct words of a query, tokenized like the lines
+    private static Set<String> words(String query) {
+        Set<String> words = new LinkedHashSet<>();
+        if (query == null)
+            return words;
+        StringBuilder word = new StringBuilder();
+        int length = query.length();
+        for (int index = 0; index <= length; index++) {
+            char c = index < length ? query.charAt(index) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD)
+                    word.append(Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() >= 2)
+                words.add(word.toString());
+            word.setLength(0);
+        }
+        return words;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    //  Bloom filter probe positions of a word
+    private static int probe(int hash, int probe, int bits) {
+        int h = hash + probe * ((hash >>> 17) | 1);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & 0x7fffffff) % bits;
+    }
+
+    //  Ascending line numbers of one word in the open segment
+    private static final class Postings {
+        //  Heap of a new list, its first array and its map entry, without
+        //  the word itself
+        static final long BYTES = 96;
+
+        int[] lines = new int[4];
+        int size;
+
+        //  Returns the bytes the list grew by
+        long add(int line) {
+            if (size > 0 && lines[size - 1] == line)
+                return 0;           //  Word repeated on the line
+            long grown = 0;
+            if (size == lines.length) {
+                lines = Arrays.copyOf(lines, size * 2);
+                grown = POSTING_BYTES * size;
+            }
+            lines[size++] = line;
+            return grown;
+        }
+    }
+
+    //  A frozen segment: sorted words, varint-encoded deltas, Bloom filter
+    private static final class Sealed {
+        final String[] words;
+        final int[] offsets;
+        final byte[] deltas;
+        final int[] lineFiles;
+        final int[] lineNums;
+        final long[] linePositions;
+        final long[] bloom;
+        final int bloomBits;
+        final long bytes;
+
+        Sealed(Map<String, Postings> postings, int[] lineFiles, int[] lineNums, long[] linePositions) {
+            this.words = postings.keySet().toArray(new String[postings.size()]);
+            Arrays.sort(words);
+            this.offsets = new int[words.length + 1];
+            this.lineFiles = lineFiles;
+            this.lineNums = lineNums;
+            this.linePositions = linePositions;
+            this.bloomBits = Math.max(64, words.length * BLOOM_BITS);
+            this.bloom = new long[(bloomBits + 63) >>> 6];
+
+            byte[] buffer = new byte[1024];
+            int position = 0;
+            long wordBytes = 0;
+            for (int index = 0; index < words.length; index++) {
+                Postings list = postings.get(words[index]);
+                offsets[index] = position;
+                int previous = 0;
+                for (int i = 0; i < list.size; i++) {
+                    if (buffer.length - position < 5)
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    int delta = list.lines[i] - previous;
+                    previous = list.lines[i];
+                    while ((delta & ~0x7f) != 0) {
+                        buffer[position++] = (byte) ((delta & 0x7f) | 0x80);
+                        delta >>>= 7;
+                    }
+                    buffer[position++] = (byte) delta;
+                }
+                int hash = words[index].hashCode();
+                for (int probe = 0; probe < BLOOM_PROBES; probe++) {
+                    int bit = probe(hash, probe, bloomBits);
+                    bloom[bit >>> 6] |= 1L << bit;
+                }
+                wordBytes += 48 + 2L * words[index].length();
+            }
+            offsets[words.length] = position;
+            this.deltas = Arrays.copyOf(buffer, position);
+            this.bytes = wordBytes + deltas.length + 4L * offsets.length
+                + LINE_BYTES * lineFiles.length + 8L * bloom.length;
+        }
+
+        boolean mayContain(String word) {
+            int hash = word.hashCode();
+            for (int probe = 0; probe < BLOOM_PROBES; probe++) {
+                int bit = probe(hash, probe, bloomBits);
+                if ((bloom[bit >>> 6] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        int[] match(Set<String> query) {
+            for (String word : query) {
+                if (!mayContain(word))
+                    return new int[0];
+            }
+            int[] result = null;
+            for (String word : query) {
+                int index = Arrays.binarySearch(words, word);
+                if (index < 0)
+                    return new int[0];
+                int[] lines = decode(index);
+                result = result == null ? lines : intersect(result, lines);
+            }
+            return result;
+        }
+
+        int[] decode(int index) {
+            int[] lines = new int[16];
+            int size = 0;
+            int line = 0;
+            for (int position = offsets[index]; position < offsets[index + 1]; ) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = deltas[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                line += delta;
+                if (size == lines.length)
+                    lines = Arrays.copyOf(lines, size * 2);
+                lines[size++] = line;
+            }
+            return Arrays.copyOf(lines, size);
+        }
+    }
+}
@@ -34,10 +34,16 @@ public class LogMessage {
     protected Integer sequence;
     protected Map<String, String> headers;
     protected String ip;
+    protected String ipFormat;
+    protected Object[] ipArgs;
     protected Integer port;
     protected String fileName;
+    protected String fileNameFormat;
+    protected Object[] fileNameArgs;
     protected Integer lineNum;
     protected String message;
+    protected String messageFormat;
+    protected Object[] messageArgs;
 
     /**
      * Get the sequence field.
@@ -156,6 +162,12 @@ public class LogMessage {
      * @return The ip field
      */
     public String getIp() {
+        if (ipFormat != null) {
+            //  Resolve a deferred format on first read
+            ip = String.format(ipFormat, ipArgs);
+            ipFormat = null;
+            ipArgs = null;
+        }
         return ip;
     }
 
@@ -166,6 +178,22 @@ public class LogMessage {
      */
     public void setIp(String ip) {
         this.ip = ip;
+        this.ipFormat = null;
+        this.ipArgs = null;
+    }
+
+    /**
+     * Set the ip field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setIp(String format, Object... args) {
+        this.ip = null;
+        this.ipFormat = format;
+        this.ipArgs = args;
     }
 
     /**
@@ -192,6 +220,12 @@ public class LogMessage {
      * @return The fileName field
      */
     public String getFileName() {
+        if (fileNameFormat != null) {
+            //  Resolve a deferred format on first read
+            fileName = String.format(fileNameFormat, fileNameArgs);
+            fileNameFormat = null;
+            fileNameArgs = null;
+        }
         return fileName;
     }
 
@@ -202,6 +236,22 @@ public class LogMessage {
      */
     public void setFileName(String fileName) {
         this.fileName = fileName;
+        this.fileNameFormat = null;
+        this.fileNameArgs = null;
+    }
+
+    /**
+     * Set the fileName field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setFileName(String format, Object... args) {
+        this.fileName = null;
+        this.fileNameFormat = format;
+        this.fileNameArgs = args;
     }
 
     /**
@@ -228,6 +278,12 @@ public class LogMessage {
      * @return The message field
      */
     public String getMessage() {
+        if (messageFormat != null) {
+            //  Resolve a deferred format on first read
+            message = String.format(messageFormat, messageArgs);
+            messageFormat = null;
+            messageArgs = null;
+        }
         return message;
     }
 
@@ -238,5 +294,21 @@ public class LogMessage {
      */
     public void setMessage(String message) {
         this.message = message;
+        this.messageFormat = null;
+        this.messageArgs = null;
+    }
+
+    /**
+     * Set the message field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setMessage(String format, Object... args) {
+        this.message = null;
+        this.messageFormat = format;
+        this.messageArgs = args;
     }
 }
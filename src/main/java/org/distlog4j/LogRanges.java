@@ -0,0 +1,211 @@
+/* ============================================================================
+ * LogRanges.java
+ *
+ * The ranges of a REQUESTS message
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Message.FrameBuilder;
+
+/**
+ * LogRanges class.
+ *
+ * Packs (fileName, start, end, position) ranges into a REQUESTS message and
+ * unpacks them again. File names are sent once each, and every range is 17
+ * octets: the index of its file name, then start, end and the store
+ * position to read from. Ranges keep the index they were added at, which
+ * the collector echoes in the RANGE_HEADER of each REPLY.
+ */
+public class LogRanges {
+    //  A file name index is a single octet
+    public static final int MAX_FILE_NAMES = 255;
+
+    private static final int RANGE_SIZE = 17;
+
+    private final List<String> fileNames = new ArrayList<>();
+    private final Map<String, Integer> fileIndex = new HashMap<>();
+    private int[] files = new int[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private long[] positions = new long[16];
+    private int size;
+
+    /**
+     * Add a range.
+     *
+     * @param fileName The file to replay
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @return The index of the range
+     */
+    public int add(String fileName, int start, int end) {
+        return add(fileName, start, end, 0);
+    }
+
+    /**
+     * Add a range continuing a REPLY cut short.
+     *
+     * @param fileName The file to replay
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param position The store position to read from, the "more" header of the REPLY
+     * @return The index of the range
+     */
+    public int add(String fileName, int start, int end, long position) {
+        Integer file = fileIndex.get(fileName);
+        if (file == null) {
+            file = fileNames.size();
+            fileNames.add(fileName);
+            fileIndex.put(fileName, file);
+        }
+        if (size == files.length) {
+            files = Arrays.copyOf(files, size * 2);
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        files[size] = file;
+        starts[size] = start;
+        ends[size] = end;
+        positions[size] = position;
+        return size++;
+    }
+
+    /**
+     * Get the number of ranges.
+     *
+     * @return The range count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the file name of a range.
+     *
+     * @param index The index of the range
+     * @return The file name
+     */
+    public String getFileName(int index) {
+        return fileNames.get(files[index]);
+    }
+
+    /**
+     * Get the first lineNum of a range.
+     *
+     * @param index The index of the range
+     * @return The start lineNum
+     */
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Get the last lineNum of a range.
+     *
+     * @param index The index of the range
+     * @return The end lineNum, inclusive
+     */
+    public int getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Get the store position a range is read from.
+     *
+     * @param index The index of the range
+     * @return The position, or 0 for the start
+     */
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * Order the ranges by file, then by start, so that each file can be read
+     * front to back once.
+     *
+     * @return The range indexes, sorted
+     */
+    public int[] sorted() {
+        long[] keys = new long[size];
+        for (int index = 0; index < size; index++) {
+            //  File, then start with the sign flipped, then index
+            long start = (starts[index] ^ 0x80000000L) & 0xffffffffL;
+            keys[index] = ((long) files[index] << 55) | (start << 23) | index;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        for (int index = 0; index < size; index++)
+            order[index] = (int) (keys[index] & 0x7fffff);
+        return order;
+    }
+
+    /**
+     * Build a REQUESTS message carrying the ranges.
+     *
+     * @return The message, without its sequence
+     * @throws IllegalStateException if the ranges name more than MAX_FILE_NAMES files
+     */
+    public RequestsMessage toMessage() {
+        if (fileNames.size() > MAX_FILE_NAMES)
+            throw new IllegalStateException("More than " + MAX_FILE_NAMES + " file names");
+        FrameBuilder builder = new FrameBuilder();
+        for (int index = 0; index < size; index++) {
+            builder.putByte((byte) files[index]);
+            builder.putInt(starts[index]);
+            builder.putInt(ends[index]);
+            builder.putLong(positions[index]);
+        }
+        RequestsMessage message = new RequestsMessage();
+        message.setFileNames(new ArrayList<>(fileNames));
+        message.setRanges(builder.build());
+        return message;
+    }
+
+    /**
+     * Unpack the ranges of a REQUESTS message. A range naming a file index
+     * out of bounds keeps its place with a null file name.
+     *
+     * @param message The message received
+     * @return The ranges
+     */
+    public static LogRanges from(RequestsMessage message) {
+        LogRanges ranges = new LogRanges();
+        List<String> names = message.getFileNames();
+        if (names == null)
+            names = new ArrayList<>();
+        Frame frame = message.getRanges();
+        ByteBuffer buffer = ByteBuffer.wrap(frame.getData());
+        while (buffer.remaining() >= RANGE_SIZE) {
+            int file = buffer.get() & 0xff;
+            int start = buffer.getInt();
+            int end = buffer.getInt();
+            long position = buffer.getLong();
+            ranges.add(file < names.size() ? names.get(file) : null, start, end, position);
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,243 @@
+/* ============================================================================
+ * LogReplayClient.java
+ *
+ * Pipelined REQUEST client with several replies outstanding
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.zeromq.api.Socket;
+
+/**
+ * LogReplayClient class.
+ *
+ * Sends REQUESTs to a LogCollector over a DEALER socket from its own
+ * thread, keeping up to a window of them in flight at once, and completes
+ * the future of each when the REPLY carrying its sequence arrives. Any
+ * thread may call request(); the socket is only touched by the client
+ * thread. A reply cut short carries the LogCollector.MORE_HEADER header,
+ * a store position, and the caller requests the rest of the range from
+ * there.
+ */
+public class LogReplayClient implements Runnable, Closeable {
+    //  How long a receive waits before queued requests are sent
+    private static final int RECEIVE_TIMEOUT = 10;
+    private static final long POLL_MILLIS = 100;
+
+    private final LogSocket socket;
+    private final int window;
+    private final long timeoutMillis;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Map<Integer, Pending> inflight = new HashMap<>();
+
+    private volatile boolean running;
+    private Thread thread;
+    private int sequence;
+
+    /**
+     * Create a new LogReplayClient.
+     *
+     * @param socket A DEALER socket connected to the collector, owned by the client from now on
+     * @param window The number of requests kept in flight
+     * @param timeoutMillis How long a request waits for its reply before it fails
+     */
+    public LogReplayClient(Socket socket, int window, long timeoutMillis) {
+        assert (socket != null && window > 0 && timeoutMillis > 0);
+        socket.getZMQSocket().setReceiveTimeOut(RECEIVE_TIMEOUT);
+        this.socket = new LogSocket(socket);
+        this.window = window;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Start the client thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "distlog4j-replay-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a REQUEST for a range. Safe to call from any thread once the
+     * client is started.
+     *
+     * @param fileName The file to replay
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @return A future completed with the REPLY, or failed with a
+     *         TimeoutException or an IOException if the client is closed
+     */
+    public CompletableFuture<ReplyMessage> request(String fileName, int start, int end) {
+        return request(fileName, start, end, 0);
+    }
+
+    /**
+     * Queue a REQUEST for the rest of a range whose REPLY was cut short.
+     * Safe to call from any thread once the client is started.
+     *
+     * @param fileName The file to replay
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param position The store position to read from, the "more" header of the REPLY
+     * @return A future completed with the REPLY, or failed with a
+     *         TimeoutException or an IOException if the client is closed
+     */
+    public CompletableFuture<ReplyMessage> request(String fileName, int start, int end, long position) {
+        RequestMessage message = new RequestMessage();
+        message.setFileName(fileName);
+        message.setStart(start);
+        message.setEnd(end);
+        message.setPosition(position);
+        Pending pending = new Pending(message);
+        queue.add(pending);
+        if (!running)
+            fail(pending, new IOException("replay client is closed"));
+        return pending.future;
+    }
+
+    /**
+     * Client loop; sends and receives until closed.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (inflight.isEmpty()) {
+                    Pending pending = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (pending != null)
+                        send(pending);
+                }
+                while (inflight.size() < window) {
+                    Pending pending = queue.poll();
+                    if (pending == null)
+                        break;
+                    send(pending);
+                }
+                if (!inflight.isEmpty())
+                    receive();
+                expire();
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+
+        IOException closed = new IOException("replay client is closed");
+        for (Pending pending : inflight.values())
+            fail(pending, closed);
+        inflight.clear();
+        Pending pending;
+        while ((pending = queue.poll()) != null)
+            fail(pending, closed);
+    }
+
+    //  Stamp a request with the next sequence and send it
+    private void send(Pending pending) {
+        if (pending.future.isDone())
+            return;
+        int current = ++sequence;
+        pending.request.setSequence(current);
+        pending.sent = System.currentTimeMillis();
+        if (socket.send(pending.request))
+            inflight.put(current, pending);
+        else
+            fail(pending, new IOException("cannot send request"));
+    }
+
+    //  Complete the request a REPLY belongs to
+    private void receive() {
+        LogSocket.MessageType type = socket.receive();
+        if (type != LogSocket.MessageType.REPLY)
+            return;
+        ReplyMessage reply = socket.getReply();
+        Pending pending = inflight.remove(reply.getSequence());
+        if (pending != null)
+            pending.future.complete(reply);
+    }
+
+    //  Fail requests whose reply is overdue; a late reply is then dropped
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> iterator = inflight.values().iterator();
+        while (iterator.hasNext()) {
+            Pending pending = iterator.next();
+            if (now - pending.sent > timeoutMillis) {
+                iterator.remove();
+                fail(pending, new TimeoutException("no reply to request " + pending.request.getSequence()));
+            }
+        }
+    }
+
+    private static void fail(Pending pending, Exception ex) {
+        pending.future.completeExceptionally(ex);
+    }
+
+    /**
+     * Get the number of requests waiting for a place in the window.
+     *
+     * @return The queued request count
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Stop the client thread, fail every unanswered request and close the
+     * socket.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        socket.close();
+    }
+
+    //  A request and the future waiting on its reply
+    private static final class Pending {
+        final RequestMessage request;
+        final CompletableFuture<ReplyMessage> future = new CompletableFuture<>();
+        long sent;
+
+        Pending(RequestMessage request) {
+            this.request = request;
+        }
+    }
+}
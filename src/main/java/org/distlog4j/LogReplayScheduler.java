@@ -0,0 +1,446 @@
+/* ============================================================================
+ * LogReplayScheduler.java
+ *
+ * Coalesces concurrent REQUESTs into shared scans of the LogStore
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.zeromq.ZMQException;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * LogReplayScheduler class.
+ *
+ * Sits in front of the REQUEST handler of a LogCollector. REQUESTs are held
+ * for a short window instead of being answered one by one; when the window
+ * closes, identical ranges are answered from one read, overlapping or
+ * adjacent ranges of a file share a single scan, and the REPLY of each
+ * range is fanned out to every ROUTER address that asked for it. Ranges
+ * just served are kept in a small LRU cache, bounded in bytes and expiring
+ * after a short time, so a burst of the same request does not scan at all.
+ *
+ * A range holding more lines than one REPLY can carry is cut short, and
+ * its "more" header gives the store position to ask for next. lineNums
+ * repeat and come in any order, so a shared scan only stops early once
+ * every range of it is full.
+ *
+ * Lines are read as slices of the mapped segments and copied into each
+ * REPLY frame as it is encoded, without being decoded on the way; the
+ * cache keeps the slices.
+ *
+ * Used from the collector thread only.
+ */
+public class LogReplayScheduler {
+    //  Rough heap cost of a cached line beyond its bytes
+    private static final int LINE_OVERHEAD = 48;
+
+    private final LogStore store;
+    private final LogSocket socket;
+    private final Map<Range, List<Waiter>> pending = new LinkedHashMap<>();
+    private final LinkedHashMap<Range, Cached> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long windowMillis = 2;
+    private int maxPending = 1024;
+    private long cacheBytes = 16 << 20;
+    private long cacheMillis = 1000;
+    private long cachedBytes;
+    private long oldest;
+    private int waiting;
+
+    private long requests;
+    private long coalesced;
+    private long cacheHits;
+    private long scans;
+
+    /**
+     * Create a new LogReplayScheduler.
+     *
+     * @param store The store ranges are read from
+     * @param socket The ROUTER socket replies are sent on
+     */
+    public LogReplayScheduler(LogStore store, LogSocket socket) {
+        assert (store != null && socket != null);
+        this.store = store;
+        this.socket = socket;
+    }
+
+    /**
+     * Set how long requests are held for coalescing, and how many may be
+     * held before they are answered regardless.
+     *
+     * @param windowMillis The coalescing window, 0 to answer on every flush
+     * @param maxPending The number of requests held at most
+     */
+    public void setWindow(long windowMillis, int maxPending) {
+        assert (windowMillis >= 0 && maxPending > 0);
+        this.windowMillis = windowMillis;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Set the size of the cache of served ranges, and how long a range
+     * stays in it.
+     *
+     * @param maxBytes The approximate heap the cache may use, 0 to disable it
+     * @param ttlMillis How long a served range may be served again
+     */
+    public void setCache(long maxBytes, long ttlMillis) {
+        assert (maxBytes >= 0 && ttlMillis >= 0);
+        this.cacheBytes = maxBytes;
+        this.cacheMillis = ttlMillis;
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Hold a REQUEST until the next flush.
+     *
+     * @param address The ROUTER address of the client
+     * @param request The request received
+     */
+    public void submit(Frame address, RequestMessage request) {
+        requests++;
+        Range range = new Range(request.getFileName(), request.getStart(), request.getEnd(),
+            request.getPosition() != null ? request.getPosition() : 0);
+        List<Waiter> waiters = pending.get(range);
+        if (waiters == null) {
+            waiters = new ArrayList<>(1);
+            pending.put(range, waiters);
+        } else {
+            coalesced++;
+        }
+        if (waiting++ == 0)
+            oldest = System.currentTimeMillis();
+        waiters.add(new Waiter(address, request.getSequence()));
+    }
+
+    /**
+     * Check whether requests are held.
+     *
+     * @return true if a flush has requests to answer
+     */
+    public boolean hasPending() {
+        return waiting > 0;
+    }
+
+    /**
+     * Get how long the collector may wait for more requests before the
+     * held ones are due.
+     *
+     * @return The milliseconds left in the window, 0 if requests are due
+     */
+    public long getDelay() {
+        if (waiting == 0)
+            return windowMillis;
+        if (waiting >= maxPending)
+            return 0;
+        return Math.max(0, oldest + windowMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * Answer every held request, from the cache where possible and from
+     * shared scans otherwise.
+     *
+     * @return The number of requests answered
+     */
+    public int flush() {
+        if (waiting == 0)
+            return 0;
+        long now = System.currentTimeMillis();
+        evict(now);
+
+        LogRanges ranges = new LogRanges();
+        List<Range> scanned = new ArrayList<>();
+        for (Map.Entry<Range, List<Waiter>> entry : pending.entrySet()) {
+            Range range = entry.getKey();
+            Cached cached = cache.get(range);
+            if (cached != null) {
+                cacheHits += entry.getValue().size();
+                send(range, cached.lines, cached.more, entry.getValue());
+            } else {
+                ranges.add(range.fileName, range.start, range.end, range.position);
+                scanned.add(range);
+            }
+        }
+
+        Page[] pages = scan(ranges);
+        for (int index = 0; index < pages.length; index++) {
+            Range range = scanned.get(index);
+            send(range, pages[index].lines, pages[index].more, pending.get(range));
+            remember(range, pages[index].lines, pages[index].more, now);
+        }
+
+        int answered = waiting;
+        pending.clear();
+        waiting = 0;
+        return answered;
+    }
+
+    /**
+     * Read ranges, sorted by file and start so that each file is read front
+     * to back once, and with a run of overlapping or adjacent ranges sharing
+     * a single scan from the lowest position of the run.
+     *
+     * @param ranges The ranges wanted
+     * @return A REPLY for each range, at the index of the range, without sequences
+     */
+    public ReplyMessage[] read(LogRanges ranges) {
+        Page[] pages = scan(ranges);
+        ReplyMessage[] replies = new ReplyMessage[pages.length];
+        for (int index = 0; index < pages.length; index++) {
+            replies[index] = newReply(ranges.getFileName(index), ranges.getStart(index),
+                ranges.getEnd(index), pages[index].lines, pages[index].more);
+            replies[index].putHeader(LogCollector.RANGE_HEADER, index);
+        }
+        return replies;
+    }
+
+    //  A page of lines for each range, at the index of the range
+    private Page[] scan(LogRanges ranges) {
+        Page[] pages = new Page[ranges.size()];
+        int[] order = ranges.sorted();
+        int first = 0;
+        while (first < order.length) {
+            //  Extend the run while the next range touches it
+            String fileName = ranges.getFileName(order[first]);
+            long runEnd = ranges.getEnd(order[first]);
+            long runFrom = ranges.getPosition(order[first]);
+            int last = first + 1;
+            while (last < order.length
+                    && Objects.equals(ranges.getFileName(order[last]), fileName)
+                    && ranges.getStart(order[last]) <= runEnd + 1) {
+                runEnd = Math.max(runEnd, ranges.getEnd(order[last]));
+                runFrom = Math.min(runFrom, ranges.getPosition(order[last]));
+                last++;
+            }
+            read(ranges, order, first, last, (int) runEnd, runFrom, pages);
+            first = last;
+        }
+        return pages;
+    }
+
+    //  Read a run of sorted ranges of one file in a single scan
+    private void read(final LogRanges ranges, final int[] order, final int first,
+                      final int last, int runEnd, long runFrom, Page[] pages) {
+        final Page[] run = new Page[last - first];
+        for (int i = 0; i < run.length; i++) {
+            run[i] = new Page();
+            pages[order[first + i]] = run[i];
+        }
+
+        String fileName = ranges.getFileName(order[first]);
+        if (fileName != null) {
+            scans++;
+            store.scan(fileName, ranges.getStart(order[first]), runEnd, runFrom, new LogStore.Visitor() {
+                private int full;
+
+                @Override
+                public boolean visit(long position, int lineNum, long timestamp, ByteBuffer message) {
+                    ByteBuffer line = null;
+                    for (int i = 0; i < run.length; i++) {
+                        int index = order[first + i];
+                        if (ranges.getStart(index) > lineNum)
+                            break;
+                        if (ranges.getEnd(index) < lineNum || run[i].more >= 0
+                                || ranges.getPosition(index) > position)
+                            continue;
+                        if (run[i].lines.size() == LogCollector.MAX_REPLY_LINES) {
+                            run[i].more = position;
+                            full++;
+                            continue;
+                        }
+                        if (line == null)
+                            line = message.slice();
+                        run[i].lines.add(line);
+                    }
+                    //  Stop once no range can take more lines
+                    return full < run.length;
+                }
+            });
+        }
+    }
+
+    //  Send one range to every client waiting on it
+    private void send(Range range, List<ByteBuffer> lines, long more, List<Waiter> waiters) {
+        for (Waiter waiter : waiters) {
+            ReplyMessage reply = newReply(range.fileName, range.start, range.end, lines, more);
+            reply.setSequence(waiter.sequence);
+            socket.setAddress(waiter.address);
+            try {
+                socket.send(reply);
+            } catch (ZMQException ex) {
+                //  The client has disconnected
+            }
+        }
+    }
+
+    /**
+     * Build a REPLY with the headers describing its range.
+     *
+     * @param fileName The file read
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param lines The UTF-8 bytes of the lines read, shared with the reply
+     * @param more The store position to ask for next, or -1 if the range is exhausted
+     * @return The reply, without its sequence
+     */
+    public static ReplyMessage newReply(String fileName, int start, int end, List<ByteBuffer> lines, long more) {
+        ReplyMessage reply = new ReplyMessage();
+        reply.putHeader(LogCollector.FILE_NAME_HEADER, fileName);
+        reply.putHeader(LogCollector.START_HEADER, start);
+        reply.putHeader(LogCollector.END_HEADER, end);
+        if (more >= 0)
+            reply.putHeader(LogCollector.MORE_HEADER, more);
+        for (ByteBuffer line : lines)
+            reply.addMessage(line);
+        return reply;
+    }
+
+    //  Keep a served range, evicting the least recently used to make room
+    private void remember(Range range, List<ByteBuffer> lines, long more, long now) {
+        if (cacheBytes == 0 || cacheMillis == 0 || range.fileName == null)
+            return;
+        long bytes = LINE_OVERHEAD;
+        for (ByteBuffer line : lines)
+            bytes += LINE_OVERHEAD + line.remaining();
+        if (bytes > cacheBytes)
+            return;
+        Cached previous = cache.put(range, new Cached(lines, more, bytes, now + cacheMillis));
+        if (previous != null)
+            cachedBytes -= previous.bytes;
+        cachedBytes += bytes;
+        evict(now);
+    }
+
+    //  Drop expired ranges, then the least recently used while over budget
+    private void evict(long now) {
+        Iterator<Cached> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            Cached cached = iterator.next();
+            if (cachedBytes > cacheBytes || cached.expires - now <= 0) {
+                cachedBytes -= cached.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of REQUESTs submitted.
+     *
+     * @return The request count
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Get the number of REQUESTs answered from another request's read.
+     *
+     * @return The coalesced request count
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Get the number of REQUESTs answered from the cache.
+     *
+     * @return The cache hit count
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Get the number of scans of the store.
+     *
+     * @return The scan count
+     */
+    public long getScans() {
+        return scans;
+    }
+
+    //  A requested range, compared by value
+    private static final class Range {
+        final String fileName;
+        final int start;
+        final int end;
+        final long position;
+
+        Range(String fileName, int start, int end, long position) {
+            this.fileName = fileName;
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Range))
+                return false;
+            Range range = (Range) other;
+            return start == range.start && end == range.end && position == range.position
+                && Objects.equals(fileName, range.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((Objects.hashCode(fileName) * 31 + start) * 31 + end) * 31
+                + (int) (position ^ position >>> 32);
+        }
+    }
+
+    //  A client waiting on a range
+    private static final class Waiter {
+        final Frame address;
+        final int sequence;
+
+        Waiter(Frame address, int sequence) {
+            this.address = address;
+            this.sequence = sequence;
+        }
+    }
+
+    //  The lines read for a range, and where to continue, or -1
+    private static final class Page {
+        final List<ByteBuffer> lines = new ArrayList<>();
+        long more = -1;
+    }
+
+    //  A served range
+    private static final class Cached {
+        final List<ByteBuffer> lines;
+        final long more;
+        final long bytes;
+        final long expires;
+
+        Cached(List<ByteBuffer> lines, long more, long bytes, long expires) {
+            this.lines = lines;
+            this.more = more;
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/* ============================================================================
+ * LogReplayStream.java
+ *
+ * Client side of a streamed, credit-based REPLAY
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zeromq.api.Socket;
+
+/**
+ * LogReplayStream class.
+ *
+ * Replays a range of a stored file from a LogCollector one CHUNK at a time.
+ * The stream grants the collector a window of credit up front and tops it
+ * up as chunks are consumed, so at most a window of chunks is ever in
+ * flight and neither side holds more than that in memory. If chunks stop
+ * arriving or arrive out of order, the REPLAY is sent again to resume after
+ * the last chunk received, from the store position it ended at.
+ */
+public class LogReplayStream implements Closeable {
+    //  How long a receive waits before the stream resumes
+    private static final int RECEIVE_TIMEOUT = 1000;
+    private static final int MAX_RETRIES = 5;
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private final LogSocket socket;
+    private final String fileName;
+    private final int start;
+    private final int end;
+    private final int window;
+    private final int sequence = SEQUENCE.incrementAndGet();
+
+    private long position;      //  Store position the next chunk starts at
+    private int chunk;          //  Number of the last chunk received
+    private int unacked;        //  Chunks received since the last CREDIT
+    private boolean finished;
+
+    /**
+     * Create a new LogReplayStream and send its REPLAY.
+     *
+     * @param socket A DEALER socket connected to the collector, owned by the stream from now on
+     * @param fileName The file to replay
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param window The number of chunks the collector may send ahead, at most LogCollector.MAX_WINDOW
+     */
+    public LogReplayStream(Socket socket, String fileName, int start, int end, int window) {
+        assert (socket != null && fileName != null && window > 0 && window <= LogCollector.MAX_WINDOW);
+        socket.getZMQSocket().setReceiveTimeOut(RECEIVE_TIMEOUT);
+        this.socket = new LogSocket(socket);
+        this.fileName = fileName;
+        this.start = start;
+        this.end = end;
+        this.window = window;
+        resume();
+    }
+
+    /**
+     * Receive the next chunk of the range, in order. Credit is granted back
+     * to the collector every half window.
+     *
+     * @return The next chunk, or null once the last chunk was received
+     * @throws IOException if the collector stopped answering
+     */
+    public ChunkMessage receive() throws IOException {
+        int retries = 0;
+        while (!finished) {
+            LogSocket.MessageType type = socket.receive();
+            if (type == null) {
+                if (++retries > MAX_RETRIES)
+                    throw new IOException("replay of " + fileName + " timed out at chunk " + chunk);
+                resume();
+                continue;
+            }
+            if (type != LogSocket.MessageType.CHUNK)
+                continue;
+
+            ChunkMessage message = socket.getChunk();
+            if (message.getSequence() != sequence || message.getChunk() <= chunk)
+                continue;           //  Another stream, or a duplicate
+            if (message.getChunk() != chunk + 1) {
+                resume();           //  Chunks were lost
+                continue;
+            }
+
+            chunk = message.getChunk();
+            position = message.getPosition();
+            finished = message.getLast() != 0;
+            if (!finished && ++unacked >= (window + 1) / 2) {
+                CreditMessage credit = new CreditMessage();
+                credit.setSequence(sequence);
+                credit.setAck(chunk);
+                credit.setCredit(unacked);
+                socket.send(credit);
+                unacked = 0;
+            }
+            return message;
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of the last chunk received.
+     *
+     * @return The chunk number
+     */
+    public int getChunk() {
+        return chunk;
+    }
+
+    /**
+     * Check whether the last chunk was received.
+     *
+     * @return true if the range is exhausted
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    //  Ask for the range again after the last chunk received, with a full window
+    private void resume() {
+        ReplayMessage replay = new ReplayMessage();
+        replay.setSequence(sequence);
+        replay.setFileName(fileName);
+        replay.setStart(start);
+        replay.setEnd(end);
+        replay.setResume(chunk);
+        replay.setPosition(position);
+        replay.setCredit(window);
+        socket.send(replay);
+        unacked = 0;
+    }
+
+    /**
+     * Close the stream and its socket.
+     */
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
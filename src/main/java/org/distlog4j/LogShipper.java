@@ -0,0 +1,274 @@
+/* ============================================================================
+ * LogShipper.java
+ *
+ * Background sender for LogMessage traffic
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogShipper class.
+ *
+ * Owns a LogSocket on a single I/O thread. Application threads hand over
+ * LogMessages through a bounded queue; messages built with a deferred
+ * format are only formatted when the I/O thread encodes them, so events
+ * dropped by backpressure never pay for formatting at all.
+ */
+public class LogShipper implements Runnable, Closeable {
+    //  How long the I/O thread waits for work before checking for shutdown
+    private static final long POLL_MILLIS = 100;
+
+    //  Number of call sites tracked by the governor
+    private static final int GOVERNOR_KEYS = 4096;
+
+    private final LogSocket socket;
+    private final String ip;
+    private final int port;
+    private final int capacity;
+    private final BlockingQueue<LogMessage> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    private volatile boolean running;
+    private Thread thread;
+    private LogBatcher batcher;
+    private long batcherLost;
+    private LogGovernor governor;
+    private long summaryNanos;
+    private long lastSummary;
+    private final List<LogMessage> summaries = new ArrayList<>();
+    private int sequence;
+
+    /**
+     * Create a new LogShipper.
+     *
+     * @param socket The socket to send on, owned by the I/O thread from now on
+     * @param ip The originating host stamped on each message
+     * @param port The originating port stamped on each message
+     * @param capacity The maximum number of messages waiting to be sent
+     */
+    public LogShipper(LogSocket socket, String ip, int port, int capacity) {
+        assert (socket != null);
+        this.socket = socket;
+        this.ip = ip;
+        this.port = port;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Fold consecutive lines into LOGS messages, sized adaptively to the
+     * backlog and send latency. Must be called before {@link #start()}.
+     *
+     * @param latencyTargetMicros The send latency above which batches grow
+     * @return The batcher, whose decisions can be registered with JMX
+     */
+    public synchronized LogBatcher enableBatching(long latencyTargetMicros) {
+        assert (thread == null);
+        batcher = new LogBatcher(socket, capacity, latencyTargetMicros);
+        return batcher;
+    }
+
+    /**
+     * Rate limit each (fileName, lineNum) pair before it is queued. Lines over
+     * budget are counted instead of sent, and the counts are shipped as
+     * summary LogMessages. Must be called before {@link #start()}.
+     *
+     * @param ratePerSecond The sustained lines per second allowed per key
+     * @param burst The number of lines a quiet key may send at once
+     * @param summaryMillis How often suppressed counts are reported
+     * @return The governor, for its counters
+     */
+    public synchronized LogGovernor enableGovernor(int ratePerSecond, int burst, long summaryMillis) {
+        assert (thread == null);
+        governor = new LogGovernor(ratePerSecond, burst, GOVERNOR_KEYS);
+        summaryNanos = TimeUnit.MILLISECONDS.toNanos(summaryMillis);
+        lastSummary = System.nanoTime();
+        return governor;
+    }
+
+    /**
+     * Start the I/O thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "distlog4j-shipper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a log line without formatting it. The format and arguments are
+     * kept until the I/O thread encodes the message, so the arguments must
+     * not be modified after this call.
+     *
+     * @param fileName The originating file
+     * @param lineNum The originating line number
+     * @param format The string format
+     * @param args The arguments used to build the string
+     * @return true if queued, false if suppressed or the queue is full
+     */
+    public boolean log(String fileName, int lineNum, String format, Object... args) {
+        if (governor != null && !governor.tryAcquire(fileName, lineNum))
+            return false;
+        LogMessage message = new LogMessage();
+        message.setFileName(fileName);
+        message.setLineNum(lineNum);
+        message.setMessage(format, args);
+        return enqueue(message);
+    }
+
+    /**
+     * Queue a message for the I/O thread.
+     *
+     * @param message The message to send
+     * @return true if queued, false if suppressed or the queue is full
+     */
+    public boolean offer(LogMessage message) {
+        if (governor != null && message.lineNum != null) {
+            //  The key is needed now, so a deferred fileName is formatted here
+            String fileName = message.getFileName();
+            if (fileName != null && !governor.tryAcquire(fileName, message.lineNum))
+                return false;
+        }
+        return enqueue(message);
+    }
+
+    //  Queue without consulting the governor
+    private boolean enqueue(LogMessage message) {
+        if (!queue.offer(message)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * I/O thread loop; sends queued messages until closed.
+     */
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            LogMessage message;
+            try {
+                message = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                if (running)
+                    continue;
+                message = queue.poll();
+            }
+            if (message != null)
+                ship(message);
+            if (governor != null && System.nanoTime() - lastSummary >= summaryNanos)
+                summarize();
+
+            //  Never linger on a partial batch once the queue runs dry
+            if (batcher != null && queue.isEmpty())
+                count(batcher.flush());
+        }
+    }
+
+    /**
+     * Stamp and send one message on the I/O thread.
+     *
+     * @param message The message to send
+     */
+    protected void ship(LogMessage message) {
+        if (message.ip == null && message.ipFormat == null)
+            message.setIp(ip);
+        if (message.port == null)
+            message.setPort(port);
+        if (batcher != null) {
+            //  The batcher stamps sequence numbers as it sends
+            count(batcher.add(message, queue.size()));
+            return;
+        }
+        message.setSequence(++sequence);
+        if (socket.send(message))
+            sent.incrementAndGet();
+        else
+            dropped.incrementAndGet();
+    }
+
+    //  Queue a summary for every key the governor suppressed
+    private void summarize() {
+        lastSummary = System.nanoTime();
+        governor.summarize(summaries);
+        for (LogMessage summary : summaries)
+            enqueue(summary);
+        summaries.clear();
+    }
+
+    //  Count the lines a batch carried out, and every line of any batch the
+    //  socket refused since the last count
+    private void count(int lines) {
+        sent.addAndGet(lines);
+        long lost = batcher.getLinesLost();
+        dropped.addAndGet(lost - batcherLost);
+        batcherLost = lost;
+    }
+
+    /**
+     * Get the number of messages dropped because of backpressure.
+     *
+     * @return The dropped message count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of messages handed to the socket.
+     *
+     * @return The sent message count
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Stop the I/O thread after flushing queued messages, then close the socket.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        socket.close();
+    }
+}
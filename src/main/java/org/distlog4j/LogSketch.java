@@ -0,0 +1,315 @@
+/* ============================================================================
+ * LogSketch.java
+ *
+ * Sliding-window heavy hitters and distinct count in fixed memory
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LogSketch class.
+ *
+ * Counts (name, number) keys, such as (fileName, lineNum) or (ip, port),
+ * over a sliding window made of a ring of time slices. Each slice holds a
+ * Count-Min sketch of key counts, a HyperLogLog of distinct keys, and a
+ * small table of heavy hitter candidates in which a new key takes the slot
+ * of the candidate with the lowest count, in the manner of Space-Saving.
+ * Every update is a handful of atomic operations on preallocated arrays,
+ * so any number of threads may add at once without locks, and memory does
+ * not grow with the number of keys.
+ *
+ * A slice is reused, and cleared by the first thread to see it, once the
+ * window has moved past it. Counts are estimates: Count-Min never under
+ * counts, and the HyperLogLog is within about 2% at the default precision.
+ */
+public class LogSketch {
+    //  Count-Min rows, and HyperLogLog register index bits
+    private static final int DEPTH = 4;
+    private static final int PRECISION = 12;
+
+    //  Candidate slots probed per key
+    private static final int MAX_PROBES = 8;
+
+    private final Slice[] slices;
+    private final long sliceMillis;
+    private final int width;
+    private final int topK;
+
+    /**
+     * Create a new LogSketch.
+     *
+     * @param windowMillis The length of the sliding window
+     * @param slices The number of slices the window moves by
+     * @param width The number of Count-Min counters per row, rounded up to a power of two
+     * @param topK The number of heavy hitters reported
+     */
+    public LogSketch(long windowMillis, int slices, int width, int topK) {
+        assert (windowMillis > 0 && slices > 0 && width > 0 && topK > 0);
+        this.sliceMillis = Math.max(1, windowMillis / slices);
+        this.width = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+        this.topK = topK;
+        this.slices = new Slice[slices];
+        int candidates = Integer.highestOneBit(topK * 4 - 1) << 1;
+        for (int index = 0; index < slices; index++)
+            this.slices[index] = new Slice(DEPTH * this.width, 1 << PRECISION, candidates);
+    }
+
+    /**
+     * Count a key. Safe to call from any thread.
+     *
+     * @param name The name part of the key
+     * @param number The number part of the key
+     * @param count The amount to count
+     */
+    public void add(String name, int number, long count) {
+        if (name == null)
+            name = "";
+        long hash = hash(name, number);
+        Slice slice = slice(System.currentTimeMillis());
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = counter(row, hash);
+            estimate = Math.min(estimate, slice.counts.addAndGet(index, count));
+        }
+
+        //  HyperLogLog keeps the longest run of leading zeros per register
+        int register = (int) (hash >>> (64 - PRECISION));
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        int current;
+        while ((current = slice.registers.get(register)) < rank) {
+            if (slice.registers.compareAndSet(register, current, rank))
+                break;
+        }
+
+        offer(slice, name, number, hash, estimate);
+    }
+
+    /**
+     * Get the heaviest keys of the window.
+     *
+     * @return Up to topK keys as "name:number count", heaviest first
+     */
+    public String[] getTop() {
+        long now = System.currentTimeMillis();
+        final Map<Candidate, Long> estimates = new HashMap<>();
+        for (Slice slice : slices) {
+            if (!live(slice, now))
+                continue;
+            for (int index = 0; index < slice.candidates.length(); index++) {
+                Candidate candidate = slice.candidates.get(index);
+                if (candidate != null && !estimates.containsKey(candidate))
+                    estimates.put(candidate, estimate(candidate.hash, now));
+            }
+        }
+
+        List<Candidate> top = new ArrayList<>(estimates.keySet());
+        Collections.sort(top, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Long.compare(estimates.get(b), estimates.get(a));
+            }
+        });
+        String[] result = new String[Math.min(topK, top.size())];
+        for (int index = 0; index < result.length; index++) {
+            Candidate candidate = top.get(index);
+            result[index] = candidate.name + ":" + candidate.number + " " + estimates.get(candidate);
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the count of a key over the window.
+     *
+     * @param name The name part of the key
+     * @param number The number part of the key
+     * @return The estimated count, never less than the true count
+     */
+    public long getCount(String name, int number) {
+        return estimate(hash(name == null ? "" : name, number), System.currentTimeMillis());
+    }
+
+    /**
+     * Estimate the number of distinct keys in the window.
+     *
+     * @return The estimated distinct key count
+     */
+    public long getDistinct() {
+        long now = System.currentTimeMillis();
+        int registers = 1 << PRECISION;
+        int[] merged = new int[registers];
+        for (Slice slice : slices) {
+            if (!live(slice, now))
+                continue;
+            for (int index = 0; index < registers; index++)
+                merged[index] = Math.max(merged[index], slice.registers.get(index));
+        }
+
+        double sum = 0;
+        int zeros = 0;
+        for (int rank : merged) {
+            sum += 1.0 / (1L << rank);
+            if (rank == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / registers);
+        double estimate = alpha * registers * registers / sum;
+        if (estimate <= 2.5 * registers && zeros > 0)
+            estimate = registers * Math.log((double) registers / zeros);
+        return Math.round(estimate);
+    }
+
+    //  The slice for a time, cleared first if it still holds an older slice
+    private Slice slice(long now) {
+        long epoch = now / sliceMillis;
+        Slice slice = slices[(int) (epoch % slices.length)];
+        long seen = slice.epoch;
+        if (seen < epoch && Slice.EPOCH.compareAndSet(slice, seen, epoch))
+            slice.clear();
+        return slice;
+    }
+
+    private boolean live(Slice slice, long now) {
+        return now / sliceMillis - slice.epoch < slices.length;
+    }
+
+    //  Count-Min estimate summed over the live slices
+    private long estimate(long hash, long now) {
+        long total = 0;
+        for (Slice slice : slices) {
+            if (live(slice, now))
+                total += sliceEstimate(slice, hash);
+        }
+        return total;
+    }
+
+    //  Make a key a candidate, displacing the lightest one probed if it is lighter
+    private void offer(Slice slice, String name, int number, long hash, long estimate) {
+        AtomicReferenceArray<Candidate> candidates = slice.candidates;
+        int mask = candidates.length() - 1;
+        int lightest = -1;
+        long lightestCount = Long.MAX_VALUE;
+        Candidate lightestCandidate = null;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int index = ((int) hash + probe) & mask;
+            Candidate candidate = candidates.get(index);
+            if (candidate == null) {
+                if (candidates.compareAndSet(index, null, new Candidate(name, number, hash)))
+                    return;
+                candidate = candidates.get(index);
+            }
+            if (candidate.hash == hash && candidate.number == number && candidate.name.equals(name))
+                return;
+            long count = sliceEstimate(slice, candidate.hash);
+            if (count < lightestCount) {
+                lightest = index;
+                lightestCount = count;
+                lightestCandidate = candidate;
+            }
+        }
+        if (estimate > lightestCount)
+            candidates.compareAndSet(lightest, lightestCandidate, new Candidate(name, number, hash));
+    }
+
+    private long sliceEstimate(Slice slice, long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = counter(row, hash);
+            estimate = Math.min(estimate, slice.counts.get(index));
+        }
+        return estimate;
+    }
+
+    //  Count-Min rows take disjoint bits of the hash
+    private int counter(int row, long hash) {
+        return row * width + ((int) (hash >>> (row * 16)) & (width - 1));
+    }
+
+    private static long hash(String name, int number) {
+        long hash = name.hashCode() * 0x9e3779b97f4a7c15L + number;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    //  One time slice of the window
+    private static final class Slice {
+        static final AtomicLongFieldUpdater<Slice> EPOCH =
+            AtomicLongFieldUpdater.newUpdater(Slice.class, "epoch");
+
+        final AtomicLongArray counts;
+        final AtomicIntegerArray registers;
+        final AtomicReferenceArray<Candidate> candidates;
+        volatile long epoch = Long.MIN_VALUE / 2;
+
+        Slice(int counters, int registers, int candidates) {
+            this.counts = new AtomicLongArray(counters);
+            this.registers = new AtomicIntegerArray(registers);
+            this.candidates = new AtomicReferenceArray<>(candidates);
+        }
+
+        void clear() {
+            for (int index = 0; index < counts.length(); index++)
+                counts.set(index, 0);
+            for (int index = 0; index < registers.length(); index++)
+                registers.set(index, 0);
+            for (int index = 0; index < candidates.length(); index++)
+                candidates.set(index, null);
+        }
+    }
+
+    //  A heavy hitter candidate
+    private static final class Candidate {
+        final String name;
+        final int number;
+        final long hash;
+
+        Candidate(String name, int number, long hash) {
+            this.name = name;
+            this.number = number;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Candidate))
+                return false;
+            Candidate candidate = (Candidate) other;
+            return hash == candidate.hash && number == candidate.number
+                && name.equals(candidate.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
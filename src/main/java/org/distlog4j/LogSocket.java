@@ -23,6 +23,9 @@ package org.distlog4j;
 import java.util.*;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -42,7 +45,7 @@ import org.zeromq.ZMQ;
  *    fileName                     string
  *    lineNum                      number 4
  *    message                      string
- *  LOGS - Message containing information about a batch of logs, including originating host, file, etc.
+ *  LOGS - Message containing information about a batch of logs, including originating host, file, etc. line_nums packs the 4-octet line_num of each message in order; when it is empty the messages are numbered consecutively from line_num.
  *    sequence                     number 4
  *    headers                      dictionary
  *    ip                           string
@@ -50,15 +53,55 @@ import org.zeromq.ZMQ;
  *    fileName                     string
  *    lineNum                      number 4
  *    messages                     strings
- *  REQUEST - Request for a replay of messages between start and end line_num values.
+ *    lineNums                     frame
+ *  REQUEST - Request for a replay of messages between start and end line_num values. position is the store position to read from, the more header of a REPLY cut short, or 0 for the start.
  *    sequence                     number 4
  *    fileName                     string
  *    start                        number 4
  *    end                          number 4
+ *    position                     number 8
  *  REPLY - Reply containing the requested sequence of replay log messages.
  *    sequence                     number 4
  *    headers                      dictionary
  *    messages                     strings
+ *  REPLAY - Request a streamed replay of messages between start and end line_num values. The sequence identifies the stream, credit is the number of chunks the server may send before waiting for more, resume is the last chunk already received (0 for a new stream), and position is the store position that chunk ended at (0 for a new stream).
+ *    sequence                     number 4
+ *    fileName                     string
+ *    start                        number 4
+ *    end                          number 4
+ *    resume                       number 4
+ *    position                     number 8
+ *    credit                       number 2
+ *  CHUNK - One numbered chunk of a streamed replay, carrying the same sequence as its REPLAY. position is the store position the next chunk starts at, and last is 1 on the final chunk.
+ *    sequence                     number 4
+ *    chunk                        number 4
+ *    position                     number 8
+ *    last                         number 1
+ *    messages                     strings
+ *  CREDIT - Acknowledge chunks of a streamed replay up to ack, and allow the server to send credit more chunks. The server sends no more than the credit of the REPLAY beyond the last chunk acked.
+ *    sequence                     number 4
+ *    ack                          number 4
+ *    credit                       number 2
+ *  REQUESTS - Request replay messages for many ranges at once. Each range in the frame is packed as a 1-octet index into file_names followed by 4-octet start and end line_num values and an 8-octet position, as in REQUEST. Every range is answered with its own REPLY carrying the same sequence.
+ *    sequence                     number 4
+ *    fileNames                    strings
+ *    ranges                       frame
+ *  SUBSCRIBE - Follow newly received LOG and LOGS messages whose file_name matches pattern, where * matches any run of characters and ? any one character. queue is the number of messages the server may hold for the subscriber, 0 for its default. A subscription lapses unless it is sent again within a minute.
+ *    sequence                     number 4
+ *    pattern                      string
+ *    queue                        number 2
+ *  UNSUBSCRIBE - Stop following a pattern.
+ *    sequence                     number 4
+ *    pattern                      string
+ *  QUERY - Search received messages for lines containing every word of query, most recent first, in one file or in all files when file_name is empty. At most limit hits are returned.
+ *    sequence                     number 4
+ *    query                        string
+ *    fileName                     string
+ *    limit                        number 2
+ *  RESULTS - Hits of a QUERY, carrying the same sequence. Each hit in the frame is packed as a 1-octet index into file_names, a 4-octet line_num and the 8-octet store position of the line. Many lines share a line_num; a REQUEST of that line_num from the position replies with the hit first.
+ *    sequence                     number 4
+ *    fileNames                    strings
+ *    hits                         frame
  * </pre>
  * 
  * @author sriesenberg
@@ -72,17 +115,45 @@ public class LogSocket implements Closeable {
         LOG,
         LOGS,
         REQUEST,
-        REPLY
+        REPLY,
+        REPLAY,
+        CHUNK,
+        CREDIT,
+        REQUESTS,
+        SUBSCRIBE,
+        UNSUBSCRIBE,
+        QUERY,
+        RESULTS
     }
 
+    //  Frame fields of encoded messages that have none
+    private static final Frame[] NO_FRAMES = new Frame[0];
+
     //  Structure of our class
     private Socket socket;        //  Internal socket handle
     private Frame address;        //  Address of peer if any
+    private int peer = -1;        //  Registered id of peer if any
+    private LogPeers peers;    //  Registry of peer ids if any
+    private SequenceFilter filter;    //  Drops messages by sequence if any
+
+    //  Reusable buffers for deferred string formatting
+    private final StringBuilder formatBuffer = new StringBuilder();
+    private final Formatter formatter = new Formatter(formatBuffer);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(255);
 
     private LogMessage log;
     private LogsMessage logs;
     private RequestMessage request;
     private ReplyMessage reply;
+    private ReplayMessage replay;
+    private ChunkMessage chunk;
+    private CreditMessage credit;
+    private RequestsMessage requests;
+    private SubscribeMessage subscribe;
+    private UnsubscribeMessage unsubscribe;
+    private QueryMessage query;
+    private ResultsMessage results;
 
     /**
      * Create a new LogSocket.
@@ -121,42 +192,144 @@ public class LogSocket implements Closeable {
     }
 
     /**
-     * Receive a message on the socket.
+     * Get the registered id of the peer the last message came from.
+     * 
+     * @return The peer id, or -1 if no registry is set or not reading from a ROUTER
+     */
+    public int getPeer() {
+        return peer;
+    }
+
+    /**
+     * Set the message address to that of a registered peer.
+     * 
+     * @param peer The id of the peer
+     */
+    public void setPeer(int peer) {
+        this.address = peers.getAddress(peer);
+    }
+
+    /**
+     * Set the registry in which the address of each received message is
+     * looked up.
+     * 
+     * @param peers The registry, or null to leave peers unregistered
+     */
+    public void setPeers(LogPeers peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Decides from the header sequence alone whether a received message is
+     * decoded, so that duplicates are dropped before their body is read.
+     */
+    public interface SequenceFilter {
+        /**
+         * Check a received message.
+         * 
+         * @param type The type of the message
+         * @param address The address of the peer, or null if not reading from a ROUTER
+         * @param peer The registered id of the peer, or -1
+         * @param sequence The sequence of the message
+         * @return true to decode the message, false to drop it
+         */
+        boolean accept(MessageType type, Frame address, int peer, long sequence);
+    }
+
+    //  Width of the sequence on the wire, for filters that handle wrap-around
+    public static final int SEQUENCE_BITS = 32;
+
+    //  Position of the sequence in the header frame
+    private static final int SEQUENCE_OFFSET = 3;
+
+    /**
+     * Set the filter consulted before each received message is decoded.
+     * 
+     * @param filter The filter, or null to decode every message
+     */
+    public void setSequenceFilter(SequenceFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Receive a message on the socket. Returns null if the receive was
+     * interrupted, timed out, or the message was malformed or filtered.
+     * Messages without the protocol signature are skipped.
      */
     public MessageType receive() {
+        //  Read valid message frame from socket; we loop over any
+        //  garbage data we might receive from badly-connected peers
+        while (true) {
+            Message frames = socket.receiveMessage();
+            if (frames == null)
+                return null;              //  Interrupted or timed out
+
+            //  If we're reading from a ROUTER socket, get address
+            Frame address = null;
+            if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+                address = frames.popFrame();
+            }
+            if (isSigned(frames))
+                return decode(address, frames);
+
+            //  Protocol assertion, drop message
+        }
+    }
+
+    //  Check the protocol signature without consuming the frame
+    private static boolean isSigned(Message frames) {
+        if (frames.isEmpty())
+            return false;
+        byte[] data = frames.getFrames().get(0).getData();
+        return data.length >= 2
+            && ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == (0xAAA0 | 1);
+    }
+
+    /**
+     * Decode a message already read from the socket, such as one handed
+     * over by a LogDispatcher. Returns null if the message was
+     * malformed or filtered.
+     * 
+     * @param address The address popped from a ROUTER socket, or null
+     * @param frames The remaining frames of the message
+     * @return The type of the message decoded
+     */
+    public MessageType decode(Frame address, Message frames) {
         int id = 0;
-        Message frames;
         Frame needle;
         MessageType type;
         try {
-            //  Read valid message frame from socket; we loop over any
-            //  garbage data we might receive from badly-connected peers
-            while (true) {
-                frames = socket.receiveMessage();
-
-                //  If we're reading from a ROUTER socket, get address
-                if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-                    this.address = frames.popFrame();
-                }
-
-                //  Read and parse command in frame
-                needle = frames.popFrame();
+            this.peer = -1;
+            if (address != null) {
+                this.address = address;
+                if (peers != null)
+                    this.peer = peers.register(address);
+            }
 
-                //  Get and check protocol signature
-                int signature = (0xffff) & needle.getShort();
-                if (signature == (0xAAA0 | 1))
-                    break;                //  Valid signature
+            //  Read and parse command in frame
+            needle = frames.popFrame();
 
-                //  Protocol assertion, drop message
-            }
+            //  Get and check protocol signature; drop garbage data we
+            //  might receive from badly-connected peers
+            int signature = (0xffff) & needle.getShort();
+            if (signature != (0xAAA0 | 1))
+                return null;              //  Protocol assertion, drop message
 
             //  Get message id, which is first byte in frame
             id = (0xff) & needle.getByte();
             type = MessageType.values()[id-1];
+
+            //  Get header fields, which come first in every message
+            int sequence = needle.getInt();
+
+            //  Drop filtered messages before decoding their body
+            if (filter != null && !filter.accept(type, address, peer, sequence))
+                return null;
+
             switch (type) {
                 case LOG: {
                     LogMessage message = this.log = new LogMessage();
-                    message.sequence = needle.getInt();
+                    message.sequence = sequence;
                     int headersHashSize = (0xff) & needle.getByte();
                     message.headers = new HashMap<>(headersHashSize);
                     while (headersHashSize-- > 0) {
@@ -173,7 +346,7 @@ public class LogSocket implements Closeable {
                 }
                 case LOGS: {
                     LogsMessage message = this.logs = new LogsMessage();
-                    message.sequence = needle.getInt();
+                    message.sequence = sequence;
                     int headersHashSize = (0xff) & needle.getByte();
                     message.headers = new HashMap<>(headersHashSize);
                     while (headersHashSize-- > 0) {
@@ -190,19 +363,26 @@ public class LogSocket implements Closeable {
                     while (messagesListSize-- > 0) {
                         message.messages.add(needle.getChars());
                     }
+                    //  Get next frame, leave current untouched
+                    if (!frames.isEmpty()) {
+                        message.lineNums = frames.popFrame();
+                    } else {
+                        throw new IllegalArgumentException("Invalid message: missing frame: line_nums");
+                    }
                     break;
                 }
                 case REQUEST: {
                     RequestMessage message = this.request = new RequestMessage();
-                    message.sequence = needle.getInt();
+                    message.sequence = sequence;
                     message.fileName = needle.getChars();
                     message.start = needle.getInt();
                     message.end = needle.getInt();
+                    message.position = needle.getLong();
                     break;
                 }
                 case REPLY: {
                     ReplyMessage message = this.reply = new ReplyMessage();
-                    message.sequence = needle.getInt();
+                    message.sequence = sequence;
                     int headersHashSize = (0xff) & needle.getByte();
                     message.headers = new HashMap<>(headersHashSize);
                     while (headersHashSize-- > 0) {
@@ -217,6 +397,90 @@ public class LogSocket implements Closeable {
                     }
                     break;
                 }
+                case REPLAY: {
+                    ReplayMessage message = this.replay = new ReplayMessage();
+                    message.sequence = sequence;
+                    message.fileName = needle.getChars();
+                    message.start = needle.getInt();
+                    message.end = needle.getInt();
+                    message.resume = needle.getInt();
+                    message.position = needle.getLong();
+                    message.credit = (0xffff) & needle.getShort();
+                    break;
+                }
+                case CHUNK: {
+                    ChunkMessage message = this.chunk = new ChunkMessage();
+                    message.sequence = sequence;
+                    message.chunk = needle.getInt();
+                    message.position = needle.getLong();
+                    message.last = (0xff) & needle.getByte();
+                    int messagesListSize = (0xff) & needle.getByte();
+                    message.messages = new ArrayList<>(messagesListSize);
+                    while (messagesListSize-- > 0) {
+                        message.messages.add(needle.getChars());
+                    }
+                    break;
+                }
+                case CREDIT: {
+                    CreditMessage message = this.credit = new CreditMessage();
+                    message.sequence = sequence;
+                    message.ack = needle.getInt();
+                    message.credit = (0xffff) & needle.getShort();
+                    break;
+                }
+                case REQUESTS: {
+                    RequestsMessage message = this.requests = new RequestsMessage();
+                    message.sequence = sequence;
+                    int fileNamesListSize = (0xff) & needle.getByte();
+                    message.fileNames = new ArrayList<>(fileNamesListSize);
+                    while (fileNamesListSize-- > 0) {
+                        message.fileNames.add(needle.getChars());
+                    }
+                    //  Get next frame, leave current untouched
+                    if (!frames.isEmpty()) {
+                        message.ranges = frames.popFrame();
+                    } else {
+                        throw new IllegalArgumentException("Invalid message: missing frame: ranges");
+                    }
+                    break;
+                }
+                case SUBSCRIBE: {
+                    SubscribeMessage message = this.subscribe = new SubscribeMessage();
+                    message.sequence = sequence;
+                    message.pattern = needle.getChars();
+                    message.queue = (0xffff) & needle.getShort();
+                    break;
+                }
+                case UNSUBSCRIBE: {
+                    UnsubscribeMessage message = this.unsubscribe = new UnsubscribeMessage();
+                    message.sequence = sequence;
+                    message.pattern = needle.getChars();
+                    break;
+                }
+                case QUERY: {
+                    QueryMessage message = this.query = new QueryMessage();
+                    message.sequence = sequence;
+                    message.query = needle.getChars();
+                    message.fileName = needle.getChars();
+                    message.limit = (0xffff) & needle.getShort();
+                    break;
+                }
+                case RESULTS: {
+                    ResultsMessage message = this.results = new ResultsMessage();
+                    message.sequence = sequence;
+                    int fileNamesListSize = (0xff) & needle.getByte();
+                    message.fileNames = new ArrayList<>(fileNamesListSize);
+                    while (fileNamesListSize-- > 0) {
+                        message.fileNames.add(needle.getChars());
+                    }
+                    //  Get next frame, leave current untouched
+                    if (!frames.isEmpty()) {
+                        message.hits = frames.popFrame();
+                    } else {
+                        throw new IllegalArgumentException("Invalid message: missing frame: hits");
+                    }
+                    break;
+                }
                 default:
                     throw new IllegalArgumentException("Invalid message: unrecognized type: " + type);
             }
@@ -258,10 +522,76 @@ public class LogSocket implements Closeable {
         return reply;
     }
 
+    /**
+     * Get a REPLAY message from the socket.
+     */
+    public ReplayMessage getReplay() {
+        return replay;
+    }
+
+    /**
+     * Get a CHUNK message from the socket.
+     */
+    public ChunkMessage getChunk() {
+        return chunk;
+    }
+
+    /**
+     * Get a CREDIT message from the socket.
+     */
+    public CreditMessage getCredit() {
+        return credit;
+    }
+
+    /**
+     * Get a REQUESTS message from the socket.
+     */
+    public RequestsMessage getRequests() {
+        return requests;
+    }
+
+    /**
+     * Get a SUBSCRIBE message from the socket.
+     */
+    public SubscribeMessage getSubscribe() {
+        return subscribe;
+    }
+
+    /**
+     * Get a UNSUBSCRIBE message from the socket.
+     */
+    public UnsubscribeMessage getUnsubscribe() {
+        return unsubscribe;
+    }
+
+    /**
+     * Get a QUERY message from the socket.
+     */
+    public QueryMessage getQuery() {
+        return query;
+    }
+
+    /**
+     * Get a RESULTS message from the socket.
+     */
+    public ResultsMessage getResults() {
+        return results;
+    }
+
     /**
      * Send the LOG to the socket in one step.
      */
     public boolean send(LogMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the LOG once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(LogMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
@@ -276,43 +606,47 @@ public class LogSocket implements Closeable {
         } else {
             builder.putByte((byte) 0);   //  Empty dictionary
         }
-        if (message.ip != null) {
+        if (message.ipFormat != null) {
+            putFormat(builder, message.ipFormat, message.ipArgs);
+        } else if (message.ip != null) {
             builder.putChars(message.ip);
         } else {
             builder.putChars("");        //  Empty string
         }
         builder.putShort((short) (int) message.port);
-        if (message.fileName != null) {
+        if (message.fileNameFormat != null) {
+            putFormat(builder, message.fileNameFormat, message.fileNameArgs);
+        } else if (message.fileName != null) {
             builder.putChars(message.fileName);
         } else {
             builder.putChars("");        //  Empty string
         }
         builder.putInt(message.lineNum);
-        if (message.message != null) {
+        if (message.messageFormat != null) {
+            putFormat(builder, message.messageFormat, message.messageArgs);
+        } else if (message.message != null) {
             builder.putChars(message.message);
         } else {
             builder.putChars("");        //  Empty string
         }
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        return socket.send(frames);
+        return new Encoded(builder.build(), NO_FRAMES);
     }
 
     /**
      * Send the LOGS to the socket in one step.
      */
     public boolean send(LogsMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the LOGS once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(LogsMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
@@ -327,13 +661,17 @@ public class LogSocket implements Closeable {
         } else {
             builder.putByte((byte) 0);   //  Empty dictionary
         }
-        if (message.ip != null) {
+        if (message.ipFormat != null) {
+            putFormat(builder, message.ipFormat, message.ipArgs);
+        } else if (message.ip != null) {
             builder.putChars(message.ip);
         } else {
             builder.putChars("");        //  Empty string
         }
         builder.putShort((short) (int) message.port);
-        if (message.fileName != null) {
+        if (message.fileNameFormat != null) {
+            putFormat(builder, message.fileNameFormat, message.fileNameArgs);
+        } else if (message.fileName != null) {
             builder.putChars(message.fileName);
         } else {
             builder.putChars("");        //  Empty string
@@ -341,65 +679,75 @@ public class LogSocket implements Closeable {
         builder.putInt(message.lineNum);
         if (message.messages != null) {
             builder.putByte((byte) message.messages.size());
-            for (String value : message.messages) {
-                builder.putChars(value);
+            for (int index = 0; index < message.messages.size(); index++) {
+                Object[] args = message.messagesArgs != null ? message.messagesArgs.get(index) : null;
+                ByteBuffer bytes = message.messagesBytes != null ? message.messagesBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.messages.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.messages.get(index));
+                }
             }
         } else {
             builder.putByte((byte) 0);   //  Empty string array
         }
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        return socket.send(frames);
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.lineNums
+        });
     }
 
     /**
      * Send the REQUEST to the socket in one step.
      */
     public boolean send(RequestMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the REQUEST once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(RequestMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
         builder.putByte((byte) 3);       //  Message ID
 
         builder.putInt(message.sequence);
-        if (message.fileName != null) {
+        if (message.fileNameFormat != null) {
+            putFormat(builder, message.fileNameFormat, message.fileNameArgs);
+        } else if (message.fileName != null) {
             builder.putChars(message.fileName);
         } else {
             builder.putChars("");        //  Empty string
         }
         builder.putInt(message.start);
         builder.putInt(message.end);
+        builder.putLong(message.position);
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        return socket.send(frames);
+        return new Encoded(builder.build(), NO_FRAMES);
     }
 
     /**
      * Send the REPLY to the socket in one step.
      */
     public boolean send(ReplyMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the REPLY once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(ReplyMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
@@ -416,13 +764,363 @@ public class LogSocket implements Closeable {
         }
         if (message.messages != null) {
             builder.putByte((byte) message.messages.size());
-            for (String value : message.messages) {
-                builder.putChars(value);
+            for (int index = 0; index < message.messages.size(); index++) {
+                Object[] args = message.messagesArgs != null ? message.messagesArgs.get(index) : null;
+                ByteBuffer bytes = message.messagesBytes != null ? message.messagesBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.messages.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.messages.get(index));
+                }
+            }
+        } else {
+            builder.putByte((byte) 0);   //  Empty string array
+        }
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the REPLAY to the socket in one step.
+     */
+    public boolean send(ReplayMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the REPLAY once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(ReplayMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 5);       //  Message ID
+
+        builder.putInt(message.sequence);
+        if (message.fileNameFormat != null) {
+            putFormat(builder, message.fileNameFormat, message.fileNameArgs);
+        } else if (message.fileName != null) {
+            builder.putChars(message.fileName);
+        } else {
+            builder.putChars("");        //  Empty string
+        }
+        builder.putInt(message.start);
+        builder.putInt(message.end);
+        builder.putInt(message.resume);
+        builder.putLong(message.position);
+        builder.putShort((short) (int) message.credit);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the CHUNK to the socket in one step.
+     */
+    public boolean send(ChunkMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the CHUNK once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(ChunkMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 6);       //  Message ID
+
+        builder.putInt(message.sequence);
+        builder.putInt(message.chunk);
+        builder.putLong(message.position);
+        builder.putByte((byte) (int) message.last);
+        if (message.messages != null) {
+            builder.putByte((byte) message.messages.size());
+            for (int index = 0; index < message.messages.size(); index++) {
+                Object[] args = message.messagesArgs != null ? message.messagesArgs.get(index) : null;
+                ByteBuffer bytes = message.messagesBytes != null ? message.messagesBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.messages.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.messages.get(index));
+                }
+            }
+        } else {
+            builder.putByte((byte) 0);   //  Empty string array
+        }
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the CREDIT to the socket in one step.
+     */
+    public boolean send(CreditMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the CREDIT once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(CreditMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 7);       //  Message ID
+
+        builder.putInt(message.sequence);
+        builder.putInt(message.ack);
+        builder.putShort((short) (int) message.credit);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the REQUESTS to the socket in one step.
+     */
+    public boolean send(RequestsMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the REQUESTS once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(RequestsMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 8);       //  Message ID
+
+        builder.putInt(message.sequence);
+        if (message.fileNames != null) {
+            builder.putByte((byte) message.fileNames.size());
+            for (int index = 0; index < message.fileNames.size(); index++) {
+                Object[] args = message.fileNamesArgs != null ? message.fileNamesArgs.get(index) : null;
+                ByteBuffer bytes = message.fileNamesBytes != null ? message.fileNamesBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.fileNames.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.fileNames.get(index));
+                }
             }
         } else {
             builder.putByte((byte) 0);   //  Empty string array
         }
 
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.ranges
+        });
+    }
+
+    /**
+     * Send the SUBSCRIBE to the socket in one step.
+     */
+    public boolean send(SubscribeMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the SUBSCRIBE once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(SubscribeMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 9);       //  Message ID
+
+        builder.putInt(message.sequence);
+        if (message.patternFormat != null) {
+            putFormat(builder, message.patternFormat, message.patternArgs);
+        } else if (message.pattern != null) {
+            builder.putChars(message.pattern);
+        } else {
+            builder.putChars("");        //  Empty string
+        }
+        builder.putShort((short) (int) message.queue);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the UNSUBSCRIBE to the socket in one step.
+     */
+    public boolean send(UnsubscribeMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the UNSUBSCRIBE once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(UnsubscribeMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 10);      //  Message ID
+
+        builder.putInt(message.sequence);
+        if (message.patternFormat != null) {
+            putFormat(builder, message.patternFormat, message.patternArgs);
+        } else if (message.pattern != null) {
+            builder.putChars(message.pattern);
+        } else {
+            builder.putChars("");        //  Empty string
+        }
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the QUERY to the socket in one step.
+     */
+    public boolean send(QueryMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the QUERY once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(QueryMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 11);      //  Message ID
+
+        builder.putInt(message.sequence);
+        if (message.queryFormat != null) {
+            putFormat(builder, message.queryFormat, message.queryArgs);
+        } else if (message.query != null) {
+            builder.putChars(message.query);
+        } else {
+            builder.putChars("");        //  Empty string
+        }
+        if (message.fileNameFormat != null) {
+            putFormat(builder, message.fileNameFormat, message.fileNameArgs);
+        } else if (message.fileName != null) {
+            builder.putChars(message.fileName);
+        } else {
+            builder.putChars("");        //  Empty string
+        }
+        builder.putShort((short) (int) message.limit);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the RESULTS to the socket in one step.
+     */
+    public boolean send(ResultsMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the RESULTS once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(ResultsMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 12);      //  Message ID
+
+        builder.putInt(message.sequence);
+        if (message.fileNames != null) {
+            builder.putByte((byte) message.fileNames.size());
+            for (int index = 0; index < message.fileNames.size(); index++) {
+                Object[] args = message.fileNamesArgs != null ? message.fileNamesArgs.get(index) : null;
+                ByteBuffer bytes = message.fileNamesBytes != null ? message.fileNamesBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.fileNames.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.fileNames.get(index));
+                }
+            }
+        } else {
+            builder.putByte((byte) 0);   //  Empty string array
+        }
+
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.hits
+        });
+    }
+
+    /**
+     * Send an encoded message to the socket.
+     * 
+     * @param encoded The encoded message
+     * @return true if the message was queued
+     */
+    public boolean send(Encoded encoded) {
+        return send(encoded.header, encoded.frames, address);
+    }
+
+    /**
+     * Send an encoded message with another sequence, written into a copy of
+     * its header frame. The other frames are shared.
+     * 
+     * @param encoded The encoded message
+     * @param sequence The sequence to send it with
+     * @return true if the message was queued
+     */
+    public boolean send(Encoded encoded, long sequence) {
+        byte[] header = encoded.header.getData().clone();
+        for (int index = SEQUENCE_BITS / 8 - 1; index >= 0; index--) {
+            header[SEQUENCE_OFFSET + index] = (byte) sequence;
+            sequence >>>= 8;
+        }
+        return send(new Frame(header), encoded.frames, address);
+    }
+
+    /**
+     * Send an encoded message to many peers of a ROUTER socket. Every peer
+     * is sent the same frames; only the address frame differs.
+     * 
+     * @param encoded The encoded message
+     * @param addresses The addresses of the peers
+     * @return The number of peers the message was queued for
+     */
+    public int send(Encoded encoded, Iterable<Frame> addresses) {
+        assert (socket.getZMQSocket().getType() == ZMQ.ROUTER);
+        int sent = 0;
+        for (Frame address : addresses) {
+            if (send(encoded.header, encoded.frames, address))
+                sent++;
+        }
+        return sent;
+    }
+
+    private boolean send(Frame header, Frame[] fields, Frame address) {
         //  Create multi-frame message
         Message frames = new Message();
 
@@ -432,10 +1130,89 @@ public class LogSocket implements Closeable {
             frames.addFrame(address);
         }
 
-        //  Now add the data frame
-        frames.addFrame(builder.build());
+        //  Now add the data frame, then any frame fields, in order
+        frames.addFrame(header);
+        for (Frame field : fields) {
+            frames.addFrame(field);
+        }
 
         return socket.send(frames);
     }
+
+    /**
+     * A message serialized once, so that it can be sent many times. Frame
+     * fields are held by reference, never copied.
+     */
+    public static final class Encoded {
+        private final Frame header;
+        private final Frame[] frames;
+
+        private Encoded(Frame header, Frame[] frames) {
+            this.header = header;
+            this.frames = frames;
+        }
+
+        /**
+         * Get the frame holding the header and the non-frame fields.
+         * 
+         * @return The header frame
+         */
+        public Frame getHeader() {
+            return header;
+        }
+
+        /**
+         * Get the number of bytes the message takes on the wire.
+         * 
+         * @return The size of its frames
+         */
+        public int getSize() {
+            int size = header.size();
+            for (Frame frame : frames)
+                size += frame == null ? 0 : frame.size();
+            return size;
+        }
+    }
+
+    /**
+     * Format a deferred string field straight into the frame, truncated to
+     * the 255 octets a string can hold on the wire.
+     * 
+     * @param builder The frame being serialized
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    private void putFormat(FrameBuilder builder, String format, Object[] args) {
+        formatBuffer.setLength(0);
+        formatter.format(format, args);
+        encoder.reset();
+        encodeBuffer.clear();
+        encoder.encode(CharBuffer.wrap(formatBuffer), encodeBuffer, true);
+        builder.putByte((byte) encodeBuffer.position());
+        builder.putBytes(encodeBuffer.array(), 0, encodeBuffer.position());
+    }
+
+    /**
+     * Copy a string field from its UTF-8 bytes straight into the frame,
+     * truncated to the 255 octets a string can hold on the wire without
+     * splitting a character. FrameBuilder takes arrays only, so bytes
+     * outside the heap, such as a mapped file, go through encodeBuffer.
+     * 
+     * @param builder The frame being serialized
+     * @param bytes The bytes from position to limit, left untouched
+     */
+    private void putUtf8(FrameBuilder builder, ByteBuffer bytes) {
+        int length = Math.min(bytes.remaining(), encodeBuffer.capacity());
+        while (length > 0 && length < bytes.remaining()
+                && (bytes.get(bytes.position() + length) & 0xc0) == 0x80)
+            length--;                   //  Continuation byte, back off
+        builder.putByte((byte) length);
+        if (bytes.hasArray()) {
+            builder.putBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+        } else {
+            bytes.duplicate().get(encodeBuffer.array(), 0, length);
+            builder.putBytes(encodeBuffer.array(), 0, length);
+        }
+    }
 }
 
@@ -0,0 +1,136 @@
+/* ============================================================================
+ * LogStats.java
+ *
+ * Heavy hitter and cardinality sketches of received LOG/LOGS
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogStats class.
+ *
+ * Counts every received line in two LogSketches, one keyed by call site
+ * (fileName, lineNum) and one by sender (ip, port), so that the keys
+ * dominating volume and the number of distinct keys over the last window
+ * can be read at any time without storing the messages. Safe to record
+ * from any number of receiving threads; register it with an MBeanServer to
+ * read it over JMX.
+ */
+public class LogStats implements LogStatsMXBean {
+    //  Defaults: one minute window moving every five seconds, top 20
+    public static final long WINDOW_MILLIS = 60000;
+    public static final int SLICES = 12;
+    public static final int WIDTH = 2048;
+    public static final int TOP_K = 20;
+
+    private final LogSketch callSites;
+    private final LogSketch senders;
+    private final AtomicLong lines = new AtomicLong();
+
+    /**
+     * Create a new LogStats with the default window.
+     */
+    public LogStats() {
+        this(WINDOW_MILLIS, SLICES, WIDTH, TOP_K);
+    }
+
+    /**
+     * Create a new LogStats.
+     *
+     * @param windowMillis The length of the sliding window
+     * @param slices The number of slices the window moves by
+     * @param width The number of Count-Min counters per row
+     * @param topK The number of heavy hitters reported
+     */
+    public LogStats(long windowMillis, int slices, int width, int topK) {
+        this.callSites = new LogSketch(windowMillis, slices, width, topK);
+        this.senders = new LogSketch(windowMillis, slices, width, topK);
+    }
+
+    /**
+     * Count a LOG message.
+     *
+     * @param message The message received
+     */
+    public void record(LogMessage message) {
+        callSites.add(message.getFileName(), message.getLineNum(), 1);
+        senders.add(message.getIp(), message.getPort(), 1);
+        lines.incrementAndGet();
+    }
+
+    /**
+     * Count every line of a LOGS message.
+     *
+     * @param message The message received
+     */
+    public void record(LogsMessage message) {
+        List<String> messages = message.getMessages();
+        int count = messages == null ? 0 : messages.size();
+        if (count == 0)
+            return;
+        for (int index = 0; index < count; index++)
+            callSites.add(message.getFileName(), message.getLineNum(index), 1);
+        senders.add(message.getIp(), message.getPort(), count);
+        lines.addAndGet(count);
+    }
+
+    /**
+     * Get the call site sketch, to look up the count of one call site.
+     *
+     * @return The sketch keyed by (fileName, lineNum)
+     */
+    public LogSketch getCallSites() {
+        return callSites;
+    }
+
+    /**
+     * Get the sender sketch, to look up the count of one sender.
+     *
+     * @return The sketch keyed by (ip, port)
+     */
+    public LogSketch getSenders() {
+        return senders;
+    }
+
+    @Override
+    public String[] getTopCallSites() {
+        return callSites.getTop();
+    }
+
+    @Override
+    public String[] getTopSenders() {
+        return senders.getTop();
+    }
+
+    @Override
+    public long getDistinctCallSites() {
+        return callSites.getDistinct();
+    }
+
+    @Override
+    public long getDistinctSenders() {
+        return senders.getDistinct();
+    }
+
+    @Override
+    public long getLines() {
+        return lines.get();
+    }
+}
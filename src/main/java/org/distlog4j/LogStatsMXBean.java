@@ -0,0 +1,54 @@
+/* ============================================================================
+ * LogStatsMXBean.java
+ *
+ * JMX view of the sketches kept on the collector receive path
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+/**
+ * LogStatsMXBean interface.
+ *
+ * Exposes the heavy hitters and distinct counts of a LogStats so they can
+ * be watched over JMX.
+ */
+public interface LogStatsMXBean {
+    /**
+     * @return The (fileName, lineNum) pairs sending the most lines in the window, as "fileName:lineNum count"
+     */
+    String[] getTopCallSites();
+
+    /**
+     * @return The (ip, port) senders sending the most lines in the window, as "ip:port count"
+     */
+    String[] getTopSenders();
+
+    /**
+     * @return The estimated number of distinct (fileName, lineNum) pairs in the window
+     */
+    long getDistinctCallSites();
+
+    /**
+     * @return The estimated number of distinct senders in the window
+     */
+    long getDistinctSenders();
+
+    /**
+     * @return The number of lines counted since the collector started
+     */
+    long getLines();
+}
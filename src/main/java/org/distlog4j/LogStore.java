@@ -0,0 +1,577 @@
+/* ============================================================================
+ * LogStore.java
+ *
+ * Memory-mapped segmented store of collected log lines
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.*;
+
+/**
+ * LogStore class.
+ *
+ * Appends collected log lines to memory-mapped segment files, one directory
+ * per fileName, so that REQUEST ranges can be replayed. Each segment keeps
+ * a sparse index of blocks of roughly INDEX_INTERVAL bytes, recording the
+ * smallest and largest lineNum in each block; a range scan only touches the
+ * blocks that can hold matching lines. Lines are encoded straight into the
+ * mapping and replayed as views of it, so neither direction copies through
+ * the heap.
+ *
+ * Every stored line has a position, the number of its segment in the high
+ * 32 bits and the offset of its record in the low 32. Positions grow in the
+ * order lines of a file were appended, unlike lineNums, which call sites
+ * repeat; a scan cut short resumes from the position of the first line it
+ * did not take. Position 0 is the start of a file.
+ *
+ * Writes reach the page cache immediately and are forced to disk in
+ * groups, either explicitly with {@link #commit()} or when the thresholds
+ * given to {@link #setCommitPolicy(long, long)} are crossed. Closed
+ * segments are deleted once they are older or larger than the retention
+ * given to {@link #setRetention(long, long)}.
+ *
+ * Appends and maintenance must come from a single thread; scans are safe
+ * from any thread.
+ *
+ * Record layout, big-endian:
+ * <pre class="text">
+ *    size                         number 4    header and payload
+ *    lineNum                      number 4
+ *    timestamp                    number 8    milliseconds since epoch
+ *    message                      UTF-8 bytes
+ * </pre>
+ */
+public class LogStore implements Closeable {
+    //  Bytes of record header in front of each message
+    public static final int RECORD_HEADER = 16;
+
+    //  Approximate bytes covered by one sparse index entry
+    public static final int INDEX_INTERVAL = 4096;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the lines found by a scan. The buffer is a view of the
+     * mapped segment holding the UTF-8 message, reused after the call;
+     * a slice of it keeps the bytes without copying them.
+     */
+    public interface Visitor {
+        /**
+         * @param position The position of the line
+         * @param lineNum The lineNum of the line
+         * @param timestamp When the line was stored, in milliseconds
+         * @param message The message bytes
+         * @return false to stop the scan
+         */
+        boolean visit(long position, int lineNum, long timestamp, ByteBuffer message);
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final Map<String, Partition> partitions = new HashMap<>();
+    private final CharsetEncoder encoder = UTF8.newEncoder();
+
+    //  Group commit policy
+    private long commitBytes = 1 << 20;
+    private long commitMillis = 100;
+    private long pendingBytes;
+    private long lastCommit = System.currentTimeMillis();
+    private final Set<Segment> dirty = new HashSet<>();
+
+    //  Retention policy
+    private long retentionBytes = Long.MAX_VALUE;
+    private long retentionMillis = Long.MAX_VALUE;
+
+    /**
+     * Open a LogStore, recovering any segments already in the directory.
+     *
+     * @param directory The directory holding one sub-directory per fileName
+     * @param segmentBytes The size of each segment file
+     */
+    public LogStore(File directory, int segmentBytes) throws IOException {
+        assert (segmentBytes > RECORD_HEADER);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create store directory: " + directory);
+
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    String fileName = URLDecoder.decode(child.getName(), "UTF-8");
+                    partitions.put(fileName, new Partition(child));
+                }
+            }
+        }
+    }
+
+    /**
+     * Force appended data to disk once this many bytes or this much time
+     * has accumulated, whichever comes first.
+     *
+     * @param bytes The bytes appended between commits
+     * @param millis The longest time appended data stays unforced
+     */
+    public void setCommitPolicy(long bytes, long millis) {
+        this.commitBytes = bytes;
+        this.commitMillis = millis;
+    }
+
+    /**
+     * Delete closed segments once all segments together exceed a size, or
+     * once a segment has not been written to for a time.
+     *
+     * @param bytes The total bytes to keep, or Long.MAX_VALUE
+     * @param millis The age after which a segment is deleted, or Long.MAX_VALUE
+     */
+    public void setRetention(long bytes, long millis) {
+        this.retentionBytes = bytes;
+        this.retentionMillis = millis;
+    }
+
+    /**
+     * Append one line.
+     *
+     * @param fileName The file the line belongs to
+     * @param lineNum The lineNum of the line
+     * @param message The line itself
+     * @return The position of the line
+     */
+    public long append(String fileName, int lineNum, String message) throws IOException {
+        Partition partition = partitions.get(fileName);
+        if (partition == null) {
+            File child = new File(directory, partitionName(fileName));
+            if (!child.isDirectory() && !child.mkdirs())
+                throw new IOException("Cannot create partition directory: " + child);
+            partition = new Partition(child);
+            synchronized (partitions) {
+                partitions.put(fileName, partition);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        CharBuffer chars = CharBuffer.wrap(message != null ? message : "");
+        Segment segment = partition.active();
+        int size = segment.append(encoder, chars, lineNum, now);
+        if (size < 0) {
+            chars.rewind();
+            if (RECORD_HEADER + encodedLength(chars) > segmentBytes)
+                throw new IllegalArgumentException("Line does not fit in a segment: " + lineNum);
+            segment = partition.roll();
+            size = segment.append(encoder, chars, lineNum, now);
+            if (size < 0)
+                throw new IllegalArgumentException("Line does not fit in a segment: " + lineNum);
+        }
+        dirty.add(segment);
+        pendingBytes += size;
+        return segment.id << 32 | (segment.end - size);
+    }
+
+    /**
+     * Append the line of a LOG message.
+     *
+     * @param message The message to store
+     * @return The position of the line
+     */
+    public long append(LogMessage message) throws IOException {
+        Integer lineNum = message.getLineNum();
+        return append(message.getFileName(), lineNum != null ? lineNum : 0, message.getMessage());
+    }
+
+    /**
+     * Append every line of a LOGS message, each under its own lineNum.
+     *
+     * @param message The message to store
+     */
+    public void append(LogsMessage message) throws IOException {
+        List<String> lines = message.getMessages();
+        for (int index = 0; index < lines.size(); index++)
+            append(message.getFileName(), message.getLineNum(index), lines.get(index));
+    }
+
+    /**
+     * Visit every stored line of a file whose lineNum lies in a range, in
+     * the order the lines were appended.
+     *
+     * @param fileName The file to scan
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param visitor Receives each matching line
+     * @return The number of lines visited
+     */
+    public int scan(String fileName, int start, int end, Visitor visitor) {
+        return scan(fileName, start, end, 0, visitor);
+    }
+
+    /**
+     * Visit every stored line of a file whose lineNum lies in a range, from
+     * a position on, in the order the lines were appended.
+     *
+     * @param fileName The file to scan
+     * @param start The first lineNum wanted
+     * @param end The last lineNum wanted, inclusive
+     * @param from The position of the first line visited, or 0
+     * @param visitor Receives each matching line
+     * @return The number of lines visited
+     */
+    public int scan(String fileName, int start, int end, long from, Visitor visitor) {
+        Partition partition;
+        synchronized (partitions) {
+            partition = partitions.get(fileName);
+        }
+        if (partition == null)
+            return 0;
+
+        int count = 0;
+        long first = from >>> 32;
+        for (Segment segment : partition.segments()) {
+            if (segment.id < first)
+                continue;
+            int visited = segment.scan(start, end, segment.id == first ? (int) from : 0, visitor);
+            if (visited < 0)
+                return count - visited - 1;
+            count += visited;
+        }
+        return count;
+    }
+
+    /**
+     * Get the names of every file with stored lines.
+     *
+     * @return The stored file names
+     */
+    public Set<String> fileNames() {
+        synchronized (partitions) {
+            return new TreeSet<>(partitions.keySet());
+        }
+    }
+
+    /**
+     * Force the data appended since the last commit to disk.
+     */
+    public void commit() {
+        for (Segment segment : dirty)
+            segment.buffer.force();
+        dirty.clear();
+        pendingBytes = 0;
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Commit if the commit policy says it is time to.
+     *
+     * @return true if a commit was made
+     */
+    public boolean maybeCommit() {
+        if (pendingBytes == 0)
+            return false;
+        if (pendingBytes < commitBytes && System.currentTimeMillis() - lastCommit < commitMillis)
+            return false;
+        commit();
+        return true;
+    }
+
+    /**
+     * Delete closed segments that fall outside the retention policy. The
+     * segment being written for each file is always kept.
+     *
+     * @return The number of segments deleted
+     */
+    public int enforceRetention() {
+        long now = System.currentTimeMillis();
+        List<Segment> closed = new ArrayList<>();
+        long total = 0;
+        for (Partition partition : partitions.values()) {
+            List<Segment> segments = partition.segments();
+            for (Segment segment : segments) {
+                total += segment.end;
+                if (segment != segments.get(segments.size() - 1))
+                    closed.add(segment);
+            }
+        }
+
+        //  Oldest first
+        Collections.sort(closed, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Long.compare(a.lastWrite, b.lastWrite);
+            }
+        });
+
+        int deleted = 0;
+        for (Segment segment : closed) {
+            boolean expired = retentionMillis != Long.MAX_VALUE
+                && now - segment.lastWrite > retentionMillis;
+            if (!expired && total <= retentionBytes)
+                break;
+            total -= segment.end;
+            segment.partition.remove(segment);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Commit outstanding data and release the store.
+     */
+    @Override
+    public void close() {
+        commit();
+        synchronized (partitions) {
+            partitions.clear();
+        }
+    }
+
+    //  UTF-8 length of the remaining characters
+    private static int encodedLength(CharBuffer chars) {
+        int length = 0;
+        for (int index = chars.position(); index < chars.limit(); index++) {
+            char c = chars.get(index);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && index + 1 < chars.limit()
+                    && Character.isLowSurrogate(chars.get(index + 1))) {
+                length += 4;
+                index++;
+            } else
+                length += 3;
+        }
+        return length;
+    }
+
+    //  Directory name for a fileName, safe on any filesystem
+    private static String partitionName(String fileName) {
+        try {
+            String name = URLEncoder.encode(fileName, "UTF-8");
+            return name.startsWith(".") ? "%2E" + name.substring(1) : name;
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    //  Segments of one fileName, oldest first
+    private final class Partition {
+        final File directory;
+        volatile List<Segment> segments = Collections.emptyList();
+        long nextId;
+
+        Partition(File directory) throws IOException {
+            this.directory = directory;
+            File[] files = directory.listFiles();
+            List<File> found = new ArrayList<>();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(SEGMENT_SUFFIX))
+                        found.add(file);
+                }
+            }
+            Collections.sort(found);
+
+            List<Segment> recovered = new ArrayList<>();
+            for (File file : found) {
+                String name = file.getName();
+                long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                recovered.add(new Segment(this, id, file, (int) file.length()));
+                nextId = id + 1;
+            }
+            segments = recovered;
+        }
+
+        List<Segment> segments() {
+            return segments;
+        }
+
+        Segment active() throws IOException {
+            List<Segment> current = segments;
+            if (current.isEmpty())
+                return roll();
+            return current.get(current.size() - 1);
+        }
+
+        Segment roll() throws IOException {
+            long id = nextId++;
+            File file = new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+            Segment segment = new Segment(this, id, file, segmentBytes);
+            List<Segment> next = new ArrayList<>(segments);
+            next.add(segment);
+            segments = next;
+            return segment;
+        }
+
+        void remove(Segment segment) {
+            List<Segment> next = new ArrayList<>(segments);
+            next.remove(segment);
+            segments = next;
+            dirty.remove(segment);
+            if (!segment.file.delete())
+                segment.file.deleteOnExit();
+        }
+    }
+
+    //  One mapped segment file and its sparse block index
+    private static final class Segment {
+        final Partition partition;
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        final ByteBuffer writer;
+        final int capacity;
+        volatile int end;
+        long lastWrite;
+
+        //  Sparse index: block start offsets and lineNum bounds
+        int[] blockOffsets = new int[8];
+        int[] blockMin = new int[8];
+        int[] blockMax = new int[8];
+        volatile int blocks;
+
+        Segment(Partition partition, long id, File file, int capacity) throws IOException {
+            this.partition = partition;
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            boolean existing = file.exists();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (!existing)
+                    raf.setLength(capacity);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                raf.close();
+            }
+            writer = buffer.duplicate();
+            lastWrite = existing ? file.lastModified() : System.currentTimeMillis();
+            if (existing)
+                recover();
+        }
+
+        //  Rebuild the end offset and index of a segment found on disk
+        private void recover() {
+            int offset = 0;
+            while (offset + RECORD_HEADER <= capacity) {
+                int size = buffer.getInt(offset);
+                if (size < RECORD_HEADER || offset + size > capacity)
+                    break;
+                index(offset, buffer.getInt(offset + 4));
+                offset += size;
+            }
+            end = offset;
+        }
+
+        //  Encode a record at the end, or return -1 if it does not fit
+        int append(CharsetEncoder encoder, CharBuffer chars, int lineNum, long timestamp) {
+            int offset = end;
+            if (offset + RECORD_HEADER > capacity)
+                return -1;
+            writer.limit(capacity);
+            writer.position(offset + RECORD_HEADER);
+            encoder.reset();
+            CoderResult result = encoder.encode(chars, writer, true);
+            if (result.isOverflow() || encoder.flush(writer).isOverflow())
+                return -1;
+
+            int size = writer.position() - offset;
+            buffer.putInt(offset + 4, lineNum);
+            buffer.putLong(offset + 8, timestamp);
+            buffer.putInt(offset, size);
+            index(offset, lineNum);
+            lastWrite = timestamp;
+            end = offset + size;
+            return size;
+        }
+
+        //  Start a new block every INDEX_INTERVAL bytes, else widen the last
+        private synchronized void index(int offset, int lineNum) {
+            int last = blocks - 1;
+            if (last >= 0 && offset - blockOffsets[last] < INDEX_INTERVAL) {
+                blockMin[last] = Math.min(blockMin[last], lineNum);
+                blockMax[last] = Math.max(blockMax[last], lineNum);
+                return;
+            }
+            if (blocks == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blocks << 1);
+                blockMin = Arrays.copyOf(blockMin, blocks << 1);
+                blockMax = Arrays.copyOf(blockMax, blocks << 1);
+            }
+            blockOffsets[blocks] = offset;
+            blockMin[blocks] = lineNum;
+            blockMax[blocks] = lineNum;
+            blocks++;
+        }
+
+        //  Visit matching records from an offset on; returns the count, or
+        //  -(count + 1) if stopped
+        int scan(int start, int stop, int from, Visitor visitor) {
+            int limit = end;
+            int[] offsets;
+            int[] mins;
+            int[] maxes;
+            int count;
+            synchronized (this) {
+                offsets = blockOffsets;
+                mins = blockMin;
+                maxes = blockMax;
+                count = blocks;
+            }
+
+            ByteBuffer view = buffer.duplicate();
+            int visited = 0;
+            for (int block = 0; block < count; block++) {
+                if (maxes[block] < start || mins[block] > stop)
+                    continue;
+                int offset = offsets[block];
+                int blockEnd = block + 1 < count ? offsets[block + 1] : limit;
+                blockEnd = Math.min(blockEnd, limit);
+                if (blockEnd <= from)
+                    continue;
+                while (offset < blockEnd) {
+                    int size = buffer.getInt(offset);
+                    int lineNum = buffer.getInt(offset + 4);
+                    if (lineNum >= start && lineNum <= stop && offset >= from) {
+                        view.limit(offset + size);
+                        view.position(offset + RECORD_HEADER);
+                        visited++;
+                        long position = id << 32 | offset;
+                        if (!visitor.visit(position, lineNum, buffer.getLong(offset + 8), view))
+                            return -visited - 1;
+                    }
+                    offset += size;
+                }
+            }
+            return visited;
+        }
+    }
+}
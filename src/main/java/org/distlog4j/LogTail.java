@@ -0,0 +1,311 @@
+/* ============================================================================
+ * LogTail.java
+ *
+ * Pushes newly received LOG/LOGS messages to live subscribers
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.zeromq.ZMQException;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * LogTail class.
+ *
+ * Keeps the SUBSCRIBE patterns of every ROUTER address and forwards each
+ * LOG and LOGS message received by the collector to the subscribers whose
+ * patterns match its fileName. Every subscriber has its own bounded queue,
+ * drained a few messages at a time, so one slow subscriber neither blocks
+ * the collector nor holds back the others. The ROUTER socket must have
+ * ROUTER_MANDATORY set and a send timeout of 0, as a LogCollector sets it:
+ * a send that would block then fails at once, and the subscriber is left
+ * until the next drain, while a subscriber that has disconnected is
+ * forgotten. When a queue is full, further
+ * messages for that subscriber are counted per fileName instead, and once
+ * the queue has drained a summary LOG with the DROPPED_HEADER header takes
+ * their place.
+ *
+ * Used from the collector thread only.
+ */
+public class LogTail {
+    //  Header key of summary messages
+    public static final String DROPPED_HEADER = "dropped";
+
+    public static final int DEFAULT_QUEUE = 1024;
+
+    //  How long a subscription lasts unless it is renewed
+    private static final long SUBSCRIPTION_MILLIS = 60000;
+
+    //  Messages sent to one subscriber per drain, so others get their turn
+    private static final int DRAIN_BUDGET = 64;
+
+    //  File names whose match is remembered per subscriber
+    private static final int MAX_MATCHES = 4096;
+
+    private final LogSocket socket;
+    private final Map<ByteBuffer, Subscriber> subscribers = new LinkedHashMap<>();
+
+    private long forwarded;
+    private long dropped;
+    private long stalls;
+
+    /**
+     * Create a new LogTail.
+     *
+     * @param socket The ROUTER socket messages are forwarded on
+     */
+    public LogTail(LogSocket socket) {
+        assert (socket != null);
+        this.socket = socket;
+    }
+
+    /**
+     * Add or renew a subscription of an address.
+     *
+     * @param address The ROUTER address of the subscriber
+     * @param message The subscription received
+     */
+    public void subscribe(Frame address, SubscribeMessage message) {
+        ByteBuffer key = ByteBuffer.wrap(address.getData());
+        Subscriber subscriber = subscribers.get(key);
+        if (subscriber == null) {
+            subscriber = new Subscriber(address);
+            subscribers.put(key, subscriber);
+        }
+        int queue = message.getQueue();
+        subscriber.capacity = queue > 0 ? queue : DEFAULT_QUEUE;
+        subscriber.expires = System.currentTimeMillis() + SUBSCRIPTION_MILLIS;
+        String pattern = message.getPattern() == null ? "*" : message.getPattern();
+        if (!subscriber.patterns.containsKey(pattern)) {
+            subscriber.patterns.put(pattern, compile(pattern));
+            subscriber.matches.clear();
+        }
+    }
+
+    /**
+     * Remove a subscription of an address. The subscriber is forgotten with
+     * its last pattern.
+     *
+     * @param address The ROUTER address of the subscriber
+     * @param message The unsubscription received
+     */
+    public void unsubscribe(Frame address, UnsubscribeMessage message) {
+        ByteBuffer key = ByteBuffer.wrap(address.getData());
+        Subscriber subscriber = subscribers.get(key);
+        if (subscriber == null)
+            return;
+        String pattern = message.getPattern() == null ? "*" : message.getPattern();
+        if (subscriber.patterns.remove(pattern) != null)
+            subscriber.matches.clear();
+        if (subscriber.patterns.isEmpty())
+            subscribers.remove(key);
+    }
+
+    /**
+     * Queue a LOG message for every subscriber following its fileName.
+     *
+     * @param message The message received
+     */
+    public void publish(LogMessage message) {
+        publish(message.getFileName(), message, 1);
+    }
+
+    /**
+     * Queue a LOGS message for every subscriber following its fileName.
+     *
+     * @param message The message received
+     */
+    public void publish(LogsMessage message) {
+        List<String> messages = message.getMessages();
+        publish(message.getFileName(), message, messages == null ? 0 : messages.size());
+    }
+
+    private void publish(String fileName, Object message, int lines) {
+        if (fileName == null || subscribers.isEmpty())
+            return;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (!subscriber.matches(fileName))
+                continue;
+            if (subscriber.queue.size() < subscriber.capacity) {
+                subscriber.queue.add(message);
+            } else {
+                Long count = subscriber.dropped.get(fileName);
+                subscriber.dropped.put(fileName, (count == null ? 0 : count) + lines);
+                dropped += lines;
+            }
+        }
+    }
+
+    /**
+     * Send queued messages, a budget per subscriber, and forget expired
+     * subscriptions.
+     *
+     * @return true if messages are still queued
+     */
+    public boolean drain() {
+        long now = System.currentTimeMillis();
+        boolean backlog = false;
+        Iterator<Subscriber> iterator = subscribers.values().iterator();
+        while (iterator.hasNext()) {
+            Subscriber subscriber = iterator.next();
+            if (now - subscriber.expires > 0) {
+                iterator.remove();
+                continue;
+            }
+            socket.setAddress(subscriber.address);
+            int budget = DRAIN_BUDGET;
+            try {
+                while (budget > 0 && !subscriber.queue.isEmpty()) {
+                    if (!send(subscriber.queue.peek())) {
+                        stalls++;   //  Subscriber is not keeping up
+                        break;
+                    }
+                    subscriber.queue.poll();
+                    forwarded++;
+                    budget--;
+                }
+            } catch (ZMQException ex) {
+                iterator.remove();  //  Subscriber has disconnected
+                continue;
+            }
+            if (subscriber.queue.isEmpty() && !subscriber.dropped.isEmpty())
+                summarize(subscriber, budget);
+            if (!subscriber.queue.isEmpty() || !subscriber.dropped.isEmpty())
+                backlog = true;
+        }
+        return backlog;
+    }
+
+    //  Queue summaries of dropped messages behind the drained queue
+    private void summarize(Subscriber subscriber, int budget) {
+        Iterator<Map.Entry<String, Long>> iterator = subscriber.dropped.entrySet().iterator();
+        while (budget-- > 0 && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            LogMessage message = new LogMessage();
+            message.setSequence(0);
+            message.setPort(0);
+            message.setFileName(entry.getKey());
+            message.setLineNum(0);
+            message.putHeader(DROPPED_HEADER, entry.getValue());
+            message.setMessage("%d messages dropped", entry.getValue());
+            subscriber.queue.add(message);
+            iterator.remove();
+        }
+    }
+
+    private boolean send(Object message) {
+        if (message instanceof LogMessage)
+            return socket.send((LogMessage) message);
+        return socket.send((LogsMessage) message);
+    }
+
+    /**
+     * Get the number of subscribers.
+     *
+     * @return The subscriber count
+     */
+    public int getSubscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * Get the number of messages forwarded to subscribers.
+     *
+     * @return The forwarded message count
+     */
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Get the number of drains that stopped early because a subscriber was
+     * not reading.
+     *
+     * @return The stall count
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Get the number of lines dropped because a subscriber fell behind.
+     *
+     * @return The dropped line count
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    //  Translate a pattern of * and ? wildcards to a regular expression
+    private static Pattern compile(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int index = 0; index < pattern.length(); index++) {
+            char c = pattern.charAt(index);
+            if (c == '*' || c == '?') {
+                if (index > literal)
+                    regex.append(Pattern.quote(pattern.substring(literal, index)));
+                regex.append(c == '*' ? ".*" : ".");
+                literal = index + 1;
+            }
+        }
+        if (pattern.length() > literal)
+            regex.append(Pattern.quote(pattern.substring(literal)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    //  A subscribed ROUTER address
+    private static final class Subscriber {
+        final Frame address;
+        final Map<String, Pattern> patterns = new HashMap<>();
+        final Map<String, Boolean> matches = new HashMap<>();
+        final ArrayDeque<Object> queue = new ArrayDeque<>();
+        final Map<String, Long> dropped = new LinkedHashMap<>();
+        int capacity;
+        long expires;
+
+        Subscriber(Frame address) {
+            this.address = address;
+        }
+
+        boolean matches(String fileName) {
+            Boolean match = matches.get(fileName);
+            if (match == null) {
+                match = false;
+                for (Pattern pattern : patterns.values()) {
+                    if (pattern.matcher(fileName).matches()) {
+                        match = true;
+                        break;
+                    }
+                }
+                if (matches.size() == MAX_MATCHES)
+                    matches.clear();
+                matches.put(fileName, match);
+            }
+            return match;
+        }
+    }
+}
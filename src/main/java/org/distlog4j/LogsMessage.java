@@ -21,6 +21,8 @@
 package org.distlog4j;
 
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -34,10 +36,17 @@ public class LogsMessage {
     protected Integer sequence;
     protected Map<String, String> headers;
     protected String ip;
+    protected String ipFormat;
+    protected Object[] ipArgs;
     protected Integer port;
     protected String fileName;
+    protected String fileNameFormat;
+    protected Object[] fileNameArgs;
     protected Integer lineNum;
     protected List<String> messages;
+    protected List<Object[]> messagesArgs;
+    protected List<ByteBuffer> messagesBytes;
+    protected Frame lineNums = Message.EMPTY_FRAME;
 
     /**
      * Get the sequence field.
@@ -156,6 +165,12 @@ public class LogsMessage {
      * @return The ip field
      */
     public String getIp() {
+        if (ipFormat != null) {
+            //  Resolve a deferred format on first read
+            ip = String.format(ipFormat, ipArgs);
+            ipFormat = null;
+            ipArgs = null;
+        }
         return ip;
     }
 
@@ -166,6 +181,22 @@ public class LogsMessage {
      */
     public void setIp(String ip) {
         this.ip = ip;
+        this.ipFormat = null;
+        this.ipArgs = null;
+    }
+
+    /**
+     * Set the ip field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setIp(String format, Object... args) {
+        this.ip = null;
+        this.ipFormat = format;
+        this.ipArgs = args;
     }
 
     /**
@@ -192,6 +223,12 @@ public class LogsMessage {
      * @return The fileName field
      */
     public String getFileName() {
+        if (fileNameFormat != null) {
+            //  Resolve a deferred format on first read
+            fileName = String.format(fileNameFormat, fileNameArgs);
+            fileNameFormat = null;
+            fileNameArgs = null;
+        }
         return fileName;
     }
 
@@ -202,6 +239,22 @@ public class LogsMessage {
      */
     public void setFileName(String fileName) {
         this.fileName = fileName;
+        this.fileNameFormat = null;
+        this.fileNameArgs = null;
+    }
+
+    /**
+     * Set the fileName field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setFileName(String format, Object... args) {
+        this.fileName = null;
+        this.fileNameFormat = format;
+        this.fileNameArgs = args;
     }
 
     /**
@@ -231,6 +284,22 @@ public class LogsMessage {
         if (messages == null) {
             messages = new ArrayList<>();
         }
+        if (messagesArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < messages.size(); index++) {
+                if (messagesArgs.get(index) != null)
+                    messages.set(index, String.format(messages.get(index), messagesArgs.get(index)));
+            }
+            messagesArgs = null;
+        }
+        if (messagesBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < messages.size(); index++) {
+                if (messagesBytes.get(index) != null)
+                    messages.set(index, Charset.forName("UTF-8").decode(messagesBytes.get(index).duplicate()).toString());
+            }
+            messagesBytes = null;
+        }
         return messages;
     }
 
@@ -240,7 +309,59 @@ public class LogsMessage {
      * @param value The value
      */
     public void addMessage(String value) {
-        getMessages().add(value);
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        messages.add(value);
+        if (messagesArgs != null) {
+            messagesArgs.add(null);
+        }
+        if (messagesBytes != null) {
+            messagesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the messages field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addMessage(String format, Object... args) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesArgs == null) {
+            messagesArgs = new ArrayList<>(Collections.<Object[]>nCopies(messages.size(), null));
+        }
+        messages.add(format);
+        messagesArgs.add(args);
+        if (messagesBytes != null) {
+            messagesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the messages field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addMessage(ByteBuffer value) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesBytes == null) {
+            messagesBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(messages.size(), null));
+        }
+        messages.add(null);
+        messagesBytes.add(value);
+        if (messagesArgs != null) {
+            messagesArgs.add(null);
+        }
     }
 
     /**
@@ -250,5 +371,42 @@ public class LogsMessage {
      */
     public void setMessages(List<String> messages) {
         this.messages = messages;
+        this.messagesArgs = null;
+        this.messagesBytes = null;
+    }
+
+    /**
+     * Get the lineNums field.
+     * 
+     * @return The lineNums field
+     */
+    public Frame getLineNums() {
+        return lineNums;
+    }
+
+    /**
+     * Set the lineNums field, and takes ownership of supplied frame.
+     * 
+     * @param frame The new lineNums frame
+     */
+    public void setLineNums(Frame frame) {
+        lineNums = frame;
+    }
+
+    /**
+     * Get one lineNum packed in the lineNums frame as 4 octets,
+     * or numbered on from the lineNum field if the frame does not carry it.
+     * 
+     * @param index The index of the value in the frame
+     * @return The lineNum at that index
+     */
+    public int getLineNum(int index) {
+        byte[] data = lineNums != null ? lineNums.getData() : null;
+        int offset = index << 2;
+        if (data != null && offset + 4 <= data.length) {
+            return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+        }
+        return (lineNum != null ? lineNum : 0) + index;
     }
 }
@@ -0,0 +1,158 @@
+/* ============================================================================
+ * QueryMessage.java
+ * 
+ * Generated codec class for QueryMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.*;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * QueryMessage class.
+ */
+public class QueryMessage {
+    public static final LogSocket.MessageType MESSAGE_TYPE = LogSocket.MessageType.QUERY;
+
+    protected Integer sequence;
+    protected String query;
+    protected String queryFormat;
+    protected Object[] queryArgs;
+    protected String fileName;
+    protected String fileNameFormat;
+    protected Object[] fileNameArgs;
+    protected Integer limit;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the query field.
+     * 
+     * @return The query field
+     */
+    public String getQuery() {
+        if (queryFormat != null) {
+            //  Resolve a deferred format on first read
+            query = String.format(queryFormat, queryArgs);
+            queryFormat = null;
+            queryArgs = null;
+        }
+        return query;
+    }
+
+    /**
+     * Set the query field.
+     * 
+     * @param query The query field
+     */
+    public void setQuery(String query) {
+        this.query = query;
+        this.queryFormat = null;
+        this.queryArgs = null;
+    }
+
+    /**
+     * Set the query field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setQuery(String format, Object... args) {
+        this.query = null;
+        this.queryFormat = format;
+        this.queryArgs = args;
+    }
+
+    /**
+     * Get the fileName field.
+     * 
+     * @return The fileName field
+     */
+    public String getFileName() {
+        if (fileNameFormat != null) {
+            //  Resolve a deferred format on first read
+            fileName = String.format(fileNameFormat, fileNameArgs);
+            fileNameFormat = null;
+            fileNameArgs = null;
+        }
+        return fileName;
+    }
+
+    /**
+     * Set the fileName field.
+     * 
+     * @param fileName The fileName field
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+        this.fileNameFormat = null;
+        this.fileNameArgs = null;
+    }
+
+    /**
+     * Set the fileName field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setFileName(String format, Object... args) {
+        this.fileName = null;
+        this.fileNameFormat = format;
+        this.fileNameArgs = args;
+    }
+
+    /**
+     * Get the limit field.
+     * 
+     * @return The limit field
+     */
+    public Integer getLimit() {
+        return limit;
+    }
+
+    /**
+     * Set the limit field.
+     * 
+     * @param limit The limit field
+     */
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+}
@@ -0,0 +1,191 @@
+/* ============================================================================
+ * ReplayMessage.java
+ * 
+ * Generated codec class for ReplayMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.*;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * ReplayMessage class.
+ */
+public class ReplayMessage {
+    public static final LogSocket.MessageType MESSAGE_TYPE = LogSocket.MessageType.REPLAY;
+
+    protected Integer sequence;
+    protected String fileName;
+    protected String fileNameFormat;
+    protected Object[] fileNameArgs;
+    protected Integer start;
+    protected Integer end;
+    protected Integer resume;
+    protected Long position;
+    protected Integer credit;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the fileName field.
+     * 
+     * @return The fileName field
+     */
+    public String getFileName() {
+        if (fileNameFormat != null) {
+            //  Resolve a deferred format on first read
+            fileName = String.format(fileNameFormat, fileNameArgs);
+            fileNameFormat = null;
+            fileNameArgs = null;
+        }
+        return fileName;
+    }
+
+    /**
+     * Set the fileName field.
+     * 
+     * @param fileName The fileName field
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+        this.fileNameFormat = null;
+        this.fileNameArgs = null;
+    }
+
+    /**
+     * Set the fileName field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setFileName(String format, Object... args) {
+        this.fileName = null;
+        this.fileNameFormat = format;
+        this.fileNameArgs = args;
+    }
+
+    /**
+     * Get the start field.
+     * 
+     * @return The start field
+     */
+    public Integer getStart() {
+        return start;
+    }
+
+    /**
+     * Set the start field.
+     * 
+     * @param start The start field
+     */
+    public void setStart(Integer start) {
+        this.start = start;
+    }
+
+    /**
+     * Get the end field.
+     * 
+     * @return The end field
+     */
+    public Integer getEnd() {
+        return end;
+    }
+
+    /**
+     * Set the end field.
+     * 
+     * @param end The end field
+     */
+    public void setEnd(Integer end) {
+        this.end = end;
+    }
+
+    /**
+     * Get the resume field.
+     * 
+     * @return The resume field
+     */
+    public Integer getResume() {
+        return resume;
+    }
+
+    /**
+     * Set the resume field.
+     * 
+     * @param resume The resume field
+     */
+    public void setResume(Integer resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Get the position field.
+     * 
+     * @return The position field
+     */
+    public Long getPosition() {
+        return position;
+    }
+
+    /**
+     * Set the position field.
+     * 
+     * @param position The position field
+     */
+    public void setPosition(Long position) {
+        this.position = position;
+    }
+
+    /**
+     * Get the credit field.
+     * 
+     * @return The credit field
+     */
+    public Integer getCredit() {
+        return credit;
+    }
+
+    /**
+     * Set the credit field.
+     * 
+     * @param credit The credit field
+     */
+    public void setCredit(Integer credit) {
+        this.credit = credit;
+    }
+}
@@ -21,6 +21,8 @@
 package org.distlog4j;
 
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -34,6 +36,8 @@ public class ReplyMessage {
     protected Integer sequence;
     protected Map<String, String> headers;
     protected List<String> messages;
+    protected List<Object[]> messagesArgs;
+    protected List<ByteBuffer> messagesBytes;
 
     /**
      * Get the sequence field.
@@ -155,6 +159,22 @@ public class ReplyMessage {
         if (messages == null) {
             messages = new ArrayList<>();
         }
+        if (messagesArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < messages.size(); index++) {
+                if (messagesArgs.get(index) != null)
+                    messages.set(index, String.format(messages.get(index), messagesArgs.get(index)));
+            }
+            messagesArgs = null;
+        }
+        if (messagesBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < messages.size(); index++) {
+                if (messagesBytes.get(index) != null)
+                    messages.set(index, Charset.forName("UTF-8").decode(messagesBytes.get(index).duplicate()).toString());
+            }
+            messagesBytes = null;
+        }
         return messages;
     }
 
@@ -164,7 +184,59 @@ public class ReplyMessage {
      * @param value The value
      */
     public void addMessage(String value) {
-        getMessages().add(value);
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        messages.add(value);
+        if (messagesArgs != null) {
+            messagesArgs.add(null);
+        }
+        if (messagesBytes != null) {
+            messagesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the messages field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addMessage(String format, Object... args) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesArgs == null) {
+            messagesArgs = new ArrayList<>(Collections.<Object[]>nCopies(messages.size(), null));
+        }
+        messages.add(format);
+        messagesArgs.add(args);
+        if (messagesBytes != null) {
+            messagesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the messages field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addMessage(ByteBuffer value) {
+        if (messages == null) {
+            messages = new ArrayList<>();
+        }
+        if (messagesBytes == null) {
+            messagesBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(messages.size(), null));
+        }
+        messages.add(null);
+        messagesBytes.add(value);
+        if (messagesArgs != null) {
+            messagesArgs.add(null);
+        }
     }
 
     /**
@@ -174,6 +246,7 @@ public class ReplyMessage {
      */
     public void setMessages(List<String> messages) {
         this.messages = messages;
+        this.messagesArgs = null;
+        this.messagesBytes = null;
     }
 }
-
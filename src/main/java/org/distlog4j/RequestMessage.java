@@ -33,8 +33,11 @@ public class RequestMessage {
 
     protected Integer sequence;
     protected String fileName;
+    protected String fileNameFormat;
+    protected Object[] fileNameArgs;
     protected Integer start;
     protected Integer end;
+    protected Long position;
 
     /**
      * Get the sequence field.
@@ -60,6 +63,12 @@ public class RequestMessage {
      * @return The fileName field
      */
     public String getFileName() {
+        if (fileNameFormat != null) {
+            //  Resolve a deferred format on first read
+            fileName = String.format(fileNameFormat, fileNameArgs);
+            fileNameFormat = null;
+            fileNameArgs = null;
+        }
         return fileName;
     }
 
@@ -70,6 +79,22 @@ public class RequestMessage {
      */
     public void setFileName(String fileName) {
         this.fileName = fileName;
+        this.fileNameFormat = null;
+        this.fileNameArgs = null;
+    }
+
+    /**
+     * Set the fileName field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setFileName(String format, Object... args) {
+        this.fileName = null;
+        this.fileNameFormat = format;
+        this.fileNameArgs = args;
     }
 
     /**
@@ -107,4 +132,22 @@ public class RequestMessage {
     public void setEnd(Integer end) {
         this.end = end;
     }
+
+    /**
+     * Get the position field.
+     * 
+     * @return The position field
+     */
+    public Long getPosition() {
+        return position;
+    }
+
+    /**
+     * Set the position field.
+     * 
+     * @param position The position field
+     */
+    public void setPosition(Long position) {
+        this.position = position;
+    }
 }
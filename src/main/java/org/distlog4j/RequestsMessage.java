@@ -0,0 +1,177 @@
+/* ============================================================================
+ * RequestsMessage.java
+ * 
+ * Generated codec class for RequestsMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * RequestsMessage class.
+ */
+public class RequestsMessage {
+    public static final LogSocket.MessageType MESSAGE_TYPE = LogSocket.MessageType.REQUESTS;
+
+    protected Integer sequence;
+    protected List<String> fileNames;
+    protected List<Object[]> fileNamesArgs;
+    protected List<ByteBuffer> fileNamesBytes;
+    protected Frame ranges = Message.EMPTY_FRAME;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the list of fileNames strings.
+     * 
+     * @return The fileNames strings
+     */
+    public List<String> getFileNames() {
+        if (fileNames == null) {
+            fileNames = new ArrayList<>();
+        }
+        if (fileNamesArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < fileNames.size(); index++) {
+                if (fileNamesArgs.get(index) != null)
+                    fileNames.set(index, String.format(fileNames.get(index), fileNamesArgs.get(index)));
+            }
+            fileNamesArgs = null;
+        }
+        if (fileNamesBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < fileNames.size(); index++) {
+                if (fileNamesBytes.get(index) != null)
+                    fileNames.set(index, Charset.forName("UTF-8").decode(fileNamesBytes.get(index).duplicate()).toString());
+            }
+            fileNamesBytes = null;
+        }
+        return fileNames;
+    }
+
+    /**
+     * Append a value to the fileNames field.
+     *
+     * @param value The value
+     */
+    public void addFileName(String value) {
+        if (fileNames == null) {
+            fileNames = new ArrayList<>();
+        }
+        fileNames.add(value);
+        if (fileNamesArgs != null) {
+            fileNamesArgs.add(null);
+        }
+        if (fileNamesBytes != null) {
+            fileNamesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the fileNames field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addFileName(String format, Object... args) {
+        if (fileNames == null) {
+            fileNames = new ArrayList<>();
+        }
+        if (fileNamesArgs == null) {
+            fileNamesArgs = new ArrayList<>(Collections.<Object[]>nCopies(fileNames.size(), null));
+        }
+        fileNames.add(format);
+        fileNamesArgs.add(args);
+        if (fileNamesBytes != null) {
+            fileNamesBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the fileNames field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addFileName(ByteBuffer value) {
+        if (fileNames == null) {
+            fileNames = new ArrayList<>();
+        }
+        if (fileNamesBytes == null) {
+            fileNamesBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(fileNames.size(), null));
+        }
+        fileNames.add(null);
+        fileNamesBytes.add(value);
+        if (fileNamesArgs != null) {
+            fileNamesArgs.add(null);
+        }
+    }
+
+    /**
+     * Set the list of fileNames strings.
+     * 
+     * @param fileNames The fileNames collection
+     */
+    public void setFileNames(List<String> fileNames) {
+        this.fileNames = fileNames;
+        this.fileNamesArgs = null;
+        this.fileNamesBytes = null;
+    }
+
+    /**
+     * Get the ranges field.
+     * 
+     * @return The ranges field
+     */
+    public Frame getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Set the ranges field, and takes ownership of supplied frame.
+     * 
+     * @param frame The new ranges frame
+     */
+    public void setRanges(Frame frame) {
+        ranges = frame;
+    }
+}
@@ -0,0 +1,144 @@
+/* ============================================================================
+ * SequenceWindow.java
+ *
+ * Sliding bitmap of the sequences recently received from one sender
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.Arrays;
+
+/**
+ * SequenceWindow class.
+ *
+ * Remembers which of the last size sequences of one sender were received,
+ * one bit each, relative to the highest sequence seen. Sequences are
+ * compared by their distance modulo 2^bits, so a 16-bit or 32-bit sequence
+ * that wraps around keeps moving the window forward. A sequence ahead of
+ * the window moves it and counts the sequences skipped as lost; a late
+ * sequence inside the window fills its gap; a sequence already marked is a
+ * duplicate. A sequence further behind than the window is taken as the
+ * sender having restarted, and starts the window again.
+ */
+public class SequenceWindow {
+    private final long[] bits;
+    private final int size;
+    private final long mask;
+    private final int shift;
+    private boolean started;
+    private long highest;
+
+    private long lost;
+    private long duplicates;
+
+    /**
+     * Create a new SequenceWindow.
+     *
+     * @param sequenceBits The width of the sequence on the wire, 8 to 64
+     * @param size The number of sequences remembered, rounded up to a power of two of at least 64
+     */
+    public SequenceWindow(int sequenceBits, int size) {
+        assert (sequenceBits >= 8 && sequenceBits <= 64 && size > 0);
+        this.size = Math.min(Integer.highestOneBit(Math.max(size, 64) - 1) << 1,
+            sequenceBits >= 32 ? 1 << 30 : 1 << (sequenceBits - 2));
+        this.bits = new long[Math.max(1, this.size >>> 6)];
+        this.mask = sequenceBits == 64 ? -1L : (1L << sequenceBits) - 1;
+        this.shift = 64 - sequenceBits;
+    }
+
+    /**
+     * Record a received sequence.
+     *
+     * @param sequence The sequence, as read from the wire
+     * @return true if the sequence is new, false if it is a duplicate
+     */
+    public boolean accept(long sequence) {
+        sequence &= mask;
+        if (!started) {
+            started = true;
+            highest = sequence;
+            set(sequence);
+            return true;
+        }
+
+        //  Signed distance from the highest sequence, modulo 2^bits
+        long distance = ((sequence - highest) << shift) >> shift;
+        if (distance > 0) {
+            if (distance >= size) {
+                Arrays.fill(bits, 0);
+            } else {
+                for (long skipped = 1; skipped < distance; skipped++)
+                    clear(highest + skipped);
+            }
+            lost += distance - 1;
+            highest = sequence;
+            set(sequence);
+            return true;
+        }
+        if (distance <= -size) {
+            //  Too old to tell; the sender restarted its sequence
+            Arrays.fill(bits, 0);
+            highest = sequence;
+            set(sequence);
+            return true;
+        }
+        if (isSet(sequence)) {
+            duplicates++;
+            return false;
+        }
+        set(sequence);
+        lost--;                     //  Late, no longer lost
+        return true;
+    }
+
+    /**
+     * Get the number of sequences skipped and not received since.
+     *
+     * @return The lost sequence count
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * Get the number of duplicates rejected.
+     *
+     * @return The duplicate count
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    private int bit(long sequence) {
+        return (int) (sequence & (size - 1));
+    }
+
+    private void set(long sequence) {
+        int bit = bit(sequence);
+        bits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long sequence) {
+        int bit = bit(sequence);
+        bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    private boolean isSet(long sequence) {
+        int bit = bit(sequence);
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+}
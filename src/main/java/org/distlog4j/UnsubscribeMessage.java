@@ -0,0 +1,96 @@
+/* ============================================================================
+ * UnsubscribeMessage.java
+ * 
+ * Generated codec class for UnsubscribeMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.distlog4j;
+
+import java.util.*;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * UnsubscribeMessage class.
+ */
+public class UnsubscribeMessage {
+    public static final LogSocket.MessageType MESSAGE_TYPE = LogSocket.MessageType.UNSUBSCRIBE;
+
+    protected Integer sequence;
+    protected String pattern;
+    protected String patternFormat;
+    protected Object[] patternArgs;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the pattern field.
+     * 
+     * @return The pattern field
+     */
+    public String getPattern() {
+        if (patternFormat != null) {
+            //  Resolve a deferred format on first read
+            pattern = String.format(patternFormat, patternArgs);
+            patternFormat = null;
+            patternArgs = null;
+        }
+        return pattern;
+    }
+
+    /**
+     * Set the pattern field.
+     * 
+     * @param pattern The pattern field
+     */
+    public void setPattern(String pattern) {
+        this.pattern = pattern;
+        this.patternFormat = null;
+        this.patternArgs = null;
+    }
+
+    /**
+     * Set the pattern field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setPattern(String format, Object... args) {
+        this.pattern = null;
+        this.patternFormat = format;
+        this.patternArgs = args;
+    }
+}
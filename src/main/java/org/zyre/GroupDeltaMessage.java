@@ -0,0 +1,299 @@
+/* ============================================================================
+ * GroupDeltaMessage.java
+ * 
+ * Generated codec class for GroupDeltaMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * GroupDeltaMessage class.
+ */
+public class GroupDeltaMessage {
+    public static final ZreSocket.MessageType MESSAGE_TYPE = ZreSocket.MessageType.GROUP_DELTA;
+
+    protected Integer sequence;
+    protected Integer base;
+    protected Integer version;
+    protected List<String> joined;
+    protected List<Object[]> joinedArgs;
+    protected List<ByteBuffer> joinedBytes;
+    protected List<String> left;
+    protected List<Object[]> leftArgs;
+    protected List<ByteBuffer> leftBytes;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the base field.
+     * 
+     * @return The base field
+     */
+    public Integer getBase() {
+        return base;
+    }
+
+    /**
+     * Set the base field.
+     * 
+     * @param base The base field
+     */
+    public void setBase(Integer base) {
+        this.base = base;
+    }
+
+    /**
+     * Get the version field.
+     * 
+     * @return The version field
+     */
+    public Integer getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the version field.
+     * 
+     * @param version The version field
+     */
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
+    /**
+     * Get the list of joined strings.
+     * 
+     * @return The joined strings
+     */
+    public List<String> getJoined() {
+        if (joined == null) {
+            joined = new ArrayList<>();
+        }
+        if (joinedArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < joined.size(); index++) {
+                if (joinedArgs.get(index) != null)
+                    joined.set(index, String.format(joined.get(index), joinedArgs.get(index)));
+            }
+            joinedArgs = null;
+        }
+        if (joinedBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < joined.size(); index++) {
+                if (joinedBytes.get(index) != null)
+                    joined.set(index, Charset.forName("UTF-8").decode(joinedBytes.get(index).duplicate()).toString());
+            }
+            joinedBytes = null;
+        }
+        return joined;
+    }
+
+    /**
+     * Append a value to the joined field.
+     *
+     * @param value The value
+     */
+    public void addJoined(String value) {
+        if (joined == null) {
+            joined = new ArrayList<>();
+        }
+        joined.add(value);
+        if (joinedArgs != null) {
+            joinedArgs.add(null);
+        }
+        if (joinedBytes != null) {
+            joinedBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the joined field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addJoined(String format, Object... args) {
+        if (joined == null) {
+            joined = new ArrayList<>();
+        }
+        if (joinedArgs == null) {
+            joinedArgs = new ArrayList<>(Collections.<Object[]>nCopies(joined.size(), null));
+        }
+        joined.add(format);
+        joinedArgs.add(args);
+        if (joinedBytes != null) {
+            joinedBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the joined field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addJoined(ByteBuffer value) {
+        if (joined == null) {
+            joined = new ArrayList<>();
+        }
+        if (joinedBytes == null) {
+            joinedBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(joined.size(), null));
+        }
+        joined.add(null);
+        joinedBytes.add(value);
+        if (joinedArgs != null) {
+            joinedArgs.add(null);
+        }
+    }
+
+    /**
+     * Set the list of joined strings.
+     * 
+     * @param joined The joined collection
+     */
+    public void setJoined(List<String> joined) {
+        this.joined = joined;
+        this.joinedArgs = null;
+        this.joinedBytes = null;
+    }
+
+    /**
+     * Get the list of left strings.
+     * 
+     * @return The left strings
+     */
+    public List<String> getLeft() {
+        if (left == null) {
+            left = new ArrayList<>();
+        }
+        if (leftArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < left.size(); index++) {
+                if (leftArgs.get(index) != null)
+                    left.set(index, String.format(left.get(index), leftArgs.get(index)));
+            }
+            leftArgs = null;
+        }
+        if (leftBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < left.size(); index++) {
+                if (leftBytes.get(index) != null)
+                    left.set(index, Charset.forName("UTF-8").decode(leftBytes.get(index).duplicate()).toString());
+            }
+            leftBytes = null;
+        }
+        return left;
+    }
+
+    /**
+     * Append a value to the left field.
+     *
+     * @param value The value
+     */
+    public void addLeft(String value) {
+        if (left == null) {
+            left = new ArrayList<>();
+        }
+        left.add(value);
+        if (leftArgs != null) {
+            leftArgs.add(null);
+        }
+        if (leftBytes != null) {
+            leftBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the left field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addLeft(String format, Object... args) {
+        if (left == null) {
+            left = new ArrayList<>();
+        }
+        if (leftArgs == null) {
+            leftArgs = new ArrayList<>(Collections.<Object[]>nCopies(left.size(), null));
+        }
+        left.add(format);
+        leftArgs.add(args);
+        if (leftBytes != null) {
+            leftBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the left field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addLeft(ByteBuffer value) {
+        if (left == null) {
+            left = new ArrayList<>();
+        }
+        if (leftBytes == null) {
+            leftBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(left.size(), null));
+        }
+        left.add(null);
+        leftBytes.add(value);
+        if (leftArgs != null) {
+            leftArgs.add(null);
+        }
+    }
+
+    /**
+     * Set the list of left strings.
+     * 
+     * @param left The left collection
+     */
+    public void setLeft(List<String> left) {
+        this.left = left;
+        this.leftArgs = null;
+        this.leftBytes = null;
+    }
+}
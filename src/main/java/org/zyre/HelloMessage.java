@@ -21,6 +21,8 @@
 package org.zyre;
 
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -33,8 +35,12 @@ public class HelloMessage {
 
     protected Integer sequence;
     protected String ipAddress;
+    protected String ipAddressFormat;
+    protected Object[] ipAddressArgs;
     protected Integer mailbox;
     protected List<String> groups;
+    protected List<Object[]> groupsArgs;
+    protected List<ByteBuffer> groupsBytes;
     protected Integer status;
     protected Map<String, String> headers;
 
@@ -62,6 +68,12 @@ public class HelloMessage {
      * @return The ipAddress field
      */
     public String getIpAddress() {
+        if (ipAddressFormat != null) {
+            //  Resolve a deferred format on first read
+            ipAddress = String.format(ipAddressFormat, ipAddressArgs);
+            ipAddressFormat = null;
+            ipAddressArgs = null;
+        }
         return ipAddress;
     }
 
@@ -72,6 +84,22 @@ public class HelloMessage {
      */
     public void setIpAddress(String ipAddress) {
         this.ipAddress = ipAddress;
+        this.ipAddressFormat = null;
+        this.ipAddressArgs = null;
+    }
+
+    /**
+     * Set the ipAddress field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setIpAddress(String format, Object... args) {
+        this.ipAddress = null;
+        this.ipAddressFormat = format;
+        this.ipAddressArgs = args;
     }
 
     /**
@@ -101,6 +129,22 @@ public class HelloMessage {
         if (groups == null) {
             groups = new ArrayList<>();
         }
+        if (groupsArgs != null) {
+            //  Resolve deferred formats on first read
+            for (int index = 0; index < groups.size(); index++) {
+                if (groupsArgs.get(index) != null)
+                    groups.set(index, String.format(groups.get(index), groupsArgs.get(index)));
+            }
+            groupsArgs = null;
+        }
+        if (groupsBytes != null) {
+            //  Decode stored bytes on first read
+            for (int index = 0; index < groups.size(); index++) {
+                if (groupsBytes.get(index) != null)
+                    groups.set(index, Charset.forName("UTF-8").decode(groupsBytes.get(index).duplicate()).toString());
+            }
+            groupsBytes = null;
+        }
         return groups;
     }
 
@@ -110,7 +154,59 @@ public class HelloMessage {
      * @param value The value
      */
     public void addGroup(String value) {
-        getGroups().add(value);
+        if (groups == null) {
+            groups = new ArrayList<>();
+        }
+        groups.add(value);
+        if (groupsArgs != null) {
+            groupsArgs.add(null);
+        }
+        if (groupsBytes != null) {
+            groupsBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the groups field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void addGroup(String format, Object... args) {
+        if (groups == null) {
+            groups = new ArrayList<>();
+        }
+        if (groupsArgs == null) {
+            groupsArgs = new ArrayList<>(Collections.<Object[]>nCopies(groups.size(), null));
+        }
+        groups.add(format);
+        groupsArgs.add(args);
+        if (groupsBytes != null) {
+            groupsBytes.add(null);
+        }
+    }
+
+    /**
+     * Append a value to the groups field from its UTF-8 bytes. The bytes are
+     * copied into the frame when the message is encoded, and decoded only
+     * if the field is read, so they must not be modified after this call.
+     * 
+     * @param value The bytes from position to limit, left untouched
+     */
+    public void addGroup(ByteBuffer value) {
+        if (groups == null) {
+            groups = new ArrayList<>();
+        }
+        if (groupsBytes == null) {
+            groupsBytes = new ArrayList<>(Collections.<ByteBuffer>nCopies(groups.size(), null));
+        }
+        groups.add(null);
+        groupsBytes.add(value);
+        if (groupsArgs != null) {
+            groupsArgs.add(null);
+        }
     }
 
     /**
@@ -120,6 +216,8 @@ public class HelloMessage {
      */
     public void setGroups(List<String> groups) {
         this.groups = groups;
+        this.groupsArgs = null;
+        this.groupsBytes = null;
     }
 
     /**
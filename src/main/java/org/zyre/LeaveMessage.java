@@ -33,6 +33,8 @@ public class LeaveMessage {
 
     protected Integer sequence;
     protected String group;
+    protected String groupFormat;
+    protected Object[] groupArgs;
     protected Integer status;
 
     /**
@@ -59,6 +61,12 @@ public class LeaveMessage {
      * @return The group field
      */
     public String getGroup() {
+        if (groupFormat != null) {
+            //  Resolve a deferred format on first read
+            group = String.format(groupFormat, groupArgs);
+            groupFormat = null;
+            groupArgs = null;
+        }
         return group;
     }
 
@@ -69,6 +77,22 @@ public class LeaveMessage {
      */
     public void setGroup(String group) {
         this.group = group;
+        this.groupFormat = null;
+        this.groupArgs = null;
+    }
+
+    /**
+     * Set the group field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setGroup(String format, Object... args) {
+        this.group = null;
+        this.groupFormat = format;
+        this.groupArgs = args;
     }
 
     /**
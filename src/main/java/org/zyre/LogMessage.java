@@ -37,6 +37,8 @@ public class LogMessage {
     protected Integer peer;
     protected Long time;
     protected String data;
+    protected String dataFormat;
+    protected Object[] dataArgs;
 
     /**
      * Get the level field.
@@ -134,6 +136,12 @@ public class LogMessage {
      * @return The data field
      */
     public String getData() {
+        if (dataFormat != null) {
+            //  Resolve a deferred format on first read
+            data = String.format(dataFormat, dataArgs);
+            dataFormat = null;
+            dataArgs = null;
+        }
         return data;
     }
 
@@ -144,6 +152,22 @@ public class LogMessage {
      */
     public void setData(String data) {
         this.data = data;
+        this.dataFormat = null;
+        this.dataArgs = null;
+    }
+
+    /**
+     * Set the data field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setData(String format, Object... args) {
+        this.data = null;
+        this.dataFormat = format;
+        this.dataArgs = args;
     }
 }
 
@@ -51,4 +51,3 @@ public class PingOkMessage {
         this.sequence = sequence;
     }
 }
-
@@ -0,0 +1,92 @@
+/* ============================================================================
+ * StreamCreditMessage.java
+ * 
+ * Generated codec class for StreamCreditMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.*;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * StreamCreditMessage class.
+ */
+public class StreamCreditMessage {
+    public static final ZreSocket.MessageType MESSAGE_TYPE = ZreSocket.MessageType.STREAM_CREDIT;
+
+    protected Integer sequence;
+    protected Integer stream;
+    protected Integer credit;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the stream field.
+     * 
+     * @return The stream field
+     */
+    public Integer getStream() {
+        return stream;
+    }
+
+    /**
+     * Set the stream field.
+     * 
+     * @param stream The stream field
+     */
+    public void setStream(Integer stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Get the credit field.
+     * 
+     * @return The credit field
+     */
+    public Integer getCredit() {
+        return credit;
+    }
+
+    /**
+     * Set the credit field.
+     * 
+     * @param credit The credit field
+     */
+    public void setCredit(Integer credit) {
+        this.credit = credit;
+    }
+}
+
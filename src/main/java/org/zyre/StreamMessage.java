@@ -0,0 +1,172 @@
+/* ============================================================================
+ * StreamMessage.java
+ * 
+ * Generated codec class for StreamMessage
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.*;
+
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * StreamMessage class.
+ */
+public class StreamMessage {
+    public static final ZreSocket.MessageType MESSAGE_TYPE = ZreSocket.MessageType.STREAM;
+
+    protected Integer sequence;
+    protected Integer stream;
+    protected Integer window;
+    protected Integer last;
+    protected String group;
+    protected String groupFormat;
+    protected Object[] groupArgs;
+    protected Frame content = Message.EMPTY_FRAME;
+
+    /**
+     * Get the sequence field.
+     * 
+     * @return The sequence field
+     */
+    public Integer getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set the sequence field.
+     * 
+     * @param sequence The sequence field
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the stream field.
+     * 
+     * @return The stream field
+     */
+    public Integer getStream() {
+        return stream;
+    }
+
+    /**
+     * Set the stream field.
+     * 
+     * @param stream The stream field
+     */
+    public void setStream(Integer stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Get the window field.
+     * 
+     * @return The window field
+     */
+    public Integer getWindow() {
+        return window;
+    }
+
+    /**
+     * Set the window field.
+     * 
+     * @param window The window field
+     */
+    public void setWindow(Integer window) {
+        this.window = window;
+    }
+
+    /**
+     * Get the last field.
+     * 
+     * @return The last field
+     */
+    public Integer getLast() {
+        return last;
+    }
+
+    /**
+     * Set the last field.
+     * 
+     * @param last The last field
+     */
+    public void setLast(Integer last) {
+        this.last = last;
+    }
+
+    /**
+     * Get the group field.
+     * 
+     * @return The group field
+     */
+    public String getGroup() {
+        if (groupFormat != null) {
+            //  Resolve a deferred format on first read
+            group = String.format(groupFormat, groupArgs);
+            groupFormat = null;
+            groupArgs = null;
+        }
+        return group;
+    }
+
+    /**
+     * Set the group field.
+     * 
+     * @param group The group field
+     */
+    public void setGroup(String group) {
+        this.group = group;
+        this.groupFormat = null;
+        this.groupArgs = null;
+    }
+
+    /**
+     * Set the group field from a format string. Formatting is
+     * deferred until the message is encoded, so the arguments must not be
+     * modified after this call.
+     * 
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    public void setGroup(String format, Object... args) {
+        this.group = null;
+        this.groupFormat = format;
+        this.groupArgs = args;
+    }
+
+    /**
+     * Get the content field.
+     * 
+     * @return The content field
+     */
+    public Frame getContent() {
+        return content;
+    }
+
+    /**
+     * Set the content field, and takes ownership of supplied frame.
+     * 
+     * @param frame The new content frame
+     */
+    public void setContent(Frame frame) {
+        content = frame;
+    }
+}
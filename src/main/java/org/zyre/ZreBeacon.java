@@ -0,0 +1,362 @@
+/* ============================================================================
+ * ZreBeacon.java
+ *
+ * UDP beacon discovery of ZRE peers
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+
+/**
+ * ZreBeacon class.
+ *
+ * Announces a ZreNode on a UDP port, to a multicast group or a broadcast
+ * address, and connects the node to the nodes it hears. A beacon is the
+ * 22 bytes of ZRE discovery: "ZRE", version 1, the 16 byte UUID of the
+ * node and its 2 byte mailbox port, where a mailbox of 0 says the node is
+ * leaving. One is sent every BEACON_INTERVAL.
+ *
+ * Beacons are deduplicated by UUID in a cache whose entries expire once
+ * their node has been silent for the expiry interval, so a node repeating
+ * its beacon is only acted on once. Of each pair of nodes only the one with
+ * the lower UUID greets the other; the node it greets connects back when
+ * the HELLO arrives. The other waits DEFER_INTERVAL before greeting in
+ * turn, in case its beacons are not heard. Greetings are then released at
+ * a bounded rate, so that a cluster starting at once connects over a few
+ * seconds instead of in one burst of HELLOs, each pair of nodes greeting
+ * once.
+ *
+ * Used from the beacon thread only.
+ */
+public class ZreBeacon implements Runnable, Closeable {
+    public static final int DEFAULT_PORT = 5670;
+    public static final int BEACON_SIZE = 22;
+    public static final long BEACON_INTERVAL = 1000;
+
+    //  Time a node waits for a peer with a lower UUID to greet it first
+    public static final long DEFER_INTERVAL = 2 * BEACON_INTERVAL;
+
+    //  Greetings released per second, and held at most
+    public static final int DEFAULT_HELLO_RATE = 100;
+    private static final int MAX_PENDING = 1 << 16;
+
+    private static final byte[] PREFIX = { 'Z', 'R', 'E', 1 };
+
+    private final ZreNode node;
+    private final InetAddress group;
+    private final int port;
+    private final UUID uuid;
+    private final long expiryMillis;
+    private final int helloRate;
+
+    //  Nodes heard, least recently heard first
+    private final Map<UUID, Heard> heard = new LinkedHashMap<>();
+    private final Queue<UUID> pending = new ArrayDeque<>();
+    private double tokens;
+    private long refilled;
+    private long greeted;
+
+    private MulticastSocket socket;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Create a new ZreBeacon.
+     *
+     * @param node The node announced and connected to the nodes heard
+     * @param group The multicast group or broadcast address beacons are sent to
+     * @param port The UDP port beacons are sent to and heard on
+     */
+    public ZreBeacon(ZreNode node, InetAddress group, int port) {
+        this(node, group, port, ZreNode.PEER_EXPIRED, DEFAULT_HELLO_RATE);
+    }
+
+    /**
+     * Create a new ZreBeacon.
+     *
+     * @param node The node announced and connected to the nodes heard
+     * @param group The multicast group or broadcast address beacons are sent to
+     * @param port The UDP port beacons are sent to and heard on
+     * @param expiryMillis The silence after which a node heard is forgotten
+     * @param helloRate The number of nodes greeted per second at most
+     */
+    public ZreBeacon(ZreNode node, InetAddress group, int port, long expiryMillis, int helloRate) {
+        assert (node != null && group != null && expiryMillis > 0 && helloRate > 0);
+        this.node = node;
+        this.group = group;
+        this.port = port;
+        this.uuid = UUID.fromString(node.getIdentity());
+        this.expiryMillis = expiryMillis;
+        this.helloRate = helloRate;
+        this.tokens = helloRate;
+    }
+
+    /**
+     * Open the UDP socket and start the beacon thread.
+     *
+     * @throws IOException if the socket could not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null)
+            return;
+        socket = new MulticastSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(port));
+        if (group.isMulticastAddress()) {
+            socket.setTimeToLive(1);
+            joinGroup();
+        } else {
+            socket.setBroadcast(true);
+        }
+        refilled = System.currentTimeMillis();
+        running = true;
+        thread = new Thread(this, "zyre-beacon");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //  Join the group on the default interface, with loopback left on so
+    //  nodes on this host hear each other. IP_MULTICAST_LOOP can only be set
+    //  through setOption on a MulticastSocket from Java 9, so the Java 7 build
+    //  keeps setLoopbackMode.
+    @SuppressWarnings("deprecation")
+    private void joinGroup() throws IOException {
+        socket.setLoopbackMode(false);
+        socket.joinGroup(new InetSocketAddress(group, port), null);
+    }
+
+    /**
+     * Beacon loop; sends a beacon every interval and handles those heard
+     * in between, until closed.
+     */
+    @Override
+    public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[BEACON_SIZE + 1], BEACON_SIZE + 1);
+        long nextBeacon = 0;
+        while (running) {
+            long now = System.currentTimeMillis();
+            try {
+                if (now >= nextBeacon) {
+                    send(node.getMailbox());
+                    nextBeacon = now + BEACON_INTERVAL;
+                }
+                release(now);
+                expire(now);
+
+                //  Wake to release greetings while any are held back
+                long wait = pending.isEmpty() ? nextBeacon - now : Math.min(10, nextBeacon - now);
+                socket.setSoTimeout((int) Math.max(1, wait));
+                socket.receive(packet);
+                handle(packet.getData(), packet.getLength(), packet.getAddress(),
+                    System.currentTimeMillis());
+            } catch (SocketTimeoutException ex) {
+                continue;
+            } catch (IOException ex) {
+                if (running)
+                    ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Handle a beacon heard from a node. A node heard for the first time,
+     * or again after it was forgotten, is queued to be greeted unless it
+     * is expected to greet this node first.
+     *
+     * @param data The datagram
+     * @param length The length of the datagram
+     * @param address The address it came from
+     * @param now The current time in milliseconds
+     */
+    protected void handle(byte[] data, int length, InetAddress address, long now) {
+        if (length != BEACON_SIZE)
+            return;
+        for (int index = 0; index < PREFIX.length; index++) {
+            if (data[index] != PREFIX[index])
+                return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, PREFIX.length, BEACON_SIZE - PREFIX.length);
+        UUID id = new UUID(buffer.getLong(), buffer.getLong());
+        int mailbox = buffer.getShort() & 0xffff;
+        if (id.equals(uuid))
+            return;                         //  Our own
+        Heard entry = heard.remove(id);
+        if (mailbox == 0)
+            return;                         //  Leaving
+
+        if (entry == null || now - entry.lastSeen >= expiryMillis)
+            entry = new Heard(now);
+        entry.lastSeen = now;
+        entry.endpoint = endpoint(address, mailbox);
+        heard.put(id, entry);
+
+        if (entry.queued || node.getPeer(id.toString()) != null)
+            return;
+        if (entry.greeted && now - entry.greetedAt < expiryMillis)
+            return;                         //  Greeted, and not yet forgotten
+        if (uuid.compareTo(id) > 0 && now - entry.firstSeen < DEFER_INTERVAL)
+            return;                         //  The peer greets us first
+        if (pending.size() < MAX_PENDING) {
+            entry.queued = true;
+            pending.add(id);
+        }
+    }
+
+    /**
+     * Greet queued nodes as far as the rate allows.
+     *
+     * @param now The current time in milliseconds
+     */
+    protected void release(long now) {
+        tokens = Math.min(helloRate, tokens + (now - refilled) * helloRate / 1000.0);
+        refilled = now;
+        while (tokens >= 1 && !pending.isEmpty()) {
+            Heard entry = heard.get(pending.poll());
+            if (entry == null || !entry.queued)
+                continue;                   //  Expired or left meanwhile
+            entry.queued = false;
+            entry.greeted = true;
+            entry.greetedAt = now;
+            greet(entry.endpoint);
+            greeted++;
+            tokens--;
+        }
+    }
+
+    /**
+     * Hand the endpoint of a node heard to the node, which greets it with
+     * a HELLO.
+     *
+     * @param endpoint The endpoint of the node heard
+     */
+    protected void greet(String endpoint) {
+        node.connect(endpoint);
+    }
+
+    /**
+     * Get the endpoint of a node heard.
+     *
+     * @param address The address the beacon came from
+     * @param mailbox The mailbox in the beacon
+     * @return The endpoint to connect to
+     */
+    protected String endpoint(InetAddress address, int mailbox) {
+        return "tcp://" + address.getHostAddress() + ":" + mailbox;
+    }
+
+    /**
+     * Get the number of nodes heard and not yet forgotten.
+     *
+     * @return The node count
+     */
+    public int getHeard() {
+        return heard.size();
+    }
+
+    /**
+     * Get the number of nodes waiting to be greeted.
+     *
+     * @return The node count
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Get the number of nodes greeted.
+     *
+     * @return The greeting count
+     */
+    public long getGreeted() {
+        return greeted;
+    }
+
+    //  Forget nodes silent for the expiry interval, least recently heard first
+    private void expire(long now) {
+        Iterator<Heard> iterator = heard.values().iterator();
+        while (iterator.hasNext()) {
+            Heard entry = iterator.next();
+            if (now - entry.lastSeen < expiryMillis)
+                break;
+            iterator.remove();
+        }
+    }
+
+    private void send(int mailbox) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BEACON_SIZE);
+        buffer.put(PREFIX);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putShort((short) mailbox);
+        socket.send(new DatagramPacket(buffer.array(), BEACON_SIZE, group, port));
+    }
+
+    /**
+     * Stop the beacon thread, announce that the node is leaving, and close
+     * the socket.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current == null)
+            return;
+        try {
+            current.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            send(0);
+        } catch (IOException ex) {
+            //  Peers forget the node once its beacons stop
+        }
+        socket.close();
+    }
+
+    //  What is known of a node heard
+    private static final class Heard {
+        final long firstSeen;
+        long lastSeen;
+        long greetedAt;
+        boolean greeted;
+        boolean queued;
+        String endpoint;
+
+        Heard(long now) {
+            this.firstSeen = now;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/* ============================================================================
+ * ZreDispatcher.java
+ * 
+ * Generated codec class for ZreDispatcher
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.ZMQ;
+
+/**
+ * ZreDispatcher class.
+ * 
+ * Reads raw messages from a socket on one I/O thread and hands each one,
+ * still undecoded, to one of several worker threads chosen by hashing its
+ * ROUTER address. Workers decode with a ZreSocket of their own and
+ * pass the result to a handler, so decoding and handling run in parallel
+ * while the messages of any one peer are handled in the order received.
+ * Messages from a socket other than a ROUTER all go to the first worker.
+ * 
+ * The handoff to each worker is a single-producer, single-consumer ring.
+ * When a ring is full the I/O thread waits for its worker, holding back
+ * the socket rather than dropping or reordering messages. Worker sockets
+ * only decode; ZeroMQ sockets are not thread safe, so replies must not be
+ * sent from the handler without handing them back to a single thread.
+ */
+public class ZreDispatcher implements Closeable {
+    /**
+     * Handles decoded messages on a worker thread.
+     */
+    public interface Handler {
+        /**
+         * Handle a message. Called on the worker thread the peer hashes to.
+         * 
+         * @param socket The socket of the worker, holding the message and its address
+         * @param type The type of the message
+         */
+        void handle(ZreSocket socket, ZreSocket.MessageType type);
+    }
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+
+    //  Lets the I/O thread see that it is closed while the socket is idle
+    private static final int RECEIVE_TIMEOUT = 100;
+
+    //  How long an idle worker parks before polling its ring again
+    private static final long PARK_NANOS = 50000;
+
+    private final Socket socket;
+    private final Handler handler;
+    private final ZreSocket[] decoders;
+    private final Ring[] rings;
+    private final Thread[] threads;
+    private volatile boolean running;     //  I/O thread reads while set
+    private volatile boolean working;     //  Workers wait for messages while set
+    private boolean started;
+
+    /**
+     * Create a new ZreDispatcher.
+     * 
+     * @param socket The socket to read, owned by the dispatcher from now on
+     * @param workers The number of worker threads
+     * @param ringSize The messages queued per worker, rounded up to a power of two
+     * @param handler The handler of decoded messages
+     */
+    public ZreDispatcher(Socket socket, int workers, int ringSize, Handler handler) {
+        assert (socket != null && workers > 0 && ringSize > 0 && handler != null);
+        socket.getZMQSocket().setReceiveTimeOut(RECEIVE_TIMEOUT);
+        this.socket = socket;
+        this.handler = handler;
+        this.decoders = new ZreSocket[workers];
+        this.rings = new Ring[workers];
+        this.threads = new Thread[workers + 1];
+        int capacity = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+        for (int index = 0; index < workers; index++) {
+            decoders[index] = new ZreSocket(socket);
+            rings[index] = new Ring(capacity);
+        }
+    }
+
+    /**
+     * Get the socket a worker decodes with, to set its filter before the
+     * dispatcher is started.
+     * 
+     * @param worker The index of the worker
+     * @return The worker socket
+     */
+    public ZreSocket getSocket(int worker) {
+        return decoders[worker];
+    }
+
+    /**
+     * Get the number of worker threads.
+     * 
+     * @return The worker count
+     */
+    public int getWorkers() {
+        return rings.length;
+    }
+
+    /**
+     * Get the number of messages handed to a worker.
+     * 
+     * @param worker The index of the worker
+     * @return The message count
+     */
+    public long getDispatched(int worker) {
+        return rings[worker].tail.get();
+    }
+
+    /**
+     * Start the I/O and worker threads.
+     */
+    public synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        running = true;
+        working = true;
+        for (int index = 0; index < rings.length; index++) {
+            final int worker = index;
+            threads[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(worker);
+                }
+            }, "ZreDispatcher-worker-" + index);
+        }
+        threads[rings.length] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "ZreDispatcher-io");
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    //  I/O loop; reads messages and hands them to the worker of their peer
+    private void dispatch() {
+        boolean router = socket.getZMQSocket().getType() == ZMQ.ROUTER;
+        while (running) {
+            Message frames = socket.receiveMessage();
+            if (frames == null)
+                continue;                 //  Interrupted or timed out
+
+            Frame address = null;
+            int worker = 0;
+            if (router) {
+                address = frames.popFrame();
+                int hash = Arrays.hashCode(address.getData());
+                hash ^= hash >>> 16;
+                worker = (hash & 0x7fffffff) % rings.length;
+            }
+            Ring ring = rings[worker];
+            while (!ring.offer(address, frames)) {
+                if (!running)
+                    return;
+                Thread.yield();           //  Worker is not keeping up
+            }
+        }
+    }
+
+    //  Worker loop; decodes and handles messages until closed and drained
+    private void work(int worker) {
+        Ring ring = rings[worker];
+        ZreSocket decoder = decoders[worker];
+        while (true) {
+            if (ring.isEmpty()) {
+                if (!working)
+                    return;
+                LockSupport.parkNanos(PARK_NANOS);
+                continue;
+            }
+            Frame address = ring.peekAddress();
+            Message frames = ring.peekMessage();
+            ring.remove();
+            ZreSocket.MessageType type = decoder.decode(address, frames);
+            if (type == null)
+                continue;                 //  Malformed or filtered
+            try {
+                handler.handle(decoder, type);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop the threads, once the workers have handled what was queued, and
+     * close the socket.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        if (threads[rings.length] != null) {
+            //  I/O thread first, so that workers drain all it queued
+            join(threads[rings.length]);
+            working = false;
+            for (int index = 0; index < rings.length; index++)
+                join(threads[index]);
+        }
+        socket.close();
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //  Single-producer, single-consumer ring of undecoded messages
+    private static final class Ring {
+        final Frame[] addresses;
+        final Message[] messages;
+        final int mask;
+
+        //  Next slot to read, advanced by the worker only
+        final AtomicLong head = new AtomicLong();
+
+        //  Next slot to write, advanced by the I/O thread only
+        final AtomicLong tail = new AtomicLong();
+
+        //  Last head seen by the I/O thread, so a ring with room is not re-read
+        long headCache;
+
+        Ring(int capacity) {
+            this.addresses = new Frame[capacity];
+            this.messages = new Message[capacity];
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(Frame address, Message message) {
+            long next = tail.get();
+            if (next - headCache == messages.length) {
+                headCache = head.get();
+                if (next - headCache == messages.length)
+                    return false;
+            }
+            int slot = (int) next & mask;
+            addresses[slot] = address;
+            messages[slot] = message;
+            tail.lazySet(next + 1);       //  Publishes the slot to the worker
+            return true;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+
+        Frame peekAddress() {
+            return addresses[(int) head.get() & mask];
+        }
+
+        Message peekMessage() {
+            return messages[(int) head.get() & mask];
+        }
+
+        void remove() {
+            long current = head.get();
+            int slot = (int) current & mask;
+            addresses[slot] = null;
+            messages[slot] = null;
+            head.lazySet(current + 1);    //  Frees the slot for the I/O thread
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/* ============================================================================
+ * ZreLogForwarder.java
+ * 
+ * Generated codec class for ZreLogForwarder
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.ZMQ;
+
+/**
+ * ZreLogForwarder class.
+ * 
+ * Forwards messages from one socket to others without decoding them, for
+ * brokers that only pass traffic on. Of each message only the signature,
+ * the message id and the routing field are read, straight from the first
+ * frame at offsets known from the protocol: the routing field of a message
+ * is its first string field, provided only number fields come before it.
+ * A route chooses the sockets from these, and the original frames are sent
+ * to each of them as they are, so no field is re-encoded and no frame is
+ * copied. Header fields such as a sequence are forwarded unchanged too.
+ * 
+ * The forwarder reads on its own thread; messages from a socket other than
+ * a ROUTER have no address. Sockets forwarded to must not be ROUTERs, and
+ * are used from the forwarder thread only.
+ */
+public class ZreLogForwarder implements Runnable, Closeable {
+    /**
+     * Chooses where messages go, on the forwarder thread.
+     */
+    public interface Route {
+        /**
+         * Choose the sockets a message is forwarded to.
+         * 
+         * @param type The type of the message
+         * @param address The address of the sender, or null unless the socket read is a ROUTER
+         * @param key The routing field of the message, or null if it has none
+         * @return The sockets to forward the message to, or null to drop it
+         */
+        Socket[] route(ZreLogSocket.MessageType type, Frame address, String key);
+    }
+
+    //  Offset of the routing field in the first frame, by message id, or
+    //  -1 for messages that have none
+    private static final int[] KEY_OFFSETS = {
+        17,  //  LOG
+    };
+
+    private static final ZreLogSocket.MessageType[] TYPES = ZreLogSocket.MessageType.values();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //  Lets the forwarder thread see that it is closed while the socket is idle
+    private static final int RECEIVE_TIMEOUT = 100;
+
+    private final Socket socket;
+    private final Route route;
+    private final boolean router;
+    private final List<Frame> parts = new ArrayList<>();
+    private volatile long forwarded;      //  Written by the forwarder thread only
+    private volatile long dropped;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Create a new ZreLogForwarder.
+     * 
+     * @param socket The socket to read, owned by the forwarder from now on
+     * @param route The route that chooses the sockets to forward to
+     */
+    public ZreLogForwarder(Socket socket, Route route) {
+        assert (socket != null && route != null);
+        socket.getZMQSocket().setReceiveTimeOut(RECEIVE_TIMEOUT);
+        this.socket = socket;
+        this.route = route;
+        this.router = socket.getZMQSocket().getType() == ZMQ.ROUTER;
+    }
+
+    /**
+     * Get the number of messages forwarded.
+     * 
+     * @return The message count
+     */
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Get the number of messages dropped, as malformed, unrouted, or not
+     * sent to every socket chosen.
+     * 
+     * @return The message count
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Start the forwarder thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "ZreLogForwarder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Forwarder loop; forwards messages until closed.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            Message frames = socket.receiveMessage();
+            if (frames == null)
+                continue;                 //  Interrupted or timed out
+            Frame address = router ? frames.popFrame() : null;
+            if (forward(address, frames))
+                forwarded++;
+            else
+                dropped++;
+        }
+    }
+
+    //  Forward a message, reading no more of it than its signature, id and
+    //  routing field; true if it was sent to every socket chosen
+    private boolean forward(Frame address, Message frames) {
+        parts.clear();
+        while (!frames.isEmpty())
+            parts.add(frames.popFrame());
+        if (parts.isEmpty())
+            return false;
+
+        //  Check the protocol signature and id, and find the routing field
+        byte[] header = parts.get(0).getData();
+        if (header.length < 3 || (((header[0] & 0xff) << 8) | (header[1] & 0xff)) != (0xAAA0 | 2))
+            return false;
+        int id = header[2] & 0xff;
+        if (id < 1 || id > TYPES.length)
+            return false;
+        String key = null;
+        int offset = KEY_OFFSETS[id - 1];
+        if (offset >= 0 && offset < header.length && offset + 1 + (header[offset] & 0xff) <= header.length)
+            key = new String(header, offset + 1, header[offset] & 0xff, UTF8);
+
+        Socket[] targets = route.route(TYPES[id - 1], address, key);
+        if (targets == null || targets.length == 0)
+            return false;
+        boolean sent = true;
+        for (Socket target : targets) {
+            Message message = new Message();
+            for (Frame part : parts)
+                message.addFrame(part);
+            sent &= target.send(message);
+        }
+        return sent;
+    }
+
+    /**
+     * Stop the forwarder thread and close the socket read. Sockets
+     * forwarded to are left open.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        socket.close();
+    }
+}
@@ -0,0 +1,251 @@
+/* ============================================================================
+ * ZreLogPeers.java
+ * 
+ * Generated codec class for ZreLogPeers
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by   
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.                                      
+ *                                                                      
+ * This software is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of           
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU     
+ * Lesser General Public License for more details.                      
+ *                                                                      
+ * You should have received a copy of the GNU Lesser General Public     
+ * License along with this program. If not, see                         
+ * http://www.gnu.org/licenses.                                         
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.zeromq.api.Message.Frame;
+
+/**
+ * ZreLogPeers class.
+ * 
+ * Maps the identity bytes of ROUTER address frames to dense peer ids, from
+ * 0 up to the capacity, so that per-peer state can live in arrays indexed
+ * by id instead of maps keyed by frames. A ZreLogSocket given a
+ * registry looks up the address of each message it receives; a known peer
+ * costs a hash of its identity and a probe of an open-addressing table,
+ * without allocating.
+ * 
+ * Ids are reused once their peer is removed. When the registry is full the
+ * least recently seen peer is evicted to make room, and listeners are told
+ * so that they can reset the state they keep for its id. Used from the
+ * receiving thread only.
+ */
+public class ZreLogPeers {
+    /**
+     * Told when a peer id is given up, before it is reused.
+     */
+    public interface Listener {
+        /**
+         * Forget a peer.
+         * 
+         * @param peer The id of the peer removed
+         */
+        void removed(int peer);
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Frame[] addresses;
+    private final byte[][] identities;
+    private final int[] hashes;
+    private final long[] lastSeen;
+    private final int[] table;          //  Peer id + 1 by hash slot, 0 if empty
+    private final int[] free;
+    private int freeCount;
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /**
+     * Create a new ZreLogPeers.
+     * 
+     * @param capacity The number of peers known at once
+     */
+    public ZreLogPeers(int capacity) {
+        assert (capacity > 0);
+        this.addresses = new Frame[capacity];
+        this.identities = new byte[capacity][];
+        this.hashes = new int[capacity];
+        this.lastSeen = new long[capacity];
+        this.table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.free = new int[capacity];
+        while (freeCount < capacity) {
+            free[freeCount] = capacity - 1 - freeCount;
+            freeCount++;
+        }
+    }
+
+    /**
+     * Add a listener told of removed peers.
+     * 
+     * @param listener The listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Get the id of an address, registering it if it is new.
+     * 
+     * @param address The address received
+     * @return The id of the peer
+     */
+    public int register(Frame address) {
+        byte[] identity = address.getData();
+        int hash = hash(identity);
+        int peer = find(identity, hash);
+        if (peer < 0) {
+            if (freeCount == 0)
+                remove(leastRecent());
+            peer = free[--freeCount];
+            addresses[peer] = address;
+            identities[peer] = identity;
+            hashes[peer] = hash;
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = peer + 1;
+        }
+        lastSeen[peer] = System.currentTimeMillis();
+        return peer;
+    }
+
+    /**
+     * Get the id of an address without registering it.
+     * 
+     * @param address The address
+     * @return The id of the peer, or -1 if it is unknown
+     */
+    public int lookup(Frame address) {
+        byte[] identity = address.getData();
+        return find(identity, hash(identity));
+    }
+
+    /**
+     * Get the address of a peer, to send to it.
+     * 
+     * @param peer The id of the peer
+     * @return The address, or null if the id is not in use
+     */
+    public Frame getAddress(int peer) {
+        return addresses[peer];
+    }
+
+    /**
+     * Get when a peer was last received from.
+     * 
+     * @param peer The id of the peer
+     * @return The time in milliseconds, or 0 if the id is not in use
+     */
+    public long getLastSeen(int peer) {
+        return lastSeen[peer];
+    }
+
+    /**
+     * Remove a peer that has departed, freeing its id.
+     * 
+     * @param peer The id of the peer
+     * @return true if the id was in use
+     */
+    public boolean remove(int peer) {
+        if (identities[peer] == null)
+            return false;
+        unlink(peer);
+        addresses[peer] = null;
+        identities[peer] = null;
+        lastSeen[peer] = 0;
+        free[freeCount++] = peer;
+        for (Listener listener : listeners)
+            listener.removed(peer);
+        return true;
+    }
+
+    /**
+     * Remove every peer not received from for a while.
+     * 
+     * @param idleMillis How long a peer may be silent
+     * @return The number of peers removed
+     */
+    public int removeIdle(long idleMillis) {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (int peer = 0; peer < identities.length; peer++) {
+            if (identities[peer] != null && now - lastSeen[peer] > idleMillis && remove(peer))
+                removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Get the number of peers known.
+     * 
+     * @return The peer count
+     */
+    public int size() {
+        return identities.length - freeCount;
+    }
+
+    /**
+     * Get the number of peers that can be known at once, the bound of ids.
+     * 
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return identities.length;
+    }
+
+    private int find(byte[] identity, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int peer = table[slot] - 1;
+            if (hashes[peer] == hash && Arrays.equals(identities[peer], identity))
+                return peer;
+        }
+        return -1;
+    }
+
+    //  Empty the slot of a peer, shifting back later entries of its run so
+    //  that they can still be found
+    private void unlink(int peer) {
+        int mask = table.length - 1;
+        int slot = hashes[peer] & mask;
+        while (table[slot] != peer + 1)
+            slot = (slot + 1) & mask;
+        for (int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[table[next] - 1] & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = table[next];
+                slot = next;
+            }
+        }
+        table[slot] = 0;
+    }
+
+    private int leastRecent() {
+        int oldest = 0;
+        for (int peer = 1; peer < lastSeen.length; peer++) {
+            if (lastSeen[peer] < lastSeen[oldest])
+                oldest = peer;
+        }
+        return oldest;
+    }
+
+    private static int hash(byte[] identity) {
+        int hash = 0x811c9dc5;
+        for (byte b : identity) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,332 @@
+/* ============================================================================
+ * ZreLogRollup.java
+ *
+ * Per second, minute and hour counts of received ZRE log events
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.Arrays;
+
+/**
+ * ZreLogRollup class.
+ *
+ * Counts LOG events by node, level and event in windows of their time
+ * field, and emits the counts of each window to a sink once it closes:
+ * every second, and downsampled from those to every minute and hour. The
+ * counts live in long arrays indexed by node and by the level and event
+ * values of the protocol, one row of LEVELS * EVENTS counters per node;
+ * recording an event is a few array writes and allocates nothing. Levels
+ * and events the protocol does not define are counted under 0.
+ *
+ * Each resolution keeps a ring of windows. Events may arrive out of order
+ * by up to the number of second windows kept; a second window closes when
+ * a later one needs its slot, and its counts are then folded into the
+ * minute window holding it, which closes in turn when the next minute
+ * starts, and likewise for hours. Events too late for their window, or
+ * from nodes of maxNodes and above, are dropped and counted as such. Only
+ * the nodes seen in a window are visited when it closes.
+ *
+ * Used from one thread only, such as the one calling
+ * ZreLogSocket.receive, or a ZreLogDispatcher with a single worker.
+ */
+public class ZreLogRollup implements ZreLogDispatcher.Handler {
+    public static final int DEFAULT_MAX_NODES = 1024;
+    public static final int DEFAULT_SECONDS = 8;
+
+    //  Counters per node: levels and events the protocol defines, and 0
+    public static final int LEVELS = ZreLogSocket.LEVEL_INFO + 1;
+    public static final int EVENTS = ZreLogSocket.EVENT_EXIT + 1;
+    private static final int CELLS = LEVELS * EVENTS;
+
+    //  Windows kept of resolutions fed by a coarser one, in order
+    private static final int FOLDED_SLOTS = 2;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Resolutions counts are emitted at.
+     */
+    public enum Resolution {
+        SECOND(1000), MINUTE(60000), HOUR(3600000);
+
+        private final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        /**
+         * Get the length of a window.
+         *
+         * @return The length in milliseconds
+         */
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    /**
+     * Receives the counts of closed windows, on the recording thread.
+     */
+    public interface Sink {
+        /**
+         * Receive the count of one node, level and event in a window; only
+         * counts above zero are emitted.
+         *
+         * @param resolution The resolution of the window
+         * @param start The start of the window, in milliseconds
+         * @param node The node
+         * @param level The level, or 0 for levels the protocol does not define
+         * @param event The event, or 0 for events the protocol does not define
+         * @param count The number of events counted
+         */
+        void emit(Resolution resolution, long start, int node, int level, int event, long count);
+    }
+
+    private final int maxNodes;
+    private final Sink sink;
+    private final Ring seconds;
+    private final Ring minutes;
+    private final Ring hours;
+    private long recorded;
+    private long dropped;
+
+    //  Slot of the second window last recorded to, spares the lookup
+    private long lastWindow = EMPTY;
+    private int lastSlot;
+
+    /**
+     * Create a new ZreLogRollup with the default limits.
+     *
+     * @param sink The sink of closed windows
+     */
+    public ZreLogRollup(Sink sink) {
+        this(DEFAULT_MAX_NODES, DEFAULT_SECONDS, sink);
+    }
+
+    /**
+     * Create a new ZreLogRollup.
+     *
+     * @param maxNodes The number of nodes counted, numbered from 0
+     * @param seconds The number of second windows kept, setting how late events may arrive
+     * @param sink The sink of closed windows
+     */
+    public ZreLogRollup(int maxNodes, int seconds, Sink sink) {
+        assert (maxNodes > 0 && maxNodes <= 0x10000 && seconds > 0 && sink != null);
+        this.maxNodes = maxNodes;
+        this.sink = sink;
+        this.hours = new Ring(Resolution.HOUR, FOLDED_SLOTS, null);
+        this.minutes = new Ring(Resolution.MINUTE, FOLDED_SLOTS, hours);
+        this.seconds = new Ring(Resolution.SECOND, seconds, minutes);
+    }
+
+    /**
+     * Count a LOG message received on a ZreLogDispatcher worker.
+     *
+     * @param socket The socket of the worker, holding the message
+     * @param type The type of the message
+     */
+    @Override
+    public void handle(ZreLogSocket socket, ZreLogSocket.MessageType type) {
+        if (type == ZreLogSocket.MessageType.LOG)
+            record(socket.getLog());
+    }
+
+    /**
+     * Count a LOG message.
+     *
+     * @param message The message received
+     */
+    public void record(LogMessage message) {
+        record(value(message.getLevel()), value(message.getEvent()), value(message.getNode()),
+            message.getTime() != null ? message.getTime() : 0);
+    }
+
+    /**
+     * Count an event.
+     *
+     * @param level The level of the event
+     * @param event The event
+     * @param node The node that logged it
+     * @param time When it happened, in milliseconds
+     */
+    public void record(int level, int event, int node, long time) {
+        if (node < 0 || node >= maxNodes) {
+            dropped++;
+            return;
+        }
+        long window = floor(time, Resolution.SECOND.millis);
+        int slot = lastSlot;
+        if (window != lastWindow || seconds.windows[slot] != window) {
+            slot = seconds.claim(window);
+            if (slot < 0) {
+                dropped++;
+                return;
+            }
+            lastWindow = window;
+            lastSlot = slot;
+        }
+        if (level < 0 || level >= LEVELS)
+            level = 0;
+        if (event < 0 || event >= EVENTS)
+            event = 0;
+        seconds.add(slot, node, level * EVENTS + event, 1);
+        recorded++;
+    }
+
+    /**
+     * Close and emit every open window, oldest first, even those that have
+     * not yet ended; for when no more events will come.
+     */
+    public void flush() {
+        seconds.flush();
+        minutes.flush();
+        hours.flush();
+        lastWindow = EMPTY;
+    }
+
+    /**
+     * Get the number of events counted.
+     *
+     * @return The event count
+     */
+    public long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * Get the number of events dropped, as too late or from a node out of
+     * range.
+     *
+     * @return The event count
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    private static int value(Integer field) {
+        return field != null ? field : 0;
+    }
+
+    //  Window of a time, rounding down before the epoch too
+    private static long floor(long time, long millis) {
+        long window = time / millis;
+        return time % millis < 0 ? window - 1 : window;
+    }
+
+    //  Windows of one resolution, and their counters
+    private final class Ring {
+        final Resolution resolution;
+        final int slots;
+        final Ring next;
+
+        //  Window held by each slot, or EMPTY
+        final long[] windows;
+
+        //  Counters by slot, node and cell
+        final long[] counts;
+
+        //  Nodes seen by each slot, in the order seen
+        final int[] touched;
+        final int[] touchedSize;
+        final boolean[] marked;
+
+        Ring(Resolution resolution, int slots, Ring next) {
+            this.resolution = resolution;
+            this.slots = slots;
+            this.next = next;
+            this.windows = new long[slots];
+            this.counts = new long[slots * maxNodes * CELLS];
+            this.touched = new int[slots * maxNodes];
+            this.touchedSize = new int[slots];
+            this.marked = new boolean[slots * maxNodes];
+            Arrays.fill(windows, EMPTY);
+        }
+
+        //  Slot of a window, closing the older window held there; -1 if
+        //  the slot has moved on to a later window
+        int claim(long window) {
+            int slot = (int) (window % slots);
+            if (slot < 0)
+                slot += slots;
+            long held = windows[slot];
+            if (held == window)
+                return slot;
+            if (held != EMPTY) {
+                if (held > window)
+                    return -1;
+                close(slot);
+            }
+            windows[slot] = window;
+            return slot;
+        }
+
+        void add(int slot, int node, int cell, long count) {
+            int mark = slot * maxNodes + node;
+            if (!marked[mark]) {
+                marked[mark] = true;
+                touched[slot * maxNodes + touchedSize[slot]++] = node;
+            }
+            counts[mark * CELLS + cell] += count;
+        }
+
+        //  Fold counts of a closed finer window into the window holding it
+        void fold(long start, int node, int cell, long count) {
+            int slot = claim(floor(start, resolution.millis));
+            if (slot < 0)
+                dropped += count;
+            else
+                add(slot, node, cell, count);
+        }
+
+        //  Emit the counts of a slot, pass them on, and clear it
+        void close(int slot) {
+            long start = windows[slot] * resolution.millis;
+            for (int index = 0; index < touchedSize[slot]; index++) {
+                int node = touched[slot * maxNodes + index];
+                int mark = slot * maxNodes + node;
+                int base = mark * CELLS;
+                for (int cell = 0; cell < CELLS; cell++) {
+                    long count = counts[base + cell];
+                    if (count == 0)
+                        continue;
+                    counts[base + cell] = 0;
+                    sink.emit(resolution, start, node, cell / EVENTS, cell % EVENTS, count);
+                    if (next != null)
+                        next.fold(start, node, cell, count);
+                }
+                marked[mark] = false;
+            }
+            touchedSize[slot] = 0;
+            windows[slot] = EMPTY;
+        }
+
+        void flush() {
+            while (true) {
+                int oldest = -1;
+                for (int slot = 0; slot < slots; slot++) {
+                    if (windows[slot] != EMPTY && (oldest < 0 || windows[slot] < windows[oldest]))
+                        oldest = slot;
+                }
+                if (oldest < 0)
+                    return;
+                close(oldest);
+            }
+        }
+    }
+}
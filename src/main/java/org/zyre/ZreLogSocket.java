@@ -23,6 +23,9 @@ package org.zyre;
 import java.util.*;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -61,9 +64,20 @@ public class ZreLogSocket implements Closeable {
         LOG
     }
 
+    //  Frame fields of encoded messages that have none
+    private static final Frame[] NO_FRAMES = new Frame[0];
+
     //  Structure of our class
     private Socket socket;        //  Internal socket handle
     private Frame address;        //  Address of peer if any
+    private int peer = -1;        //  Registered id of peer if any
+    private ZreLogPeers peers;    //  Registry of peer ids if any
+
+    //  Reusable buffers for deferred string formatting
+    private final StringBuilder formatBuffer = new StringBuilder();
+    private final Formatter formatter = new Formatter(formatBuffer);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(255);
 
     private LogMessage log;
 
@@ -104,38 +118,101 @@ public class ZreLogSocket implements Closeable {
     }
 
     /**
-     * Receive a message on the socket.
+     * Get the registered id of the peer the last message came from.
+     * 
+     * @return The peer id, or -1 if no registry is set or not reading from a ROUTER
+     */
+    public int getPeer() {
+        return peer;
+    }
+
+    /**
+     * Set the message address to that of a registered peer.
+     * 
+     * @param peer The id of the peer
+     */
+    public void setPeer(int peer) {
+        this.address = peers.getAddress(peer);
+    }
+
+    /**
+     * Set the registry in which the address of each received message is
+     * looked up.
+     * 
+     * @param peers The registry, or null to leave peers unregistered
+     */
+    public void setPeers(ZreLogPeers peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Receive a message on the socket. Returns null if the receive was
+     * interrupted, timed out, or the message was malformed.
+     * Messages without the protocol signature are skipped.
      */
     public MessageType receive() {
+        //  Read valid message frame from socket; we loop over any
+        //  garbage data we might receive from badly-connected peers
+        while (true) {
+            Message frames = socket.receiveMessage();
+            if (frames == null)
+                return null;              //  Interrupted or timed out
+
+            //  If we're reading from a ROUTER socket, get address
+            Frame address = null;
+            if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+                address = frames.popFrame();
+            }
+            if (isSigned(frames))
+                return decode(address, frames);
+
+            //  Protocol assertion, drop message
+        }
+    }
+
+    //  Check the protocol signature without consuming the frame
+    private static boolean isSigned(Message frames) {
+        if (frames.isEmpty())
+            return false;
+        byte[] data = frames.getFrames().get(0).getData();
+        return data.length >= 2
+            && ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == (0xAAA0 | 2);
+    }
+
+    /**
+     * Decode a message already read from the socket, such as one handed
+     * over by a ZreLogDispatcher. Returns null if the message was
+     * malformed.
+     * 
+     * @param address The address popped from a ROUTER socket, or null
+     * @param frames The remaining frames of the message
+     * @return The type of the message decoded
+     */
+    public MessageType decode(Frame address, Message frames) {
         int id = 0;
-        Message frames;
         Frame needle;
         MessageType type;
         try {
-            //  Read valid message frame from socket; we loop over any
-            //  garbage data we might receive from badly-connected peers
-            while (true) {
-                frames = socket.receiveMessage();
-
-                //  If we're reading from a ROUTER socket, get address
-                if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-                    this.address = frames.popFrame();
-                }
+            this.peer = -1;
+            if (address != null) {
+                this.address = address;
+                if (peers != null)
+                    this.peer = peers.register(address);
+            }
 
-                //  Read and parse command in frame
-                needle = frames.popFrame();
+            //  Read and parse command in frame
+            needle = frames.popFrame();
 
-                //  Get and check protocol signature
-                int signature = (0xffff) & needle.getShort();
-                if (signature == (0xAAA0 | 2))
-                    break;                //  Valid signature
-
-                //  Protocol assertion, drop message
-            }
+            //  Get and check protocol signature; drop garbage data we
+            //  might receive from badly-connected peers
+            int signature = (0xffff) & needle.getShort();
+            if (signature != (0xAAA0 | 2))
+                return null;              //  Protocol assertion, drop message
 
             //  Get message id, which is first byte in frame
             id = (0xff) & needle.getByte();
             type = MessageType.values()[id-1];
+
             switch (type) {
                 case LOG: {
                     LogMessage message = this.log = new LogMessage();
@@ -171,6 +248,16 @@ public class ZreLogSocket implements Closeable {
      * Send the LOG to the socket in one step.
      */
     public boolean send(LogMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the LOG once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(LogMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 2));
@@ -181,12 +268,46 @@ public class ZreLogSocket implements Closeable {
         builder.putShort((short) (int) message.node);
         builder.putShort((short) (int) message.peer);
         builder.putLong(message.time);
-        if (message.data != null) {
+        if (message.dataFormat != null) {
+            putFormat(builder, message.dataFormat, message.dataArgs);
+        } else if (message.data != null) {
             builder.putChars(message.data);
         } else {
             builder.putChars("");        //  Empty string
         }
 
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send an encoded message to the socket.
+     * 
+     * @param encoded The encoded message
+     * @return true if the message was queued
+     */
+    public boolean send(Encoded encoded) {
+        return send(encoded.header, encoded.frames, address);
+    }
+
+    /**
+     * Send an encoded message to many peers of a ROUTER socket. Every peer
+     * is sent the same frames; only the address frame differs.
+     * 
+     * @param encoded The encoded message
+     * @param addresses The addresses of the peers
+     * @return The number of peers the message was queued for
+     */
+    public int send(Encoded encoded, Iterable<Frame> addresses) {
+        assert (socket.getZMQSocket().getType() == ZMQ.ROUTER);
+        int sent = 0;
+        for (Frame address : addresses) {
+            if (send(encoded.header, encoded.frames, address))
+                sent++;
+        }
+        return sent;
+    }
+
+    private boolean send(Frame header, Frame[] fields, Frame address) {
         //  Create multi-frame message
         Message frames = new Message();
 
@@ -196,10 +317,89 @@ public class ZreLogSocket implements Closeable {
             frames.addFrame(address);
         }
 
-        //  Now add the data frame
-        frames.addFrame(builder.build());
+        //  Now add the data frame, then any frame fields, in order
+        frames.addFrame(header);
+        for (Frame field : fields) {
+            frames.addFrame(field);
+        }
 
         return socket.send(frames);
     }
+
+    /**
+     * A message serialized once, so that it can be sent many times. Frame
+     * fields are held by reference, never copied.
+     */
+    public static final class Encoded {
+        private final Frame header;
+        private final Frame[] frames;
+
+        private Encoded(Frame header, Frame[] frames) {
+            this.header = header;
+            this.frames = frames;
+        }
+
+        /**
+         * Get the frame holding the header and the non-frame fields.
+         * 
+         * @return The header frame
+         */
+        public Frame getHeader() {
+            return header;
+        }
+
+        /**
+         * Get the number of bytes the message takes on the wire.
+         * 
+         * @return The size of its frames
+         */
+        public int getSize() {
+            int size = header.size();
+            for (Frame frame : frames)
+                size += frame == null ? 0 : frame.size();
+            return size;
+        }
+    }
+
+    /**
+     * Format a deferred string field straight into the frame, truncated to
+     * the 255 octets a string can hold on the wire.
+     * 
+     * @param builder The frame being serialized
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    private void putFormat(FrameBuilder builder, String format, Object[] args) {
+        formatBuffer.setLength(0);
+        formatter.format(format, args);
+        encoder.reset();
+        encodeBuffer.clear();
+        encoder.encode(CharBuffer.wrap(formatBuffer), encodeBuffer, true);
+        builder.putByte((byte) encodeBuffer.position());
+        builder.putBytes(encodeBuffer.array(), 0, encodeBuffer.position());
+    }
+
+    /**
+     * Copy a string field from its UTF-8 bytes straight into the frame,
+     * truncated to the 255 octets a string can hold on the wire without
+     * splitting a character. FrameBuilder takes arrays only, so bytes
+     * outside the heap, such as a mapped file, go through encodeBuffer.
+     * 
+     * @param builder The frame being serialized
+     * @param bytes The bytes from position to limit, left untouched
+     */
+    private void putUtf8(FrameBuilder builder, ByteBuffer bytes) {
+        int length = Math.min(bytes.remaining(), encodeBuffer.capacity());
+        while (length > 0 && length < bytes.remaining()
+                && (bytes.get(bytes.position() + length) & 0xc0) == 0x80)
+            length--;                   //  Continuation byte, back off
+        builder.putByte((byte) length);
+        if (bytes.hasArray()) {
+            builder.putBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+        } else {
+            bytes.duplicate().get(encodeBuffer.array(), 0, length);
+            builder.putBytes(encodeBuffer.array(), 0, length);
+        }
+    }
 }
 
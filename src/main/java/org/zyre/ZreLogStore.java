@@ -0,0 +1,456 @@
+/* ============================================================================
+ * ZreLogStore.java
+ *
+ * Memory-mapped columnar store of captured ZRE log events
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.*;
+
+/**
+ * ZreLogStore class.
+ *
+ * Appends captured LOG events to memory-mapped segments so that they can
+ * be queried by time window, node and peer. Each segment is a pair of
+ * files: a column file holding the fixed-width fields of up to segmentRows
+ * events, one column after the other, and a heap file holding their data
+ * strings as UTF-8, back to back. Each segment also keeps an index of its
+ * rows by BUCKET_MILLIS of event time, so a query reads only the time
+ * column of the buckets its window overlaps, then the node and peer
+ * columns of the rows in the window; the data of an event is only looked
+ * at once every field matches, and is handed over as a view of the heap.
+ *
+ * Events need not arrive in time order; the index is rebuilt from the time
+ * column when a segment is found on disk. Writes reach the page cache
+ * immediately and are forced to disk by {@link #commit()}.
+ *
+ * Appends must come from a single thread; scans are safe from any thread.
+ *
+ * Column file layout, big-endian:
+ * <pre class="text">
+ *    rows                         number 4    rows appended
+ *    reserved                     number 4
+ *    time                         number 8    per row
+ *    node                         number 2    per row
+ *    peer                         number 2    per row
+ *    level                        number 1    per row
+ *    event                        number 1    per row
+ *    end                          number 4    per row, heap offset after its data
+ * </pre>
+ */
+public class ZreLogStore implements Closeable {
+    //  Matches any node or peer in a scan
+    public static final int ANY = -1;
+
+    //  Time covered by one index bucket
+    public static final long BUCKET_MILLIS = 1000;
+
+    //  Bytes of column file header, and of columns per row
+    private static final int HEADER = 8;
+    private static final int ROW_BYTES = 8 + 2 + 2 + 1 + 1 + 4;
+
+    private static final String COLUMN_SUFFIX = ".col";
+    private static final String HEAP_SUFFIX = ".dat";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the events found by a scan. The buffer is a view of the
+     * mapped heap holding the UTF-8 data, valid only for the duration of
+     * the call.
+     */
+    public interface Visitor {
+        /**
+         * @param level The level of the event
+         * @param event The event
+         * @param node The node that logged it
+         * @param peer The peer it concerns
+         * @param time When it happened, in milliseconds
+         * @param data The data bytes
+         * @return false to stop the scan
+         */
+        boolean visit(int level, int event, int node, int peer, long time, ByteBuffer data);
+    }
+
+    private final File directory;
+    private final int segmentRows;
+    private final int heapBytes;
+    private final CharsetEncoder encoder = UTF8.newEncoder();
+    private final Set<Segment> dirty = new HashSet<>();
+    private volatile List<Segment> segments = Collections.emptyList();
+    private long nextId;
+
+    /**
+     * Open a ZreLogStore, recovering any segments already in the directory.
+     *
+     * @param directory The directory holding the segment files
+     * @param segmentRows The number of events in each segment
+     * @param heapBytes The size of the data heap of each segment
+     */
+    public ZreLogStore(File directory, int segmentRows, int heapBytes) throws IOException {
+        assert (segmentRows > 0 && heapBytes > 0);
+        this.directory = directory;
+        this.segmentRows = segmentRows;
+        this.heapBytes = heapBytes;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create store directory: " + directory);
+
+        File[] files = directory.listFiles();
+        List<File> found = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(COLUMN_SUFFIX))
+                    found.add(file);
+            }
+        }
+        Collections.sort(found);
+
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : found) {
+            String name = file.getName();
+            long id = Long.parseLong(name.substring(0, name.length() - COLUMN_SUFFIX.length()));
+            recovered.add(new Segment(id));
+            nextId = id + 1;
+        }
+        segments = recovered;
+    }
+
+    /**
+     * Append one event.
+     *
+     * @param level The level of the event
+     * @param event The event
+     * @param node The node that logged it
+     * @param peer The peer it concerns
+     * @param time When it happened, in milliseconds
+     * @param data The data of the event, or null
+     */
+    public void append(int level, int event, int node, int peer, long time, String data) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(data != null ? data : "");
+        Segment segment = active();
+        if (!segment.append(encoder, chars, level, event, node, peer, time)) {
+            chars.rewind();
+            if (encodedLength(chars) > heapBytes)
+                throw new IllegalArgumentException("Event data does not fit in a segment: " + time);
+            segment = roll();
+            if (!segment.append(encoder, chars, level, event, node, peer, time))
+                throw new IllegalArgumentException("Event data does not fit in a segment: " + time);
+        }
+        dirty.add(segment);
+    }
+
+    /**
+     * Append a LOG message.
+     *
+     * @param message The message to store
+     */
+    public void append(LogMessage message) throws IOException {
+        append(value(message.getLevel()), value(message.getEvent()), value(message.getNode()),
+            value(message.getPeer()), message.getTime() != null ? message.getTime() : 0,
+            message.getData());
+    }
+
+    /**
+     * Visit every stored event in a time window, oldest bucket first and in
+     * the order appended within a bucket.
+     *
+     * @param from The earliest time wanted, in milliseconds
+     * @param to The latest time wanted, inclusive
+     * @param visitor Receives each matching event
+     * @return The number of events visited
+     */
+    public int scan(long from, long to, Visitor visitor) {
+        return scan(from, to, ANY, ANY, visitor);
+    }
+
+    /**
+     * Visit every stored event of a node and peer in a time window, oldest
+     * bucket first and in the order appended within a bucket.
+     *
+     * @param from The earliest time wanted, in milliseconds
+     * @param to The latest time wanted, inclusive
+     * @param node The node wanted, or ANY
+     * @param peer The peer wanted, or ANY
+     * @param visitor Receives each matching event
+     * @return The number of events visited
+     */
+    public int scan(long from, long to, int node, int peer, Visitor visitor) {
+        int count = 0;
+        for (Segment segment : segments) {
+            int visited = segment.scan(from, to, node, peer, visitor);
+            if (visited < 0)
+                return count - visited - 1;
+            count += visited;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of events stored.
+     *
+     * @return The event count
+     */
+    public long getEvents() {
+        long events = 0;
+        for (Segment segment : segments)
+            events += segment.rows;
+        return events;
+    }
+
+    /**
+     * Get the number of segments stored.
+     *
+     * @return The segment count
+     */
+    public int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Force the events appended since the last commit to disk.
+     */
+    public void commit() {
+        for (Segment segment : dirty) {
+            segment.heap.force();
+            segment.columns.force();
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Commit outstanding events and release the store.
+     */
+    @Override
+    public void close() {
+        commit();
+        segments = Collections.emptyList();
+    }
+
+    private static int value(Integer field) {
+        return field != null ? field : 0;
+    }
+
+    //  UTF-8 length of the remaining characters
+    private static int encodedLength(CharBuffer chars) {
+        int length = 0;
+        for (int index = chars.position(); index < chars.limit(); index++) {
+            char c = chars.get(index);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && index + 1 < chars.limit()
+                    && Character.isLowSurrogate(chars.get(index + 1))) {
+                length += 4;
+                index++;
+            } else
+                length += 3;
+        }
+        return length;
+    }
+
+    //  Bucket of a time, rounding down before the epoch too
+    private static long bucket(long time) {
+        long bucket = time / BUCKET_MILLIS;
+        return time % BUCKET_MILLIS < 0 ? bucket - 1 : bucket;
+    }
+
+    private Segment active() throws IOException {
+        List<Segment> current = segments;
+        if (current.isEmpty())
+            return roll();
+        return current.get(current.size() - 1);
+    }
+
+    private Segment roll() throws IOException {
+        Segment segment = new Segment(nextId++);
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(segment);
+        segments = next;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < capacity)
+                raf.setLength(capacity);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    //  One pair of mapped column and heap files, and its time bucket index
+    private final class Segment {
+        final MappedByteBuffer columns;
+        final MappedByteBuffer heap;
+        final ByteBuffer writer;
+        final int capacity;
+
+        //  Column offsets
+        final int timeBase;
+        final int nodeBase;
+        final int peerBase;
+        final int levelBase;
+        final int eventBase;
+        final int endBase;
+
+        volatile int rows;
+        volatile long minTime = Long.MAX_VALUE;
+        volatile long maxTime = Long.MIN_VALUE;
+
+        //  Rows by time bucket, guarded by this
+        final TreeMap<Long, Rows> buckets = new TreeMap<>();
+
+        Segment(long id) throws IOException {
+            File columnFile = new File(directory, String.format("%020d%s", id, COLUMN_SUFFIX));
+            File heapFile = new File(directory, String.format("%020d%s", id, HEAP_SUFFIX));
+            boolean existing = columnFile.exists();
+            int rowCapacity = segmentRows;
+            int heapCapacity = heapBytes;
+            if (existing) {
+                //  Keep the geometry the segment was written with
+                rowCapacity = (int) ((columnFile.length() - HEADER) / ROW_BYTES);
+                heapCapacity = (int) heapFile.length();
+            }
+            this.capacity = rowCapacity;
+            this.columns = map(columnFile, HEADER + rowCapacity * ROW_BYTES);
+            this.heap = map(heapFile, heapCapacity);
+            this.writer = heap.duplicate();
+            this.timeBase = HEADER;
+            this.nodeBase = timeBase + 8 * rowCapacity;
+            this.peerBase = nodeBase + 2 * rowCapacity;
+            this.levelBase = peerBase + 2 * rowCapacity;
+            this.eventBase = levelBase + rowCapacity;
+            this.endBase = eventBase + rowCapacity;
+            if (existing)
+                recover();
+        }
+
+        //  Rebuild the index of a segment found on disk
+        private void recover() {
+            int count = Math.min(columns.getInt(0), capacity);
+            for (int row = 0; row < count; row++)
+                index(row, columns.getLong(timeBase + 8 * row));
+            rows = Math.max(count, 0);
+        }
+
+        int dataEnd(int row) {
+            return row == 0 ? 0 : columns.getInt(endBase + 4 * (row - 1));
+        }
+
+        //  Write an event at the end, or return false if it does not fit
+        boolean append(CharsetEncoder encoder, CharBuffer chars, int level, int event,
+                int node, int peer, long time) {
+            int row = rows;
+            if (row == capacity)
+                return false;
+            writer.limit(writer.capacity());
+            writer.position(dataEnd(row));
+            encoder.reset();
+            CoderResult result = encoder.encode(chars, writer, true);
+            if (result.isOverflow() || encoder.flush(writer).isOverflow())
+                return false;
+
+            columns.putLong(timeBase + 8 * row, time);
+            columns.putShort(nodeBase + 2 * row, (short) node);
+            columns.putShort(peerBase + 2 * row, (short) peer);
+            columns.put(levelBase + row, (byte) level);
+            columns.put(eventBase + row, (byte) event);
+            columns.putInt(endBase + 4 * row, writer.position());
+            columns.putInt(0, row + 1);
+            index(row, time);
+            rows = row + 1;
+            return true;
+        }
+
+        private synchronized void index(int row, long time) {
+            Long bucket = bucket(time);
+            Rows list = buckets.get(bucket);
+            if (list == null) {
+                list = new Rows();
+                buckets.put(bucket, list);
+            }
+            list.add(row);
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+        }
+
+        //  Visit matching events; returns the count, or -(count + 1) if stopped
+        int scan(long from, long to, int node, int peer, Visitor visitor) {
+            if (from > to || maxTime < from || minTime > to)
+                return 0;
+            List<int[]> lists = new ArrayList<>();
+            List<Integer> sizes = new ArrayList<>();
+            synchronized (this) {
+                for (Rows list : buckets.subMap(bucket(from), true, bucket(to), true).values()) {
+                    lists.add(list.rows);
+                    sizes.add(list.size);
+                }
+            }
+
+            ByteBuffer view = heap.duplicate();
+            int visited = 0;
+            for (int index = 0; index < lists.size(); index++) {
+                int[] list = lists.get(index);
+                for (int i = 0, size = sizes.get(index); i < size; i++) {
+                    int row = list[i];
+                    long time = columns.getLong(timeBase + 8 * row);
+                    if (time < from || time > to)
+                        continue;
+                    int rowNode = columns.getShort(nodeBase + 2 * row) & 0xffff;
+                    if (node != ANY && rowNode != node)
+                        continue;
+                    int rowPeer = columns.getShort(peerBase + 2 * row) & 0xffff;
+                    if (peer != ANY && rowPeer != peer)
+                        continue;
+                    view.limit(columns.getInt(endBase + 4 * row));
+                    view.position(dataEnd(row));
+                    visited++;
+                    if (!visitor.visit(columns.get(levelBase + row) & 0xff,
+                            columns.get(eventBase + row) & 0xff, rowNode, rowPeer, time, view))
+                        return -visited - 1;
+                }
+            }
+            return visited;
+        }
+    }
+
+    //  Ascending rows of one time bucket
+    private static final class Rows {
+        int[] rows = new int[8];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length)
+                rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+        }
+    }
+}
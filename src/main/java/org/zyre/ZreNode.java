@@ -0,0 +1,1250 @@
+/* ============================================================================
+ * ZreNode.java
+ *
+ * Peer table and group membership of a ZRE node
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zeromq.api.Context;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+/**
+ * ZreNode class.
+ *
+ * Binds a ROUTER inbox at its endpoint and reads it on its own thread,
+ * keeping a table of the peers that sent a HELLO and an index of the
+ * members of every group, updated by HELLO, JOIN and LEAVE. Each peer is
+ * sent to through a DEALER outbox connected to its endpoint. A HELLO
+ * carries the identity and endpoint of its sender in the IDENTITY_HEADER
+ * and ENDPOINT_HEADER headers, so that any transport, inproc and ipc
+ * included, can be used; without them the endpoint is taken to be
+ * tcp://ipAddress:mailbox.
+ *
+ * A HELLO does not list the groups of its sender. It carries their
+ * version, counting JOINs and LEAVEs, and an order-free digest of the group
+ * names in the GROUPS_HEADER header instead. A node that knew the peer at
+ * that version and digest, before it reconnected, takes the groups it
+ * remembers; otherwise it sends a GROUP_SYNC with the last version it
+ * knew, and the peer answers with GROUP_DELTA messages holding the groups
+ * joined and left since, or all of its groups if that version is no longer
+ * in its history. JOIN and LEAVE then move the version one at a time, and
+ * one that does not follow on starts a sync. A HELLO without the header
+ * lists the groups of its sender as before.
+ *
+ * WHISPERs to a peer may be batched, see setBatching(), in which case
+ * content is gathered per peer and sent as one WHISPERS once the batch
+ * reaches its byte budget or has lingered long enough, by a batcher
+ * thread. WHISPERS are unpacked on receipt, each content told to the
+ * listener as its own WHISPER.
+ *
+ * Content too large to hold at once is streamed as STREAM chunks of up to
+ * STREAM_CHUNK bytes, read from an InputStream or a channel on the calling
+ * thread and told to the StreamListener of the receiving node one chunk at
+ * a time. The receiver grants STREAM_CREDIT every half window of chunks,
+ * and the sender waits for credit once it has a window in flight, so a
+ * transfer never holds more than a window of chunks on either side. Each
+ * chunk is a message of its own, and other traffic to the peer takes
+ * turns with it.
+ *
+ * Traffic to each peer is counted, and a ZrePolicy decides from the counts
+ * whether the peer is keeping up. WHISPER and SHOUT content for a peer
+ * that has fallen behind is not sent, LOW priority content once it is
+ * DEGRADED and all of it once it is PAUSED, so that the backlog of a slow
+ * peer does not grow until it holds up the peers sent to after it. Outboxes
+ * have a send timeout of 0: a send to a peer whose queue is full fails at
+ * once and is counted, instead of blocking the sender. A paused peer is
+ * sent PINGs in place of the content it misses, which bring it back once
+ * it answers them.
+ *
+ * Messages from a peer are numbered by the header sequence. A peer whose
+ * sequence skips has lost messages, and with them perhaps a JOIN or LEAVE,
+ * so it is dropped and must greet the node again.
+ *
+ * Every peer has a heartbeat timer in a ZreTimingWheel, due when it has
+ * been silent for the evasive interval. Any message from the peer only
+ * moves its last seen time; the timer checks that time when it is due and
+ * reschedules itself if the peer was heard from meanwhile, so a busy peer
+ * is never pinged. A peer silent for the evasive interval is sent a PING,
+ * and one still silent for the expired interval is forgotten, as is an
+ * outbox whose node never greets back.
+ *
+ * The peer table and the group index are concurrent maps, and the members
+ * of a group are an array replaced on change, so looking up the peers of a
+ * SHOUT takes no lock. Only the node thread changes them. Listener events
+ * are called on the node thread.
+ */
+public class ZreNode implements Runnable, Closeable {
+    /**
+     * Told of peer and group events, on the node thread.
+     */
+    public interface Listener {
+        /**
+         * A peer has greeted the node.
+         */
+        void enter(ZrePeer peer);
+
+        /**
+         * A peer has been forgotten.
+         */
+        void exit(ZrePeer peer);
+
+        /**
+         * A peer has joined a group.
+         */
+        void join(ZrePeer peer, String group);
+
+        /**
+         * A peer has left a group.
+         */
+        void leave(ZrePeer peer, String group);
+
+        /**
+         * A peer has sent content to the node.
+         */
+        void whisper(ZrePeer peer, Frame content);
+
+        /**
+         * A peer has sent content to a group.
+         */
+        void shout(ZrePeer peer, String group, Frame content);
+    }
+
+    /**
+     * Priority of WHISPER and SHOUT content, for peers falling behind.
+     */
+    public enum Priority {
+        /**
+         * Shed once a peer is DEGRADED.
+         */
+        LOW,
+
+        /**
+         * Shed only once a peer is PAUSED.
+         */
+        NORMAL
+    }
+
+    /**
+     * Told of streamed content, on the node thread.
+     */
+    public interface StreamListener {
+        /**
+         * A chunk of content streamed by a peer has arrived. Chunks of a
+         * stream arrive in order.
+         *
+         * @param peer The peer
+         * @param group The group the content was shouted to, or null if whispered
+         * @param stream The id of the stream, unique per peer
+         * @param content The chunk
+         * @param last true on the final chunk of the stream
+         */
+        void chunk(ZrePeer peer, String group, int stream, Frame content, boolean last);
+    }
+
+    //  HELLO headers naming the sender
+    public static final String IDENTITY_HEADER = "X-IDENTITY";
+    public static final String ENDPOINT_HEADER = "X-ENDPOINT";
+
+    //  HELLO header holding the version and digest of the groups of the sender
+    public static final String GROUPS_HEADER = "X-GROUPS";
+
+    public static final int DEFAULT_MAX_PEERS = 4096;
+
+    //  Silence after which a peer is pinged, and after which it is forgotten
+    public static final long PEER_EVASIVE = 5000;
+    public static final long PEER_EXPIRED = 30000;
+
+    //  Heartbeat resolution, and ticks in one turn of the wheel
+    private static final long WHEEL_TICK = 10;
+    private static final int WHEEL_SLOTS = 4096;
+
+    //  Bytes per STREAM chunk, and chunks sent ahead of credit
+    public static final int STREAM_CHUNK = 64 << 10;
+    public static final int STREAM_WINDOW = 16;
+
+    //  Own group changes kept to answer a GROUP_SYNC with a delta, and
+    //  groups per GROUP_DELTA, the most a strings field holds
+    private static final int HISTORY = 1024;
+    private static final int MAX_DELTA = 255;
+
+    //  Lets the node thread see that it is closed while the inbox is idle
+    private static final int RECEIVE_TIMEOUT = 100;
+
+    //  Sends to a peer fail rather than wait when its queue is full
+    private static final int SEND_TIMEOUT = 0;
+
+    private static final ZrePeer[] NO_PEERS = new ZrePeer[0];
+
+    private final Context context;
+    private final Listener listener;
+    private final String identity = UUID.randomUUID().toString();
+    private final String endpoint;
+    private final String ipAddress;
+    private final int mailbox;
+    private final ZreSocket inbox;
+    private final ZrePeers addresses;
+    private final ZrePeer[] inbound;
+
+    //  Ready peers by identity, and every outbox by endpoint
+    private final ConcurrentMap<String, ZrePeer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ZrePeer> outboxes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ZrePeer[]> groups = new ConcurrentHashMap<>();
+
+    //  Heartbeats, used by the node thread only; new outboxes are queued
+    //  for it since they may be connected from any thread
+    private final ZreTimingWheel wheel = new ZreTimingWheel(WHEEL_TICK, WHEEL_SLOTS,
+        System.currentTimeMillis());
+    private final Queue<ZrePeer> connected = new ConcurrentLinkedQueue<>();
+    private volatile long evasiveMillis = PEER_EVASIVE;
+    private volatile long expiredMillis = PEER_EXPIRED;
+
+    //  WHISPER batching, off while lingerNanos is 0; batches are queued in
+    //  the order they were opened, so they fall due in that order too
+    private volatile long lingerNanos;
+    private volatile int batchBytes;
+    private final Queue<Batch> batches = new ConcurrentLinkedQueue<>();
+    private Thread batcher;
+
+    //  Streams being sent, by id
+    private final ConcurrentMap<Integer, ZreStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger streamIds = new AtomicInteger();
+    private volatile StreamListener streamListener;
+    private volatile ZrePolicy policy = new ZrePolicy();
+
+    //  Groups of forgotten peers by identity, used by the node thread only
+    private final Map<String, GroupState> departed;
+
+    //  Own state, guarded by this; the group changed by each version is
+    //  kept in history
+    private final Map<String, String> headers = new HashMap<>();
+    private final Set<String> ownGroups = new LinkedHashSet<>();
+    private final String[] history = new String[HISTORY];
+    private int version;
+    private long digest;
+
+    private volatile boolean running;
+    private Thread thread;
+    private boolean closed;
+
+    /**
+     * Create a new ZreNode.
+     *
+     * @param context The context sockets are built in
+     * @param endpoint The endpoint the inbox is bound to and peers reach the node at
+     * @param listener The listener of peer and group events
+     */
+    public ZreNode(Context context, String endpoint, Listener listener) {
+        this(context, endpoint, listener, DEFAULT_MAX_PEERS);
+    }
+
+    /**
+     * Create a new ZreNode.
+     *
+     * @param context The context sockets are built in
+     * @param endpoint The endpoint the inbox is bound to and peers reach the node at
+     * @param listener The listener of peer and group events
+     * @param maxPeers The number of peers known at once
+     */
+    public ZreNode(Context context, String endpoint, Listener listener, final int maxPeers) {
+        assert (context != null && endpoint != null && listener != null && maxPeers > 0);
+        this.context = context;
+        this.endpoint = endpoint;
+        this.listener = listener;
+
+        //  ipAddress and mailbox only mean something for tcp endpoints
+        String ipAddress = "";
+        int mailbox = 0;
+        if (endpoint.startsWith("tcp://") && endpoint.lastIndexOf(':') > 5) {
+            int colon = endpoint.lastIndexOf(':');
+            ipAddress = endpoint.substring(6, colon);
+            try {
+                mailbox = Integer.parseInt(endpoint.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                mailbox = 0;
+            }
+        }
+        this.ipAddress = ipAddress;
+        this.mailbox = mailbox;
+
+        this.addresses = new ZrePeers(maxPeers);
+        this.inbound = new ZrePeer[maxPeers];
+        this.addresses.addListener(new ZrePeers.Listener() {
+            @Override
+            public void removed(int peer) {
+                if (inbound[peer] != null && inbound[peer].inbound == peer)
+                    inbound[peer].inbound = -1;
+                inbound[peer] = null;
+            }
+        });
+        Socket router = context.buildSocket(SocketType.ROUTER).bind(endpoint);
+        router.getZMQSocket().setReceiveTimeOut(RECEIVE_TIMEOUT);
+        this.inbox = new ZreSocket(router);
+        this.inbox.setPeers(addresses);
+        this.departed = new LinkedHashMap<String, GroupState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GroupState> eldest) {
+                return size() > maxPeers;
+            }
+        };
+    }
+
+    /**
+     * Get the identity the node announces in its HELLO.
+     *
+     * @return The identity
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Get the endpoint the node is reached at.
+     *
+     * @return The endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Get the port of the endpoint, announced as the mailbox of the node.
+     *
+     * @return The mailbox, or 0 unless the endpoint is tcp
+     */
+    public int getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Set a header announced in the HELLO of the node, before peers are
+     * connected.
+     *
+     * @param name The header name
+     * @param value The header value
+     */
+    public synchronized void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    /**
+     * Set the listener of streamed content. Chunks received while there is
+     * none are dropped.
+     *
+     * @param streamListener The listener, or null
+     */
+    public void setStreamListener(StreamListener streamListener) {
+        this.streamListener = streamListener;
+    }
+
+    /**
+     * Set the policy that decides which peers have fallen behind.
+     *
+     * @param policy The policy
+     */
+    public void setPolicy(ZrePolicy policy) {
+        assert (policy != null);
+        this.policy = policy;
+    }
+
+    /**
+     * Set how long a peer may be silent before it is pinged, and before it
+     * is forgotten.
+     *
+     * @param evasiveMillis The silence after which a peer is pinged
+     * @param expiredMillis The silence after which a peer is forgotten
+     */
+    public void setHeartbeat(long evasiveMillis, long expiredMillis) {
+        assert (evasiveMillis > 0 && expiredMillis > evasiveMillis);
+        this.evasiveMillis = evasiveMillis;
+        this.expiredMillis = expiredMillis;
+    }
+
+    /**
+     * Batch the WHISPERs sent to each peer, so that bursts of small content
+     * take one message instead of one each. A batch is sent once it holds
+     * maxBytes of content or lingerMillis after its first content, and
+     * before any other message to the same peer.
+     *
+     * @param lingerMillis The time content may wait for more, or 0 to stop batching
+     * @param maxBytes The content after which a batch is sent at once
+     */
+    public synchronized void setBatching(long lingerMillis, int maxBytes) {
+        assert (lingerMillis >= 0 && maxBytes > 0);
+        this.batchBytes = maxBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        if (thread != null && lingerNanos > 0)
+            startBatcher();
+    }
+
+    /**
+     * Start the node thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "zyre-node");
+        thread.setDaemon(true);
+        thread.start();
+        if (lingerNanos > 0)
+            startBatcher();
+    }
+
+    //  Caller holds this
+    private void startBatcher() {
+        if (batcher != null)
+            return;
+        batcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "zyre-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * Node loop; handles messages from peers until closed.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            ZreSocket.MessageType type = inbox.receive();
+            if (type != null)
+                handle(type);
+
+            long now = System.currentTimeMillis();
+            ZrePeer peer;
+            while ((peer = connected.poll()) != null)
+                wheel.schedule(peer.heartbeat, peer.getLastSeen() + evasiveMillis);
+            wheel.advance(now);
+        }
+    }
+
+    /**
+     * Connect to a node and greet it with a HELLO. Nothing is done if an
+     * outbox to the endpoint exists already.
+     *
+     * @param endpoint The endpoint of the node
+     * @return The peer, which is ready once the node greets back
+     */
+    public synchronized ZrePeer connect(String endpoint) {
+        ZrePeer peer = outboxes.get(endpoint);
+        if (peer == null) {
+            Socket outbox = context.buildSocket(SocketType.DEALER).connect(endpoint);
+            outbox.getZMQSocket().setSendTimeOut(SEND_TIMEOUT);
+            peer = new ZrePeer(endpoint, new ZreSocket(outbox));
+            peer.heartbeat = new Heartbeat(peer);
+            peer.touch(System.currentTimeMillis());
+            outboxes.put(endpoint, peer);
+            connected.add(peer);
+            peer.send(hello());
+        }
+        return peer;
+    }
+
+    /**
+     * Join a group, telling every peer.
+     *
+     * @param group The group
+     */
+    public synchronized void join(String group) {
+        if (!ownGroups.add(group))
+            return;
+        change(group);
+        for (ZrePeer peer : outboxes.values()) {
+            JoinMessage message = new JoinMessage();
+            message.setGroup(group);
+            message.setStatus(version & 0xff);
+            peer.send(message);
+        }
+    }
+
+    /**
+     * Leave a group, telling every peer.
+     *
+     * @param group The group
+     */
+    public synchronized void leave(String group) {
+        if (!ownGroups.remove(group))
+            return;
+        change(group);
+        for (ZrePeer peer : outboxes.values()) {
+            LeaveMessage message = new LeaveMessage();
+            message.setGroup(group);
+            message.setStatus(version & 0xff);
+            peer.send(message);
+        }
+    }
+
+    /**
+     * Send content to one peer.
+     *
+     * @param identity The identity of the peer
+     * @param content The content
+     * @return true if the peer is known and the message was queued
+     */
+    public boolean whisper(String identity, Frame content) {
+        return whisper(identity, content, Priority.NORMAL);
+    }
+
+    /**
+     * Send content to one peer, unless the peer has fallen too far behind
+     * for content of its priority.
+     *
+     * @param identity The identity of the peer
+     * @param content The content
+     * @param priority The priority of the content
+     * @return true if the peer is known and the message was queued
+     */
+    public boolean whisper(String identity, Frame content, Priority priority) {
+        ZrePeer peer = peers.get(identity);
+        if (peer == null)
+            return false;
+        if (!policy.admits(peer, priority)) {
+            pace(peer);
+            return false;
+        }
+        boolean sent = true;
+        if (lingerNanos > 0) {
+            long opened = peer.batch(content, batchBytes, System.nanoTime());
+            if (opened != -1)
+                batches.add(new Batch(peer, opened));
+        } else {
+            WhisperMessage message = new WhisperMessage();
+            message.setContent(content);
+            sent = peer.send(message);
+        }
+        pace(peer);
+        return sent;
+    }
+
+    /**
+     * Send content to every peer in a group. The SHOUT is encoded once and
+     * its content frame shared by every peer; each only writes its own
+     * sequence into a copy of the header frame.
+     *
+     * @param group The group
+     * @param content The content
+     * @return The number of peers the message was queued for
+     */
+    public int shout(String group, Frame content) {
+        return shout(group, content, Priority.NORMAL);
+    }
+
+    /**
+     * Send content to every peer in a group, leaving out those that have
+     * fallen too far behind for content of its priority.
+     *
+     * @param group The group
+     * @param content The content
+     * @param priority The priority of the content
+     * @return The number of peers the message was queued for
+     */
+    public int shout(String group, Frame content, Priority priority) {
+        ZrePeer[] members = getPeers(group);
+        ZrePolicy policy = this.policy;
+        ZreSocket.Encoded encoded = null;
+        int sent = 0;
+        for (ZrePeer peer : members) {
+            if (!policy.admits(peer, priority)) {
+                pace(peer);
+                continue;
+            }
+            if (encoded == null) {
+                ShoutMessage message = new ShoutMessage();
+                message.setSequence(0);
+                message.setGroup(group);
+                message.setContent(content);
+                encoded = peer.encode(message);
+            }
+            if (peer.send(encoded))
+                sent++;
+            pace(peer);
+        }
+        return sent;
+    }
+
+    /**
+     * Stream content to one peer, blocking until all of it is sent.
+     *
+     * @param identity The identity of the peer
+     * @param content The content, read to its end but not closed
+     * @return true if the peer is known and every chunk was queued
+     * @throws IOException if the content could not be read
+     */
+    public boolean whisper(String identity, InputStream content) throws IOException {
+        return whisper(identity, Channels.newChannel(content));
+    }
+
+    /**
+     * Stream content to one peer, blocking until all of it is sent.
+     *
+     * @param identity The identity of the peer
+     * @param content A blocking channel, read to its end but not closed
+     * @return true if the peer is known and every chunk was queued
+     * @throws IOException if the content could not be read
+     */
+    public boolean whisper(String identity, ReadableByteChannel content) throws IOException {
+        ZrePeer peer = peers.get(identity);
+        if (peer == null)
+            return false;
+        return stream(new ZrePeer[] { peer }, "", content) == 1;
+    }
+
+    /**
+     * Stream content to every peer in a group, blocking until all of it is
+     * sent. Each chunk is encoded once and shared like a SHOUT, and sent
+     * once every member has credit for it; a member that grants none for
+     * the expired interval is left out of the rest of the stream.
+     *
+     * @param group The group
+     * @param content The content, read to its end but not closed
+     * @return The number of peers every chunk was queued for
+     * @throws IOException if the content could not be read
+     */
+    public int shout(String group, InputStream content) throws IOException {
+        return shout(group, Channels.newChannel(content));
+    }
+
+    /**
+     * Stream content to every peer in a group, blocking until all of it is
+     * sent.
+     *
+     * @param group The group
+     * @param content A blocking channel, read to its end but not closed
+     * @return The number of peers every chunk was queued for
+     * @throws IOException if the content could not be read
+     */
+    public int shout(String group, ReadableByteChannel content) throws IOException {
+        ZrePeer[] members = getPeers(group);
+        if (members.length == 0)
+            return 0;
+        return stream(members, group, content);
+    }
+
+    //  Read and send one chunk at a time, each once the peers have credit
+    private int stream(ZrePeer[] targets, String group, ReadableByteChannel content)
+            throws IOException {
+        ZreStream stream = new ZreStream(streamIds.incrementAndGet(), targets, STREAM_WINDOW);
+        streams.put(stream.getId(), stream);
+        try {
+            boolean last = false;
+            while (!last) {
+                //  Only the last chunk can come up short and need trimming
+                byte[] chunk = new byte[STREAM_CHUNK];
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining() && !last)
+                    last = content.read(buffer) < 0;
+                if (buffer.hasRemaining())
+                    chunk = Arrays.copyOf(chunk, buffer.position());
+
+                ZrePeer[] ready = stream.acquire(expiredMillis);
+                if (ready.length == 0)
+                    return 0;
+                StreamMessage message = new StreamMessage();
+                message.setSequence(0);
+                message.setStream(stream.getId());
+                message.setWindow(stream.getWindow());
+                message.setLast(last ? 1 : 0);
+                message.setGroup(group);
+                message.setContent(new Frame(chunk));
+                ZreSocket.Encoded encoded = ready[0].encode(message);
+                for (ZrePeer peer : ready) {
+                    if (!peer.send(encoded))
+                        stream.drop(peer);
+                    pace(peer);
+                }
+            }
+            return stream.getRemaining();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("stream " + stream.getId() + " interrupted");
+        } finally {
+            streams.remove(stream.getId());
+        }
+    }
+
+    /**
+     * Get a peer.
+     *
+     * @param identity The identity of the peer
+     * @return The peer, or null if it is not known
+     */
+    public ZrePeer getPeer(String identity) {
+        return peers.get(identity);
+    }
+
+    /**
+     * Get the peers that have greeted the node.
+     *
+     * @return A live view of the peers
+     */
+    public Collection<ZrePeer> getPeers() {
+        return Collections.unmodifiableCollection(peers.values());
+    }
+
+    /**
+     * Get the peers in a group, without taking a lock.
+     *
+     * @param group The group
+     * @return The members, shared and not to be modified
+     */
+    public ZrePeer[] getPeers(String group) {
+        ZrePeer[] members = groups.get(group);
+        return members == null ? NO_PEERS : members;
+    }
+
+    /**
+     * Get the groups that have peers in them.
+     *
+     * @return A live view of the group names
+     */
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(groups.keySet());
+    }
+
+    private void handle(ZreSocket.MessageType type) {
+        int address = inbox.getPeer();
+        if (type == ZreSocket.MessageType.HELLO) {
+            hello(address, inbox.getHello());
+            return;
+        }
+
+        //  Anything else must come from a peer that has greeted us
+        ZrePeer peer = address < 0 ? null : inbound[address];
+        if (peer == null)
+            return;
+        int sequence = sequence(type);
+        if (sequence != peer.wantSequence) {
+            remove(peer);                   //  Lost messages, peer must greet again
+            return;
+        }
+        peer.wantSequence = (sequence + 1) & 0xffff;
+        peer.touch(System.currentTimeMillis());
+
+        switch (type) {
+            case WHISPER:
+                listener.whisper(peer, inbox.getWhisper().getContent());
+                break;
+            case WHISPERS:
+                unbatch(peer, inbox.getWhispers().getContents());
+                break;
+            case SHOUT: {
+                ShoutMessage message = inbox.getShout();
+                listener.shout(peer, message.getGroup(), message.getContent());
+                break;
+            }
+            case JOIN: {
+                JoinMessage message = inbox.getJoin();
+                if (peer.versioned && !follow(peer, message.getStatus()))
+                    break;
+                peer.join(message.getGroup(), message.getStatus());
+                if (addMember(message.getGroup(), peer))
+                    listener.join(peer, message.getGroup());
+                break;
+            }
+            case LEAVE: {
+                LeaveMessage message = inbox.getLeave();
+                if (peer.versioned && !follow(peer, message.getStatus()))
+                    break;
+                peer.leave(message.getGroup(), message.getStatus());
+                if (removeMember(message.getGroup(), peer))
+                    listener.leave(peer, message.getGroup());
+                break;
+            }
+            case STREAM:
+                chunk(peer, inbox.getStream());
+                break;
+            case STREAM_CREDIT: {
+                StreamCreditMessage message = inbox.getStreamCredit();
+                ZreStream stream = streams.get(message.getStream());
+                if (stream != null)
+                    stream.credit(peer, message.getCredit());
+                break;
+            }
+            case GROUP_SYNC:
+                delta(peer, inbox.getGroupSync().getVersion());
+                break;
+            case GROUP_DELTA:
+                delta(peer, inbox.getGroupDelta());
+                break;
+            case PING:
+                peer.send(new PingOkMessage());
+                break;
+            case PING_OK:
+                peer.pong(System.nanoTime());
+                pace(peer);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void hello(int address, HelloMessage message) {
+        String identity = message.getHeader(IDENTITY_HEADER, (String) null);
+        if (identity == null || identity.equals(this.identity) || address < 0)
+            return;
+        String endpoint = message.getHeader(ENDPOINT_HEADER, (String) null);
+        if (endpoint == null)
+            endpoint = "tcp://" + message.getIpAddress() + ":" + message.getMailbox();
+
+        ZrePeer peer = peers.get(identity);
+        if (peer == null)
+            peer = connect(endpoint);
+        if (peer.inbound >= 0 && peer.inbound != address)
+            inbound[peer.inbound] = null;
+        peer.inbound = address;
+        inbound[address] = peer;
+        peer.wantSequence = (message.getSequence() + 1) & 0xffff;
+        peer.touch(System.currentTimeMillis());
+
+        GroupState known = null;
+        if (!peer.ready)
+            known = departed.remove(identity);
+        else if (peer.versioned)
+            known = new GroupState(peer.version, peer.getGroups());
+        peer.hello(identity, message);
+        if (!peer.ready) {
+            peer.ready = true;
+            peers.put(identity, peer);
+            listener.enter(peer);
+        }
+
+        String header = message.getHeader(GROUPS_HEADER, (String) null);
+        peer.versioned = header != null;
+        if (header == null) {
+            List<String> groups = message.getGroups();
+            setGroups(peer, groups == null ? Collections.<String>emptySet()
+                : new LinkedHashSet<>(groups), message.getStatus());
+        } else if (known != null && header.equals(header(known.version, digest(known.groups)))) {
+            peer.syncing = false;
+            peer.version = known.version;
+            setGroups(peer, known.groups, known.version & 0xff);
+        } else {
+            //  The delta asked for applies to the last groups known
+            peer.version = known == null ? 0 : known.version;
+            setGroups(peer, known == null ? Collections.<String>emptySet() : known.groups,
+                peer.version & 0xff);
+            sync(peer);
+        }
+    }
+
+    //  Tell the listener of each content of a WHISPERS in turn
+    private void unbatch(ZrePeer peer, Frame contents) {
+        byte[] data = contents.getData();
+        int position = 0;
+        while (data.length - position >= 4) {
+            int length = ((data[position] & 0xff) << 24) | ((data[position + 1] & 0xff) << 16)
+                | ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+            position += 4;
+            if (length < 0 || length > data.length - position)
+                break;                      //  Garbled
+            listener.whisper(peer, new Frame(Arrays.copyOfRange(data, position, position + length)));
+            position += length;
+        }
+    }
+
+    //  Set the state of a peer after traffic to or from it, and measure its
+    //  queue again if enough was sent since it was last measured
+    private void pace(ZrePeer peer) {
+        ZrePolicy policy = this.policy;
+        peer.probe(policy.getProbeBytes());
+        peer.setState(policy.evaluate(peer));
+    }
+
+    //  Tell the listener of a chunk, and grant credit for every half window
+    //  of chunks taken
+    private void chunk(ZrePeer peer, StreamMessage message) {
+        boolean last = message.getLast() != 0;
+        String group = message.getGroup() == null || message.getGroup().isEmpty()
+            ? null : message.getGroup();
+        StreamListener streamListener = this.streamListener;
+        if (streamListener != null)
+            streamListener.chunk(peer, group, message.getStream(), message.getContent(), last);
+
+        Integer unacked = peer.streams.remove(message.getStream());
+        if (last)
+            return;
+        int taken = unacked == null ? 1 : unacked + 1;
+        if (taken >= (message.getWindow() + 1) / 2) {
+            StreamCreditMessage credit = new StreamCreditMessage();
+            credit.setStream(message.getStream());
+            credit.setCredit(taken);
+            peer.send(credit);
+        } else {
+            peer.streams.put(message.getStream(), taken);
+        }
+    }
+
+    //  Batcher loop; sends each batch once it has lingered, and what is
+    //  left when the node is closed
+    private void flush() {
+        while (running) {
+            Batch batch = batches.peek();
+            long wait = batch == null ? lingerNanos : batch.opened + lingerNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            batches.poll();
+            batch.peer.flush(batch.opened);
+        }
+        Batch batch;
+        while ((batch = batches.poll()) != null)
+            batch.peer.flush(batch.opened);
+    }
+
+    //  A JOIN or LEAVE of a versioned peer applies if it is the next version
+    //  of its groups; while a sync is under way the delta will hold it
+    private boolean follow(ZrePeer peer, int status) {
+        if (peer.syncing)
+            return false;
+        if (((peer.version + 1) & 0xff) != status) {
+            sync(peer);
+            return false;
+        }
+        peer.version++;
+        return true;
+    }
+
+    private void sync(ZrePeer peer) {
+        peer.syncing = true;
+        GroupSyncMessage message = new GroupSyncMessage();
+        message.setVersion(peer.version);
+        peer.send(message);
+    }
+
+    //  Answer a GROUP_SYNC with the groups joined and left since its version,
+    //  in as many GROUP_DELTA messages as needed; the first moves the base
+    //  version to the current one, and the rest apply at the current one.
+    //  Holding this keeps JOIN and LEAVE from being sent in between.
+    private synchronized void delta(ZrePeer peer, int base) {
+        Set<String> joined = new LinkedHashSet<>();
+        Set<String> left = new LinkedHashSet<>();
+        if (base <= 0 || base > version || version - base > HISTORY) {
+            base = 0;
+            joined.addAll(ownGroups);
+        } else {
+            for (int changed = base + 1; changed <= version; changed++) {
+                String group = history[changed & (HISTORY - 1)];
+                if (ownGroups.contains(group))
+                    joined.add(group);
+                else
+                    left.add(group);
+            }
+        }
+
+        List<String> joins = new ArrayList<>(joined);
+        List<String> leaves = new ArrayList<>(left);
+        int join = 0;
+        int leave = 0;
+        do {
+            GroupDeltaMessage message = new GroupDeltaMessage();
+            message.setBase(base);
+            message.setVersion(version);
+            message.setJoined(joins.subList(join, Math.min(joins.size(), join + MAX_DELTA)));
+            message.setLeft(leaves.subList(leave, Math.min(leaves.size(), leave + MAX_DELTA)));
+            join = Math.min(joins.size(), join + MAX_DELTA);
+            leave = Math.min(leaves.size(), leave + MAX_DELTA);
+            peer.send(message);
+            base = version;
+        } while (join < joins.size() || leave < leaves.size());
+    }
+
+    //  Apply a GROUP_DELTA to the groups of a peer, or sync again if it
+    //  does not apply to the version known
+    private void delta(ZrePeer peer, GroupDeltaMessage message) {
+        int base = message.getBase();
+        if (base != 0 && base != peer.version) {
+            if (!peer.syncing)
+                sync(peer);
+            return;
+        }
+        Set<String> groups = new LinkedHashSet<>();
+        if (base != 0)
+            groups.addAll(peer.getGroups());
+        if (message.getLeft() != null)
+            groups.removeAll(message.getLeft());
+        if (message.getJoined() != null)
+            groups.addAll(message.getJoined());
+        peer.syncing = false;
+        peer.version = message.getVersion();
+        setGroups(peer, groups, peer.version & 0xff);
+    }
+
+    //  Replace the groups of a peer, telling the listener of each change
+    private void setGroups(ZrePeer peer, Set<String> groups, int status) {
+        Set<String> before = peer.getGroups();
+        peer.groups(groups, status);
+        for (String group : before) {
+            if (!groups.contains(group) && removeMember(group, peer))
+                listener.leave(peer, group);
+        }
+        for (String group : groups) {
+            if (addMember(group, peer))
+                listener.join(peer, group);
+        }
+    }
+
+    //  Ping a silent peer, forget an expired one, or wait for the silence
+    //  to reach the next interval
+    private void heartbeat(ZrePeer peer, long now) {
+        if (outboxes.get(peer.getEndpoint()) != peer)
+            return;                         //  Removed already
+        long silence = now - peer.getLastSeen();
+        if (silence >= expiredMillis) {
+            remove(peer);
+        } else if (silence >= evasiveMillis) {
+            if (peer.ready)
+                peer.send(new PingMessage());
+            wheel.schedule(peer.heartbeat, peer.getLastSeen() + expiredMillis);
+        } else {
+            wheel.schedule(peer.heartbeat, peer.getLastSeen() + evasiveMillis);
+        }
+    }
+
+    //  Forget a peer and close its outbox
+    private void remove(ZrePeer peer) {
+        wheel.cancel(peer.heartbeat);
+        for (ZreStream stream : streams.values())
+            stream.drop(peer);
+        if (peer.ready && peer.versioned)
+            departed.put(peer.getIdentity(), new GroupState(peer.version, peer.getGroups()));
+        for (String group : peer.getGroups()) {
+            if (removeMember(group, peer))
+                listener.leave(peer, group);
+        }
+        if (peer.inbound >= 0)
+            addresses.remove(peer.inbound);
+        synchronized (this) {
+            outboxes.remove(peer.getEndpoint(), peer);
+        }
+        if (peer.ready) {
+            peer.ready = false;
+            peers.remove(peer.getIdentity(), peer);
+            listener.exit(peer);
+        }
+        peer.close();
+    }
+
+    //  Group members are replaced, never changed, so readers need no lock
+    private boolean addMember(String group, ZrePeer peer) {
+        ZrePeer[] members = getPeers(group);
+        for (ZrePeer member : members) {
+            if (member == peer)
+                return false;
+        }
+        ZrePeer[] updated = new ZrePeer[members.length + 1];
+        System.arraycopy(members, 0, updated, 0, members.length);
+        updated[members.length] = peer;
+        groups.put(group, updated);
+        return true;
+    }
+
+    private boolean removeMember(String group, ZrePeer peer) {
+        ZrePeer[] members = getPeers(group);
+        for (int index = 0; index < members.length; index++) {
+            if (members[index] != peer)
+                continue;
+            if (members.length == 1) {
+                groups.remove(group);
+            } else {
+                ZrePeer[] updated = new ZrePeer[members.length - 1];
+                System.arraycopy(members, 0, updated, 0, index);
+                System.arraycopy(members, index + 1, updated, index, updated.length - index);
+                groups.put(group, updated);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    //  Caller holds this
+    private HelloMessage hello() {
+        HelloMessage message = new HelloMessage();
+        message.setIpAddress(ipAddress);
+        message.setMailbox(mailbox);
+        message.setGroups(new ArrayList<String>());
+        message.setStatus(version & 0xff);
+        message.setHeaders(new HashMap<>(headers));
+        message.putHeader(IDENTITY_HEADER, identity);
+        message.putHeader(ENDPOINT_HEADER, endpoint);
+        message.putHeader(GROUPS_HEADER, header(version, digest));
+        return message;
+    }
+
+    //  Caller holds this
+    private void change(String group) {
+        version++;
+        history[version & (HISTORY - 1)] = group;
+        digest ^= digest(group);
+    }
+
+    private static String header(int version, long digest) {
+        return version + "/" + Long.toString(digest, 16);
+    }
+
+    //  The digest of a set of groups is the XOR of a hash of each, so it
+    //  does not depend on order and moves by one XOR on JOIN or LEAVE
+    private static long digest(Set<String> groups) {
+        long digest = 0;
+        for (String group : groups)
+            digest ^= digest(group);
+        return digest;
+    }
+
+    private static long digest(String group) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = 0; index < group.length(); index++) {
+            hash ^= group.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    //  A batch of WHISPERs to a peer, opened at a time
+    private static final class Batch {
+        final ZrePeer peer;
+        final long opened;
+
+        Batch(ZrePeer peer, long opened) {
+            this.peer = peer;
+            this.opened = opened;
+        }
+    }
+
+    //  Groups of a peer at a version
+    private static final class GroupState {
+        final int version;
+        final Set<String> groups;
+
+        GroupState(int version, Set<String> groups) {
+            this.version = version;
+            this.groups = groups;
+        }
+    }
+
+    //  Heartbeat timer of one peer
+    private final class Heartbeat extends ZreTimingWheel.Timer {
+        private final ZrePeer peer;
+
+        Heartbeat(ZrePeer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        protected void expire(long now) {
+            heartbeat(peer, now);
+        }
+    }
+
+    private int sequence(ZreSocket.MessageType type) {
+        switch (type) {
+            case WHISPER:
+                return inbox.getWhisper().getSequence();
+            case WHISPERS:
+                return inbox.getWhispers().getSequence();
+            case STREAM:
+                return inbox.getStream().getSequence();
+            case STREAM_CREDIT:
+                return inbox.getStreamCredit().getSequence();
+            case SHOUT:
+                return inbox.getShout().getSequence();
+            case JOIN:
+                return inbox.getJoin().getSequence();
+            case LEAVE:
+                return inbox.getLeave().getSequence();
+            case GROUP_SYNC:
+                return inbox.getGroupSync().getSequence();
+            case GROUP_DELTA:
+                return inbox.getGroupDelta().getSequence();
+            case PING:
+                return inbox.getPing().getSequence();
+            case PING_OK:
+                return inbox.getPingOk().getSequence();
+            default:
+                return inbox.getHello().getSequence();
+        }
+    }
+
+    /**
+     * Stop the node thread and close every socket. Does nothing if the
+     * node is closed already.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        Thread flusher;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            running = false;
+            current = thread;
+            flusher = batcher;
+            thread = null;
+            batcher = null;
+        }
+        for (ZreStream stream : streams.values())
+            stream.close();
+        try {
+            if (current != null)
+                current.join();
+            if (flusher != null)
+                flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (ZrePeer peer : outboxes.values())
+            peer.close();
+        inbox.close();
+    }
+}
@@ -0,0 +1,461 @@
+/* ============================================================================
+ * ZrePeer.java
+ *
+ * A remote ZRE node as seen by the local ZreNode
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.zeromq.api.Message.Frame;
+
+/**
+ * ZrePeer class.
+ *
+ * Holds what a ZreNode knows of one remote node: the endpoint its outbox
+ * is connected to, the identity, address, status and headers taken from
+ * its HELLO, and its groups, kept up to date by its JOIN, LEAVE and
+ * GROUP_DELTA. The getters may be called from any thread; groups and
+ * headers are replaced as a whole on change, never modified in place.
+ *
+ * Sends to the peer go through its own DEALER socket and are serialized on
+ * the peer, which also numbers them with the header sequence the receiver
+ * checks for loss. WHISPER content may instead be added to a batch, sent
+ * as one WHISPERS when it is flushed, and always before any other message
+ * so that the peer sees them in the order they were sent.
+ *
+ * Every send is counted: the messages and bytes sent, those the peer
+ * acknowledged by answering a PING sent after them, the share of sends
+ * that failed and the round trip of PING and PING_OK. From these the ZrePolicy of the node
+ * sets the state of the peer, which decides what content it is sent.
+ */
+public class ZrePeer {
+    /**
+     * How far a peer has fallen behind the traffic sent to it.
+     */
+    public enum State {
+        /**
+         * Keeping up; sent everything.
+         */
+        HEALTHY,
+
+        /**
+         * Falling behind; sent no LOW priority content.
+         */
+        DEGRADED,
+
+        /**
+         * Too far behind; sent no WHISPER or SHOUT content until it
+         * catches up.
+         */
+        PAUSED
+    }
+
+    //  Weight of the last send in the failure rate, and of the last round
+    //  trip in the average
+    private static final double FAILURE_WEIGHT = 1.0 / 16;
+    private static final int ROUND_TRIP_SHIFT = 3;
+
+    private final String endpoint;
+    private final ZreSocket outbox;
+    private int sentSequence;                   //  Guarded by this
+    private boolean closed;                     //  Guarded by this
+
+    //  Open WHISPERS batch of length-prefixed contents, guarded by this
+    private byte[] batch = new byte[0];
+    private int batchSize;
+    private int batchCount;
+    private long batchOpened;
+
+    //  Traffic counts, guarded by this; each PING outstanding is kept as
+    //  the time it was sent and the bytes and messages sent up to and
+    //  including it
+    private final ArrayDeque<long[]> pings = new ArrayDeque<>();
+    private long sentBytes;
+    private long sentMessages;
+    private long pingedBytes;
+    private volatile long queuedBytes;
+    private volatile long queuedMessages;
+    private volatile double failureRate;
+    private volatile long roundTripMicros;
+    private volatile State state = State.HEALTHY;
+
+    private volatile String identity;
+    private volatile String ipAddress = "";
+    private volatile int mailbox;
+    private volatile int status;
+    private volatile Set<String> groups = Collections.emptySet();
+    private volatile Map<String, String> headers = Collections.emptyMap();
+    private volatile long lastSeen;
+
+    //  Used by the node thread only
+    boolean ready;                              //  HELLO received
+    int inbound = -1;                           //  Id of its address in the inbox registry
+    int wantSequence;                           //  Sequence expected next
+    boolean versioned;                          //  Syncs groups by version
+    boolean syncing;                            //  GROUP_SYNC sent, no reply yet
+    int version;                                //  Version of groups
+    final Map<Integer, Integer> streams = new HashMap<>();  //  Chunks unacked by stream
+    ZreTimingWheel.Timer heartbeat;
+
+    ZrePeer(String endpoint, ZreSocket outbox) {
+        this.endpoint = endpoint;
+        this.outbox = outbox;
+    }
+
+    /**
+     * Get the endpoint the peer is reached at.
+     *
+     * @return The endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Get the identity the peer announced in its HELLO.
+     *
+     * @return The identity, or null until its HELLO is received
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Get the IP address of the peer.
+     *
+     * @return The IP address
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Get the mailbox port of the peer.
+     *
+     * @return The mailbox
+     */
+    public int getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Get the status of the peer, which counts its JOINs and LEAVEs.
+     *
+     * @return The status
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the groups the peer belongs to.
+     *
+     * @return The groups, not to be modified
+     */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Get the headers of the HELLO of the peer.
+     *
+     * @return The headers, not to be modified
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get when a message was last received from the peer.
+     *
+     * @return The time in milliseconds, or 0 if none was
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Get the bytes sent to the peer that it has not been seen to read.
+     *
+     * @return The byte count
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Get the messages sent to the peer that it has not been seen to read.
+     *
+     * @return The message count
+     */
+    public long getQueuedMessages() {
+        return queuedMessages;
+    }
+
+    /**
+     * Get the share of recent sends to the peer that failed.
+     *
+     * @return The failure rate, from 0 to 1
+     */
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * Get the average round trip of PING and PING_OK.
+     *
+     * @return The round trip in microseconds, or 0 until one is measured
+     */
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    /**
+     * Get the state of the peer, as decided by the policy of the node.
+     *
+     * @return The state
+     */
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void hello(String identity, HelloMessage message) {
+        this.identity = identity;
+        this.ipAddress = message.getIpAddress() == null ? "" : message.getIpAddress();
+        this.mailbox = message.getMailbox();
+        this.status = message.getStatus();
+        this.headers = message.getHeaders() == null
+            ? Collections.<String, String>emptyMap()
+            : Collections.unmodifiableMap(new HashMap<>(message.getHeaders()));
+    }
+
+    void groups(Set<String> groups, int status) {
+        this.groups = Collections.unmodifiableSet(new LinkedHashSet<>(groups));
+        this.status = status;
+    }
+
+    void join(String group, int status) {
+        Set<String> groups = new LinkedHashSet<>(this.groups);
+        groups.add(group);
+        this.groups = Collections.unmodifiableSet(groups);
+        this.status = status;
+    }
+
+    void leave(String group, int status) {
+        Set<String> groups = new LinkedHashSet<>(this.groups);
+        groups.remove(group);
+        this.groups = Collections.unmodifiableSet(groups);
+        this.status = status;
+    }
+
+    void touch(long now) {
+        lastSeen = now;
+    }
+
+    synchronized boolean send(HelloMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    synchronized boolean send(WhisperMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    //  Encoded messages are shared between peers, each sending its own sequence
+    synchronized ZreSocket.Encoded encode(ShoutMessage message) {
+        return outbox.encode(message);
+    }
+
+    synchronized ZreSocket.Encoded encode(StreamMessage message) {
+        return outbox.encode(message);
+    }
+
+    synchronized boolean send(ZreSocket.Encoded encoded) {
+        return count(outbox.send(encoded, nextSequence()), encoded.getSize());
+    }
+
+    synchronized boolean send(JoinMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    synchronized boolean send(LeaveMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    synchronized boolean send(GroupSyncMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    synchronized boolean send(GroupDeltaMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    synchronized boolean send(StreamCreditMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    synchronized boolean send(PingMessage message) {
+        message.setSequence(nextSequence());
+        boolean sent = transmit(outbox.encode(message));
+        if (sent) {
+            pingedBytes = sentBytes;
+            pings.add(new long[] { System.nanoTime(), sentBytes, sentMessages });
+        }
+        return sent;
+    }
+
+    //  A PING_OK answers the oldest PING, and acknowledges the bytes and
+    //  messages sent before it
+    synchronized void pong(long now) {
+        long[] ping = pings.poll();
+        if (ping == null)
+            return;
+        long micros = (now - ping[0]) / 1000;
+        roundTripMicros = roundTripMicros == 0 ? micros
+            : roundTripMicros + ((micros - roundTripMicros) >> ROUND_TRIP_SHIFT);
+        queuedBytes = sentBytes - ping[1];
+        queuedMessages = sentMessages - ping[2];
+    }
+
+    //  Send a PING to measure the queue once probeBytes were sent since the
+    //  last, or at once while paused, since nothing else is sent to bring
+    //  the counts back down; unless one is still unanswered
+    synchronized boolean probe(long probeBytes) {
+        if (closed || !pings.isEmpty())
+            return false;
+        if (state != State.PAUSED && sentBytes - pingedBytes < probeBytes)
+            return false;
+        return send(new PingMessage());
+    }
+
+    synchronized boolean send(PingOkMessage message) {
+        message.setSequence(nextSequence());
+        return transmit(outbox.encode(message));
+    }
+
+    //  Add content to the batch, flushing it first if the content would
+    //  take it past maxBytes, and after if it reaches maxBytes; returns the
+    //  time a new batch was opened at, or -1 if none was
+    synchronized long batch(Frame content, int maxBytes, long now) {
+        if (closed)
+            return -1;
+        byte[] data = content.getData();
+        if (batchCount > 0 && batchSize + 4 + data.length > maxBytes)
+            flush();
+        long opened = -1;
+        if (batchCount == 0)
+            opened = batchOpened = now;
+        if (batch.length < batchSize + 4 + data.length)
+            batch = Arrays.copyOf(batch, Math.max(batch.length * 2, batchSize + 4 + data.length));
+        batch[batchSize++] = (byte) (data.length >>> 24);
+        batch[batchSize++] = (byte) (data.length >>> 16);
+        batch[batchSize++] = (byte) (data.length >>> 8);
+        batch[batchSize++] = (byte) data.length;
+        System.arraycopy(data, 0, batch, batchSize, data.length);
+        batchSize += data.length;
+        batchCount++;
+        if (batchSize >= maxBytes) {
+            flush();
+            return -1;
+        }
+        return opened;
+    }
+
+    //  Flush the batch if it is the one opened at a time
+    synchronized void flush(long opened) {
+        if (batchCount > 0 && batchOpened == opened)
+            flush();
+    }
+
+    //  A batch of one is sent as a plain WHISPER
+    synchronized boolean flush() {
+        if (batchCount == 0 || closed)
+            return true;
+        boolean sent;
+        if (batchCount == 1) {
+            WhisperMessage message = new WhisperMessage();
+            message.setSequence(following());
+            message.setContent(new Frame(Arrays.copyOfRange(batch, 4, batchSize)));
+            sent = transmit(outbox.encode(message));
+        } else {
+            WhispersMessage message = new WhispersMessage();
+            message.setSequence(following());
+            message.setContents(new Frame(Arrays.copyOf(batch, batchSize)));
+            sent = transmit(outbox.encode(message));
+        }
+        batchSize = 0;
+        batchCount = 0;
+        return sent;
+    }
+
+    synchronized void close() {
+        closed = true;
+        outbox.close();
+    }
+
+    //  Caller holds this
+    private boolean transmit(ZreSocket.Encoded encoded) {
+        return count(outbox.send(encoded), encoded.getSize());
+    }
+
+    //  A sequence is only taken by a message that was sent, since the peer
+    //  drops us on a gap
+    private boolean count(boolean sent, int size) {
+        failureRate += ((sent ? 0 : 1) - failureRate) * FAILURE_WEIGHT;
+        if (sent) {
+            sentSequence = following();
+            sentBytes += size;
+            queuedBytes += size;
+            sentMessages++;
+            queuedMessages++;
+        }
+        return sent;
+    }
+
+    //  Anything batched is sent first, so that messages keep their order
+    private int nextSequence() {
+        flush();
+        return following();
+    }
+
+    private int following() {
+        return (sentSequence + 1) & 0xffff;
+    }
+
+    @Override
+    public String toString() {
+        return identity == null ? endpoint : identity;
+    }
+}
@@ -0,0 +1,162 @@
+/* ============================================================================
+ * ZrePolicy.java
+ *
+ * Backpressure policy for peers that fall behind
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+/**
+ * ZrePolicy class.
+ *
+ * Decides the state of a peer from what its node has counted of the
+ * traffic to it: the bytes and messages sent that the peer has not yet
+ * been seen to read, the rate at which sends fail, and the round trip of
+ * PING and PING_OK. A peer is DEGRADED once any of them passes its degrade
+ * limit, and PAUSED once its queued bytes, queued messages or failure rate
+ * pass the pause limit.
+ *
+ * The send high-water mark of an outbox is counted in messages, so many
+ * small messages fill it long before their bytes add up; the message limits
+ * should sit below it, so that a peer is paused before its sends start to
+ * fail. Queued bytes and messages are measured with PINGs: the peer answers
+ * a PING only after reading everything sent before it, so its PING_OK
+ * acknowledges those messages. A node sends such a probe every probeBytes of traffic, and again
+ * on each PING_OK while bytes are left unprobed, so a paused peer is let
+ * back in as soon as it has caught up.
+ *
+ * Subclasses may decide differently; evaluate() is called after every send
+ * to a peer and every PING_OK from it, from any thread.
+ */
+public class ZrePolicy {
+    public static final long DEFAULT_PROBE_BYTES = 256 << 10;
+    public static final long DEFAULT_DEGRADE_BYTES = 4 << 20;
+    public static final long DEFAULT_PAUSE_BYTES = 16 << 20;
+    public static final long DEFAULT_DEGRADE_MESSAGES = 250;
+    public static final long DEFAULT_PAUSE_MESSAGES = 750;
+    public static final long DEFAULT_DEGRADE_ROUND_TRIP_MICROS = 500000;
+    public static final double DEFAULT_DEGRADE_FAILURE_RATE = 0.05;
+    public static final double DEFAULT_PAUSE_FAILURE_RATE = 0.5;
+
+    private final long probeBytes;
+    private final long degradeBytes;
+    private final long pauseBytes;
+    private final long degradeMessages;
+    private final long pauseMessages;
+    private final long degradeRoundTripMicros;
+    private final double degradeFailureRate;
+    private final double pauseFailureRate;
+
+    /**
+     * Create a new ZrePolicy with the default limits.
+     */
+    public ZrePolicy() {
+        this(DEFAULT_PROBE_BYTES, DEFAULT_DEGRADE_BYTES, DEFAULT_PAUSE_BYTES,
+            DEFAULT_DEGRADE_ROUND_TRIP_MICROS, DEFAULT_DEGRADE_FAILURE_RATE,
+            DEFAULT_PAUSE_FAILURE_RATE);
+    }
+
+    /**
+     * Create a new ZrePolicy with the default message limits.
+     *
+     * @param probeBytes The bytes sent between PINGs that measure the queue
+     * @param degradeBytes The queued bytes at which a peer is degraded
+     * @param pauseBytes The queued bytes at which a peer is paused
+     * @param degradeRoundTripMicros The round trip at which a peer is degraded
+     * @param degradeFailureRate The share of failed sends at which a peer is degraded
+     * @param pauseFailureRate The share of failed sends at which a peer is paused
+     */
+    public ZrePolicy(long probeBytes, long degradeBytes, long pauseBytes,
+            long degradeRoundTripMicros, double degradeFailureRate, double pauseFailureRate) {
+        this(probeBytes, degradeBytes, pauseBytes, DEFAULT_DEGRADE_MESSAGES, DEFAULT_PAUSE_MESSAGES,
+            degradeRoundTripMicros, degradeFailureRate, pauseFailureRate);
+    }
+
+    /**
+     * Create a new ZrePolicy.
+     *
+     * @param probeBytes The bytes sent between PINGs that measure the queue
+     * @param degradeBytes The queued bytes at which a peer is degraded
+     * @param pauseBytes The queued bytes at which a peer is paused
+     * @param degradeMessages The queued messages at which a peer is degraded
+     * @param pauseMessages The queued messages at which a peer is paused
+     * @param degradeRoundTripMicros The round trip at which a peer is degraded
+     * @param degradeFailureRate The share of failed sends at which a peer is degraded
+     * @param pauseFailureRate The share of failed sends at which a peer is paused
+     */
+    public ZrePolicy(long probeBytes, long degradeBytes, long pauseBytes,
+            long degradeMessages, long pauseMessages,
+            long degradeRoundTripMicros, double degradeFailureRate, double pauseFailureRate) {
+        assert (probeBytes > 0 && degradeBytes > probeBytes && pauseBytes >= degradeBytes);
+        assert (degradeMessages > 0 && pauseMessages >= degradeMessages);
+        assert (degradeFailureRate <= pauseFailureRate);
+        this.probeBytes = probeBytes;
+        this.degradeBytes = degradeBytes;
+        this.pauseBytes = pauseBytes;
+        this.degradeMessages = degradeMessages;
+        this.pauseMessages = pauseMessages;
+        this.degradeRoundTripMicros = degradeRoundTripMicros;
+        this.degradeFailureRate = degradeFailureRate;
+        this.pauseFailureRate = pauseFailureRate;
+    }
+
+    /**
+     * Get the bytes sent between PINGs that measure the queue of a peer.
+     *
+     * @return The byte count
+     */
+    public long getProbeBytes() {
+        return probeBytes;
+    }
+
+    /**
+     * Decide the state of a peer.
+     *
+     * @param peer The peer
+     * @return The state it should be in
+     */
+    public ZrePeer.State evaluate(ZrePeer peer) {
+        long queued = peer.getQueuedBytes();
+        long messages = peer.getQueuedMessages();
+        double failureRate = peer.getFailureRate();
+        if (queued >= pauseBytes || messages >= pauseMessages || failureRate >= pauseFailureRate)
+            return ZrePeer.State.PAUSED;
+        if (queued >= degradeBytes || messages >= degradeMessages || failureRate >= degradeFailureRate
+                || peer.getRoundTripMicros() >= degradeRoundTripMicros)
+            return ZrePeer.State.DEGRADED;
+        return ZrePeer.State.HEALTHY;
+    }
+
+    /**
+     * Check whether content may be sent to a peer. A PAUSED peer is sent
+     * none, and a DEGRADED one only content that is not LOW priority.
+     *
+     * @param peer The peer
+     * @param priority The priority of the content
+     * @return true if the content should be sent
+     */
+    public boolean admits(ZrePeer peer, ZreNode.Priority priority) {
+        switch (peer.getState()) {
+            case PAUSED:
+                return false;
+            case DEGRADED:
+                return priority != ZreNode.Priority.LOW;
+            default:
+                return true;
+        }
+    }
+}
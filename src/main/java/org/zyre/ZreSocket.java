@@ -23,6 +23,9 @@ package org.zyre;
 import java.util.*;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -60,6 +63,29 @@ import org.zeromq.ZMQ;
  *    sequence                     number 2
  *  PING_OK - Reply to a peer's ping
  *    sequence                     number 2
+ *  GROUP_SYNC - Ask a peer for the changes to its groups since a version it announced
+ *    sequence                     number 2
+ *    version                      number 4
+ *  GROUP_DELTA - Changes to the groups of a peer from its base version, or every group if base is 0
+ *    sequence                     number 2
+ *    base                         number 4
+ *    version                      number 4
+ *    joined                       strings
+ *    left                         strings
+ *  WHISPERS - Send a batch of messages to a peer, each a 4-byte length and its content
+ *    sequence                     number 2
+ *    contents                     frame
+ *  STREAM - One chunk of content streamed to a peer, or to a group if group is not empty. window is the number of chunks sent ahead of credit, and last is 1 on the final chunk.
+ *    sequence                     number 2
+ *    stream                       number 4
+ *    window                       number 2
+ *    last                         number 1
+ *    group                        string
+ *    content                      frame
+ *  STREAM_CREDIT - Allow a peer to send credit more chunks of a stream
+ *    sequence                     number 2
+ *    stream                       number 4
+ *    credit                       number 2
  * </pre>
  * 
  * @author sriesenberg
@@ -76,12 +102,29 @@ public class ZreSocket implements Closeable {
         JOIN,
         LEAVE,
         PING,
-        PING_OK
+        PING_OK,
+        GROUP_SYNC,
+        GROUP_DELTA,
+        WHISPERS,
+        STREAM,
+        STREAM_CREDIT
     }
 
+    //  Frame fields of encoded messages that have none
+    private static final Frame[] NO_FRAMES = new Frame[0];
+
     //  Structure of our class
     private Socket socket;        //  Internal socket handle
     private Frame address;        //  Address of peer if any
+    private int peer = -1;        //  Registered id of peer if any
+    private ZrePeers peers;    //  Registry of peer ids if any
+    private SequenceFilter filter;    //  Drops messages by sequence if any
+
+    //  Reusable buffers for deferred string formatting
+    private final StringBuilder formatBuffer = new StringBuilder();
+    private final Formatter formatter = new Formatter(formatBuffer);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(255);
 
     private HelloMessage hello;
     private WhisperMessage whisper;
@@ -90,6 +133,11 @@ public class ZreSocket implements Closeable {
     private LeaveMessage leave;
     private PingMessage ping;
     private PingOkMessage pingOk;
+    private GroupSyncMessage groupSync;
+    private GroupDeltaMessage groupDelta;
+    private WhispersMessage whispers;
+    private StreamMessage stream;
+    private StreamCreditMessage streamCredit;
 
     /**
      * Create a new ZreSocket.
@@ -128,42 +176,144 @@ public class ZreSocket implements Closeable {
     }
 
     /**
-     * Receive a message on the socket.
+     * Get the registered id of the peer the last message came from.
+     * 
+     * @return The peer id, or -1 if no registry is set or not reading from a ROUTER
+     */
+    public int getPeer() {
+        return peer;
+    }
+
+    /**
+     * Set the message address to that of a registered peer.
+     * 
+     * @param peer The id of the peer
+     */
+    public void setPeer(int peer) {
+        this.address = peers.getAddress(peer);
+    }
+
+    /**
+     * Set the registry in which the address of each received message is
+     * looked up.
+     * 
+     * @param peers The registry, or null to leave peers unregistered
+     */
+    public void setPeers(ZrePeers peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Decides from the header sequence alone whether a received message is
+     * decoded, so that duplicates are dropped before their body is read.
+     */
+    public interface SequenceFilter {
+        /**
+         * Check a received message.
+         * 
+         * @param type The type of the message
+         * @param address The address of the peer, or null if not reading from a ROUTER
+         * @param peer The registered id of the peer, or -1
+         * @param sequence The sequence of the message
+         * @return true to decode the message, false to drop it
+         */
+        boolean accept(MessageType type, Frame address, int peer, long sequence);
+    }
+
+    //  Width of the sequence on the wire, for filters that handle wrap-around
+    public static final int SEQUENCE_BITS = 16;
+
+    //  Position of the sequence in the header frame
+    private static final int SEQUENCE_OFFSET = 3;
+
+    /**
+     * Set the filter consulted before each received message is decoded.
+     * 
+     * @param filter The filter, or null to decode every message
+     */
+    public void setSequenceFilter(SequenceFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Receive a message on the socket. Returns null if the receive was
+     * interrupted, timed out, or the message was malformed or filtered.
+     * Messages without the protocol signature are skipped.
      */
     public MessageType receive() {
+        //  Read valid message frame from socket; we loop over any
+        //  garbage data we might receive from badly-connected peers
+        while (true) {
+            Message frames = socket.receiveMessage();
+            if (frames == null)
+                return null;              //  Interrupted or timed out
+
+            //  If we're reading from a ROUTER socket, get address
+            Frame address = null;
+            if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+                address = frames.popFrame();
+            }
+            if (isSigned(frames))
+                return decode(address, frames);
+
+            //  Protocol assertion, drop message
+        }
+    }
+
+    //  Check the protocol signature without consuming the frame
+    private static boolean isSigned(Message frames) {
+        if (frames.isEmpty())
+            return false;
+        byte[] data = frames.getFrames().get(0).getData();
+        return data.length >= 2
+            && ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == (0xAAA0 | 1);
+    }
+
+    /**
+     * Decode a message already read from the socket, such as one handed
+     * over by a ZreDispatcher. Returns null if the message was
+     * malformed or filtered.
+     * 
+     * @param address The address popped from a ROUTER socket, or null
+     * @param frames The remaining frames of the message
+     * @return The type of the message decoded
+     */
+    public MessageType decode(Frame address, Message frames) {
         int id = 0;
-        Message frames;
         Frame needle;
         MessageType type;
         try {
-            //  Read valid message frame from socket; we loop over any
-            //  garbage data we might receive from badly-connected peers
-            while (true) {
-                frames = socket.receiveMessage();
-
-                //  If we're reading from a ROUTER socket, get address
-                if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-                    this.address = frames.popFrame();
-                }
-
-                //  Read and parse command in frame
-                needle = frames.popFrame();
+            this.peer = -1;
+            if (address != null) {
+                this.address = address;
+                if (peers != null)
+                    this.peer = peers.register(address);
+            }
 
-                //  Get and check protocol signature
-                int signature = (0xffff) & needle.getShort();
-                if (signature == (0xAAA0 | 1))
-                    break;                //  Valid signature
+            //  Read and parse command in frame
+            needle = frames.popFrame();
 
-                //  Protocol assertion, drop message
-            }
+            //  Get and check protocol signature; drop garbage data we
+            //  might receive from badly-connected peers
+            int signature = (0xffff) & needle.getShort();
+            if (signature != (0xAAA0 | 1))
+                return null;              //  Protocol assertion, drop message
 
             //  Get message id, which is first byte in frame
             id = (0xff) & needle.getByte();
             type = MessageType.values()[id-1];
+
+            //  Get header fields, which come first in every message
+            int sequence = (0xffff) & needle.getShort();
+
+            //  Drop filtered messages before decoding their body
+            if (filter != null && !filter.accept(type, address, peer, sequence))
+                return null;
+
             switch (type) {
                 case HELLO: {
                     HelloMessage message = this.hello = new HelloMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
                     message.ipAddress = needle.getChars();
                     message.mailbox = (0xffff) & needle.getShort();
                     int groupsListSize = (0xff) & needle.getByte();
@@ -183,7 +333,7 @@ public class ZreSocket implements Closeable {
                 }
                 case WHISPER: {
                     WhisperMessage message = this.whisper = new WhisperMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
                     //  Get next frame, leave current untouched
                     if (!frames.isEmpty()) {
                         message.content = frames.popFrame();
@@ -194,7 +344,7 @@ public class ZreSocket implements Closeable {
                 }
                 case SHOUT: {
                     ShoutMessage message = this.shout = new ShoutMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
                     message.group = needle.getChars();
                     //  Get next frame, leave current untouched
                     if (!frames.isEmpty()) {
@@ -206,26 +356,82 @@ public class ZreSocket implements Closeable {
                 }
                 case JOIN: {
                     JoinMessage message = this.join = new JoinMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
                     message.group = needle.getChars();
                     message.status = (0xff) & needle.getByte();
                     break;
                 }
                 case LEAVE: {
                     LeaveMessage message = this.leave = new LeaveMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
                     message.group = needle.getChars();
                     message.status = (0xff) & needle.getByte();
                     break;
                 }
                 case PING: {
                     PingMessage message = this.ping = new PingMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
                     break;
                 }
                 case PING_OK: {
                     PingOkMessage message = this.pingOk = new PingOkMessage();
-                    message.sequence = (0xffff) & needle.getShort();
+                    message.sequence = sequence;
+                    break;
+                }
+                case GROUP_SYNC: {
+                    GroupSyncMessage message = this.groupSync = new GroupSyncMessage();
+                    message.sequence = sequence;
+                    message.version = needle.getInt();
+                    break;
+                }
+                case GROUP_DELTA: {
+                    GroupDeltaMessage message = this.groupDelta = new GroupDeltaMessage();
+                    message.sequence = sequence;
+                    message.base = needle.getInt();
+                    message.version = needle.getInt();
+                    int joinedListSize = (0xff) & needle.getByte();
+                    message.joined = new ArrayList<>(joinedListSize);
+                    while (joinedListSize-- > 0) {
+                        message.joined.add(needle.getChars());
+                    }
+                    int leftListSize = (0xff) & needle.getByte();
+                    message.left = new ArrayList<>(leftListSize);
+                    while (leftListSize-- > 0) {
+                        message.left.add(needle.getChars());
+                    }
+                    break;
+                }
+                case WHISPERS: {
+                    WhispersMessage message = this.whispers = new WhispersMessage();
+                    message.sequence = sequence;
+                    //  Get next frame, leave current untouched
+                    if (!frames.isEmpty()) {
+                        message.contents = frames.popFrame();
+                    } else {
+                        throw new IllegalArgumentException("Invalid message: missing frame: contents");
+                    }
+                    break;
+                }
+                case STREAM: {
+                    StreamMessage message = this.stream = new StreamMessage();
+                    message.sequence = sequence;
+                    message.stream = needle.getInt();
+                    message.window = (0xffff) & needle.getShort();
+                    message.last = (0xff) & needle.getByte();
+                    message.group = needle.getChars();
+                    //  Get next frame, leave current untouched
+                    if (!frames.isEmpty()) {
+                        message.content = frames.popFrame();
+                    } else {
+                        throw new IllegalArgumentException("Invalid message: missing frame: content");
+                    }
+                    break;
+                }
+                case STREAM_CREDIT: {
+                    StreamCreditMessage message = this.streamCredit = new StreamCreditMessage();
+                    message.sequence = sequence;
+                    message.stream = needle.getInt();
+                    message.credit = (0xffff) & needle.getShort();
                     break;
                 }
                 default:
@@ -290,17 +496,64 @@ public class ZreSocket implements Closeable {
         return pingOk;
     }
 
+    /**
+     * Get a GROUP_SYNC message from the socket.
+     */
+    public GroupSyncMessage getGroupSync() {
+        return groupSync;
+    }
+
+    /**
+     * Get a GROUP_DELTA message from the socket.
+     */
+    public GroupDeltaMessage getGroupDelta() {
+        return groupDelta;
+    }
+
+    /**
+     * Get a WHISPERS message from the socket.
+     */
+    public WhispersMessage getWhispers() {
+        return whispers;
+    }
+
+    /**
+     * Get a STREAM message from the socket.
+     */
+    public StreamMessage getStream() {
+        return stream;
+    }
+
+    /**
+     * Get a STREAM_CREDIT message from the socket.
+     */
+    public StreamCreditMessage getStreamCredit() {
+        return streamCredit;
+    }
+
     /**
      * Send the HELLO to the socket in one step.
      */
     public boolean send(HelloMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the HELLO once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(HelloMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
         builder.putByte((byte) 1);       //  Message ID
 
         builder.putShort((short) (int) message.sequence);
-        if (message.ipAddress != null) {
+        if (message.ipAddressFormat != null) {
+            putFormat(builder, message.ipAddressFormat, message.ipAddressArgs);
+        } else if (message.ipAddress != null) {
             builder.putChars(message.ipAddress);
         } else {
             builder.putChars("");        //  Empty string
@@ -308,8 +561,16 @@ public class ZreSocket implements Closeable {
         builder.putShort((short) (int) message.mailbox);
         if (message.groups != null) {
             builder.putByte((byte) message.groups.size());
-            for (String value : message.groups) {
-                builder.putChars(value);
+            for (int index = 0; index < message.groups.size(); index++) {
+                Object[] args = message.groupsArgs != null ? message.groupsArgs.get(index) : null;
+                ByteBuffer bytes = message.groupsBytes != null ? message.groupsBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.groups.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.groups.get(index));
+                }
             }
         } else {
             builder.putByte((byte) 0);   //  Empty string array
@@ -324,25 +585,23 @@ public class ZreSocket implements Closeable {
             builder.putByte((byte) 0);   //  Empty dictionary
         }
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        return socket.send(frames);
+        return new Encoded(builder.build(), NO_FRAMES);
     }
 
     /**
      * Send the WHISPER to the socket in one step.
      */
     public boolean send(WhisperMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the WHISPER once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(WhisperMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
@@ -350,159 +609,377 @@ public class ZreSocket implements Closeable {
 
         builder.putShort((short) (int) message.sequence);
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        //  Now add any frame fields, in order
-        frames.addFrame(message.content);
-
-        return socket.send(frames);
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.content
+        });
     }
 
     /**
      * Send the SHOUT to the socket in one step.
      */
     public boolean send(ShoutMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the SHOUT once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(ShoutMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
         builder.putByte((byte) 3);       //  Message ID
 
         builder.putShort((short) (int) message.sequence);
-        if (message.group != null) {
+        if (message.groupFormat != null) {
+            putFormat(builder, message.groupFormat, message.groupArgs);
+        } else if (message.group != null) {
             builder.putChars(message.group);
         } else {
             builder.putChars("");        //  Empty string
         }
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        //  Now add any frame fields, in order
-        frames.addFrame(message.content);
-
-        return socket.send(frames);
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.content
+        });
     }
 
     /**
      * Send the JOIN to the socket in one step.
      */
     public boolean send(JoinMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the JOIN once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(JoinMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
         builder.putByte((byte) 4);       //  Message ID
 
         builder.putShort((short) (int) message.sequence);
-        if (message.group != null) {
+        if (message.groupFormat != null) {
+            putFormat(builder, message.groupFormat, message.groupArgs);
+        } else if (message.group != null) {
             builder.putChars(message.group);
         } else {
             builder.putChars("");        //  Empty string
         }
         builder.putByte((byte) (int) message.status);
 
-        //  Create multi-frame message
-        Message frames = new Message();
-
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
-        }
-
-        //  Now add the data frame
-        frames.addFrame(builder.build());
-
-        return socket.send(frames);
+        return new Encoded(builder.build(), NO_FRAMES);
     }
 
     /**
      * Send the LEAVE to the socket in one step.
      */
     public boolean send(LeaveMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the LEAVE once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(LeaveMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
         builder.putByte((byte) 5);       //  Message ID
 
         builder.putShort((short) (int) message.sequence);
-        if (message.group != null) {
+        if (message.groupFormat != null) {
+            putFormat(builder, message.groupFormat, message.groupArgs);
+        } else if (message.group != null) {
             builder.putChars(message.group);
         } else {
             builder.putChars("");        //  Empty string
         }
         builder.putByte((byte) (int) message.status);
 
-        //  Create multi-frame message
-        Message frames = new Message();
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
 
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
+    /**
+     * Send the PING to the socket in one step.
+     */
+    public boolean send(PingMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the PING once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(PingMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 6);       //  Message ID
+
+        builder.putShort((short) (int) message.sequence);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the PING_OK to the socket in one step.
+     */
+    public boolean send(PingOkMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the PING_OK once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(PingOkMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 7);       //  Message ID
+
+        builder.putShort((short) (int) message.sequence);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the GROUP_SYNC to the socket in one step.
+     */
+    public boolean send(GroupSyncMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the GROUP_SYNC once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(GroupSyncMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 8);       //  Message ID
+
+        builder.putShort((short) (int) message.sequence);
+        builder.putInt(message.version);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
+
+    /**
+     * Send the GROUP_DELTA to the socket in one step.
+     */
+    public boolean send(GroupDeltaMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the GROUP_DELTA once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(GroupDeltaMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 9);       //  Message ID
+
+        builder.putShort((short) (int) message.sequence);
+        builder.putInt(message.base);
+        builder.putInt(message.version);
+        if (message.joined != null) {
+            builder.putByte((byte) message.joined.size());
+            for (int index = 0; index < message.joined.size(); index++) {
+                Object[] args = message.joinedArgs != null ? message.joinedArgs.get(index) : null;
+                ByteBuffer bytes = message.joinedBytes != null ? message.joinedBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.joined.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.joined.get(index));
+                }
+            }
+        } else {
+            builder.putByte((byte) 0);   //  Empty string array
+        }
+        if (message.left != null) {
+            builder.putByte((byte) message.left.size());
+            for (int index = 0; index < message.left.size(); index++) {
+                Object[] args = message.leftArgs != null ? message.leftArgs.get(index) : null;
+                ByteBuffer bytes = message.leftBytes != null ? message.leftBytes.get(index) : null;
+                if (args != null) {
+                    putFormat(builder, message.left.get(index), args);
+                } else if (bytes != null) {
+                    putUtf8(builder, bytes);
+                } else {
+                    builder.putChars(message.left.get(index));
+                }
+            }
+        } else {
+            builder.putByte((byte) 0);   //  Empty string array
         }
 
-        //  Now add the data frame
-        frames.addFrame(builder.build());
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
 
-        return socket.send(frames);
+    /**
+     * Send the WHISPERS to the socket in one step.
+     */
+    public boolean send(WhispersMessage message) {
+        return send(encode(message));
     }
 
     /**
-     * Send the PING to the socket in one step.
+     * Encode the WHISPERS once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
      */
-    public boolean send(PingMessage message) {
+    public Encoded encode(WhispersMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
-        builder.putByte((byte) 6);       //  Message ID
+        builder.putByte((byte) 10);      //  Message ID
 
         builder.putShort((short) (int) message.sequence);
 
-        //  Create multi-frame message
-        Message frames = new Message();
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.contents
+        });
+    }
 
-        //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-            assert (address != null);
-            frames.addFrame(address);
+    /**
+     * Send the STREAM to the socket in one step.
+     */
+    public boolean send(StreamMessage message) {
+        return send(encode(message));
+    }
+
+    /**
+     * Encode the STREAM once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
+     */
+    public Encoded encode(StreamMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xAAA0 | 1));
+        builder.putByte((byte) 11);      //  Message ID
+
+        builder.putShort((short) (int) message.sequence);
+        builder.putInt(message.stream);
+        builder.putShort((short) (int) message.window);
+        builder.putByte((byte) (int) message.last);
+        if (message.groupFormat != null) {
+            putFormat(builder, message.groupFormat, message.groupArgs);
+        } else if (message.group != null) {
+            builder.putChars(message.group);
+        } else {
+            builder.putChars("");        //  Empty string
         }
 
-        //  Now add the data frame
-        frames.addFrame(builder.build());
+        //  Frame fields are held by reference, never copied
+        return new Encoded(builder.build(), new Frame[] {
+            message.content
+        });
+    }
 
-        return socket.send(frames);
+    /**
+     * Send the STREAM_CREDIT to the socket in one step.
+     */
+    public boolean send(StreamCreditMessage message) {
+        return send(encode(message));
     }
 
     /**
-     * Send the PING_OK to the socket in one step.
+     * Encode the STREAM_CREDIT once, so that it can be sent many times.
+     * 
+     * @param message The message to encode
+     * @return The encoded message
      */
-    public boolean send(PingOkMessage message) {
+    public Encoded encode(StreamCreditMessage message) {
         //  Now serialize message into the frame
         FrameBuilder builder = new FrameBuilder();
         builder.putShort((short) (0xAAA0 | 1));
-        builder.putByte((byte) 7);       //  Message ID
+        builder.putByte((byte) 12);      //  Message ID
 
         builder.putShort((short) (int) message.sequence);
+        builder.putInt(message.stream);
+        builder.putShort((short) (int) message.credit);
+
+        return new Encoded(builder.build(), NO_FRAMES);
+    }
 
+    /**
+     * Send an encoded message to the socket.
+     * 
+     * @param encoded The encoded message
+     * @return true if the message was queued
+     */
+    public boolean send(Encoded encoded) {
+        return send(encoded.header, encoded.frames, address);
+    }
+
+    /**
+     * Send an encoded message with another sequence, written into a copy of
+     * its header frame. The other frames are shared.
+     * 
+     * @param encoded The encoded message
+     * @param sequence The sequence to send it with
+     * @return true if the message was queued
+     */
+    public boolean send(Encoded encoded, long sequence) {
+        byte[] header = encoded.header.getData().clone();
+        for (int index = SEQUENCE_BITS / 8 - 1; index >= 0; index--) {
+            header[SEQUENCE_OFFSET + index] = (byte) sequence;
+            sequence >>>= 8;
+        }
+        return send(new Frame(header), encoded.frames, address);
+    }
+
+    /**
+     * Send an encoded message to many peers of a ROUTER socket. Every peer
+     * is sent the same frames; only the address frame differs.
+     * 
+     * @param encoded The encoded message
+     * @param addresses The addresses of the peers
+     * @return The number of peers the message was queued for
+     */
+    public int send(Encoded encoded, Iterable<Frame> addresses) {
+        assert (socket.getZMQSocket().getType() == ZMQ.ROUTER);
+        int sent = 0;
+        for (Frame address : addresses) {
+            if (send(encoded.header, encoded.frames, address))
+                sent++;
+        }
+        return sent;
+    }
+
+    private boolean send(Frame header, Frame[] fields, Frame address) {
         //  Create multi-frame message
         Message frames = new Message();
 
@@ -512,10 +989,89 @@ public class ZreSocket implements Closeable {
             frames.addFrame(address);
         }
 
-        //  Now add the data frame
-        frames.addFrame(builder.build());
+        //  Now add the data frame, then any frame fields, in order
+        frames.addFrame(header);
+        for (Frame field : fields) {
+            frames.addFrame(field);
+        }
 
         return socket.send(frames);
     }
+
+    /**
+     * A message serialized once, so that it can be sent many times. Frame
+     * fields are held by reference, never copied.
+     */
+    public static final class Encoded {
+        private final Frame header;
+        private final Frame[] frames;
+
+        private Encoded(Frame header, Frame[] frames) {
+            this.header = header;
+            this.frames = frames;
+        }
+
+        /**
+         * Get the frame holding the header and the non-frame fields.
+         * 
+         * @return The header frame
+         */
+        public Frame getHeader() {
+            return header;
+        }
+
+        /**
+         * Get the number of bytes the message takes on the wire.
+         * 
+         * @return The size of its frames
+         */
+        public int getSize() {
+            int size = header.size();
+            for (Frame frame : frames)
+                size += frame == null ? 0 : frame.size();
+            return size;
+        }
+    }
+
+    /**
+     * Format a deferred string field straight into the frame, truncated to
+     * the 255 octets a string can hold on the wire.
+     * 
+     * @param builder The frame being serialized
+     * @param format The string format
+     * @param args The arguments used to build the string
+     */
+    private void putFormat(FrameBuilder builder, String format, Object[] args) {
+        formatBuffer.setLength(0);
+        formatter.format(format, args);
+        encoder.reset();
+        encodeBuffer.clear();
+        encoder.encode(CharBuffer.wrap(formatBuffer), encodeBuffer, true);
+        builder.putByte((byte) encodeBuffer.position());
+        builder.putBytes(encodeBuffer.array(), 0, encodeBuffer.position());
+    }
+
+    /**
+     * Copy a string field from its UTF-8 bytes straight into the frame,
+     * truncated to the 255 octets a string can hold on the wire without
+     * splitting a character. FrameBuilder takes arrays only, so bytes
+     * outside the heap, such as a mapped file, go through encodeBuffer.
+     * 
+     * @param builder The frame being serialized
+     * @param bytes The bytes from position to limit, left untouched
+     */
+    private void putUtf8(FrameBuilder builder, ByteBuffer bytes) {
+        int length = Math.min(bytes.remaining(), encodeBuffer.capacity());
+        while (length > 0 && length < bytes.remaining()
+                && (bytes.get(bytes.position() + length) & 0xc0) == 0x80)
+            length--;                   //  Continuation byte, back off
+        builder.putByte((byte) length);
+        if (bytes.hasArray()) {
+            builder.putBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+        } else {
+            bytes.duplicate().get(encodeBuffer.array(), 0, length);
+            builder.putBytes(encodeBuffer.array(), 0, length);
+        }
+    }
 }
 
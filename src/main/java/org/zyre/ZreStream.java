@@ -0,0 +1,169 @@
+/* ============================================================================
+ * ZreStream.java
+ *
+ * Credit of the peers a stream of content is sent to
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+import java.util.Arrays;
+
+/**
+ * ZreStream class.
+ *
+ * Counts the chunks a stream may still send to each of its peers. Every
+ * peer starts with a window of credit, spends one per chunk and gets more
+ * back with STREAM_CREDIT, so no more than a window of chunks is ever in
+ * flight to a peer. The sending thread waits in acquire() until every
+ * peer has credit, so the slowest peer sets the pace; a peer that grants
+ * none for too long, or is forgotten by the node, is dropped from the
+ * stream instead of holding back the others.
+ *
+ * Credit is added on the node thread and spent on the sending thread.
+ */
+final class ZreStream {
+    private static final ZrePeer[] NO_PEERS = new ZrePeer[0];
+
+    private final int id;
+    private final int window;
+    private final ZrePeer[] peers;
+    private final int[] credit;
+    private final boolean[] dropped;
+    private int remaining;
+
+    /**
+     * Create a new ZreStream.
+     *
+     * @param id The id of the stream, unique on the sending node
+     * @param peers The peers the stream is sent to
+     * @param window The number of chunks sent ahead of credit
+     */
+    ZreStream(int id, ZrePeer[] peers, int window) {
+        assert (peers != null && window > 0 && window <= 0xffff);
+        this.id = id;
+        this.window = window;
+        this.peers = peers;
+        this.credit = new int[peers.length];
+        this.dropped = new boolean[peers.length];
+        this.remaining = peers.length;
+        Arrays.fill(credit, window);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Wait until every peer left may be sent a chunk, and spend one credit
+     * of each. Peers still without credit after the timeout are dropped.
+     *
+     * @param timeoutMillis The time to wait for credit
+     * @return The peers to send the chunk to, none if every peer was dropped
+     */
+    synchronized ZrePeer[] acquire(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (remaining > 0 && waiting() > 0) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                for (int index = 0; index < peers.length; index++) {
+                    if (!dropped[index] && credit[index] == 0)
+                        drop(index);
+                }
+                break;
+            }
+            wait(wait);
+        }
+        if (remaining == 0)
+            return NO_PEERS;
+
+        ZrePeer[] ready = new ZrePeer[remaining];
+        int size = 0;
+        for (int index = 0; index < peers.length; index++) {
+            if (!dropped[index]) {
+                credit[index]--;
+                ready[size++] = peers[index];
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Add credit granted by a peer.
+     *
+     * @param peer The peer
+     * @param chunks The number of chunks granted
+     */
+    synchronized void credit(ZrePeer peer, int chunks) {
+        for (int index = 0; index < peers.length; index++) {
+            if (peers[index] == peer && !dropped[index]) {
+                credit[index] += chunks;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop sending to a peer.
+     *
+     * @param peer The peer
+     */
+    synchronized void drop(ZrePeer peer) {
+        for (int index = 0; index < peers.length; index++) {
+            if (peers[index] == peer && !dropped[index])
+                drop(index);
+        }
+    }
+
+    /**
+     * Stop sending to every peer.
+     */
+    synchronized void close() {
+        for (int index = 0; index < peers.length; index++) {
+            if (!dropped[index])
+                drop(index);
+        }
+    }
+
+    /**
+     * Get the number of peers not dropped.
+     *
+     * @return The peer count
+     */
+    synchronized int getRemaining() {
+        return remaining;
+    }
+
+    //  Caller holds this
+    private int waiting() {
+        int waiting = 0;
+        for (int index = 0; index < peers.length; index++) {
+            if (!dropped[index] && credit[index] == 0)
+                waiting++;
+        }
+        return waiting;
+    }
+
+    private void drop(int index) {
+        dropped[index] = true;
+        remaining--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,175 @@
+/* ============================================================================
+ * ZreTimingWheel.java
+ *
+ * Hashed timing wheel for peer heartbeats
+ * ----------------------------------------------------------------------------
+ * This is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses.
+ * ============================================================================
+ */
+package org.zyre;
+
+/**
+ * ZreTimingWheel class.
+ *
+ * Keeps timers in a ring of slots, one slot per tick, each slot a doubly
+ * linked list of the timers due in it, in this or a later turn of the
+ * ring. Scheduling, rescheduling and cancelling a timer are O(1), and each
+ * tick looks at the timers of one slot only, so the cost of a tick does
+ * not grow with the number of timers that are not due.
+ *
+ * Time is passed in by the caller, in milliseconds. Used from one thread
+ * only.
+ */
+public class ZreTimingWheel {
+    /**
+     * A timer, which may be scheduled in one wheel at a time.
+     */
+    public abstract static class Timer {
+        private Timer prev;
+        private Timer next;
+        private int slot = -1;
+        private long deadline;
+
+        /**
+         * Called by advance once the deadline has passed. The timer is no
+         * longer scheduled, and may schedule itself again.
+         *
+         * @param now The time passed to advance
+         */
+        protected abstract void expire(long now);
+
+        /**
+         * Check whether the timer is scheduled.
+         *
+         * @return true if it is waiting in a wheel
+         */
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        /**
+         * Get the time the timer is due.
+         *
+         * @return The deadline
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final Timer[] slots;
+    private final long tickMillis;
+    private long tick;                  //  Last tick advanced past
+    private int size;
+
+    /**
+     * Create a new ZreTimingWheel.
+     *
+     * @param tickMillis The length of a tick, the resolution of timers
+     * @param slots The number of slots, rounded up to a power of two
+     * @param now The current time
+     */
+    public ZreTimingWheel(long tickMillis, int slots, long now) {
+        assert (tickMillis > 0 && slots > 0);
+        this.tickMillis = tickMillis;
+        this.slots = new Timer[Integer.highestOneBit(Math.max(slots, 2) - 1) << 1];
+        this.tick = now / tickMillis;
+    }
+
+    /**
+     * Schedule a timer, moving it if it is scheduled already.
+     *
+     * @param timer The timer
+     * @param deadline The time it is due
+     */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.slot >= 0)
+            unlink(timer);
+        long due = Math.max(deadline / tickMillis, tick + 1);
+        int slot = (int) (due & (slots.length - 1));
+        timer.deadline = deadline;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[slot] = timer;
+        size++;
+    }
+
+    /**
+     * Cancel a timer.
+     *
+     * @param timer The timer
+     * @return true if it was scheduled
+     */
+    public boolean cancel(Timer timer) {
+        if (timer.slot < 0)
+            return false;
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * Expire the timers due by now.
+     *
+     * @param now The current time
+     * @return The number of timers expired
+     */
+    public int advance(long now) {
+        long target = now / tickMillis;
+        int expired = 0;
+
+        //  After a long pause every slot is visited once
+        long first = Math.max(tick + 1, target - slots.length + 1);
+        for (long current = first; current <= target; current++) {
+            tick = current;             //  Timers rescheduled now go to a later slot
+            Timer timer = slots[(int) (current & (slots.length - 1))];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= now) {
+                    unlink(timer);
+                    timer.expire(now);
+                    expired++;
+                }
+                timer = next;
+            }
+        }
+        tick = Math.max(tick, target);
+        return expired;
+    }
+
+    /**
+     * Get the number of timers scheduled.
+     *
+     * @return The timer count
+     */
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+}
@@ -0,0 +1,185 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.zeromq.api.*;
+import org.zeromq.jzmq.*;
+
+/**
+ * Test LogBatcher.
+ */
+public class LogBatcherTest {
+    private static final int CAPACITY = 1000;
+
+    private Context context;
+    private Sender out;
+    private LogSocket in;
+
+    //  Refuses sends on demand
+    private static class Sender extends LogSocket {
+        boolean refuse;
+
+        Sender(Socket socket) {
+            super(socket);
+        }
+
+        @Override
+        public boolean send(Encoded encoded) {
+            return !refuse && super.send(encoded);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = new ManagedContext();
+        Socket dealer = context.buildSocket(SocketType.DEALER).bind("inproc://batcher");
+        Socket router = context.buildSocket(SocketType.ROUTER).connect("inproc://batcher");
+        router.getZMQSocket().setReceiveTimeOut(1000);
+        out = new Sender(dealer);
+        in = new LogSocket(router);
+    }
+
+    @After
+    public void tearDown() {
+        out.close();
+        in.close();
+    }
+
+    private static LogMessage line(String fileName, int lineNum, int value) {
+        LogMessage message = new LogMessage();
+        message.setIp("10.0.0.1");
+        message.setPort(5555);
+        message.setFileName(fileName);
+        message.setLineNum(lineNum);
+        message.setMessage("value %d", value);
+        return message;
+    }
+
+    //  Raise the target batch size under pressure, draining what is sent
+    private void grow(LogBatcher batcher, int target) {
+        while (batcher.getTargetBatchSize() < target)
+            batcher.add(line("grow.log", 1, 0), CAPACITY);
+        batcher.flush();
+        assertEquals(0, batcher.getLinesLost());
+        for (long sent = batcher.getBatchesSent(); sent > 0; sent--)
+            assertNotNull(in.receive());
+    }
+
+    @Test
+    public void testJoinAcrossCallSites() {
+        LogBatcher batcher = new LogBatcher(out, CAPACITY, 1000000);
+        grow(batcher, 8);
+
+        //  Lines from different call sites join; the queue running dry flushes
+        int[] lineNums = { 10, 42, 7, 42, 300 };
+        LogMessage[] lines = new LogMessage[lineNums.length];
+        long batches = batcher.getBatchesSent();
+        for (int i = 0; i < lineNums.length; i++) {
+            lines[i] = line("app.log", lineNums[i], i);
+            assertEquals(0, batcher.add(lines[i], 0));
+        }
+        assertEquals(batches, batcher.getBatchesSent());
+        assertEquals(5, batcher.flush());
+        assertEquals(5, batcher.getLastBatchSize());
+
+        //  Formats were left for the socket to resolve
+        for (LogMessage line : lines)
+            assertNotNull(line.messageFormat);
+
+        assertEquals(LogSocket.MessageType.LOGS, in.receive());
+        LogsMessage logs = in.getLogs();
+        assertEquals("app.log", logs.getFileName());
+        assertEquals(5, logs.getMessages().size());
+        for (int i = 0; i < lineNums.length; i++) {
+            assertEquals("value " + i, logs.getMessages().get(i));
+            assertEquals(lineNums[i], logs.getLineNum(i));
+        }
+    }
+
+    @Test
+    public void testContiguousLinesCarryNoLineNums() {
+        LogBatcher batcher = new LogBatcher(out, CAPACITY, 1000000);
+        grow(batcher, 4);
+        for (int i = 0; i < 3; i++)
+            batcher.add(line("app.log", 20 + i, i), 0);
+        batcher.flush();
+
+        assertEquals(LogSocket.MessageType.LOGS, in.receive());
+        LogsMessage logs = in.getLogs();
+        assertEquals(0, logs.getLineNums().size());
+        assertEquals(22, logs.getLineNum(2));
+    }
+
+    @Test
+    public void testFlushAtTargetAndOnNewFile() {
+        LogBatcher batcher = new LogBatcher(out, CAPACITY, 1000000);
+        grow(batcher, 8);
+        long batches = batcher.getBatchesSent();
+
+        //  A line of another file sends the batch before it
+        assertEquals(0, batcher.add(line("a.log", 1, 0), 0));
+        assertEquals(1, batcher.add(line("b.log", 1, 1), 0));
+        assertEquals(batches + 1, batcher.getBatchesSent());
+        int target = batcher.getTargetBatchSize();
+        assertTrue(target > 2);
+        assertEquals(LogSocket.MessageType.LOG, in.receive());
+        assertEquals("a.log", in.getLog().getFileName());
+
+        //  Reaching the target sends without a flush
+        int sent = 0;
+        for (int i = 1; i < target; i++)
+            sent += batcher.add(line("b.log", 1 + i, i), 0);
+        assertEquals(target, sent);
+        assertEquals(batches + 2, batcher.getBatchesSent());
+        assertEquals(target, batcher.getLastBatchSize());
+        assertEquals(LogSocket.MessageType.LOGS, in.receive());
+        assertEquals(target, in.getLogs().getMessages().size());
+    }
+
+    @Test
+    public void testAdaptGrowsAndShrinks() {
+        LogBatcher batcher = new LogBatcher(out, CAPACITY, 1000000);
+        assertEquals(1, batcher.getTargetBatchSize());
+        for (int i = 0; batcher.getTargetBatchSize() < LogBatcher.MAX_BATCH_SIZE; i++) {
+            assertTrue(i < 10000);
+            batcher.add(line("app.log", i, i), CAPACITY);
+        }
+        assertTrue(batcher.getGrowCount() >= 8);
+        assertEquals(0, batcher.getShrinkCount());
+
+        //  Light traffic brings the target back down
+        int target = batcher.getTargetBatchSize();
+        for (int i = 0; i < 20; i++) {
+            batcher.add(line("app.log", i, i), 0);
+            batcher.flush();
+        }
+        assertTrue(batcher.getTargetBatchSize() < target);
+        assertTrue(batcher.getShrinkCount() > 0);
+    }
+
+    @Test
+    public void testCounts() {
+        LogBatcher batcher = new LogBatcher(out, CAPACITY, 1000000);
+        grow(batcher, 16);
+        long batches = batcher.getBatchesSent();
+        long lines = batcher.getLinesSent();
+
+        batcher.add(line("app.log", 1, 0), 0);
+        batcher.add(line("app.log", 5, 1), 0);
+        assertEquals(2, batcher.flush());
+        assertEquals(batches + 1, batcher.getBatchesSent());
+        assertEquals(lines + 2, batcher.getLinesSent());
+        assertEquals(0, batcher.getSendFailures());
+
+        //  A refused send counts as a failure and its lines as lost
+        out.refuse = true;
+        batcher.add(line("app.log", 1, 0), 0);
+        batcher.add(line("app.log", 5, 1), 0);
+        assertEquals(0, batcher.flush());
+        assertEquals(batches + 2, batcher.getBatchesSent());
+        assertEquals(lines + 2, batcher.getLinesSent());
+        assertEquals(1, batcher.getSendFailures());
+        assertEquals(2, batcher.getLinesLost());
+    }
+}
@@ -0,0 +1,420 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.api.*;
+import org.zeromq.jzmq.*;
+
+/**
+ * Test LogCollector.
+ */
+public class LogCollectorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private LogStore store;
+    private LogCollector collector;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new ManagedContext();
+        store = new LogStore(folder.newFolder("store"), 1 << 20);
+        collector = new LogCollector(context.buildSocket(SocketType.ROUTER)
+            .bind("inproc://collector"), store);
+    }
+
+    @After
+    public void tearDown() {
+        collector.close();
+        store.close();
+    }
+
+    private Socket connect() {
+        return context.buildSocket(SocketType.DEALER)
+            .connect("inproc://collector");
+    }
+
+    @Test
+    public void testFailuresAnsweredForRequestsOnly() throws Exception {
+        LogCollector failing = new LogCollector(context.buildSocket(SocketType.ROUTER)
+                .bind("inproc://failing"), store) {
+            @Override
+            protected void ingest(LogMessage message) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            protected void query(QueryMessage query) {
+                throw new IllegalStateException("Index closed");
+            }
+        };
+        failing.start();
+        Socket dealer = context.buildSocket(SocketType.DEALER).connect("inproc://failing");
+        dealer.getZMQSocket().setReceiveTimeOut(200);
+        LogSocket client = new LogSocket(dealer);
+
+        //  A shipper never reads replies, so a failed LOG is only counted
+        LogMessage log = new LogMessage();
+        log.setSequence(1);
+        log.setIp("10.0.0.1");
+        log.setPort(5555);
+        log.setFileName("server.log");
+        log.setLineNum(1);
+        log.setMessage("line");
+        assertTrue(client.send(log));
+        assertNull(client.receive());
+        assertEquals(1, failing.getFailures());
+
+        QueryMessage query = new QueryMessage();
+        query.setSequence(2);
+        query.setQuery("line");
+        query.setFileName("");
+        query.setLimit(10);
+        assertTrue(client.send(query));
+        assertEquals(LogSocket.MessageType.REPLY, client.receive());
+        assertEquals(Integer.valueOf(2), client.getReply().getSequence());
+        assertTrue(client.getReply().getHeader(LogCollector.ERROR_HEADER, "").contains("Index closed"));
+        assertEquals(2, failing.getFailures());
+
+        client.close();
+        failing.close();
+    }
+
+    @Test
+    public void testReplayStream() throws Exception {
+        for (int i = 0; i < 2000; i++)
+            store.append("server.log", i, "line " + i);
+
+        collector.start();
+        LogReplayStream stream = new LogReplayStream(connect(), "server.log", 100, 1899, 4);
+        int expected = 100;
+        ChunkMessage chunk;
+        while ((chunk = stream.receive()) != null) {
+            for (String line : chunk.getMessages())
+                assertEquals("line " + expected++, line);
+        }
+        assertEquals(1900, expected);
+        assertTrue(stream.isFinished());
+        assertEquals(8, stream.getChunk());
+        stream.close();
+    }
+
+    @Test
+    public void testReplayStreamRepeatedLineNum() throws Exception {
+        //  One call site logging far more lines than a chunk carries
+        for (int i = 0; i < 600; i++)
+            store.append("server.log", 42, "line " + i);
+
+        collector.start();
+        LogReplayStream stream = new LogReplayStream(connect(), "server.log", 42, 42, 2);
+        int expected = 0;
+        ChunkMessage chunk;
+        while ((chunk = stream.receive()) != null) {
+            for (String line : chunk.getMessages())
+                assertEquals("line " + expected++, line);
+        }
+        assertEquals(600, expected);
+        assertEquals(3, stream.getChunk());
+        stream.close();
+    }
+
+    @Test
+    public void testReplayWindowAndResume() throws Exception {
+        for (int i = 0; i < 2000; i++)
+            store.append("server.log", i, "line " + i);
+
+        collector.start();
+        Socket dealer = connect();
+        dealer.getZMQSocket().setReceiveTimeOut(200);
+        LogSocket client = new LogSocket(dealer);
+        ReplayMessage replay = new ReplayMessage();
+        replay.setSequence(9);
+        replay.setFileName("server.log");
+        replay.setStart(0);
+        replay.setEnd(1999);
+        replay.setResume(0);
+        replay.setPosition(0L);
+        replay.setCredit(2);
+        assertTrue(client.send(replay));
+        assertEquals(LogSocket.MessageType.CHUNK, client.receive());
+        assertEquals(LogSocket.MessageType.CHUNK, client.receive());
+        assertEquals(Integer.valueOf(2), client.getChunk().getChunk());
+
+        //  More credit without an ack sends nothing beyond the window
+        CreditMessage credit = new CreditMessage();
+        credit.setSequence(9);
+        credit.setAck(0);
+        credit.setCredit(5);
+        assertTrue(client.send(credit));
+        assertNull(client.receive());
+
+        //  Acking both chunks opens the window again
+        credit.setAck(2);
+        credit.setCredit(0);
+        assertTrue(client.send(credit));
+        assertEquals(LogSocket.MessageType.CHUNK, client.receive());
+        assertEquals(LogSocket.MessageType.CHUNK, client.receive());
+        assertEquals(Integer.valueOf(4), client.getChunk().getChunk());
+        assertNull(client.receive());
+
+        //  Resuming before the acked chunk is refused
+        replay.setResume(1);
+        assertTrue(client.send(replay));
+        assertEquals(LogSocket.MessageType.REPLY, client.receive());
+        assertEquals(Integer.valueOf(9), client.getReply().getSequence());
+        assertNotNull(client.getReply().getHeader(LogCollector.ERROR_HEADER, null));
+
+        //  Resuming after chunk 3 continues where it ended, whatever position is sent
+        replay.setResume(3);
+        replay.setPosition(0L);
+        assertTrue(client.send(replay));
+        assertEquals(LogSocket.MessageType.CHUNK, client.receive());
+        ChunkMessage chunk = client.getChunk();
+        assertEquals(Integer.valueOf(4), chunk.getChunk());
+        assertEquals("line " + 3 * LogCollector.MAX_REPLY_LINES, chunk.getMessages().get(0));
+        client.close();
+    }
+
+    @Test
+    public void testReplayStreamEmpty() throws Exception {
+        collector.start();
+        LogReplayStream stream = new LogReplayStream(connect(), "missing.log", 0, 10, 1);
+        ChunkMessage chunk = stream.receive();
+        assertNotNull(chunk);
+        assertEquals(0, chunk.getMessages().size());
+        assertNull(stream.receive());
+        stream.close();
+    }
+
+    @Test
+    public void testReplayClient() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            store.append("server.log", i, "line " + i);
+
+        collector.start();
+        LogReplayClient client = new LogReplayClient(connect(), 8, 5000);
+        client.start();
+        List<CompletableFuture<ReplyMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            futures.add(client.request("server.log", i * 20, i * 20 + 9));
+        for (int i = 0; i < 50; i++) {
+            List<String> lines = futures.get(i).get().getMessages();
+            assertEquals(10, lines.size());
+            assertEquals("line " + i * 20, lines.get(0));
+        }
+        client.close();
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            store.append("a.log", i, "a " + i);
+            store.append("b.log", i, "b " + i);
+        }
+
+        LogRanges ranges = new LogRanges();
+        ranges.add("b.log", 500, 509);
+        ranges.add("a.log", 10, 19);
+        ranges.add("b.log", 505, 800);
+        ranges.add("a.log", 900, 900);
+        RequestsMessage request = ranges.toMessage();
+        request.setSequence(7);
+
+        collector.start();
+        LogSocket socket = new LogSocket(connect());
+        assertTrue(socket.send(request));
+        ReplyMessage[] replies = new ReplyMessage[ranges.size()];
+        for (int i = 0; i < replies.length; i++) {
+            assertEquals(LogSocket.MessageType.REPLY, socket.receive());
+            ReplyMessage reply = socket.getReply();
+            assertEquals(Integer.valueOf(7), reply.getSequence());
+            replies[reply.getHeader(LogCollector.RANGE_HEADER, -1)] = reply;
+        }
+        assertEquals(10, replies[0].getMessages().size());
+        assertEquals("b 500", replies[0].getMessages().get(0));
+        assertEquals("a 10", replies[1].getMessages().get(0));
+        assertEquals(LogCollector.MAX_REPLY_LINES, replies[2].getMessages().size());
+        long more = replies[2].getHeader(LogCollector.MORE_HEADER, -1L);
+        assertTrue(more >= 0);
+        assertEquals("a 900", replies[3].getMessages().get(0));
+
+        //  The rest of the range cut short
+        ranges = new LogRanges();
+        ranges.add("b.log", 505, 800, more);
+        request = ranges.toMessage();
+        request.setSequence(8);
+        assertTrue(socket.send(request));
+        assertEquals(LogSocket.MessageType.REPLY, socket.receive());
+        ReplyMessage rest = socket.getReply();
+        assertEquals(296 - LogCollector.MAX_REPLY_LINES, rest.getMessages().size());
+        assertEquals("b " + (505 + LogCollector.MAX_REPLY_LINES), rest.getMessages().get(0));
+        assertEquals(-1L, rest.getHeader(LogCollector.MORE_HEADER, -1L));
+        socket.close();
+    }
+
+    @Test
+    public void testReplyPagesRepeatedLineNum() throws Exception {
+        for (int i = 0; i < 600; i++)
+            store.append("server.log", 42, "line " + i);
+
+        collector.start();
+        LogReplayClient client = new LogReplayClient(connect(), 8, 5000);
+        client.start();
+        List<String> lines = new ArrayList<>();
+        long more = 0;
+        for (int page = 0; more >= 0; page++) {
+            assertTrue(page < 3);
+            ReplyMessage reply = client.request("server.log", 42, 42, more).get();
+            lines.addAll(reply.getMessages());
+            more = reply.getHeader(LogCollector.MORE_HEADER, -1L);
+        }
+        assertEquals(600, lines.size());
+        for (int i = 0; i < 600; i++)
+            assertEquals("line " + i, lines.get(i));
+        client.close();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            store.append("server.log", i, "line " + i);
+        LogReplayScheduler scheduler = collector.getScheduler();
+        scheduler.setWindow(200, 1024);
+        collector.start();
+
+        LogSocket[] sockets = new LogSocket[3];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = new LogSocket(connect());
+            RequestMessage request = new RequestMessage();
+            request.setSequence(i);
+            request.setFileName("server.log");
+            request.setStart(i == 2 ? 105 : 100);
+            request.setEnd(i == 2 ? 120 : 110);
+            request.setPosition(0L);
+            assertTrue(sockets[i].send(request));
+        }
+        for (int i = 0; i < sockets.length; i++) {
+            assertEquals(LogSocket.MessageType.REPLY, sockets[i].receive());
+            ReplyMessage reply = sockets[i].getReply();
+            assertEquals(Integer.valueOf(i), reply.getSequence());
+            assertEquals(i == 2 ? "line 105" : "line 100", reply.getMessages().get(0));
+            assertEquals(i == 2 ? 16 : 11, reply.getMessages().size());
+        }
+        assertEquals(1, scheduler.getCoalesced());
+        assertEquals(1, scheduler.getScans());
+
+        //  The same range again is served from the cache
+        RequestMessage request = new RequestMessage();
+        request.setSequence(3);
+        request.setFileName("server.log");
+        request.setStart(100);
+        request.setEnd(110);
+        request.setPosition(0L);
+        assertTrue(sockets[0].send(request));
+        assertEquals(LogSocket.MessageType.REPLY, sockets[0].receive());
+        assertEquals(1, scheduler.getCacheHits());
+        assertEquals(1, scheduler.getScans());
+        for (LogSocket socket : sockets)
+            socket.close();
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        collector.start();
+        LogSocket follower = new LogSocket(connect());
+        SubscribeMessage subscribe = new SubscribeMessage();
+        subscribe.setSequence(1);
+        subscribe.setPattern("app/*.log");
+        subscribe.setQueue(0);
+        assertTrue(follower.send(subscribe));
+
+        //  A round trip makes sure the subscription is in place
+        RequestMessage request = new RequestMessage();
+        request.setSequence(2);
+        request.setFileName("app/server.log");
+        request.setStart(0);
+        request.setEnd(0);
+        request.setPosition(0L);
+        assertTrue(follower.send(request));
+        assertEquals(LogSocket.MessageType.REPLY, follower.receive());
+
+        LogSocket sender = new LogSocket(connect());
+        int sequence = 0;
+        for (String fileName : new String[] { "other.log", "app/server.log" }) {
+            LogMessage message = new LogMessage();
+            message.setSequence(++sequence);
+            message.setPort(0);
+            message.setFileName(fileName);
+            message.setLineNum(42);
+            message.setMessage("hello");
+            assertTrue(sender.send(message));
+        }
+
+        assertEquals(LogSocket.MessageType.LOG, follower.receive());
+        assertEquals("app/server.log", follower.getLog().getFileName());
+        assertEquals("hello", follower.getLog().getMessage());
+        follower.close();
+        sender.close();
+    }
+
+    @Test
+    public void testSubscriberStopsReading() throws Exception {
+        collector.start();
+        Socket dealer = connect();
+        dealer.getZMQSocket().setReceiveTimeOut(1000);
+        LogSocket follower = new LogSocket(dealer);
+        SubscribeMessage subscribe = new SubscribeMessage();
+        subscribe.setSequence(1);
+        subscribe.setPattern("app/*.log");
+        subscribe.setQueue(16);
+        assertTrue(follower.send(subscribe));
+
+        //  The follower reads nothing while the lines come in
+        LogSocket sender = new LogSocket(connect());
+        for (int i = 0; i < 3000; i++) {
+            LogMessage message = new LogMessage();
+            message.setSequence(i + 1);
+            message.setPort(0);
+            message.setFileName("app/server.log");
+            message.setLineNum(42);
+            message.setMessage("line " + i);
+            assertTrue(sender.send(message));
+        }
+
+        //  The collector keeps answering others
+        RequestMessage request = new RequestMessage();
+        request.setSequence(1);
+        request.setFileName("app/server.log");
+        request.setStart(42);
+        request.setEnd(42);
+        request.setPosition(0L);
+        assertTrue(sender.send(request));
+        assertEquals(LogSocket.MessageType.REPLY, sender.receive());
+        LogTail tail = collector.getTail();
+        assertTrue(tail.getStalls() > 0);
+        assertTrue(tail.getDropped() > 0);
+
+        //  Once it reads again, what it missed is summarized
+        long lines = 0;
+        long dropped = 0;
+        while (follower.receive() == LogSocket.MessageType.LOG) {
+            long count = follower.getLog().getHeader(LogTail.DROPPED_HEADER, 0L);
+            if (count > 0)
+                dropped += count;
+            else
+                lines++;
+        }
+        assertTrue(dropped > 0);
+        assertEquals(3000, lines + dropped);
+        follower.close();
+        sender.close();
+    }
+}
@@ -0,0 +1,82 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import org.zeromq.api.*;
+import org.zeromq.jzmq.*;
+
+/**
+ * Test LogDispatcher.
+ */
+public class LogDispatcherTest {
+    private static final int SENDERS = 4;
+    private static final int MESSAGES = 500;
+
+    @Test
+    public void testOrderPerSender() throws Exception {
+        Context context = new ManagedContext();
+        final Map<ByteBuffer, List<Integer>> received = new ConcurrentHashMap<>();
+        final Map<ByteBuffer, String> threads = new ConcurrentHashMap<>();
+        final CountDownLatch done = new CountDownLatch(SENDERS * MESSAGES);
+        LogDispatcher dispatcher = new LogDispatcher(context.buildSocket(SocketType.ROUTER)
+            .bind("inproc://dispatcher"), 2, 16, new LogDispatcher.Handler() {
+                @Override
+                public void handle(LogSocket socket, LogSocket.MessageType type) {
+                    assertEquals(LogSocket.MessageType.LOG, type);
+                    ByteBuffer key = ByteBuffer.wrap(socket.getAddress().getData());
+                    //  Only ever touched by the worker the sender hashes to
+                    List<Integer> lines = received.get(key);
+                    if (lines == null) {
+                        lines = new ArrayList<>();
+                        received.put(key, lines);
+                        threads.put(key, Thread.currentThread().getName());
+                    }
+                    assertEquals(threads.get(key), Thread.currentThread().getName());
+                    lines.add(socket.getLog().getLineNum());
+                    done.countDown();
+                }
+            });
+        dispatcher.start();
+
+        List<LogSocket> senders = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++)
+            senders.add(new LogSocket(context.buildSocket(SocketType.DEALER)
+                .connect("inproc://dispatcher")));
+        for (int line = 0; line < MESSAGES; line++) {
+            for (LogSocket sender : senders) {
+                LogMessage message = new LogMessage();
+                message.setSequence(line);
+                message.setPort(0);
+                message.setFileName("server.log");
+                message.setLineNum(line);
+                message.setMessage("line %d", line);
+                assertTrue(sender.send(message));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(SENDERS, received.size());
+        for (List<Integer> lines : received.values()) {
+            assertEquals(MESSAGES, lines.size());
+            for (int line = 0; line < MESSAGES; line++)
+                assertEquals(Integer.valueOf(line), lines.get(line));
+        }
+        long dispatched = 0;
+        for (int worker = 0; worker < dispatcher.getWorkers(); worker++)
+            dispatched += dispatcher.getDispatched(worker);
+        assertEquals(SENDERS * MESSAGES, dispatched);
+
+        for (LogSocket sender : senders)
+            sender.close();
+        dispatcher.close();
+    }
+}
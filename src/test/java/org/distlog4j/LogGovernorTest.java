@@ -0,0 +1,98 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+/**
+ * Test LogGovernor.
+ */
+public class LogGovernorTest {
+    @Test
+    public void testSuppressOverRate() {
+        //  One line a second, bursts of three: the fourth at once is over
+        LogGovernor governor = new LogGovernor(1, 3, 64);
+        for (int i = 0; i < 3; i++)
+            assertTrue(governor.tryAcquire("app.log", 10));
+        for (int i = 0; i < 5; i++)
+            assertFalse(governor.tryAcquire("app.log", 10));
+        assertEquals(5, governor.getSuppressed());
+        assertEquals(0, governor.getUntracked());
+    }
+
+    @Test
+    public void testSummarize() throws Exception {
+        LogGovernor governor = new LogGovernor(1, 1, 64);
+        assertTrue(governor.tryAcquire("app.log", 10));
+        for (int i = 0; i < 7; i++)
+            assertFalse(governor.tryAcquire("app.log", 10));
+        Thread.sleep(20);
+
+        List<LogMessage> summaries = new ArrayList<>();
+        assertEquals(1, governor.summarize(summaries));
+        LogMessage summary = summaries.get(0);
+        assertEquals("app.log", summary.getFileName());
+        assertEquals(Integer.valueOf(10), summary.getLineNum());
+        assertEquals(7, summary.getHeader(LogGovernor.SUPPRESSED_HEADER, 0L));
+        assertTrue(summary.getHeader(LogGovernor.WINDOW_HEADER, -1L) >= 20);
+
+        //  Counts were reset
+        summaries.clear();
+        assertEquals(0, governor.summarize(summaries));
+        assertTrue(summaries.isEmpty());
+    }
+
+    @Test
+    public void testKeysAreIndependent() {
+        LogGovernor governor = new LogGovernor(1, 2, 64);
+        assertTrue(governor.tryAcquire("app.log", 10));
+        assertTrue(governor.tryAcquire("app.log", 10));
+        assertFalse(governor.tryAcquire("app.log", 10));
+
+        //  Another line of the file, and the same line of another file
+        assertTrue(governor.tryAcquire("app.log", 11));
+        assertTrue(governor.tryAcquire("app.log", 11));
+        assertTrue(governor.tryAcquire("web.log", 10));
+        assertTrue(governor.tryAcquire("web.log", 10));
+        assertFalse(governor.tryAcquire("web.log", 10));
+        assertEquals(2, governor.getSuppressed());
+
+        List<LogMessage> summaries = new ArrayList<>();
+        assertEquals(2, governor.summarize(summaries));
+        for (LogMessage summary : summaries) {
+            assertEquals(Integer.valueOf(10), summary.getLineNum());
+            assertEquals(1, summary.getHeader(LogGovernor.SUPPRESSED_HEADER, 0L));
+        }
+    }
+
+    @Test
+    public void testIdleKeysGiveBackSlots() throws Exception {
+        LogGovernor governor = new LogGovernor(100, 1, 2);
+        assertTrue(governor.tryAcquire("app.log", 1));
+        assertTrue(governor.tryAcquire("app.log", 2));
+
+        //  The table is full, so a new key goes untracked
+        assertTrue(governor.tryAcquire("app.log", 3));
+        assertTrue(governor.tryAcquire("app.log", 3));
+        assertEquals(2, governor.getUntracked());
+
+        //  Keys idle for a whole window are reclaimed
+        List<LogMessage> summaries = new ArrayList<>();
+        Thread.sleep(20);
+        governor.summarize(summaries);
+        assertTrue(governor.tryAcquire("app.log", 2));
+        Thread.sleep(5);
+        governor.summarize(summaries);
+        assertEquals(1, governor.getReclaimed());
+        assertTrue(summaries.isEmpty());
+
+        //  The freed slot tracks the new key
+        assertTrue(governor.tryAcquire("app.log", 3));
+        assertFalse(governor.tryAcquire("app.log", 3));
+        assertEquals(2, governor.getUntracked());
+        assertEquals(1, governor.getSuppressed());
+    }
+}
@@ -0,0 +1,87 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+
+/**
+ * Test LogIndex.
+ */
+public class LogIndexTest {
+    private static int[] lineNums(ResultsMessage results) {
+        ByteBuffer hits = ByteBuffer.wrap(results.getHits().getData());
+        int[] lineNums = new int[hits.remaining() / LogIndex.HIT_BYTES];
+        for (int i = 0; i < lineNums.length; i++) {
+            hits.get();
+            lineNums[i] = hits.getInt();
+            hits.getLong();
+        }
+        return lineNums;
+    }
+
+    private static long[] positions(ResultsMessage results) {
+        ByteBuffer hits = ByteBuffer.wrap(results.getHits().getData());
+        long[] positions = new long[hits.remaining() / LogIndex.HIT_BYTES];
+        for (int i = 0; i < positions.length; i++) {
+            hits.get();
+            hits.getInt();
+            positions[i] = hits.getLong();
+        }
+        return positions;
+    }
+
+    @Test
+    public void testQuery() {
+        LogIndex index = new LogIndex(1 << 20);
+        index.add("a.log", 1, 0, "Connection refused by host db1");
+        index.add("a.log", 2, 40, "connection established");
+        index.add("b.log", 3, 0, "Refused: connection limit");
+
+        assertArrayEquals(new int[] { 3, 1 }, lineNums(index.query("refused CONNECTION", null, 10)));
+        assertArrayEquals(new int[] { 1 }, lineNums(index.query("refused connection", "a.log", 10)));
+        assertArrayEquals(new int[] { 3 }, lineNums(index.query("connection", null, 1)));
+        assertEquals(0, lineNums(index.query("missing", null, 10)).length);
+        assertEquals(0, lineNums(index.query("refused", "c.log", 10)).length);
+    }
+
+    @Test
+    public void testSealedSegments() {
+        LogIndex index = new LogIndex(1 << 30);
+        for (int i = 0; i < LogIndex.SEGMENT_LINES + 10; i++)
+            index.add("server.log", i, i * 32L, "request " + i + (i % 1000 == 7 ? " failed" : " ok"));
+        assertEquals(1, index.getSegments());
+
+        int[] lineNums = lineNums(index.query("request failed", null, 100));
+        assertEquals(66, lineNums.length);
+        assertEquals(65007, lineNums[0]);
+        assertEquals(7, lineNums[65]);
+        assertArrayEquals(new int[] { 12345 }, lineNums(index.query("12345", null, 100)));
+        assertArrayEquals(new long[] { 12345 * 32L }, positions(index.query("12345", null, 100)));
+    }
+
+    @Test
+    public void testHitsNameTheLine() {
+        //  One call site logs every line
+        LogIndex index = new LogIndex(1 << 20);
+        for (int i = 0; i < 100; i++)
+            index.add("app.log", 42, 1000L + i, "user " + i + (i == 37 ? " denied" : " allowed"));
+        ResultsMessage results = index.query("denied", null, 10);
+        assertArrayEquals(new int[] { 42 }, lineNums(results));
+        assertArrayEquals(new long[] { 1037 }, positions(results));
+    }
+
+    @Test
+    public void testOpenSegmentCountsAgainstBudget() {
+        LogIndex index = new LogIndex(1 << 20);
+        for (int i = 0; i < 20000; i++) {
+            index.add("app.log", i, i, "word" + i + " other" + (i * 7));
+            assertTrue(index.getSealedBytes() + index.getOpenBytes() <= 1 << 20);
+        }
+
+        //  The oldest lines were dropped, the newest are still found
+        assertEquals(0, lineNums(index.query("word0", null, 10)).length);
+        assertArrayEquals(new int[] { 19999 }, lineNums(index.query("word19999", null, 10)));
+    }
+}
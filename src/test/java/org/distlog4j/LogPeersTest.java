@@ -0,0 +1,64 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import org.zeromq.api.Message.Frame;
+
+/**
+ * Test LogPeers.
+ */
+public class LogPeersTest {
+    private static Frame address(int n) {
+        return new Frame(new byte[] { 0, (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n });
+    }
+
+    @Test
+    public void testRegisterAndRemove() {
+        LogPeers peers = new LogPeers(64);
+        for (int n = 0; n < 64; n++)
+            assertEquals(n, peers.register(address(n)));
+        assertEquals(64, peers.size());
+        for (int n = 0; n < 64; n++)
+            assertEquals(n, peers.register(address(n)));
+
+        //  Removing peers must leave the others of their probe runs reachable
+        for (int n = 0; n < 64; n += 3)
+            assertTrue(peers.remove(n));
+        assertFalse(peers.remove(0));
+        for (int n = 0; n < 64; n++)
+            assertEquals(n % 3 == 0 ? -1 : n, peers.lookup(address(n)));
+
+        int reused = peers.register(address(1000));
+        assertEquals(0, reused % 3);
+        assertArrayEquals(address(1000).getData(), peers.getAddress(reused).getData());
+    }
+
+    @Test
+    public void testEvictLeastRecent() throws Exception {
+        final List<Integer> removed = new ArrayList<>();
+        LogPeers peers = new LogPeers(4);
+        peers.addListener(new LogPeers.Listener() {
+            @Override
+            public void removed(int peer) {
+                removed.add(peer);
+            }
+        });
+        for (int n = 0; n < 4; n++) {
+            peers.register(address(n));
+            Thread.sleep(2);
+        }
+        peers.register(address(0));
+        assertEquals(0, removed.size());
+
+        int peer = peers.register(address(4));
+        assertEquals(1, removed.size());
+        assertEquals(Integer.valueOf(peer), removed.get(0));
+        assertEquals(-1, peers.lookup(address(1)));
+        assertEquals(0, peers.lookup(address(0)));
+        assertEquals(4, peers.size());
+    }
+}
@@ -0,0 +1,34 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+/**
+ * Test LogSketch.
+ */
+public class LogSketchTest {
+    @Test
+    public void testTop() {
+        LogSketch sketch = new LogSketch(60000, 6, 1024, 3);
+        for (int i = 0; i < 10000; i++)
+            sketch.add("noise.log", i, 1);
+        sketch.add("hot.log", 7, 5000);
+        sketch.add("warm.log", 9, 2000);
+
+        String[] top = sketch.getTop();
+        assertEquals(3, top.length);
+        assertTrue(top[0], top[0].startsWith("hot.log:7 "));
+        assertTrue(top[1], top[1].startsWith("warm.log:9 "));
+        assertTrue(sketch.getCount("hot.log", 7) >= 5000);
+    }
+
+    @Test
+    public void testDistinct() {
+        LogSketch sketch = new LogSketch(60000, 6, 1024, 3);
+        for (int i = 0; i < 100000; i++)
+            sketch.add("server.log", i % 20000, 1);
+        long distinct = sketch.getDistinct();
+        assertTrue("distinct " + distinct, distinct > 19000 && distinct < 21000);
+    }
+}
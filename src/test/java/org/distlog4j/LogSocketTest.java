@@ -2,6 +2,9 @@ package org.distlog4j;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 import org.junit.*;
 import org.zeromq.api.*;
 import org.zeromq.api.Message.Frame;
@@ -71,6 +74,7 @@ public class LogSocketTest {
         message.setLineNum(123);
         message.addMessage("Name: Brutus");
         message.addMessage("Age: 43");
+        message.setLineNums(new Frame("Captcha Diem"));
         
         assertTrue(out.send(message));
         assertEquals(LogSocket.MessageType.LOGS, in.receive());
@@ -86,6 +90,7 @@ public class LogSocketTest {
         assertEquals(message.getMessages().size(), 2);
         assertEquals(message.getMessages().get(0), "Name: Brutus");
         assertEquals(message.getMessages().get(1), "Age: 43");
+        assertTrue(message.getLineNums().getString().equals("Captcha Diem"));
         
         out.close();
         in.close();
@@ -101,6 +106,7 @@ public class LogSocketTest {
         message.setFileName("Life is short but Now lasts for ever");
         message.setStart(123);
         message.setEnd(123);
+        message.setPosition(456L);
         
         assertTrue(out.send(message));
         assertEquals(LogSocket.MessageType.REQUEST, in.receive());
@@ -109,6 +115,7 @@ public class LogSocketTest {
         assertEquals(message.getFileName(), "Life is short but Now lasts for ever");
         assertEquals(message.getStart(), Integer.valueOf(123));
         assertEquals(message.getEnd(), Integer.valueOf(123));
+        assertEquals(message.getPosition(), Long.valueOf(456));
         
         out.close();
         in.close();
@@ -140,4 +147,273 @@ public class LogSocketTest {
         out.close();
         in.close();
     }
+
+    @Test
+    public void testReplay() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        ReplayMessage message = new ReplayMessage();
+        message.setSequence(123);
+        message.setFileName("Life is short but Now lasts for ever");
+        message.setStart(123);
+        message.setEnd(123);
+        message.setResume(123);
+        message.setPosition(456L);
+        message.setCredit(123);
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.REPLAY, in.receive());
+        message = in.getReplay();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getFileName(), "Life is short but Now lasts for ever");
+        assertEquals(message.getStart(), Integer.valueOf(123));
+        assertEquals(message.getEnd(), Integer.valueOf(123));
+        assertEquals(message.getResume(), Integer.valueOf(123));
+        assertEquals(message.getPosition(), Long.valueOf(456));
+        assertEquals(message.getCredit(), Integer.valueOf(123));
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testChunk() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        ChunkMessage message = new ChunkMessage();
+        message.setSequence(123);
+        message.setChunk(123);
+        message.setPosition(456L);
+        message.setLast(123);
+        message.addMessage("Name: Brutus");
+        message.addMessage("Age: 43");
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.CHUNK, in.receive());
+        message = in.getChunk();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getChunk(), Integer.valueOf(123));
+        assertEquals(message.getPosition(), Long.valueOf(456));
+        assertEquals(message.getLast(), Integer.valueOf(123));
+        assertEquals(message.getMessages().size(), 2);
+        assertEquals(message.getMessages().get(0), "Name: Brutus");
+        assertEquals(message.getMessages().get(1), "Age: 43");
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testCredit() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        CreditMessage message = new CreditMessage();
+        message.setSequence(123);
+        message.setAck(123);
+        message.setCredit(123);
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.CREDIT, in.receive());
+        message = in.getCredit();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getAck(), Integer.valueOf(123));
+        assertEquals(message.getCredit(), Integer.valueOf(123));
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testRequests() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        RequestsMessage message = new RequestsMessage();
+        message.setSequence(123);
+        message.addFileName("Name: Brutus");
+        message.addFileName("Age: 43");
+        message.setRanges(new Frame("Captcha Diem"));
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.REQUESTS, in.receive());
+        message = in.getRequests();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getFileNames().size(), 2);
+        assertEquals(message.getFileNames().get(0), "Name: Brutus");
+        assertEquals(message.getFileNames().get(1), "Age: 43");
+        assertTrue(message.getRanges().getString().equals("Captcha Diem"));
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testSubscribe() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        SubscribeMessage message = new SubscribeMessage();
+        message.setSequence(123);
+        message.setPattern("Life is short but Now lasts for ever");
+        message.setQueue(123);
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.SUBSCRIBE, in.receive());
+        message = in.getSubscribe();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getPattern(), "Life is short but Now lasts for ever");
+        assertEquals(message.getQueue(), Integer.valueOf(123));
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testUnsubscribe() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        UnsubscribeMessage message = new UnsubscribeMessage();
+        message.setSequence(123);
+        message.setPattern("Life is short but Now lasts for ever");
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.UNSUBSCRIBE, in.receive());
+        message = in.getUnsubscribe();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getPattern(), "Life is short but Now lasts for ever");
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testQuery() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        QueryMessage message = new QueryMessage();
+        message.setSequence(123);
+        message.setQuery("Life is short but Now lasts for ever");
+        message.setFileName("Life is short but Now lasts for ever");
+        message.setLimit(123);
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.QUERY, in.receive());
+        message = in.getQuery();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getQuery(), "Life is short but Now lasts for ever");
+        assertEquals(message.getFileName(), "Life is short but Now lasts for ever");
+        assertEquals(message.getLimit(), Integer.valueOf(123));
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testResults() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        ResultsMessage message = new ResultsMessage();
+        message.setSequence(123);
+        message.addFileName("Name: Brutus");
+        message.addFileName("Age: 43");
+        message.setHits(new Frame("Captcha Diem"));
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.RESULTS, in.receive());
+        message = in.getResults();
+        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(message.getFileNames().size(), 2);
+        assertEquals(message.getFileNames().get(0), "Name: Brutus");
+        assertEquals(message.getFileNames().get(1), "Age: 43");
+        assertTrue(message.getHits().getString().equals("Captcha Diem"));
+        
+        out.close();
+        in.close();
+    }
+
+    //  Send a LOG whose ip is formatted at encode time
+    private LogMessage formatLog(String format, Object... args) {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        LogMessage message = new LogMessage();
+        message.setSequence(123);
+        message.putHeader("Name", "Brutus");
+        message.setIp(format, args);
+        message.setPort(123);
+        message.setFileName("Life is short but Now lasts for ever");
+        message.setLineNum(123);
+        message.setMessage("Life is short but Now lasts for ever");
+        
+        assertTrue(out.send(message));
+        assertEquals(LogSocket.MessageType.LOG, in.receive());
+        message = in.getLog();
+        
+        out.close();
+        in.close();
+        return message;
+    }
+
+    @Test
+    public void testLogFormat() {
+        LogMessage message = formatLog("%s is short but %s lasts for %s", "Life", "Now", "ever");
+        assertEquals(message.getIp(), "Life is short but Now lasts for ever");
+    }
+
+    @Test
+    public void testLogFormatTruncated() {
+        //  200 two-octet characters are cut to the 127 that fit in 255 octets
+        String text = new String(new char[200]).replace('\0', '\u00e9');
+        LogMessage message = formatLog("%s", text);
+        assertEquals(message.getIp(), text.substring(0, 127));
+    }
+
+    @Test
+    public void testReceiveSkipsGarbage() {
+        Message garbage = new Message();
+        garbage.addFrame(new Frame("Captcha Diem"));
+        assertTrue(dealer.send(garbage));
+        LogMessage message = formatLog("%s", "Life");
+        assertEquals(message.getIp(), "Life");
+    }
+
+    @Test
+    public void testLogsFromBytes() {
+        LogSocket out = new LogSocket(dealer);
+        LogSocket in = new LogSocket(router);
+        
+        //  Bytes outside the heap are cut like formats, at a character
+        String text = new String(new char[200]).replace('\0', '\u00e9');
+        ByteBuffer bytes = ByteBuffer.allocateDirect(400);
+        bytes.put(text.getBytes(Charset.forName("UTF-8")));
+        bytes.flip();
+        
+        LogsMessage message = new LogsMessage();
+        message.setSequence(123);
+        message.putHeader("Name", "Brutus");
+        message.setIp("Life is short but Now lasts for ever");
+        message.setPort(123);
+        message.setFileName("Life is short but Now lasts for ever");
+        message.setLineNum(123);
+        message.addMessage(ByteBuffer.wrap("Name: Brutus".getBytes(Charset.forName("UTF-8"))));
+        message.addMessage(bytes);
+        message.setLineNums(new Frame("Captcha Diem"));
+        
+        assertTrue(out.send(message));
+        assertEquals(400, bytes.remaining());
+        assertEquals(LogSocket.MessageType.LOGS, in.receive());
+        message = in.getLogs();
+        assertEquals(message.getMessages().size(), 2);
+        assertEquals(message.getMessages().get(0), "Name: Brutus");
+        assertEquals(message.getMessages().get(1), text.substring(0, 127));
+        
+        out.close();
+        in.close();
+    }
 }
\ No newline at end of file
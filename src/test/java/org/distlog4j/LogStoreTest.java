@@ -0,0 +1,155 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test LogStore.
+ */
+public class LogStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "store");
+    }
+
+    private static List<String> scan(LogStore store, String fileName, int start, int end) {
+        final List<String> lines = new ArrayList<>();
+        store.scan(fileName, start, end, new LogStore.Visitor() {
+            @Override
+            public boolean visit(long position, int lineNum, long timestamp, ByteBuffer message) {
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                lines.add(lineNum + ":" + new String(bytes, Charset.forName("UTF-8")));
+                return true;
+            }
+        });
+        return lines;
+    }
+
+    @Test
+    public void testAppendAndScan() throws Exception {
+        LogStore store = new LogStore(directory, 1 << 16);
+        for (int i = 1; i <= 1000; i++)
+            store.append("app/server.log", i, "line " + i);
+        store.append("other.log", 5, "elsewhere");
+
+        List<String> lines = scan(store, "app/server.log", 500, 502);
+        assertEquals(3, lines.size());
+        assertEquals("500:line 500", lines.get(0));
+        assertEquals("502:line 502", lines.get(2));
+        assertEquals(1, scan(store, "other.log", 0, 10).size());
+        assertEquals(0, scan(store, "missing.log", 0, 10).size());
+        store.close();
+    }
+
+    @Test
+    public void testAppendLogs() throws Exception {
+        LogStore store = new LogStore(directory, 1 << 16);
+        LogsMessage message = new LogsMessage();
+        message.setFileName("batch.log");
+        message.setLineNum(10);
+        message.addMessage("ten");
+        message.addMessage("eleven");
+        store.append(message);
+
+        List<String> lines = scan(store, "batch.log", 11, 11);
+        assertEquals(1, lines.size());
+        assertEquals("11:eleven", lines.get(0));
+        store.close();
+    }
+
+    @Test
+    public void testRecoverAfterReopen() throws Exception {
+        LogStore store = new LogStore(directory, 4096);
+        for (int i = 0; i < 500; i++)
+            store.append("server.log", i, "line " + i);
+        store.close();
+
+        store = new LogStore(directory, 4096);
+        assertEquals(500, scan(store, "server.log", 0, 499).size());
+        store.append("server.log", 500, "line 500");
+        List<String> lines = scan(store, "server.log", 499, 500);
+        assertEquals(2, lines.size());
+        assertEquals("500:line 500", lines.get(1));
+        store.close();
+    }
+
+    @Test
+    public void testScanFromPosition() throws Exception {
+        LogStore store = new LogStore(directory, 4096);
+        final long[] positions = new long[1000];
+        for (int i = 0; i < 1000; i++)
+            positions[i] = store.append("server.log", 7, "line " + i);
+
+        //  Every line shares a lineNum; pages of 300 resume by position
+        final List<String> lines = new ArrayList<>();
+        final long[] next = { 0 };
+        while (next[0] >= 0) {
+            final int page = lines.size() + 300;
+            long from = next[0];
+            next[0] = -1;
+            store.scan("server.log", 7, 7, from, new LogStore.Visitor() {
+                @Override
+                public boolean visit(long position, int lineNum, long timestamp, ByteBuffer message) {
+                    if (lines.size() == page) {
+                        next[0] = position;
+                        return false;
+                    }
+                    assertEquals(positions[lines.size()], position);
+                    byte[] bytes = new byte[message.remaining()];
+                    message.get(bytes);
+                    lines.add(new String(bytes, Charset.forName("UTF-8")));
+                    return true;
+                }
+            });
+        }
+        assertEquals(1000, lines.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("line " + i, lines.get(i));
+        store.close();
+    }
+
+    @Test
+    public void testLineLargerThanSegment() throws Exception {
+        LogStore store = new LogStore(directory, 64);
+        store.append("server.log", 1, "0123456789012345678901234567890123456789");
+        try {
+            store.append("server.log", 2, "01234567890123456789012345678901234567890123456789");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            //  Expected
+        }
+
+        //  No empty segment was rolled for it
+        assertEquals(1, new File(directory, "server.log").list().length);
+        assertEquals(1, scan(store, "server.log", 0, 10).size());
+        store.close();
+    }
+
+    @Test
+    public void testRetentionBySize() throws Exception {
+        LogStore store = new LogStore(directory, 4096);
+        store.setRetention(8192, Long.MAX_VALUE);
+        for (int i = 0; i < 1000; i++)
+            store.append("server.log", i, "line " + i);
+        assertTrue(store.enforceRetention() > 0);
+
+        List<String> lines = scan(store, "server.log", 0, 999);
+        assertTrue(lines.size() < 1000);
+        assertEquals("999:line 999", lines.get(lines.size() - 1));
+        store.close();
+    }
+}
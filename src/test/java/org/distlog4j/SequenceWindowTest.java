@@ -0,0 +1,51 @@
+package org.distlog4j;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+/**
+ * Test SequenceWindow.
+ */
+public class SequenceWindowTest {
+    @Test
+    public void testDuplicatesAndGaps() {
+        SequenceWindow window = new SequenceWindow(32, 64);
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+        assertTrue(window.accept(5));
+        assertEquals(2, window.getLost());
+        assertTrue(window.accept(3));
+        assertFalse(window.accept(3));
+        assertEquals(1, window.getLost());
+        assertEquals(2, window.getDuplicates());
+    }
+
+    @Test
+    public void testWrapAround() {
+        SequenceWindow window = new SequenceWindow(16, 64);
+        assertTrue(window.accept(0xfffe));
+        assertTrue(window.accept(0xffff));
+        assertTrue(window.accept(0));
+        assertTrue(window.accept(1));
+        assertFalse(window.accept(0xffff));
+        assertEquals(0, window.getLost());
+
+        window = new SequenceWindow(32, 64);
+        assertTrue(window.accept(0xffffffffL));
+        assertTrue(window.accept(0x100000000L));
+        assertEquals(0, window.getLost());
+        assertFalse(window.accept(-1));
+    }
+
+    @Test
+    public void testRestart() {
+        SequenceWindow window = new SequenceWindow(32, 64);
+        for (int i = 1000; i < 1100; i++)
+            assertTrue(window.accept(i));
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(1));
+    }
+}
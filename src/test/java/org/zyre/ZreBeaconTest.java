@@ -0,0 +1,170 @@
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.*;
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.jzmq.*;
+
+/**
+ * Test ZreBeacon.
+ */
+public class ZreBeaconTest {
+    private Context context;
+    private ZreNode node;
+    private InetAddress address;
+
+    //  Records greetings instead of connecting
+    private static class Beacon extends ZreBeacon {
+        final List<String> greeted = new ArrayList<>();
+
+        Beacon(ZreNode node, InetAddress group, long expiryMillis, int helloRate) {
+            super(node, group, DEFAULT_PORT, expiryMillis, helloRate);
+        }
+
+        @Override
+        protected void greet(String endpoint) {
+            greeted.add(endpoint);
+        }
+    }
+
+    private static class Quiet implements ZreNode.Listener {
+        @Override
+        public void enter(ZrePeer peer) {
+        }
+
+        @Override
+        public void exit(ZrePeer peer) {
+        }
+
+        @Override
+        public void join(ZrePeer peer, String group) {
+        }
+
+        @Override
+        public void leave(ZrePeer peer, String group) {
+        }
+
+        @Override
+        public void whisper(ZrePeer peer, Frame content) {
+        }
+
+        @Override
+        public void shout(ZrePeer peer, String group, Frame content) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        context = new ManagedContext();
+        node = new ZreNode(context, "tcp://127.0.0.1:5690", new Quiet());
+        address = InetAddress.getByName("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    private static byte[] beacon(UUID id, int mailbox) {
+        ByteBuffer buffer = ByteBuffer.allocate(ZreBeacon.BEACON_SIZE);
+        buffer.put(new byte[] { 'Z', 'R', 'E', 1 });
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        buffer.putShort((short) mailbox);
+        return buffer.array();
+    }
+
+    //  Higher than any random UUID, so this node greets first
+    private static UUID higher(int index) {
+        return new UUID(Long.MAX_VALUE, index);
+    }
+
+    private void hear(Beacon beacon, UUID id, int mailbox, long now) {
+        byte[] data = beacon(id, mailbox);
+        beacon.handle(data, data.length, address, now);
+    }
+
+    @Test
+    public void testRepeatedBeaconsGreetOnce() {
+        Beacon beacon = new Beacon(node, address, 5000, 100);
+        for (int i = 0; i < 4; i++) {
+            hear(beacon, higher(1), 5691, i * 1000);
+            beacon.release(i * 1000);
+        }
+        assertEquals(1, beacon.getHeard());
+        assertEquals(1, beacon.greeted.size());
+        assertEquals("tcp://127.0.0.1:5691", beacon.greeted.get(0));
+
+        //  Greeted again only once forgotten
+        hear(beacon, higher(1), 5691, 10000);
+        beacon.release(10000);
+        assertEquals(2, beacon.greeted.size());
+    }
+
+    @Test
+    public void testGreetingsAreRateLimited() {
+        Beacon beacon = new Beacon(node, address, 30000, 5);
+        for (int i = 0; i < 12; i++)
+            hear(beacon, higher(i), 6000 + i, 0);
+        beacon.release(0);
+        assertEquals(5, beacon.greeted.size());
+        assertEquals(7, beacon.getPending());
+
+        beacon.release(1000);
+        assertEquals(10, beacon.greeted.size());
+        beacon.release(1400);
+        assertEquals(12, beacon.greeted.size());
+        assertEquals(0, beacon.getPending());
+        assertEquals(12, beacon.getGreeted());
+    }
+
+    @Test
+    public void testLowerIdentityGreetsFirst() {
+        Beacon beacon = new Beacon(node, address, 30000, 100);
+        UUID lower = new UUID(Long.MIN_VALUE, 0);
+        hear(beacon, lower, 5691, 0);
+        beacon.release(0);
+        hear(beacon, lower, 5691, 1000);
+        beacon.release(1000);
+        assertEquals(0, beacon.greeted.size());
+
+        //  Greets in turn if the peer has not
+        hear(beacon, lower, 5691, ZreBeacon.DEFER_INTERVAL);
+        beacon.release(ZreBeacon.DEFER_INTERVAL);
+        assertEquals(1, beacon.greeted.size());
+    }
+
+    @Test
+    public void testIgnoredBeacons() {
+        Beacon beacon = new Beacon(node, address, 30000, 100);
+        hear(beacon, UUID.fromString(node.getIdentity()), 5690, 0);
+        byte[] data = beacon(higher(1), 5691);
+        beacon.handle(data, data.length - 1, address, 0);
+        data[0] = 'X';
+        beacon.handle(data, data.length, address, 0);
+        beacon.release(0);
+        assertEquals(0, beacon.getHeard());
+        assertEquals(0, beacon.greeted.size());
+    }
+
+    @Test
+    public void testLeavingNodeIsForgotten() {
+        Beacon beacon = new Beacon(node, address, 30000, 1);
+        hear(beacon, higher(1), 5691, 0);
+        hear(beacon, higher(2), 5692, 0);
+        hear(beacon, higher(2), 0, 0);
+        assertEquals(1, beacon.getHeard());
+        beacon.release(0);
+        beacon.release(1000);
+        assertEquals(1, beacon.greeted.size());
+        assertEquals("tcp://127.0.0.1:5691", beacon.greeted.get(0));
+    }
+}
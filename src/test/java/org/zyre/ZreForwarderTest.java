@@ -0,0 +1,71 @@
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.jzmq.*;
+
+/**
+ * Test ZreForwarder.
+ */
+public class ZreForwarderTest {
+    @Test
+    public void testRouteByGroup() throws Exception {
+        Context context = new ManagedContext();
+        Socket sinkA = context.buildSocket(SocketType.ROUTER).bind("inproc://forward-a");
+        Socket sinkB = context.buildSocket(SocketType.ROUTER).bind("inproc://forward-b");
+        sinkA.getZMQSocket().setReceiveTimeOut(1000);
+        sinkB.getZMQSocket().setReceiveTimeOut(100);
+        final Socket[] a = { context.buildSocket(SocketType.DEALER).connect("inproc://forward-a") };
+        final Socket[] b = { context.buildSocket(SocketType.DEALER).connect("inproc://forward-b") };
+        ZreForwarder forwarder = new ZreForwarder(context.buildSocket(SocketType.ROUTER)
+            .bind("inproc://forwarder"), new ZreForwarder.Route() {
+                @Override
+                public Socket[] route(ZreSocket.MessageType type, Frame address, String key) {
+                    assertNotNull(address);
+                    if (type != ZreSocket.MessageType.SHOUT)
+                        return null;
+                    return "a".equals(key) ? a : "b".equals(key) ? b : null;
+                }
+            });
+        forwarder.start();
+
+        ZreSocket sender = new ZreSocket(context.buildSocket(SocketType.DEALER)
+            .connect("inproc://forwarder"));
+        for (int i = 0; i < 10; i++) {
+            ShoutMessage shout = new ShoutMessage();
+            shout.setSequence(i);
+            shout.setGroup(i % 2 == 0 ? "a" : "c");
+            shout.setContent(new Frame("shout " + i));
+            assertTrue(sender.send(shout));
+        }
+        WhisperMessage whisper = new WhisperMessage();
+        whisper.setSequence(10);
+        whisper.setContent(new Frame("psst"));
+        sender.send(whisper);
+
+        //  Forwarded as sent, header sequence included
+        ZreSocket receiver = new ZreSocket(sinkA);
+        for (int i = 0; i < 10; i += 2) {
+            assertEquals(ZreSocket.MessageType.SHOUT, receiver.receive());
+            ShoutMessage shout = receiver.getShout();
+            assertEquals(Integer.valueOf(i), shout.getSequence());
+            assertEquals("a", shout.getGroup());
+            assertEquals("shout " + i, shout.getContent().getString());
+        }
+        assertNull(new ZreSocket(sinkB).receive());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (forwarder.getDropped() < 6) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(5, forwarder.getForwarded());
+
+        forwarder.close();
+        sender.close();
+        receiver.close();
+    }
+}
@@ -0,0 +1,87 @@
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+/**
+ * Test ZreLogRollup.
+ */
+public class ZreLogRollupTest {
+    //  Records emitted counts as resolution:start:node:level:event=count
+    private static class Series implements ZreLogRollup.Sink {
+        final List<String> log = new ArrayList<>();
+
+        @Override
+        public void emit(ZreLogRollup.Resolution resolution, long start, int node, int level, int event, long count) {
+            log.add(resolution + ":" + start + ":" + node + ":" + level + ":" + event + "=" + count);
+        }
+
+        long total(ZreLogRollup.Resolution resolution) {
+            long total = 0;
+            for (String entry : log) {
+                if (entry.startsWith(resolution + ":"))
+                    total += Long.parseLong(entry.substring(entry.indexOf('=') + 1));
+            }
+            return total;
+        }
+    }
+
+    @Test
+    public void testSecondWindows() {
+        Series series = new Series();
+        ZreLogRollup rollup = new ZreLogRollup(16, 4, series);
+        for (int i = 0; i < 10; i++)
+            rollup.record(ZreLogSocket.LEVEL_INFO, ZreLogSocket.EVENT_JOIN, 3, 1000 + i * 50);
+        rollup.record(ZreLogSocket.LEVEL_ERROR, ZreLogSocket.EVENT_EXIT, 5, 1999);
+        assertTrue(series.log.isEmpty());
+
+        //  Slot of second 1 is claimed again by second 5
+        rollup.record(ZreLogSocket.LEVEL_INFO, ZreLogSocket.EVENT_JOIN, 3, 5000);
+        assertEquals(2, series.log.size());
+        assertTrue(series.log.contains("SECOND:1000:3:3:1=10"));
+        assertTrue(series.log.contains("SECOND:1000:5:1:4=1"));
+        assertEquals(12, rollup.getRecorded());
+    }
+
+    @Test
+    public void testLateAndOutOfRange() {
+        Series series = new Series();
+        ZreLogRollup rollup = new ZreLogRollup(16, 4, series);
+        rollup.record(1, 1, 0, 10000);
+        rollup.record(1, 1, 0, 8500);              //  Late, but kept
+        rollup.record(1, 1, 0, 6000);              //  Too late for the ring
+        rollup.record(1, 1, 16, 10000);            //  Node out of range
+        rollup.record(9, 9, 0, 10000);             //  Undefined level and event
+        assertEquals(3, rollup.getRecorded());
+        assertEquals(2, rollup.getDropped());
+
+        rollup.flush();
+        assertEquals(7, series.log.size());
+        assertEquals("SECOND:8000:0:1:1=1", series.log.get(0));
+        assertTrue(series.log.contains("SECOND:10000:0:0:0=1"));
+        assertTrue(series.log.contains("MINUTE:0:0:1:1=2"));
+        assertTrue(series.log.contains("HOUR:0:0:0:0=1"));
+    }
+
+    @Test
+    public void testDownsampling() {
+        Series series = new Series();
+        ZreLogRollup rollup = new ZreLogRollup(4, 8, series);
+        long start = 7200000;
+        for (long time = start; time < start + 3 * 60000; time += 100)
+            rollup.record(ZreLogSocket.LEVEL_WARNING, ZreLogSocket.EVENT_ENTER, (int) (time / 100 % 4), time);
+        rollup.flush();
+
+        assertEquals(1800, series.total(ZreLogRollup.Resolution.SECOND));
+        assertEquals(1800, series.total(ZreLogRollup.Resolution.MINUTE));
+        assertEquals(1800, series.total(ZreLogRollup.Resolution.HOUR));
+        assertEquals(0, rollup.getDropped());
+        assertTrue(series.log.contains("MINUTE:7260000:2:2:3=150"));
+        assertTrue(series.log.contains("HOUR:7200000:1:2:3=450"));
+        assertEquals(3 * 60 * 4 + 3 * 4 + 4, series.log.size());
+    }
+}
@@ -0,0 +1,130 @@
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test ZreLogStore.
+ */
+public class ZreLogStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "capture");
+    }
+
+    private static List<String> scan(ZreLogStore store, long from, long to, int node, int peer) {
+        final List<String> events = new ArrayList<>();
+        store.scan(from, to, node, peer, new ZreLogStore.Visitor() {
+            @Override
+            public boolean visit(int level, int event, int node, int peer, long time, ByteBuffer data) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                events.add(time + ":" + node + ">" + peer + ":" + new String(bytes, Charset.forName("UTF-8")));
+                return true;
+            }
+        });
+        return events;
+    }
+
+    @Test
+    public void testAppendAndScan() throws Exception {
+        ZreLogStore store = new ZreLogStore(directory, 1 << 12, 1 << 16);
+        for (int i = 0; i < 1000; i++)
+            store.append(ZreLogSocket.LEVEL_INFO, ZreLogSocket.EVENT_JOIN, i % 4, i % 3, 10000 + i * 10, "event " + i);
+
+        List<String> events = scan(store, 12000, 12030, ZreLogStore.ANY, ZreLogStore.ANY);
+        assertEquals(4, events.size());
+        assertEquals("12000:0>2:event 200", events.get(0));
+        assertEquals("12030:3>2:event 203", events.get(3));
+
+        //  Of the twelve events in the window, one is from node 1 to peer 0
+        events = scan(store, 11000, 11110, 1, 0);
+        assertEquals(1, events.size());
+        assertEquals("11050:1>0:event 105", events.get(0));
+        assertEquals(0, scan(store, 0, 9999, ZreLogStore.ANY, ZreLogStore.ANY).size());
+        assertEquals(1000, store.scan(0, Long.MAX_VALUE, new ZreLogStore.Visitor() {
+            @Override
+            public boolean visit(int level, int event, int node, int peer, long time, ByteBuffer data) {
+                assertEquals(ZreLogSocket.LEVEL_INFO, level);
+                assertEquals(ZreLogSocket.EVENT_JOIN, event);
+                return true;
+            }
+        }));
+        store.close();
+    }
+
+    @Test
+    public void testOutOfOrderAndStop() throws Exception {
+        ZreLogStore store = new ZreLogStore(directory, 1 << 12, 1 << 16);
+        LogMessage message = new LogMessage();
+        message.setLevel(ZreLogSocket.LEVEL_WARNING);
+        message.setEvent(ZreLogSocket.EVENT_EXIT);
+        message.setNode(7);
+        message.setPeer(8);
+        message.setTime(5500L);
+        message.setData("late");
+        store.append(5, 1, 7, 8, 9000, "early");
+        store.append(message);
+        store.append(5, 1, 7, 8, 3000, null);
+
+        assertEquals("5500:7>8:late", scan(store, 5000, 6000, 7, 8).get(0));
+        assertEquals("3000:7>8:", scan(store, 0, 4000, 7, ZreLogStore.ANY).get(0));
+        assertEquals(3, scan(store, 0, 10000, 7, 8).size());
+        assertEquals(1, store.scan(0, 10000, new ZreLogStore.Visitor() {
+            @Override
+            public boolean visit(int level, int event, int node, int peer, long time, ByteBuffer data) {
+                return false;
+            }
+        }));
+        store.close();
+    }
+
+    @Test
+    public void testRollAndRecover() throws Exception {
+        ZreLogStore store = new ZreLogStore(directory, 100, 1 << 12);
+        for (int i = 0; i < 1000; i++)
+            store.append(1, 1, 1, 2, i * 100L, "event " + i);
+        assertTrue(store.getSegments() >= 10);
+        store.close();
+
+        store = new ZreLogStore(directory, 100, 1 << 12);
+        assertEquals(1000, store.getEvents());
+        List<String> events = scan(store, 50000, 50200, 1, 2);
+        assertEquals(3, events.size());
+        assertEquals("50000:1>2:event 500", events.get(0));
+
+        store.append(1, 1, 1, 2, 100000, "event 1000");
+        assertEquals(1001, scan(store, 0, 100000, ZreLogStore.ANY, 2).size());
+        store.close();
+    }
+
+    @Test
+    public void testDataLargerThanHeapRolls() throws Exception {
+        ZreLogStore store = new ZreLogStore(directory, 100, 64);
+        store.append(1, 1, 1, 1, 0, "0123456789012345678901234567890123456789");
+        store.append(1, 1, 1, 1, 1, "0123456789012345678901234567890123456789");
+        assertEquals(2, store.getSegments());
+        try {
+            store.append(1, 1, 1, 1, 2, "01234567890123456789012345678901234567890123456789012345678901234");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            //  Expected
+        }
+        assertEquals(2, store.getEvents());
+        assertEquals(2, store.getSegments());
+        store.close();
+    }
+}
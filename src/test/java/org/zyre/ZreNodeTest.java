@@ -0,0 +1,392 @@
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import org.zeromq.api.*;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.jzmq.*;
+
+/**
+ * Test ZreNode.
+ */
+public class ZreNodeTest {
+    private Context context;
+    private Events[] events;
+    private ZreNode[] nodes;
+
+    //  Records the events of one node
+    private static class Events implements ZreNode.Listener {
+        final List<String> log = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void enter(ZrePeer peer) {
+            log.add("enter");
+        }
+
+        @Override
+        public void exit(ZrePeer peer) {
+            log.add("exit");
+        }
+
+        @Override
+        public void join(ZrePeer peer, String group) {
+            log.add("join " + group);
+        }
+
+        @Override
+        public void leave(ZrePeer peer, String group) {
+            log.add("leave " + group);
+        }
+
+        @Override
+        public void whisper(ZrePeer peer, Frame content) {
+            log.add("whisper " + content.getString());
+        }
+
+        @Override
+        public void shout(ZrePeer peer, String group, Frame content) {
+            log.add("shout " + group + " " + content.getString());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = new ManagedContext();
+        events = new Events[3];
+        nodes = new ZreNode[3];
+        for (int i = 0; i < nodes.length; i++) {
+            events[i] = new Events();
+            nodes[i] = new ZreNode(context, "inproc://zre-node-" + i, events[i]);
+            nodes[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ZreNode node : nodes)
+            node.close();
+    }
+
+    private static void await(String event, List<String> log) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!log.contains(event)) {
+            assertTrue("Timed out waiting for " + event, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void await(int peers, ZreNode node) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (node.getPeers().size() < peers) {
+            assertTrue("Timed out waiting for peers", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testGroups() throws Exception {
+        nodes[1].join("chat");
+        nodes[0].connect(nodes[1].getEndpoint());
+        nodes[0].connect(nodes[2].getEndpoint());
+        nodes[1].connect(nodes[2].getEndpoint());
+        await(2, nodes[0]);
+        await(2, nodes[1]);
+        await(2, nodes[2]);
+
+        //  Groups in the HELLO, and groups joined afterwards
+        await("join chat", events[0].log);
+        nodes[2].join("chat");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (nodes[0].getPeers("chat").length < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        ZrePeer peer = nodes[0].getPeer(nodes[2].getIdentity());
+        assertTrue(peer.getGroups().contains("chat"));
+        assertEquals(1, peer.getStatus());
+
+        assertEquals(2, nodes[0].shout("chat", new Frame("hello")));
+        await("shout chat hello", events[1].log);
+        await("shout chat hello", events[2].log);
+
+        //  Each peer must see its own sequence, or it would drop the sender
+        for (int i = 0; i < 10; i++)
+            nodes[0].shout("chat", new Frame("again " + i));
+        await("shout chat again 9", events[1].log);
+        await("shout chat again 9", events[2].log);
+        assertEquals(2, nodes[1].getPeers().size());
+        assertFalse(events[1].log.contains("exit"));
+
+        nodes[2].leave("chat");
+        deadline = System.currentTimeMillis() + 5000;
+        while (nodes[0].getPeers("chat").length > 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(2, peer.getStatus());
+        assertSame(nodes[0].getPeer(nodes[1].getIdentity()), nodes[0].getPeers("chat")[0]);
+    }
+
+    @Test
+    public void testGroupSync() throws Exception {
+        //  More groups than one GROUP_DELTA holds, then changes during the sync
+        for (int i = 0; i < 300; i++)
+            nodes[0].join("group-" + i);
+        nodes[1].connect(nodes[0].getEndpoint());
+        nodes[0].leave("group-0");
+        nodes[0].join("late");
+        await(1, nodes[1]);
+        await("join late", events[1].log);
+
+        ZrePeer peer = nodes[1].getPeer(nodes[0].getIdentity());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (peer.getGroups().size() != 300 || peer.getGroups().contains("group-0")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(peer.getGroups().contains("group-299"));
+        assertEquals(302 & 0xff, peer.getStatus());
+
+        nodes[0].leave("late");
+        await("leave late", events[1].log);
+        assertEquals(299, peer.getGroups().size());
+        assertEquals(1, nodes[1].getPeers("group-1").length);
+    }
+
+    @Test
+    public void testWhisper() throws Exception {
+        nodes[0].connect(nodes[1].getEndpoint());
+        await(1, nodes[0]);
+        await(1, nodes[1]);
+        assertTrue(nodes[1].whisper(nodes[0].getIdentity(), new Frame("psst")));
+        await("whisper psst", events[0].log);
+        assertFalse(nodes[1].whisper("nobody", new Frame("psst")));
+        assertEquals(nodes[1].getEndpoint(), nodes[0].getPeer(nodes[1].getIdentity()).getEndpoint());
+    }
+
+    @Test
+    public void testWhisperBatching() throws Exception {
+        nodes[1].setBatching(5, 1024);
+        nodes[0].connect(nodes[1].getEndpoint());
+        await(1, nodes[0]);
+        await(1, nodes[1]);
+
+        //  Bursts fill batches, the last one lingers until it is due
+        for (int i = 0; i < 1000; i++)
+            assertTrue(nodes[1].whisper(nodes[0].getIdentity(), new Frame("n" + i)));
+        await("whisper n999", events[0].log);
+        List<String> whispers = new ArrayList<>();
+        for (String event : events[0].log) {
+            if (event.startsWith("whisper "))
+                whispers.add(event);
+        }
+        assertEquals(1000, whispers.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("whisper n" + i, whispers.get(i));
+
+        //  A batch goes out before any other message to the peer
+        nodes[1].whisper(nodes[0].getIdentity(), new Frame("before"));
+        nodes[1].join("after");
+        await("join after", events[0].log);
+        assertTrue(events[0].log.contains("whisper before"));
+        assertTrue(events[0].log.indexOf("whisper before") < events[0].log.indexOf("join after"));
+        assertEquals(1, nodes[0].getPeers().size());
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<String> groups = new CopyOnWriteArrayList<>();
+        ZreNode.StreamListener listener = new ZreNode.StreamListener() {
+            @Override
+            public void chunk(ZrePeer peer, String group, int stream, Frame content, boolean last) {
+                assertTrue(content.size() <= ZreNode.STREAM_CHUNK);
+                if (group == null) {
+                    received.write(content.getData(), 0, content.size());
+                } else if (last) {
+                    groups.add(group);
+                }
+                if (last)
+                    done.countDown();
+            }
+        };
+        nodes[0].setStreamListener(listener);
+        nodes[2].setStreamListener(listener);
+        nodes[2].join("files");
+        nodes[1].connect(nodes[0].getEndpoint());
+        nodes[1].connect(nodes[2].getEndpoint());
+        await(2, nodes[1]);
+        await(1, nodes[0]);
+        await("join files", events[1].log);
+
+        //  Many windows of chunks, with other traffic in between
+        byte[] content = new byte[ZreNode.STREAM_CHUNK * ZreNode.STREAM_WINDOW * 3 + 5];
+        new Random(1).nextBytes(content);
+        assertTrue(nodes[1].whisper(nodes[0].getIdentity(), new ByteArrayInputStream(content)));
+        assertTrue(nodes[1].whisper(nodes[0].getIdentity(), new Frame("after")));
+        assertEquals(1, nodes[1].shout("files", new ByteArrayInputStream(new byte[10])));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(content, received.toByteArray());
+        assertEquals(Collections.singletonList("files"), groups);
+        await("whisper after", events[0].log);
+    }
+
+    @Test
+    public void testPauseSlowPeer() throws Exception {
+        nodes[0].setPolicy(new ZrePolicy(1024, 4096, 8192, 1000000, 0.5, 0.9));
+        nodes[1].join("chat");
+        nodes[2].join("chat");
+        nodes[0].connect(nodes[1].getEndpoint());
+        nodes[0].connect(nodes[2].getEndpoint());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (nodes[0].getPeers("chat").length < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        ZrePeer fast = nodes[0].getPeer(nodes[1].getIdentity());
+        ZrePeer slow = nodes[0].getPeer(nodes[2].getIdentity());
+
+        //  A node that stops reading never acknowledges what it is sent
+        nodes[2].close();
+        for (int i = 0; i < 200; i++)
+            nodes[0].shout("chat", new Frame(new byte[100]));
+        assertEquals(ZrePeer.State.PAUSED, slow.getState());
+        assertTrue(slow.getQueuedBytes() >= 8192);
+
+        deadline = System.currentTimeMillis() + 5000;
+        while (fast.getState() != ZrePeer.State.HEALTHY) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(fast.getRoundTripMicros() > 0);
+        assertEquals(1, nodes[0].shout("chat", new Frame("last"), ZreNode.Priority.LOW));
+        await("shout chat last", events[1].log);
+        assertFalse(nodes[0].whisper(slow.getIdentity(), new Frame("psst")));
+    }
+
+    @Test
+    public void testPauseByQueuedMessages() throws Exception {
+        //  Byte limits a burst of small messages never reaches
+        nodes[0].setPolicy(new ZrePolicy(64, 1 << 20, 1 << 20, 20, 50, 1000000, 0.5, 0.9));
+        ZrePeer[] peers = joinChat();
+        ZrePeer slow = peers[1];
+
+        nodes[2].close();
+        for (int i = 0; i < 200; i++)
+            nodes[0].shout("chat", new Frame(new byte[1]));
+        assertEquals(ZrePeer.State.PAUSED, slow.getState());
+        assertTrue(slow.getQueuedMessages() >= 50);
+        assertTrue(slow.getQueuedBytes() < 1 << 20);
+        assertEquals(0.0, slow.getFailureRate(), 0.0);
+    }
+
+    @Test
+    public void testStalledPeerFailsSends() throws Exception {
+        //  Limits only failed sends can pass
+        nodes[0].setPolicy(new ZrePolicy(1 << 20, 1L << 40, 1L << 40, 1L << 40, 1L << 40,
+            Long.MAX_VALUE, 0.5, 0.9));
+        ZrePeer[] peers = joinChat();
+        ZrePeer fast = peers[0];
+        ZrePeer slow = peers[1];
+
+        //  Once the stalled inbox is full, sends to it fail at once instead
+        //  of holding up the shout
+        nodes[2].close();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 2000; i++)
+            nodes[0].shout("chat", new Frame(new byte[1]));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(slow.getFailureRate() >= 0.9);
+        assertEquals(ZrePeer.State.PAUSED, slow.getState());
+
+        //  PINGs to a paused peer bring it back once it reads again
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fast.getState() != ZrePeer.State.HEALTHY) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            nodes[0].shout("chat", new Frame("wait"));
+            Thread.sleep(5);
+        }
+        assertEquals(ZrePeer.State.PAUSED, slow.getState());
+        assertEquals(1, nodes[0].shout("chat", new Frame("last")));
+    }
+
+    @Test
+    public void testFailedSendKeepsSequence() throws Exception {
+        Socket router = context.buildSocket(SocketType.ROUTER).bind("inproc://zre-stalled");
+        router.getZMQSocket().setReceiveTimeOut(1000);
+        ZreSocket inbox = new ZreSocket(router);
+        Socket dealer = context.buildSocket(SocketType.DEALER).connect("inproc://zre-stalled");
+        dealer.getZMQSocket().setSendTimeOut(0);
+        ZrePeer peer = new ZrePeer("inproc://zre-stalled", new ZreSocket(dealer));
+
+        //  Fill the queue of a peer that is not reading, then fail a WHISPER
+        //  and a batch
+        int sent = 0;
+        while (whisper(peer, "queued")) {
+            sent++;
+            assertTrue(sent < 100000);
+        }
+        assertFalse(whisper(peer, "lost"));
+        peer.batch(new Frame("lost"), 1 << 20, System.nanoTime());
+        peer.batch(new Frame("lost"), 1 << 20, System.nanoTime());
+        assertFalse(peer.flush());
+
+        //  What was queued has no gaps, and neither has what comes after
+        for (int i = 1; i <= sent; i++) {
+            assertEquals(ZreSocket.MessageType.WHISPER, inbox.receive());
+            assertEquals(Integer.valueOf(i), inbox.getWhisper().getSequence());
+        }
+        assertTrue(whisper(peer, "resumed"));
+        assertEquals(ZreSocket.MessageType.WHISPER, inbox.receive());
+        assertEquals(Integer.valueOf(sent + 1), inbox.getWhisper().getSequence());
+        assertEquals("resumed", inbox.getWhisper().getContent().getString());
+        peer.close();
+        inbox.close();
+    }
+
+    private static boolean whisper(ZrePeer peer, String content) {
+        WhisperMessage message = new WhisperMessage();
+        message.setContent(new Frame(content));
+        return peer.send(message);
+    }
+
+    //  Connect node 0 to nodes 1 and 2 in the chat group
+    private ZrePeer[] joinChat() throws InterruptedException {
+        nodes[1].join("chat");
+        nodes[2].join("chat");
+        nodes[0].connect(nodes[1].getEndpoint());
+        nodes[0].connect(nodes[2].getEndpoint());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (nodes[0].getPeers("chat").length < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        return new ZrePeer[] {
+            nodes[0].getPeer(nodes[1].getIdentity()), nodes[0].getPeer(nodes[2].getIdentity())
+        };
+    }
+
+    @Test
+    public void testExpireSilentPeer() throws Exception {
+        nodes[0].setHeartbeat(50, 300);
+        nodes[0].connect(nodes[1].getEndpoint());
+        await(1, nodes[0]);
+
+        //  A node that stops reading its inbox never answers the PING
+        nodes[1].close();
+        await("exit", events[0].log);
+        assertEquals(0, nodes[0].getPeers().size());
+    }
+}
@@ -0,0 +1,68 @@
+package org.zyre;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+/**
+ * Test ZreTimingWheel.
+ */
+public class ZreTimingWheelTest {
+    private final List<String> expired = new ArrayList<>();
+
+    private class Named extends ZreTimingWheel.Timer {
+        final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void expire(long now) {
+            expired.add(name);
+        }
+    }
+
+    @Test
+    public void testExpireInOrder() {
+        ZreTimingWheel wheel = new ZreTimingWheel(10, 16, 0);
+        Named a = new Named("a");
+        Named b = new Named("b");
+        Named c = new Named("c");
+        wheel.schedule(a, 50);
+        wheel.schedule(b, 25);
+        wheel.schedule(c, 500);         //  A later turn of the ring
+        assertEquals(3, wheel.size());
+
+        assertEquals(0, wheel.advance(19));
+        assertEquals(1, wheel.advance(30));
+        assertEquals(1, wheel.advance(160));
+        assertEquals("[b, a]", expired.toString());
+        assertTrue(c.isScheduled());
+
+        assertEquals(1, wheel.advance(500));
+        assertEquals("[b, a, c]", expired.toString());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testReschedule() {
+        ZreTimingWheel wheel = new ZreTimingWheel(10, 16, 0);
+        Named a = new Named("a");
+        wheel.schedule(a, 50);
+        wheel.advance(40);
+        wheel.schedule(a, 90);          //  Traffic moved the deadline
+        assertEquals(1, wheel.size());
+        assertEquals(0, wheel.advance(60));
+        assertEquals(1, wheel.advance(95));
+        assertEquals("[a]", expired.toString());
+
+        wheel.schedule(a, 120);
+        assertTrue(wheel.cancel(a));
+        assertFalse(wheel.cancel(a));
+        assertEquals(0, wheel.advance(1000));
+    }
+}